@@ -23,6 +23,7 @@ import java.util.Map;
 import java.io.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaMapBenchmark;
 
 public class HashTableBenchmark {
   private static final Log LOG = LogFactory.getLog(HashTableBenchmark.class);
@@ -210,6 +211,18 @@ public class HashTableBenchmark {
     LOG.info(" NOT PRESENT: " + (NUM_NODES - present));
   }
 
+  public void testReplicaMap() {
+    LOG.info("+++++++++++++++++++++++++++++++++++++++++++++++++++++");
+    LOG.info("------------------>REPLICA MAPS------------------>");
+    long[] blockIds = new long[NUM_NODES];
+    for (int i = 0; i < NUM_NODES; i++) {
+      blockIds[i] = ids[i];
+    }
+    ReplicaMapBenchmark b = new ReplicaMapBenchmark(blockIds);
+    b.testBlockMap();
+    b.testReplicaMap();
+  }
+
   public void testHashFunctions() {
     long start, stop;
     int[] map;
@@ -53,6 +53,9 @@ package org.apache.hadoop.hashtable;
  *    3 - HashTable with Cuckoo Hashing cr
  *    NOTICE - in all 4 cases "count" must be less than "capacity",
  *    as the rehashing mechanisms are not implemented.
+ * 4. testReplicaMap()
+ *    - the replica map of the datanode against a HashMap of Block objects
+ *      (linkedElements must be false)
  *
  */
 import junit.framework.TestCase;
@@ -79,4 +82,9 @@ public class TestHashTableBenchmark extends TestCase {
     t2.testMultiHashing(2);
     t2.testMultiHashing(3);
   }
+
+  public void testReplicaMap() throws Exception {
+    HashTableBenchmark t3 = new HashTableBenchmark("", 1, 1 * million, 2 * million, false);
+    t3.testReplicaMap();
+  }
 }
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSDir;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+
+/**
+ * Compare the heap taken and the put and get times of the replica map of
+ * the datanode with the map of block objects it replaced.
+ */
+public class ReplicaMapBenchmark {
+  private static final Log LOG = LogFactory.getLog(ReplicaMapBenchmark.class);
+
+  private static final int NAMESPACE_ID = 0;
+  private static final long GENSTAMP = 1001;
+  private static final int NUM_DIRS = 64;
+
+  /** The entry of a replica in the map of block objects */
+  private static class BlockFileInfo {
+    final FSVolume volume;
+    final File file;
+    boolean detached;
+
+    BlockFileInfo(FSVolume volume, File file) {
+      this.volume = volume;
+      this.file = file;
+    }
+  }
+
+  private final long[] ids;
+  private final FSDir[] dirs = new FSDir[NUM_DIRS];
+
+  public ReplicaMapBenchmark(long[] ids) {
+    this.ids = ids;
+    FSDataset dataset = new FSDataset();
+    for (int i = 0; i < dirs.length; i++) {
+      dirs[i] = dataset.new FSDir();
+      dirs[i].dir = new File("/data/current/subdir" + i);
+    }
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void report(String name, long memory, long putTime,
+      long getTime, int present, int count) {
+    LOG.info("------------->" + name + "-------------->");
+    LOG.info(" BYTES PER REPLICA: " + (count == 0 ? 0 : memory / count));
+    LOG.info(" PUT TIME: " + (putTime / 1000.0));
+    LOG.info(" GET TIME: " + (getTime / 1000.0));
+    LOG.info(" NOT PRESENT: " + (count - present));
+  }
+
+  /**
+   * Put every id into a map of block objects to their files, and look
+   * them up again.
+   */
+  public void testBlockMap() {
+    long before = usedMemory();
+    long start = System.currentTimeMillis();
+    Map<Block, BlockFileInfo> map = new HashMap<Block, BlockFileInfo>();
+    for (int i = 0; i < ids.length; i++) {
+      File file = new File(dirs[i % NUM_DIRS].getDirectory(),
+          Block.BLOCK_FILE_PREFIX + ids[i]);
+      map.put(new Block(ids[i], 0, GENSTAMP), new BlockFileInfo(null, file));
+    }
+    long putTime = System.currentTimeMillis() - start;
+    long memory = usedMemory() - before;
+
+    start = System.currentTimeMillis();
+    int present = 0;
+    Block b = new Block();
+    for (int i = 0; i < ids.length; i++) {
+      b.set(ids[i], 0, GENSTAMP);
+      BlockFileInfo info = map.get(b);
+      if (info != null && info.file != null) {
+        present++;
+      }
+    }
+    long getTime = System.currentTimeMillis() - start;
+    report("BLOCK MAP", memory, putTime, getTime, present, map.size());
+  }
+
+  /**
+   * Put every id into the replica map of the datanode, and look them up
+   * again, building their files.
+   */
+  public void testReplicaMap() {
+    long before = usedMemory();
+    long start = System.currentTimeMillis();
+    VolumeMap map = new VolumeMap(1);
+    map.initNamespace(NAMESPACE_ID);
+    for (int i = 0; i < ids.length; i++) {
+      map.add(NAMESPACE_ID, new Block(ids[i], 0, GENSTAMP),
+          new DatanodeBlockInfo(dirs[i % NUM_DIRS], ids[i], false));
+    }
+    long putTime = System.currentTimeMillis() - start;
+    long memory = usedMemory() - before;
+
+    start = System.currentTimeMillis();
+    int present = 0;
+    Block b = new Block();
+    for (int i = 0; i < ids.length; i++) {
+      b.set(ids[i], 0, GENSTAMP);
+      DatanodeBlockInfo info = map.get(NAMESPACE_ID, b);
+      if (info != null && info.getFile() != null) {
+        present++;
+      }
+    }
+    long getTime = System.currentTimeMillis() - start;
+    report("REPLICA MAP", memory, putTime, getTime, present,
+        map.size(NAMESPACE_ID));
+    LOG.info(" ESTIMATED BYTES PER REPLICA: "
+        + map.getMemoryUsage(NAMESPACE_ID) / Math.max(1, ids.length));
+  }
+}
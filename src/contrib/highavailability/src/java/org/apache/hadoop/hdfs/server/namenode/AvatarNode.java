@@ -35,6 +35,8 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 
@@ -150,6 +152,14 @@ public class AvatarNode extends NameNode
   private InvalidatesCleaner cleaner;      // The thread cleaning up invalidates
   private Thread cleanerThread;
 
+  // storage ids of the datanodes whose full block report has been
+  // processed since they last registered with this node
+  private final Set<String> reportedDatanodes =
+    Collections.synchronizedSet(new HashSet<String>());
+  // storage ids of the datanodes asked for a block report at failover
+  private final Set<String> requestedReports =
+    Collections.synchronizedSet(new HashSet<String>());
+
   private RunInfo runInfo;
 
   AvatarNode(Configuration conf) throws IOException {
@@ -289,6 +299,57 @@ public class AvatarNode extends NameNode
     return this.standby.getLagBytes();
   }
 
+  @Override
+  public long getLagTransactions() {
+    if (this.standby == null)
+    return 0;
+    return this.standby.getLagTransactions();
+  }
+
+  @Override
+  public long getLagSeconds() {
+    if (this.standby == null)
+    return 0;
+    return this.standby.getLagSeconds();
+  }
+
+  @Override
+  public boolean getReadyForFailover() {
+    return getFailoverBlocker() == null;
+  }
+
+  /**
+   * Returns why the standby cannot take over without first waiting for
+   * block reports, or null if it can. That is the case once it has
+   * ingested the transaction log and every live datanode has sent it a
+   * full block report since registering, so that its blocks map is kept
+   * current by the incremental reports.
+   */
+  public String getFailoverBlocker() {
+    if (currentAvatar != Avatar.STANDBY) {
+      return "the node is " + currentAvatar;
+    }
+    if (standby == null || standby.fellBehind()) {
+      return "the standby is catching up with the transaction log";
+    }
+    int unreported = getUnreportedDatanodes().size();
+    if (unreported > 0) {
+      return unreported + " live datanodes have not sent a block report";
+    }
+    return null;
+  }
+
+  private List<DatanodeDescriptor> getUnreportedDatanodes() {
+    List<DatanodeDescriptor> unreported = new ArrayList<DatanodeDescriptor>();
+    for (DatanodeDescriptor node :
+         namesystem.getDatanodeListForReport(DatanodeReportType.LIVE)) {
+      if (!reportedDatanodes.contains(node.getStorageID())) {
+        unreported.add(node);
+      }
+    }
+    return unreported;
+  }
+
   /**
    * Initialize AvatarNode
    * @param conf the configuration
@@ -380,6 +441,11 @@ public class AvatarNode extends NameNode
       } catch (Exception ex) {
         throw new IOException("Cancelling setAvatar because of Exception", ex);
       }
+      long startTime = now();
+      String blocker = getFailoverBlocker();
+      if (blocker != null) {
+        LOG.warn("Failing over without a current blocks map, " + blocker);
+      }
       if (standby.hasStaleCheckpoint()) {
         String msg = "Failed to change avatar from " + currentAvatar + 
                      " to " + avatar +
@@ -401,8 +467,16 @@ public class AvatarNode extends NameNode
         confg.getInt("dfs.max.buffered.transactions", 
             HdfsConstants.DEFAULT_MAX_BUFFERED_TRANSACTIONS);
       FSEditLog.setMaxBufferedTransactions(maxStandbyBufferedTransactions);
+      // only the datanodes that have not reported yet are asked for a
+      // block report, through their next heartbeat
+      for (DatanodeDescriptor node : getUnreportedDatanodes()) {
+        requestedReports.add(node.getStorageID());
+      }
       super.namesystem.setSafeModeManualOverride(false);
       setSafeMode(SafeModeAction.SAFEMODE_LEAVE);
+      LOG.info("Failover took " + (now() - startTime) + " msec, " +
+               requestedReports.size() + " datanodes were asked for a " +
+               "block report");
     }
     LOG.info("Changed avatar from " + currentAvatar + 
              " to " + avatar);
@@ -478,6 +552,16 @@ public class AvatarNode extends NameNode
     DatanodeCommand[] cmds = super.sendHeartbeat(
             registration, capacity, dfsUsed, remaining, namespaceUsed,
             xmitsInProgress, xceiverCount);
+    if (!requestedReports.isEmpty() &&
+        requestedReports.remove(registration.getStorageID())) {
+      // registering again makes the datanode send a block report now
+      if (cmds == null) {
+        return new DatanodeCommand[]{DatanodeCommand.REGISTER};
+      }
+      DatanodeCommand[] newCmds = Arrays.copyOf(cmds, cmds.length+1);
+      newCmds[cmds.length] = DatanodeCommand.REGISTER;
+      return newCmds;
+    }
     if (ignoreDatanodes()) {
       if (cmds == null) {
         return new DatanodeCommand[]{AvatarDatanodeCommand.BACKOFF};
@@ -501,7 +585,17 @@ public class AvatarNode extends NameNode
       // Do not process block reports yet as the ingest thread is catching up
       return AvatarDatanodeCommand.BACKOFF;
     }
-    return super.blockReport(nodeReg, rep);
+    DatanodeCommand cmd = super.blockReport(nodeReg, rep);
+    reportedDatanodes.add(nodeReg.getStorageID());
+    return cmd;
+  }
+
+  @Override
+  public DatanodeRegistration register(DatanodeRegistration nodeReg
+                                       ) throws IOException {
+    DatanodeRegistration reg = super.register(nodeReg);
+    reportedDatanodes.remove(reg.getStorageID());
+    return reg;
   }
 
   /**
@@ -31,10 +31,15 @@ import java.io.DataInputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.lang.Thread;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Collection;
+import java.util.List;
 import java.text.SimpleDateFormat;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.CheckedInputStream;
@@ -92,6 +97,23 @@ public class Ingest implements Runnable {
   long currentPosition; // current offset in the transaction log
   final FSNamesystem fsNamesys;
 
+  // the pipeline between the reader and the applier
+  private final int queueSize;
+  private final int batchSize;
+  private BlockingQueue<Transaction> queue;
+  volatile private Throwable readerError;
+  volatile private boolean applyError;
+  volatile private boolean applierDone;
+  volatile private boolean lastScanStarted;
+  volatile private boolean lastScanDone;
+
+  // how far the applier is behind the reader and the log
+  volatile private long appliedPosition; // offset after the last applied
+  volatile private long txnsRead;
+  volatile private long txnsApplied;
+  volatile private boolean readerAtEnd = false;
+  volatile private long caughtUpTime = FSNamesystem.now();
+
   Ingest(Standby standby, FSNamesystem ns, Configuration conf, File edits) 
   throws IOException {
     this.fsNamesys = ns;
@@ -99,6 +121,8 @@ public class Ingest implements Runnable {
     this.confg = conf;
     this.ingestFile = edits;
     catchUpLag = conf.getLong("avatar.catchup.lag", 2 * 1024 * 1024L);
+    queueSize = conf.getInt("avatar.ingest.queue.size", 10000);
+    batchSize = conf.getInt("avatar.ingest.batch.size", 1000);
   }
 
   public void run() {
@@ -186,18 +210,38 @@ public class Ingest implements Runnable {
   public long getLagBytes() {
     try {
       return this.fc == null ? -1 :
-        (this.fc.size() - this.fc.position());
+        (this.fc.size() - appliedPosition);
     } catch (IOException ex) {
       LOG.error("Error getting the lag", ex);
       return -1;
     }
   }
 
+  /**
+   * Returns the number of transactions read from the edits log but not
+   * applied yet. The reader only runs a bounded distance ahead, so the
+   * standby may be further behind than this when it is catching up.
+   */
+  public long getLagTransactions() {
+    return txnsRead - txnsApplied;
+  }
+
+  /**
+   * Returns the number of seconds since every transaction in the edits
+   * log was last applied, or zero if they all are.
+   */
+  public long getLagSeconds() {
+    if (readerAtEnd && txnsRead == txnsApplied) {
+      return 0;
+    }
+    return (FSNamesystem.now() - caughtUpTime) / 1000;
+  }
+
   /**
    * Load an edit log, and continue applying the changes to the in-memory 
    * structure. This is where we ingest transactions into the standby.
    */
-  private int loadFSEdits(File edits) throws IOException {
+  int loadFSEdits(File edits) throws IOException {
     FSDirectory fsDir = fsNamesys.dir;
     int numEdits = 0;
     int logVersion = 0;
@@ -241,6 +285,7 @@ public class Ingest implements Runnable {
       assert logVersion <= Storage.LAST_UPGRADABLE_LAYOUT_VERSION :
                             "Unsupported version " + logVersion;
       currentPosition = fc.position();
+      appliedPosition = currentPosition;
       numEdits = ingestFSEdits(edits, in, logVersion); // continue to ingest 
     } finally {
       LOG.info("Ingest: Closing transactions file " + edits);
@@ -273,19 +318,191 @@ public class Ingest implements Runnable {
    * Continue to ingest transaction logs until the currentState is 
    * no longer INGEST. If lastScan is set to true, then we process 
    * till the end of the file and return.
+   * <p>
+   * Ingestion is a pipeline: a reader thread decodes transactions from
+   * the log into a bounded queue while this thread applies them in
+   * batches, taking the namesystem lock once per batch.
    */
-  int ingestFSEdits(File fname, DataInputStream in, 
-                    int logVersion) throws IOException {
+  int ingestFSEdits(final File fname, DataInputStream in, 
+                    final int logVersion) throws IOException {
+    long startTime = FSNamesystem.now();
+    int numEdits = 0;
+    while (true) {
+      numEdits += pipeFSEdits(fname, in, logVersion);
+      if (!applyError) {
+        break;
+      }
+      if (lastScanStarted) {
+        // This was the last scan of the file but we could not apply a
+        // transaction. If we proceed this will corrupt the image
+        throw new IOException("Failed to apply the edits log. " +
+              "Transaction at " + appliedPosition + " failed");
+      }
+      // read the transaction that failed again, and apply it once more
+      // after a while, like one that could not be read
+      fc.position(appliedPosition);
+      currentPosition = appliedPosition;
+      txnsRead = txnsApplied;
+      in = new DataInputStream(fp);
+      LOG.info("Ingest: Could not apply the transaction at offset " +
+               appliedPosition + ". Continuing....");
+      if (running && !lastScan) {
+        try {
+          Thread.sleep(1000); // sleep for a second
+        } catch (InterruptedException e) {
+          // break out of waiting if we receive an interrupt.
+        }
+      }
+    }
+    LOG.info("Ingest: Edits file " + fname.getName() +
+      " numedits " + numEdits +
+      " loaded in " + (FSNamesystem.now()-startTime)/1000 + " seconds.");
+
+    // If the last Scan was completed, then stop the Ingest thread.
+    if (lastScanDone) {
+      LOG.info("Ingest: lastScan completed.");
+      running = false;
+    }
+    return numEdits; // total transactions consumed
+  }
+
+  /**
+   * Run the reader and the applier over the log from the current
+   * position until the reader is done, ingest is stopped or a transaction
+   * could not be applied.
+   */
+  private int pipeFSEdits(final File fname, final DataInputStream in,
+                          final int logVersion) throws IOException {
+    queue = new ArrayBlockingQueue<Transaction>(queueSize);
+    readerError = null;
+    applyError = false;
+    applierDone = false;
+    lastScanStarted = false;
+    lastScanDone = false;
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          readFSEdits(fname, in, logVersion);
+        } catch (Throwable t) {
+          readerError = t;
+        } finally {
+          enqueue(END);
+        }
+      }
+    }, "Ingest reader for " + fname.getName());
+    reader.setDaemon(true);
+    reader.start();
+
+    try {
+      return applyTransactions();
+    } finally {
+      applierDone = true;
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        LOG.warn("Ingest: interrupted waiting for the reader to exit");
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Take decoded transactions off the queue and apply them to the
+   * namespace, a batch at a time, until the reader is done, ingest is
+   * stopped or a transaction could not be applied.
+   */
+  private int applyTransactions() throws IOException {
     FSDirectory fsDir = fsNamesys.dir;
+    List<Transaction> batch = new ArrayList<Transaction>(batchSize);
     int numEdits = 0;
-    String clientName = null;
-    String clientMachine = null;
-    String path = null;
-    int numOpAdd = 0, numOpClose = 0, numOpDelete = 0,
-        numOpRename = 0, numOpSetRepl = 0, numOpMkDir = 0,
-        numOpSetPerm = 0, numOpSetOwner = 0, numOpSetGenStamp = 0,
-        numOpTimes = 0, numOpConcatDelete = 0, numOpOther = 0;
-    long startTime = FSNamesystem.now();
+    boolean end = false;
+    while (running && !end) {
+      Transaction first;
+      try {
+        first = queue.poll(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        continue; // check whether we were stopped
+      }
+      if (first == null) {
+        continue;
+      }
+      batch.clear();
+      batch.add(first);
+      queue.drainTo(batch, batchSize - 1);
+
+      fsNamesys.writeLock();
+      try {
+        for (Transaction txn : batch) {
+          if (txn == END) {
+            end = true;
+            break;
+          }
+          try {
+            applyTransaction(fsDir, txn);
+            if (txn.checksum != FSEditLog.getChecksumForWrite().getValue()) {
+              throw new IOException(
+                  "Ingest: mismatched r/w checksums for transaction #" +
+                  txnsApplied);
+            }
+          } catch (IOException e) {
+            LOG.info("Encountered error applying transaction", e);
+            applyError = true;
+            end = true;
+            break;
+          }
+          numEdits++;
+          txnsApplied++;
+          appliedPosition = txn.endPosition;
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Ingest: Processed transaction opcode " + txn.opcode +
+                      " file offset " + txn.position);
+          }
+        }
+      } finally {
+        fsDir.fsImage.getEditLog().logSyncIfNeeded();
+        fsNamesys.writeUnlock();
+      }
+      if (readerAtEnd && queue.isEmpty()) {
+        caughtUpTime = FSNamesystem.now();
+      }
+    }
+    if (end && !applyError && readerError != null) {
+      if (readerError instanceof IOException) {
+        throw (IOException)readerError;
+      }
+      throw new IOException("Ingest: failed to read " + ingestFile,
+                            readerError);
+    }
+    return numEdits;
+  }
+
+  /**
+   * Hand a decoded transaction to the applier. Returns false if the
+   * applier has quit and will not take it.
+   */
+  private boolean enqueue(Transaction txn) {
+    try {
+      while (!applierDone) {
+        if (queue.offer(txn, 1, TimeUnit.SECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private boolean readerRunning() {
+    return running && !applierDone;
+  }
+
+  /**
+   * Decode transactions from the log and queue them for the applier.
+   * This runs in the reader thread.
+   */
+  private void readFSEdits(File fname, DataInputStream in, 
+                           int logVersion) throws IOException {
     boolean error = false;
     boolean quitAfterScan = false;
 
@@ -298,7 +515,7 @@ public class Ingest implements Runnable {
       in = new DataInputStream(new CheckedInputStream(fp, checksum));
     }
 
-    while (running && !quitAfterScan) {
+    while (readerRunning() && !quitAfterScan) {
 
       // if the application requested that we make a final pass over 
       // the transaction log, then we remember it here. We close and
@@ -310,6 +527,7 @@ public class Ingest implements Runnable {
         if (lastScan) {
           LOG.info("Ingest: Starting last scan of transaction log " + fname);
           quitAfterScan = true;
+          lastScanStarted = true;
         }
         fp.close();
         rp = new RandomAccessFile(fname, "r");
@@ -318,7 +536,7 @@ public class Ingest implements Runnable {
 
         // discard older buffers and start a fresh one.
         fc.position(currentPosition);
-        catchingUp = (fc.size() - fc.position() > catchUpLag);
+        catchingUp = (fc.size() - appliedPosition > catchUpLag);
         in = rawIn = new DataInputStream(fp);
         if (supportChecksum) {
           in = new DataInputStream(new CheckedInputStream(fp, checksum));
@@ -366,369 +584,53 @@ public class Ingest implements Runnable {
       }
 
       //
-      // Process all existing transactions till end of file
+      // Decode all existing transactions till end of file
       //
-      while (running) {
+      while (readerRunning()) {
         currentPosition = fc.position(); // record the current file offset.
         checksum.reset();
-        fsNamesys.writeLock();
+        error = false;
+        Transaction txn;
         try {
-          long timestamp = 0;
-          long mtime = 0;
-          long atime = 0;
-          long blockSize = 0;
-          byte opcode = -1;
-          error = false;
-          try {
-            opcode = in.readByte();
-            if (opcode == OP_INVALID) {
-              FSNamesystem.LOG.debug("Ingest: Invalid opcode, reached end of log " +
-                                     "Number of transactions found " + 
-                                     numEdits);
-              break; // No more transactions.
-            }
-          } catch (EOFException e) {
-            break; // No more transactions.
-          }
-          switch (opcode) {
-          case OP_ADD:
-          case OP_CLOSE: {
-          // versions > 0 support per file replication
-          // get name and replication
-          int length = in.readInt();
-          if (-7 == logVersion && length != 3||
-              -17 < logVersion && logVersion < -7 && length != 4 ||
-              logVersion <= -17 && length != 5) {
-              throw new IOException("Ingest: Incorrect data format."  +
-                                    " logVersion is " + logVersion +
-                                    " but writables.length is " +
-                                    length + ". ");
-          }
-          path = FSImage.readString(in);
-          short replication = readShort(in);
-          mtime = readLong(in);
-          if (logVersion <= -17) {
-            atime = readLong(in);
-          }
-          if (logVersion < -7) {
-            blockSize = readLong(in);
-          }
-          // get blocks
-          Block blocks[] = null;
-          if (logVersion <= -14) {
-            blocks = readBlocks(in);
-          } else {
-            BlockTwo oldblk = new BlockTwo();
-            int num = in.readInt();
-            blocks = new Block[num];
-            for (int i = 0; i < num; i++) {
-              oldblk.readFields(in);
-              blocks[i] = new Block(oldblk.blkid, oldblk.len, 
-                                    Block.GRANDFATHER_GENERATION_STAMP);
-            }
-          }
-
-          // Older versions of HDFS does not store the block size in inode.
-          // If the file has more than one block, use the size of the
-          // first block as the blocksize. Otherwise use the default
-          // block size.
-          if (-8 <= logVersion && blockSize == 0) {
-            if (blocks.length > 1) {
-              blockSize = blocks[0].getNumBytes();
-            } else {
-              long first = ((blocks.length == 1)? blocks[0].getNumBytes(): 0);
-              blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
-            }
-          }
-           
-          PermissionStatus permissions = fsNamesys.getUpgradePermission();
-          if (logVersion <= -11) {
-            permissions = PermissionStatus.read(in);
-          }
-
-          // clientname, clientMachine and block locations of last block.
-          if (opcode == OP_ADD && logVersion <= -12) {
-            clientName = FSImage.readString(in);
-            clientMachine = FSImage.readString(in);
-            if (-13 <= logVersion) {
-              readDatanodeDescriptorArray(in);
-            }
-          } else {
-            clientName = "";
-            clientMachine = "";
-          }
-
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          // The open lease transaction re-creates a file if necessary.
-          // Delete the file if it already exists.
-          if (FSNamesystem.LOG.isDebugEnabled()) {
-            FSNamesystem.LOG.debug(opcode + ": " + path + 
-                                   " numblocks : " + blocks.length +
-                                   " clientHolder " +  clientName +
-                                   " clientMachine " + clientMachine);
-          }
-
-          fsDir.unprotectedDelete(path, mtime);
-
-          // add to the file tree
-          INodeFile node = (INodeFile)fsDir.unprotectedAddFile(
-                                                    path, permissions,
-                                                    blocks, replication, 
-                                                    mtime, atime, blockSize);
-          if (opcode == OP_ADD) {
-            numOpAdd++;
-            //
-            // Replace current node with a INodeUnderConstruction.
-            // Recreate in-memory lease record.
-            //
-            INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
-                                      node.getLocalNameBytes(),
-                                      node.getReplication(), 
-                                      node.getModificationTime(),
-                                      node.getPreferredBlockSize(),
-                                      node.getBlocks(),
-                                      node.getPermissionStatus(),
-                                      clientName, 
-                                      clientMachine, 
-                                      null);
-            fsDir.replaceNode(path, node, cons);
-            fsNamesys.leaseManager.addLease(cons.clientName, path);
-            fsDir.fsImage.getEditLog().logOpenFile(path, cons);
-            } else {
-              fsDir.fsImage.getEditLog().logCloseFile(path, node);
-            }
-            break;
-          } 
-          case OP_SET_REPLICATION: {
-          numOpSetRepl++;
-          path = FSImage.readString(in);
-          short replication = readShort(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsDir.unprotectedSetReplication(path, replication, null);
-          fsDir.fsImage.getEditLog().logSetReplication(path, replication);
-          break;
-          } 
-
-          case OP_CONCAT_DELETE: {
-          numOpConcatDelete++;
-          int length = in.readInt();
-          if (length < 3) { // trg, srcs.., timestam
-            throw new IOException("Incorrect data format. "
-                                  + "Concat operation.");
-          }
-          String trg = FSImage.readString(in);
-          int srcSize = length - 1 - 1; //trg and timestamp
-          String [] srcs = new String [srcSize];
-          for(int i=0; i<srcSize;i++) {
-            srcs[i]= FSImage.readString(in);
-          }
-          timestamp = readLong(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsDir.unprotectedConcat(trg, srcs, timestamp);
-          fsDir.fsImage.getEditLog().logConcat(trg, srcs, timestamp);
-          break;
-          }
-
-          case OP_RENAME: {
-          numOpRename++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Ingest: Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
-          String s = FSImage.readString(in);
-          String d = FSImage.readString(in);
-          timestamp = readLong(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          HdfsFileStatus dinfo = fsDir.getHdfsFileInfo(d);
-          fsDir.unprotectedRenameTo(s, d, timestamp);
-          fsNamesys.changeLease(s, d, dinfo);
-          fsDir.fsImage.getEditLog().logRename(s, d, timestamp);
-          break;
-          }
-          case OP_DELETE: {
-          numOpDelete++;
-          int length = in.readInt();
-          if (length != 2) {
-            throw new IOException("Ingest: Incorrect data format. " 
-                                  + "delete operation.");
-          }
-          path = FSImage.readString(in);
-          timestamp = readLong(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsDir.unprotectedDelete(path, timestamp);
-          fsDir.fsImage.getEditLog().logDelete(path, timestamp);
-          break;
-          }
-          case OP_MKDIR: {
-          numOpMkDir++;
-          PermissionStatus permissions = fsNamesys.getUpgradePermission();
-          int length = in.readInt();
-          if (-17 < logVersion && length != 2 ||
-              logVersion <= -17 && length != 3) {
-            throw new IOException("Ingest: Incorrect data format. " 
-                                  + "Mkdir operation.");
-          }
-          path = FSImage.readString(in);
-          timestamp = readLong(in);
-
-          // The disk format stores atimes for directories as well.
-          // However, currently this is not being updated/used because of
-          // performance reasons.
-          if (logVersion <= -17) {
-            atime = readLong(in);
-          }
-
-          if (logVersion <= -11) {
-            permissions = PermissionStatus.read(in);
-          }
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          INode inode = fsDir.unprotectedMkdir(path, permissions, timestamp);
-          fsDir.fsImage.getEditLog().logMkDir(path, inode);
-          break;
-          }
-          case OP_SET_GENSTAMP: {
-          numOpSetGenStamp++;
-          long lw = in.readLong();
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsNamesys.setGenerationStamp(lw);
-          fsDir.fsImage.getEditLog().logGenerationStamp(lw);
-          break;
-          } 
-          case OP_DATANODE_ADD: {
-          numOpOther++;
-          FSImage.DatanodeImage nodeimage = new FSImage.DatanodeImage();
-          nodeimage.readFields(in);
-          //Datnodes are not persistent any more.
-          break;
-          }
-          case OP_DATANODE_REMOVE: {
-          numOpOther++;
-          DatanodeID nodeID = new DatanodeID();
-          nodeID.readFields(in);
-          //Datanodes are not persistent any more.
-          break;
-          }
-          case OP_SET_PERMISSIONS: {
-          numOpSetPerm++;
-          if (logVersion > -11)
-            throw new IOException("Ingest: Unexpected opcode " + opcode
-                                  + " for version " + logVersion);
-          path = FSImage.readString(in);
-          FsPermission permission = FsPermission.read(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsDir.unprotectedSetPermission(path, permission);
-          fsDir.fsImage.getEditLog().logSetPermissions(path, permission);
-          break;
-          }
-          case OP_SET_OWNER: {
-          numOpSetOwner++;
-          if (logVersion > -11)
-            throw new IOException("Ingest: Unexpected opcode " + opcode
-                                  + " for version " + logVersion);
-          path = FSImage.readString(in);
-          String username = FSImage.readString_EmptyAsNull(in);
-          String groupname = FSImage.readString_EmptyAsNull(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsDir.unprotectedSetOwner(path, username, groupname);
-          fsDir.fsImage.getEditLog().logSetOwner(path, username, groupname);
-          break;
-          }
-          case OP_SET_NS_QUOTA: {
-          if (logVersion > -16) {
-            throw new IOException("Ingest: Unexpected opcode " + opcode
-                + " for version " + logVersion);
-          }
-          path = FSImage.readString(in);
-          long nsQuota = readLongWritable(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          INodeDirectory dir = fsDir.unprotectedSetQuota(path, 
-                                    nsQuota, 
-                                    FSConstants.QUOTA_DONT_SET);
-          fsDir.fsImage.getEditLog().logSetQuota(path, dir.getNsQuota(), 
-              dir.getDsQuota());
-          break;
-          }
-          case OP_CLEAR_NS_QUOTA: {
-          if (logVersion > -16) {
-            throw new IOException("Ingest: Unexpected opcode " + opcode
-                + " for version " + logVersion);
-          }
-          path = FSImage.readString(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          INodeDirectory dir = fsDir.unprotectedSetQuota(path,
-                                    FSConstants.QUOTA_RESET,
-                                    FSConstants.QUOTA_DONT_SET);
-          fsDir.fsImage.getEditLog().logSetQuota(path, dir.getNsQuota(), 
-              dir.getDsQuota());
-          break;
-          }
-
-          case OP_SET_QUOTA:
-            String src = FSImage.readString(in);
-            long nsQuota = readLongWritable(in);
-            long dsQuota = readLongWritable(in);
-            FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-            INodeDirectory dir = fsDir.unprotectedSetQuota(src,
-                                    nsQuota, dsQuota);
-          fsDir.fsImage.getEditLog().logSetQuota(src, dir.getNsQuota(), 
-              dir.getDsQuota());
-                                      
-          break;
-
-          case OP_TIMES: {
-          numOpTimes++;
-          int length = in.readInt();
-          if (length != 3) {
-            throw new IOException("Ingest: Incorrect data format. " 
-                                  + "times operation.");
-          }
-          path = FSImage.readString(in);
-          mtime = readLong(in);
-          atime = readLong(in);
-          FSEditLog.validateChecksum(supportChecksum, rawIn, checksum, numEdits);
-          fsDir.unprotectedSetTimes(path, mtime, atime, true);
-          fsDir.fsImage.getEditLog().logTimes(path, mtime, atime);
-          break;
-          }
-          default: {
-          throw new IOException("Ingest: Never seen opcode " + opcode);
-          }
-          }
-          if (checksum.getValue() != FSEditLog.getChecksumForWrite().getValue()) {
-            throw new IOException(
-                "Ingest: mismatched r/w checksums for transaction #" + numEdits);
-          }
-          numEdits++;
-          LOG.info("Ingest: Processed transaction from " + fname + " opcode " + opcode +
-                   " file offset " + currentPosition);
-        }
-        catch (ChecksumException cex) {
-          LOG.info("Checksum error reading the transaction #" + numEdits +
+          txn = readTransaction(in, rawIn, logVersion, supportChecksum,
+                                checksum);
+        } catch (ChecksumException cex) {
+          LOG.info("Checksum error reading the transaction #" + txnsRead +
                    " reopening the file");
           reopen = true;
-        }
-        catch (IOException e) {
+          break;
+        } catch (IOException e) {
           LOG.info("Encountered error reading transaction", e);
           error = true; // if we haven't reached eof, then error.
           break;
-        } finally {
-          fsDir.fsImage.getEditLog().logSyncIfNeeded();
-          fsNamesys.writeUnlock();
         }
+        if (txn == null) {
+          break; // No more transactions.
+        }
+        txn.position = currentPosition;
+        txn.endPosition = fc.position();
+        txn.checksum = checksum.getValue();
+        readerAtEnd = false;
+        txnsRead++;
+        if (!enqueue(txn)) {
+          return; // the applier has quit
+        }
+      }
+      readerAtEnd = true;
+      if (txnsRead == txnsApplied) {
+        caughtUpTime = FSNamesystem.now();
       }
-      
    
       // if we failed to read the entire transaction from disk, 
       // then roll back to the offset where there was a last good 
       // read, sleep for sometime for new transaction to
       // appear in the file and then continue;
       //
-      if (error || running) {
+      if (error || readerRunning()) {
 
         // discard older buffers and start a fresh one.
         fc.position(currentPosition);
-        catchingUp = (fc.size() - fc.position() > catchUpLag);
+        catchingUp = (fc.size() - appliedPosition > catchUpLag);
         in = rawIn = new DataInputStream(fp);
         if (supportChecksum) {
           in = new DataInputStream(new CheckedInputStream(fp, checksum));
@@ -741,7 +643,7 @@ public class Ingest implements Runnable {
                    ". Continuing....");
         }
 
-        if (running && !lastScan) {
+        if (readerRunning() && !lastScan) {
           try {
             Thread.sleep(1000); // sleep for a second
           } catch (InterruptedException e) {
@@ -757,16 +659,395 @@ public class Ingest implements Runnable {
       throw new IOException("Failed to read the edits log. " + 
             "Incomplete transaction at " + currentPosition);
     }
-    LOG.info("Ingest: Edits file " + fname.getName() +
-      " numedits " + numEdits +
-      " loaded in " + (FSNamesystem.now()-startTime)/1000 + " seconds.");
-
-    // If the last Scan was completed, then stop the Ingest thread.
     if (lastScan && quitAfterScan) {
-      LOG.info("Ingest: lastScan completed.");
-      running = false;
+      lastScanDone = true;
+    }
+  }
+
+  /**
+   * Decode the next transaction from the log.
+   * Returns null when the end of the log has been reached.
+   */
+  private Transaction readTransaction(DataInputStream in,
+      DataInputStream rawIn, int logVersion, boolean supportChecksum,
+      Checksum checksum) throws IOException {
+    byte opcode;
+    try {
+      opcode = in.readByte();
+      if (opcode == OP_INVALID) {
+        FSNamesystem.LOG.debug("Ingest: Invalid opcode, reached end of log " +
+                               "Number of transactions found " + txnsRead);
+        return null; // No more transactions.
+      }
+    } catch (EOFException e) {
+      return null; // No more transactions.
+    }
+    Transaction txn = new Transaction(opcode);
+    switch (opcode) {
+    case OP_ADD:
+    case OP_CLOSE: {
+    // versions > 0 support per file replication
+    // get name and replication
+    int length = in.readInt();
+    if (-7 == logVersion && length != 3||
+        -17 < logVersion && logVersion < -7 && length != 4 ||
+        logVersion <= -17 && length != 5) {
+        throw new IOException("Ingest: Incorrect data format."  +
+                              " logVersion is " + logVersion +
+                              " but writables.length is " +
+                              length + ". ");
+    }
+    txn.path = FSImage.readString(in);
+    txn.replication = readShort(in);
+    txn.mtime = readLong(in);
+    if (logVersion <= -17) {
+      txn.atime = readLong(in);
+    }
+    if (logVersion < -7) {
+      txn.blockSize = readLong(in);
+    }
+    // get blocks
+    Block blocks[] = null;
+    if (logVersion <= -14) {
+      blocks = readBlocks(in);
+    } else {
+      BlockTwo oldblk = new BlockTwo();
+      int num = in.readInt();
+      blocks = new Block[num];
+      for (int i = 0; i < num; i++) {
+        oldblk.readFields(in);
+        blocks[i] = new Block(oldblk.blkid, oldblk.len, 
+                              Block.GRANDFATHER_GENERATION_STAMP);
+      }
+    }
+    txn.blocks = blocks;
+
+    // Older versions of HDFS does not store the block size in inode.
+    // If the file has more than one block, use the size of the
+    // first block as the blocksize. Otherwise use the default
+    // block size.
+    if (-8 <= logVersion && txn.blockSize == 0) {
+      if (blocks.length > 1) {
+        txn.blockSize = blocks[0].getNumBytes();
+      } else {
+        long first = ((blocks.length == 1)? blocks[0].getNumBytes(): 0);
+        txn.blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
+      }
+    }
+     
+    txn.permissions = fsNamesys.getUpgradePermission();
+    if (logVersion <= -11) {
+      txn.permissions = PermissionStatus.read(in);
+    }
+
+    // clientname, clientMachine and block locations of last block.
+    if (opcode == OP_ADD && logVersion <= -12) {
+      txn.clientName = FSImage.readString(in);
+      txn.clientMachine = FSImage.readString(in);
+      if (-13 <= logVersion) {
+        readDatanodeDescriptorArray(in);
+      }
+    } else {
+      txn.clientName = "";
+      txn.clientMachine = "";
+    }
+    break;
+    } 
+    case OP_SET_REPLICATION: {
+    txn.path = FSImage.readString(in);
+    txn.replication = readShort(in);
+    break;
+    } 
+
+    case OP_CONCAT_DELETE: {
+    int length = in.readInt();
+    if (length < 3) { // trg, srcs.., timestam
+      throw new IOException("Incorrect data format. "
+                            + "Concat operation.");
+    }
+    txn.path = FSImage.readString(in);
+    int srcSize = length - 1 - 1; //trg and timestamp
+    txn.srcs = new String [srcSize];
+    for(int i=0; i<srcSize;i++) {
+      txn.srcs[i]= FSImage.readString(in);
+    }
+    txn.timestamp = readLong(in);
+    break;
+    }
+
+    case OP_RENAME: {
+    int length = in.readInt();
+    if (length != 3) {
+      throw new IOException("Ingest: Incorrect data format. " 
+                            + "Mkdir operation.");
+    }
+    txn.path = FSImage.readString(in);
+    txn.dst = FSImage.readString(in);
+    txn.timestamp = readLong(in);
+    break;
+    }
+    case OP_DELETE: {
+    int length = in.readInt();
+    if (length != 2) {
+      throw new IOException("Ingest: Incorrect data format. " 
+                            + "delete operation.");
+    }
+    txn.path = FSImage.readString(in);
+    txn.timestamp = readLong(in);
+    break;
+    }
+    case OP_MKDIR: {
+    txn.permissions = fsNamesys.getUpgradePermission();
+    int length = in.readInt();
+    if (-17 < logVersion && length != 2 ||
+        logVersion <= -17 && length != 3) {
+      throw new IOException("Ingest: Incorrect data format. " 
+                            + "Mkdir operation.");
+    }
+    txn.path = FSImage.readString(in);
+    txn.timestamp = readLong(in);
+
+    // The disk format stores atimes for directories as well.
+    // However, currently this is not being updated/used because of
+    // performance reasons.
+    if (logVersion <= -17) {
+      txn.atime = readLong(in);
+    }
+
+    if (logVersion <= -11) {
+      txn.permissions = PermissionStatus.read(in);
+    }
+    break;
+    }
+    case OP_SET_GENSTAMP: {
+    txn.genstamp = in.readLong();
+    break;
+    } 
+    case OP_DATANODE_ADD: {
+    FSImage.DatanodeImage nodeimage = new FSImage.DatanodeImage();
+    nodeimage.readFields(in);
+    //Datnodes are not persistent any more.
+    return txn;
+    }
+    case OP_DATANODE_REMOVE: {
+    DatanodeID nodeID = new DatanodeID();
+    nodeID.readFields(in);
+    //Datanodes are not persistent any more.
+    return txn;
+    }
+    case OP_SET_PERMISSIONS: {
+    if (logVersion > -11)
+      throw new IOException("Ingest: Unexpected opcode " + opcode
+                            + " for version " + logVersion);
+    txn.path = FSImage.readString(in);
+    txn.permission = FsPermission.read(in);
+    break;
+    }
+    case OP_SET_OWNER: {
+    if (logVersion > -11)
+      throw new IOException("Ingest: Unexpected opcode " + opcode
+                            + " for version " + logVersion);
+    txn.path = FSImage.readString(in);
+    txn.username = FSImage.readString_EmptyAsNull(in);
+    txn.groupname = FSImage.readString_EmptyAsNull(in);
+    break;
+    }
+    case OP_SET_NS_QUOTA: {
+    if (logVersion > -16) {
+      throw new IOException("Ingest: Unexpected opcode " + opcode
+          + " for version " + logVersion);
+    }
+    txn.path = FSImage.readString(in);
+    txn.nsQuota = readLongWritable(in);
+    txn.dsQuota = FSConstants.QUOTA_DONT_SET;
+    break;
+    }
+    case OP_CLEAR_NS_QUOTA: {
+    if (logVersion > -16) {
+      throw new IOException("Ingest: Unexpected opcode " + opcode
+          + " for version " + logVersion);
+    }
+    txn.path = FSImage.readString(in);
+    txn.nsQuota = FSConstants.QUOTA_RESET;
+    txn.dsQuota = FSConstants.QUOTA_DONT_SET;
+    break;
+    }
+
+    case OP_SET_QUOTA:
+      txn.path = FSImage.readString(in);
+      txn.nsQuota = readLongWritable(in);
+      txn.dsQuota = readLongWritable(in);
+      break;
+
+    case OP_TIMES: {
+    int length = in.readInt();
+    if (length != 3) {
+      throw new IOException("Ingest: Incorrect data format. " 
+                            + "times operation.");
+    }
+    txn.path = FSImage.readString(in);
+    txn.mtime = readLong(in);
+    txn.atime = readLong(in);
+    break;
+    }
+    default: {
+    throw new IOException("Ingest: Never seen opcode " + opcode);
+    }
+    }
+    FSEditLog.validateChecksum(supportChecksum, rawIn, checksum,
+                               (int)txnsRead);
+    return txn;
+  }
+
+  /**
+   * Apply a decoded transaction to the namespace and log it to the
+   * standby's own edits log. The caller holds the namesystem lock.
+   */
+  private void applyTransaction(FSDirectory fsDir, Transaction txn)
+  throws IOException {
+    String path = txn.path;
+    switch (txn.opcode) {
+    case OP_ADD:
+    case OP_CLOSE: {
+    // The open lease transaction re-creates a file if necessary.
+    // Delete the file if it already exists.
+    if (FSNamesystem.LOG.isDebugEnabled()) {
+      FSNamesystem.LOG.debug(txn.opcode + ": " + path + 
+                             " numblocks : " + txn.blocks.length +
+                             " clientHolder " +  txn.clientName +
+                             " clientMachine " + txn.clientMachine);
+    }
+
+    fsDir.unprotectedDelete(path, txn.mtime);
+
+    // add to the file tree
+    INodeFile node = (INodeFile)fsDir.unprotectedAddFile(
+                                              path, txn.permissions,
+                                              txn.blocks, txn.replication, 
+                                              txn.mtime, txn.atime,
+                                              txn.blockSize);
+    if (txn.opcode == OP_ADD) {
+      //
+      // Replace current node with a INodeUnderConstruction.
+      // Recreate in-memory lease record.
+      //
+      INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
+                                node.getLocalNameBytes(),
+                                node.getReplication(), 
+                                node.getModificationTime(),
+                                node.getPreferredBlockSize(),
+                                node.getBlocks(),
+                                node.getPermissionStatus(),
+                                txn.clientName, 
+                                txn.clientMachine, 
+                                null);
+      fsDir.replaceNode(path, node, cons);
+      fsNamesys.leaseManager.addLease(cons.clientName, path);
+      fsDir.fsImage.getEditLog().logOpenFile(path, cons);
+      } else {
+        fsDir.fsImage.getEditLog().logCloseFile(path, node);
+      }
+      break;
+    } 
+    case OP_SET_REPLICATION: {
+    fsDir.unprotectedSetReplication(path, txn.replication, null);
+    fsDir.fsImage.getEditLog().logSetReplication(path, txn.replication);
+    break;
+    } 
+    case OP_CONCAT_DELETE: {
+    fsDir.unprotectedConcat(path, txn.srcs, txn.timestamp);
+    fsDir.fsImage.getEditLog().logConcat(path, txn.srcs, txn.timestamp);
+    break;
+    }
+    case OP_RENAME: {
+    HdfsFileStatus dinfo = fsDir.getHdfsFileInfo(txn.dst);
+    fsDir.unprotectedRenameTo(path, txn.dst, txn.timestamp);
+    fsNamesys.changeLease(path, txn.dst, dinfo);
+    fsDir.fsImage.getEditLog().logRename(path, txn.dst, txn.timestamp);
+    break;
+    }
+    case OP_DELETE: {
+    fsDir.unprotectedDelete(path, txn.timestamp);
+    fsDir.fsImage.getEditLog().logDelete(path, txn.timestamp);
+    break;
+    }
+    case OP_MKDIR: {
+    INode inode = fsDir.unprotectedMkdir(path, txn.permissions,
+                                         txn.timestamp);
+    fsDir.fsImage.getEditLog().logMkDir(path, inode);
+    break;
+    }
+    case OP_SET_GENSTAMP: {
+    fsNamesys.setGenerationStamp(txn.genstamp);
+    fsDir.fsImage.getEditLog().logGenerationStamp(txn.genstamp);
+    break;
+    } 
+    case OP_DATANODE_ADD:
+    case OP_DATANODE_REMOVE:
+      //Datanodes are not persistent any more.
+      break;
+    case OP_SET_PERMISSIONS: {
+    fsDir.unprotectedSetPermission(path, txn.permission);
+    fsDir.fsImage.getEditLog().logSetPermissions(path, txn.permission);
+    break;
+    }
+    case OP_SET_OWNER: {
+    fsDir.unprotectedSetOwner(path, txn.username, txn.groupname);
+    fsDir.fsImage.getEditLog().logSetOwner(path, txn.username,
+                                           txn.groupname);
+    break;
+    }
+    case OP_SET_NS_QUOTA:
+    case OP_CLEAR_NS_QUOTA:
+    case OP_SET_QUOTA: {
+    INodeDirectory dir = fsDir.unprotectedSetQuota(path,
+                              txn.nsQuota, txn.dsQuota);
+    fsDir.fsImage.getEditLog().logSetQuota(path, dir.getNsQuota(), 
+        dir.getDsQuota());
+    break;
+    }
+    case OP_TIMES: {
+    fsDir.unprotectedSetTimes(path, txn.mtime, txn.atime, true);
+    fsDir.fsImage.getEditLog().logTimes(path, txn.mtime, txn.atime);
+    break;
+    }
+    default: {
+    throw new IOException("Ingest: Never seen opcode " + txn.opcode);
+    }
+    }
+  }
+
+  /**
+   * A transaction decoded by the reader and waiting to be applied.
+   * Only the fields used by its opcode are set.
+   */
+  private static class Transaction {
+    final byte opcode;
+    long position;      // offset of the transaction in the log
+    long endPosition;   // offset of the transaction that follows it
+    long checksum;      // checksum of the transaction as it was read
+    String path;
+    String dst;
+    String[] srcs;
+    short replication;
+    long timestamp;
+    long mtime;
+    long atime;
+    long blockSize;
+    Block[] blocks;
+    PermissionStatus permissions;
+    FsPermission permission;
+    String username;
+    String groupname;
+    String clientName;
+    String clientMachine;
+    long nsQuota;
+    long dsQuota;
+    long genstamp;
+
+    Transaction(byte opcode) {
+      this.opcode = opcode;
     }
-    return numEdits; // total transactions consumed
   }
 
   // a place holder for reading a long
@@ -876,4 +1157,7 @@ public class Ingest implements Runnable {
   private static final byte OP_TIMES = 13; // sets mod & access time on a file
   private static final byte OP_SET_QUOTA = 14; // sets name and disk quotas.
   private static final byte OP_CONCAT_DELETE = 16; // concat files.
+
+  /** Marks the end of the transactions the reader will queue. */
+  private static final Transaction END = new Transaction(OP_INVALID);
 }
@@ -504,4 +504,12 @@ public class Standby implements Runnable {
   public long getLagBytes() {
     return this.ingest == null ? -1L : this.ingest.getLagBytes();
   }
+
+  public long getLagTransactions() {
+    return this.ingest == null ? -1L : this.ingest.getLagTransactions();
+  }
+
+  public long getLagSeconds() {
+    return this.ingest == null ? -1L : this.ingest.getLagSeconds();
+  }
 }
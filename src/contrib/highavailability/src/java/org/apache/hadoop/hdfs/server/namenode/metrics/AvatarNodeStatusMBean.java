@@ -37,5 +37,26 @@ public interface AvatarNodeStatusMBean {
    * @return
    */
   public long getLagBytes();
+
+  /**
+   * Returns the number of transactions that the node has read from the
+   * edits log but not applied yet
+   * @return
+   */
+  public long getLagTransactions();
+
+  /**
+   * Returns the number of seconds since the node last caught up with the
+   * edits log
+   * @return
+   */
+  public long getLagSeconds();
+
+  /**
+   * Returns whether the standby can take over without waiting for
+   * block reports
+   * @return
+   */
+  public boolean getReadyForFailover();
 }
 
@@ -790,11 +790,11 @@ public class MiniAvatarCluster {
     }
   }
 
-  private AvatarInfo getPrimaryAvatar(int nnIndex) {
+  public AvatarInfo getPrimaryAvatar(int nnIndex) {
     return getAvatarByState(nnIndex, AvatarState.ACTIVE);
   }
   
-  private AvatarInfo getStandbyAvatar(int nnIndex) {
+  public AvatarInfo getStandbyAvatar(int nnIndex) {
     return getAvatarByState(nnIndex, AvatarState.STANDBY);
   }
   
@@ -35,6 +35,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.hdfs.server.namenode.AvatarNode;
 
 public class TestAvatarFailover {
   final static Log LOG = LogFactory.getLog(TestAvatarFailover.class);
@@ -100,6 +101,39 @@ public class TestAvatarFailover {
 
   }
 
+  /**
+   * Measure how long a failover takes once the standby has a current
+   * blocks map. The number of blocks can be raised with
+   * -Dtest.avatar.failover.blocks.
+   */
+  @Test
+  public void testFailOverTime() throws Exception {
+    setUp(false);
+    int numBlocks = Integer.getInteger("test.avatar.failover.blocks", 500);
+    for (int i = 0; i < numBlocks; i++) {
+      DFSTestUtil.createFile(dafs, new Path("/blocks/" + (i / 100) + "/f" + i),
+                             1, (short)1, 0L);
+    }
+    AvatarNode standby = cluster.getStandbyAvatar(0).avatar;
+    long deadline = System.currentTimeMillis() + 120 * 1000;
+    while (!standby.getReadyForFailover()) {
+      assertTrue("Standby not ready: " + standby.getFailoverBlocker(),
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(1000);
+    }
+    int blocksBefore = blocksInFile();
+
+    cluster.killPrimary();
+    long start = System.currentTimeMillis();
+    cluster.failOver();
+    LOG.info("Failover of " + numBlocks + " blocks took " +
+             (System.currentTimeMillis() - start) + " msec");
+
+    assertEquals(blocksBefore, blocksInFile());
+    assertEquals(numBlocks, dafs.getContentSummary(new Path("/blocks"))
+                                .getFileCount());
+  }
+
   /**
    * Test if we can get block locations after killing the standby avatar.
    */
@@ -0,0 +1,389 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.After;
+import org.junit.BeforeClass;
+import static org.junit.Assert.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Replay the edits log of a namenode through the Ingest pipeline of the
+ * standby into a fresh namespace, and compare the result.
+ */
+public class TestAvatarIngest {
+  final static Log LOG = LogFactory.getLog(TestAvatarIngest.class);
+
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"), "ingest");
+  private static final int BLOCK_SIZE = 1024;
+
+  // the edits log of the source namenode and the namespace it describes
+  private static byte[] edits;
+  private static int dataEnd;
+  private static String expected;
+
+  private MiniDFSCluster cluster;
+  private FSNamesystem ns;
+  private File file;
+  private Ingest ingest;
+  private Thread ingestThread;
+  private volatile Throwable ingestError;
+
+  @BeforeClass
+  public static void setUpStatic() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("io.bytes.per.checksum", 512);
+    MiniDFSCluster source = new MiniDFSCluster(conf, 1, true, null);
+    File editsFile;
+    try {
+      source.waitActive();
+      FileSystem fs = source.getFileSystem();
+      fs.mkdirs(new Path("/dir/a/b"));
+      DFSTestUtil.createFile(fs, new Path("/dir/a/b/file1"),
+          3 * BLOCK_SIZE + 100, (short)1, 0L);
+      DFSTestUtil.createFile(fs, new Path("/dir/file2"), BLOCK_SIZE,
+          (short)1, 0L);
+      DFSTestUtil.createFile(fs, new Path("/dir/file3"), 10, (short)1, 0L);
+      fs.setReplication(new Path("/dir/file2"), (short)2);
+      fs.rename(new Path("/dir/file3"), new Path("/dir/a/file3"));
+      fs.setPermission(new Path("/dir/a"), new FsPermission((short)0700));
+      fs.setOwner(new Path("/dir/file2"), "user1", "group1");
+      fs.setTimes(new Path("/dir/file2"), 1000000L, 2000000L);
+      fs.delete(new Path("/dir/a/b/file1"), false);
+      source.getNameNode().setQuota("/dir/a", 100, 1000000L);
+      for (int i = 0; i < 50; i++) {
+        DFSTestUtil.createFile(fs, new Path("/many/file" + i), i,
+            (short)1, 0L);
+      }
+      fs.delete(new Path("/many/file7"), false);
+      fs.mkdirs(new Path("/last"));
+
+      FSNamesystem sourceNs = source.getNameNode().getNamesystem();
+      expected = dump(sourceNs);
+      editsFile = sourceNs.getFSImage().getEditLog().getFsEditName();
+    } finally {
+      source.shutdown();
+    }
+
+    edits = new byte[(int)editsFile.length()];
+    FileInputStream in = new FileInputStream(editsFile);
+    try {
+      IOUtils.readFully(in, edits, 0, edits.length);
+    } finally {
+      in.close();
+    }
+    // the log is padded with OP_INVALID
+    dataEnd = edits.length;
+    while (dataEnd > 0 && edits[dataEnd - 1] == (byte)0xFF) {
+      dataEnd--;
+    }
+    LOG.info("Edits log of " + edits.length + " bytes, data ends at " +
+             dataEnd);
+  }
+
+  /**
+   * Describe every inode of the namespace, with its quotas and blocks.
+   */
+  private static String dump(FSNamesystem ns) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    dump(ns, "/", sb);
+    return sb.toString();
+  }
+
+  private static void dump(FSNamesystem ns, String path, StringBuilder sb)
+      throws IOException {
+    FileStatus[] listing = ns.dir.getListing(path);
+    for (FileStatus stat : listing) {
+      String child = new Path(path, stat.getPath().getName()).toString();
+      sb.append(child).append(" dir=").append(stat.isDir())
+        .append(" len=").append(stat.getLen())
+        .append(" repl=").append(stat.getReplication())
+        .append(" mtime=").append(stat.getModificationTime())
+        .append(" perm=").append(stat.getPermission())
+        .append(" owner=").append(stat.getOwner())
+        .append(" group=").append(stat.getGroup());
+      if (stat.isDir()) {
+        ContentSummary summary = ns.getContentSummary(child);
+        sb.append(" quota=").append(summary.getQuota())
+          .append(" spaceQuota=").append(summary.getSpaceQuota())
+          .append("\n");
+        dump(ns, child, sb);
+      } else {
+        sb.append(" blocks=");
+        for (Block b : ns.dir.getFileBlocks(child)) {
+          sb.append(b).append(":").append(b.getNumBytes()).append(" ");
+        }
+        sb.append("\n");
+      }
+    }
+  }
+
+  private void setUp(int queueSize, int batchSize, int length)
+      throws Exception {
+    Configuration conf = new Configuration();
+    cluster = new MiniDFSCluster(conf, 0, true, null);
+    cluster.waitActive();
+    ns = cluster.getNameNode().getNamesystem();
+
+    TEST_DIR.mkdirs();
+    file = new File(TEST_DIR, "edits");
+    writeEdits(0, length, false);
+
+    Configuration ingestConf = new Configuration();
+    if (queueSize > 0) {
+      ingestConf.setInt("avatar.ingest.queue.size", queueSize);
+    }
+    if (batchSize > 0) {
+      ingestConf.setInt("avatar.ingest.batch.size", batchSize);
+    }
+    ingest = new Ingest(null, ns, ingestConf, file);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (ingest != null) {
+      ingest.stop();
+      ingest = null;
+    }
+    if (ingestThread != null) {
+      ingestThread.join();
+      ingestThread = null;
+    }
+    if (cluster != null) {
+      cluster.shutdown();
+      cluster = null;
+    }
+    ingestError = null;
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private void writeEdits(int from, int to, boolean append)
+      throws IOException {
+    FileOutputStream out = new FileOutputStream(file, append);
+    try {
+      out.write(edits, from, to - from);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void startIngest() {
+    ingestThread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          ingest.loadFSEdits(file);
+        } catch (Throwable t) {
+          ingestError = t;
+        }
+      }
+    }, "ingest");
+    ingestThread.start();
+  }
+
+  /**
+   * Ingest the whole log, and wait for ingest to finish.
+   */
+  private void ingestAll() throws Exception {
+    startIngest();
+    ingest.quiesce();
+    ingestThread.join();
+    ingestThread = null;
+    if (ingestError != null) {
+      throw new Exception(ingestError);
+    }
+  }
+
+  private boolean exists(String path) {
+    return ns.dir.getListing(path) != null;
+  }
+
+  /**
+   * Applying the transactions one at a time, as ingest used to, and in
+   * batches gives the namespace of the namenode that logged them.
+   */
+  @Test
+  public void testBatchedApply() throws Exception {
+    setUp(0, 1, edits.length);
+    ingestAll();
+    assertEquals(expected, dump(ns));
+    assertEquals(0, ingest.getLagTransactions());
+    tearDown();
+
+    setUp(0, 0, edits.length);
+    ingestAll();
+    assertEquals(expected, dump(ns));
+    tearDown();
+
+    // a queue that is full most of the time, and batches that span it
+    setUp(2, 3, edits.length);
+    ingestAll();
+    assertEquals(expected, dump(ns));
+  }
+
+  /**
+   * A last scan, for a checkpoint or a failover, applies every transaction
+   * in the log before ingest finishes, including the ones written after
+   * the reader caught up with a partial transaction.
+   */
+  @Test
+  public void testQuiesceDrains() throws Exception {
+    // a checkpoint verifies the edits log against the primary
+    int cut = dataEnd / 2;
+    setUp(4, 4, cut);
+    startIngest();
+    Thread.sleep(1500);
+    assertTrue(ingestThread.isAlive());
+    writeEdits(cut, edits.length, true);
+    CheckpointSignature sig = new CheckpointSignature();
+    sig.editsTime = file.lastModified();
+    ingest.quiesce(sig);
+    ingestThread.join();
+    assertNull(ingestError);
+    assertEquals(expected, dump(ns));
+    assertEquals(0, ingest.getLagTransactions());
+    assertEquals(0, ingest.getLagSeconds());
+    tearDown();
+
+    // a failover does not
+    cut = dataEnd - 3;
+    setUp(0, 0, cut);
+    startIngest();
+    Thread.sleep(1500);
+    writeEdits(cut, edits.length, true);
+    ingest.quiesce();
+    ingestThread.join();
+    assertNull(ingestError);
+    assertEquals(expected, dump(ns));
+  }
+
+  /**
+   * The errors of the reader end the last scan with an exception.
+   */
+  @Test
+  public void testReaderErrors() throws Exception {
+    // the primary rolled its edits log since the standby opened it
+    setUp(0, 0, edits.length);
+    startIngest();
+    CheckpointSignature sig = new CheckpointSignature();
+    sig.editsTime = file.lastModified() + 1000;
+    ingest.quiesce(sig);
+    ingestThread.join();
+    assertTrue(ingestError instanceof IOException);
+    assertTrue(ingestError.getMessage(),
+        ingestError.getMessage().contains("Timestamp of transaction log"));
+    tearDown();
+
+    // the last transaction of the log is incomplete
+    setUp(0, 0, dataEnd - 3);
+    startIngest();
+    ingest.quiesce();
+    ingestThread.join();
+    assertTrue(ingestError instanceof IOException);
+    assertTrue(ingestError.getMessage(),
+        ingestError.getMessage().contains("Incomplete transaction"));
+    assertFalse(exists("/last"));
+    assertTrue(exists("/many"));
+  }
+
+  /**
+   * A transaction that cannot be applied is read and applied again until
+   * it can be.
+   */
+  @Test
+  public void testApplyRetry() throws Exception {
+    setUp(0, 0, edits.length);
+    // room for the root and /dir but not /dir/a
+    cluster.getNameNode().setQuota("/", 2, FSConstants.QUOTA_DONT_SET);
+    startIngest();
+    long start = System.currentTimeMillis();
+    while (!exists("/dir") && System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(100);
+    }
+    assertTrue(exists("/dir"));
+    Thread.sleep(2500);
+    assertFalse(exists("/dir/a"));
+    assertTrue(ingestThread.isAlive());
+    assertTrue(ingest.getLagBytes() > 0);
+
+    cluster.getNameNode().setQuota("/", Integer.MAX_VALUE,
+        FSConstants.QUOTA_DONT_SET);
+    ingest.quiesce();
+    ingestThread.join();
+    assertNull(ingestError);
+    assertEquals(expected, dump(ns));
+  }
+
+  /**
+   * The lag grows while the applier is held up, and goes back to zero
+   * once it catches up.
+   */
+  @Test
+  public void testLag() throws Exception {
+    setUp(0, 0, edits.length);
+    ns.writeLock();
+    try {
+      startIngest();
+      long start = System.currentTimeMillis();
+      while (ingest.getLagTransactions() == 0 &&
+             System.currentTimeMillis() - start < 10000) {
+        Thread.sleep(100);
+      }
+      assertTrue(ingest.getLagTransactions() > 0);
+      Thread.sleep(1500);
+      assertTrue(ingest.getLagSeconds() >= 1);
+      assertFalse(exists("/dir"));
+    } finally {
+      ns.writeUnlock();
+    }
+
+    long start = System.currentTimeMillis();
+    while ((ingest.getLagTransactions() != 0 ||
+            ingest.getLagSeconds() != 0) &&
+           System.currentTimeMillis() - start < 10000) {
+      Thread.sleep(100);
+    }
+    assertEquals(0, ingest.getLagTransactions());
+    assertEquals(0, ingest.getLagSeconds());
+    assertEquals(expected, dump(ns));
+    assertTrue(ingestThread.isAlive());
+  }
+}
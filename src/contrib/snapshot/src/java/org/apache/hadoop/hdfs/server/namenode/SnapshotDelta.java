@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.Text;
+
+import java.io.*;
+import java.util.*;
+
+/**********************************************************
+ * The difference between a snapshot and the snapshot it
+ * was taken after (its parent). A delta holds a record for
+ * every file or directory that was created or modified
+ * since the parent, keyed by path. Directory records list
+ * the names of all their children, so a path that was
+ * deleted is simply missing from its parent's listing.
+ *
+ * Whenever an inode appears at a path where it was not
+ * before (it was created or renamed there), the delta
+ * holds records for its whole subtree. The view of a
+ * snapshot is therefore the newest record for a path in
+ * the chain of deltas down to the first snapshot that was
+ * saved as a full image, and that image for the rest.
+ *
+ * A delta is stored in the snapshot directory under the
+ * same name a full snapshot would have. It starts with
+ * MAGIC, which is never a valid image layout version.
+ **********************************************************/
+class SnapshotDelta {
+
+  static final int MAGIC = 0x534e4150; // "SNAP"
+  static final int VERSION = 1;
+
+  private String parentId;
+  private int namespaceID;
+  private long genStamp;
+  private TreeMap<String, Record> records = new TreeMap<String, Record>();
+
+  SnapshotDelta(String parentId, int namespaceID, long genStamp) {
+    this.parentId = parentId;
+    this.namespaceID = namespaceID;
+    this.genStamp = genStamp;
+  }
+
+  /** The id of the snapshot this delta applies to */
+  String getParentId() {
+    return parentId;
+  }
+
+  int getNamespaceID() {
+    return namespaceID;
+  }
+
+  long getGenerationStamp() {
+    return genStamp;
+  }
+
+  int size() {
+    return records.size();
+  }
+
+  Record get(String path) {
+    return records.get(path);
+  }
+
+  Collection<Record> getRecords() {
+    return records.values();
+  }
+
+  void add(Record record) {
+    records.put(record.path, record);
+  }
+
+  /**
+   * Add records for the inode at path and everything under it.
+   */
+  void addSubtree(String path, INode node) {
+    add(new Record(path, node));
+    if (node.isDirectory()) {
+      for (INode child : ((INodeDirectory) node).getChildren()) {
+        addSubtree(childPath(path, child.getLocalName()), child);
+      }
+    }
+  }
+
+  /**
+   * Fold the parent of this delta into it, so that this delta applies
+   * to the parent of the parent. Records of this delta take precedence.
+   */
+  void foldParent(SnapshotDelta parent) {
+    for (Record record : parent.records.values()) {
+      if (!records.containsKey(record.path)) {
+        records.put(record.path, record);
+      }
+    }
+    parentId = parent.parentId;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    Text.writeString(out, parentId);
+    out.writeInt(namespaceID);
+    out.writeLong(genStamp);
+    out.writeInt(records.size());
+    for (Record record : records.values()) {
+      record.write(out);
+    }
+  }
+
+  private static SnapshotDelta readBody(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported snapshot delta version " + version);
+    }
+    SnapshotDelta delta =
+      new SnapshotDelta(Text.readString(in), in.readInt(), in.readLong());
+    for (int n = in.readInt(); n > 0; n--) {
+      delta.add(Record.read(in));
+    }
+    return delta;
+  }
+
+  /**
+   * Read the snapshot at path if it is a delta.
+   * @return the delta, or null if path is a full image
+   */
+  static SnapshotDelta readIfDelta(FileSystem fs, Path path)
+  throws IOException {
+    DataInputStream in = new DataInputStream(
+                           new BufferedInputStream(fs.open(path)));
+    try {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      return readBody(in);
+    } catch (EOFException e) {
+      if (fs.getFileStatus(path).getLen() < 4) {
+        return null; // let the image loader complain
+      }
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read only the parent id of the snapshot at path.
+   * @return the parent id, or null if path is a full image
+   */
+  static String readParentId(FileSystem fs, Path path) throws IOException {
+    DataInputStream in = fs.open(path);
+    try {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      in.readInt(); // version
+      return Text.readString(in);
+    } catch (EOFException e) {
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Write the delta to a temporary file and rename it to path.
+   */
+  void save(FileSystem fs, Path tmpPath, Path path) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+                             new BufferedOutputStream(fs.create(tmpPath)));
+    try {
+      write(out);
+    } finally {
+      out.close();
+    }
+    if (fs.exists(path) && !fs.delete(path, false)) {
+      throw new IOException("Could not replace snapshot " + path);
+    }
+    if (!fs.rename(tmpPath, path)) {
+      throw new IOException("Could not rename temp snapshot delta");
+    }
+  }
+
+  static String childPath(String path, String name) {
+    return Path.SEPARATOR.equals(path) ? path + name
+                                       : path + Path.SEPARATOR + name;
+  }
+
+  /**
+   * The state of a single file or directory in a snapshot.
+   */
+  static class Record {
+    final String path;
+    final boolean isDir;
+    final long mtime;
+    final PermissionStatus permissions;
+    // directories
+    long nsQuota = -1;
+    long dsQuota = -1;
+    String[] children;
+    // files
+    short replication;
+    long atime;
+    long blockSize;
+    boolean underConstruction;
+    Block[] blocks;
+
+    private Record(String path, boolean isDir, long mtime,
+                   PermissionStatus permissions) {
+      this.path = path;
+      this.isDir = isDir;
+      this.mtime = mtime;
+      this.permissions = permissions;
+    }
+
+    Record(String path, INode node) {
+      this(path, node.isDirectory(), node.getModificationTime(),
+           node.getPermissionStatus());
+      if (isDir) {
+        nsQuota = node.getNsQuota();
+        dsQuota = node.getDsQuota();
+        List<INode> list = ((INodeDirectory) node).getChildren();
+        children = new String[list.size()];
+        for (int i = 0; i < children.length; i++) {
+          children[i] = list.get(i).getLocalName();
+        }
+        Arrays.sort(children);
+      } else {
+        INodeFile file = (INodeFile) node;
+        replication = file.getReplication();
+        atime = file.getAccessTime();
+        blockSize = file.getPreferredBlockSize();
+        underConstruction = file.isUnderConstruction();
+        Block[] fileBlocks = file.getBlocks();
+        blocks = new Block[fileBlocks == null ? 0 : fileBlocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+          blocks[i] = new Block(fileBlocks[i]);
+        }
+      }
+    }
+
+    boolean hasChild(String name) {
+      return isDir && Arrays.binarySearch(children, name) >= 0;
+    }
+
+    /** The sum of the block lengths of a file */
+    long getLength() {
+      long length = 0;
+      for (Block block : blocks) {
+        length += block.getNumBytes();
+      }
+      return length;
+    }
+
+    /** Whether two records describe the same state of a path */
+    boolean sameAs(Record other) {
+      if (isDir != other.isDir || mtime != other.mtime ||
+          !permissions.toString().equals(other.permissions.toString())) {
+        return false;
+      }
+      if (isDir) {
+        return nsQuota == other.nsQuota && dsQuota == other.dsQuota &&
+               Arrays.equals(children, other.children);
+      }
+      if (replication != other.replication || atime != other.atime ||
+          blockSize != other.blockSize ||
+          underConstruction != other.underConstruction ||
+          blocks.length != other.blocks.length) {
+        return false;
+      }
+      for (int i = 0; i < blocks.length; i++) {
+        if (blocks[i].getBlockId() != other.blocks[i].getBlockId() ||
+            blocks[i].getNumBytes() != other.blocks[i].getNumBytes() ||
+            blocks[i].getGenerationStamp() !=
+              other.blocks[i].getGenerationStamp()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void write(DataOutput out) throws IOException {
+      Text.writeString(out, path);
+      out.writeBoolean(isDir);
+      out.writeLong(mtime);
+      permissions.write(out);
+      if (isDir) {
+        out.writeLong(nsQuota);
+        out.writeLong(dsQuota);
+        out.writeInt(children.length);
+        for (String child : children) {
+          Text.writeString(out, child);
+        }
+      } else {
+        out.writeShort(replication);
+        out.writeLong(atime);
+        out.writeLong(blockSize);
+        out.writeBoolean(underConstruction);
+        out.writeInt(blocks.length);
+        for (Block block : blocks) {
+          block.write(out);
+        }
+      }
+    }
+
+    static Record read(DataInput in) throws IOException {
+      Record record = new Record(Text.readString(in), in.readBoolean(),
+                                 in.readLong(), PermissionStatus.read(in));
+      if (record.isDir) {
+        record.nsQuota = in.readLong();
+        record.dsQuota = in.readLong();
+        record.children = new String[in.readInt()];
+        for (int i = 0; i < record.children.length; i++) {
+          record.children[i] = Text.readString(in);
+        }
+      } else {
+        record.replication = in.readShort();
+        record.atime = in.readLong();
+        record.blockSize = in.readLong();
+        record.underConstruction = in.readBoolean();
+        record.blocks = new Block[in.readInt()];
+        for (int i = 0; i < record.blocks.length; i++) {
+          record.blocks[i] = new Block();
+          record.blocks[i].readFields(in);
+        }
+      }
+      return record;
+    }
+  }
+}
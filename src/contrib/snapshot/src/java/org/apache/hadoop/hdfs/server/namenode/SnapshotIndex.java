@@ -0,0 +1,411 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import org.apache.commons.logging.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+
+import java.io.*;
+import java.util.*;
+
+/**********************************************************
+ * An index of which snapshots reference a block, so that
+ * the WaitingRoomPurger does not have to load every
+ * snapshot to find out whether a block in the waiting
+ * room can be deleted.
+ *
+ * Every snapshot added to the index gets the next sequence
+ * number. For every block the index holds the range of
+ * sequence numbers of the snapshots that saw the block
+ * outside of the waiting room: from the first one to the
+ * last one before the block was moved into the waiting
+ * room, or OPEN while it is still outside. A block is
+ * referenced if a snapshot that still exists has a
+ * sequence number in its range.
+ *
+ * The index is kept on the local disk of the SnapshotNode
+ * in fs.snapshot.index.dir. Each snapshot appends a segment
+ * with the changes it made, and once there are more than
+ * fs.snapshot.index.maxsegments segments they are replaced
+ * by one segment that holds the whole index.
+ **********************************************************/
+class SnapshotIndex {
+
+  public static final Log LOG = LogFactory.getLog(SnapshotIndex.class);
+
+  static final String INDEX_DIR_KEY = "fs.snapshot.index.dir";
+  static final String MAX_SEGMENTS_KEY = "fs.snapshot.index.maxsegments";
+
+  static final int VERSION = 1;
+  static final int OPEN = Integer.MAX_VALUE; // block is outside the WR
+
+  private static final String SEGMENT = "segment_";
+
+  // segment operations
+  private static final byte OP_END = 0;
+  private static final byte OP_RESET = 1;     // nextSeq
+  private static final byte OP_SNAPSHOT = 2;  // id, seq
+  private static final byte OP_REMOVE = 3;    // id
+  private static final byte OP_OPEN = 4;      // blockId, seq
+  private static final byte OP_CLOSE = 5;     // blockId, seq
+  private static final byte OP_RANGE = 6;     // blockId, first, last
+
+  private final File dir;
+  private final int maxSegments;
+
+  private final Map<String, Integer> snapshots = new HashMap<String, Integer>();
+  private final Map<Long, Long> ranges = new HashMap<Long, Long>();
+  private int nextSeq = 0;
+  private long nextSegment = 0;
+  private int numSegments = 0;
+
+  // changes of the snapshot being added
+  private DataOutputBuffer pending;
+  private int pendingSeq;
+
+  private SnapshotIndex(File dir, int maxSegments) {
+    this.dir = dir;
+    this.maxSegments = maxSegments;
+  }
+
+  /**
+   * Read the index from the directory configured in conf.
+   * @return the index, empty if there is none yet
+   */
+  static SnapshotIndex load(Configuration conf) throws IOException {
+    File dir = new File(conf.get(INDEX_DIR_KEY, "/tmp/snapshot/index"));
+    int maxSegments = conf.getInt(MAX_SEGMENTS_KEY, 100);
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+    if (!dir.isDirectory()) {
+      throw new IOException("Snapshot index dir " + dir +
+                            " is not a directory");
+    }
+
+    // A segment can disappear while the segments are replaced by
+    // one holding the whole index, which is then found by listing again
+    for (int attempt = 0; ; attempt++) {
+      SnapshotIndex index = new SnapshotIndex(dir, maxSegments);
+      try {
+        for (long segment : index.listSegments()) {
+          index.readSegment(segment);
+        }
+        return index;
+      } catch (FileNotFoundException e) {
+        if (attempt >= 3) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /** The sequence number of a snapshot, or null if it is not indexed */
+  Integer getSeq(String id) {
+    return snapshots.get(id);
+  }
+
+  int getNumSegments() {
+    return numSegments;
+  }
+
+  int size() {
+    return ranges.size();
+  }
+
+  /**
+   * Whether a snapshot with one of the given sequence numbers
+   * references the block.
+   */
+  boolean isReferenced(long blockId, NavigableSet<Integer> seqs) {
+    Long range = ranges.get(blockId);
+    if (range == null) {
+      return false;
+    }
+    Integer seq = seqs.ceiling(getFirst(range));
+    return seq != null && seq <= getLast(range);
+  }
+
+  /**
+   * Start adding a snapshot. Report its blocks with {@link #addBlock}
+   * and make the changes persistent with {@link #commit}.
+   */
+  void beginSnapshot(String id) throws IOException {
+    pending = new DataOutputBuffer();
+    pendingSeq = nextSeq;
+    apply(OP_SNAPSHOT, id, pendingSeq, 0, 0);
+  }
+
+  /**
+   * Report a block the snapshot being added references.
+   * @param inWaitingRoom whether the file of the block is in the WR
+   */
+  void addBlock(Block block, boolean inWaitingRoom) throws IOException {
+    long blockId = block.getBlockId();
+    Long range = ranges.get(blockId);
+    if (!inWaitingRoom) {
+      if (range == null || getLast(range) != OPEN) {
+        apply(OP_OPEN, null, blockId, pendingSeq, 0);
+      }
+    } else if (range != null && getLast(range) == OPEN &&
+               getFirst(range) < pendingSeq) {
+      // it was last seen outside by one of the snapshots before
+      apply(OP_CLOSE, null, blockId, pendingSeq - 1, 0);
+    }
+  }
+
+  void commit() throws IOException {
+    DataOutputBuffer buf = pending;
+    pending = null;
+    buf.writeByte(OP_END);
+    writeSegment(buf);
+  }
+
+  /**
+   * Remove a snapshot that was deleted.
+   */
+  void removeSnapshot(String id) throws IOException {
+    if (!snapshots.containsKey(id)) {
+      return;
+    }
+    pending = new DataOutputBuffer();
+    apply(OP_REMOVE, id, 0, 0, 0);
+    commit();
+  }
+
+  /**
+   * Replace all segments by a single one holding the whole index. Drops
+   * the snapshots that do not exist anymore, the blocks no existing
+   * snapshot references and the blocks that are gone from the namespace.
+   * @param ids the snapshots that exist
+   * @param namesystem the current namespace
+   */
+  void compact(String[] ids, FSNamesystem namesystem) throws IOException {
+    Set<String> live = new HashSet<String>(Arrays.asList(ids));
+    TreeSet<Integer> seqs = new TreeSet<Integer>();
+    for (Iterator<Map.Entry<String, Integer>> it =
+           snapshots.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Integer> entry = it.next();
+      if (live.contains(entry.getKey())) {
+        seqs.add(entry.getValue());
+      } else {
+        it.remove();
+      }
+    }
+    for (Iterator<Map.Entry<Long, Long>> it = ranges.entrySet().iterator();
+         it.hasNext();) {
+      Map.Entry<Long, Long> entry = it.next();
+      if (getLast(entry.getValue()) == OPEN) {
+        Block block = new Block(entry.getKey());
+        if (namesystem.blocksMap.getINode(block) == null) {
+          it.remove(); // deleted, it can never be in the WR
+        }
+      } else if (!isReferenced(entry.getKey(), seqs)) {
+        it.remove();
+      }
+    }
+
+    DataOutputBuffer buf = new DataOutputBuffer();
+    buf.writeByte(OP_RESET);
+    buf.writeInt(nextSeq);
+    for (Map.Entry<String, Integer> entry : snapshots.entrySet()) {
+      buf.writeByte(OP_SNAPSHOT);
+      Text.writeString(buf, entry.getKey());
+      buf.writeInt(entry.getValue());
+    }
+    for (Map.Entry<Long, Long> entry : ranges.entrySet()) {
+      buf.writeByte(OP_RANGE);
+      buf.writeLong(entry.getKey());
+      buf.writeInt(getFirst(entry.getValue()));
+      buf.writeInt(getLast(entry.getValue()));
+    }
+    buf.writeByte(OP_END);
+
+    List<Long> old = listSegments();
+    writeSegment(buf);
+    for (long segment : old) {
+      new File(dir, SEGMENT + segment).delete();
+    }
+    numSegments = 1;
+    LOG.info("Snapshot index compacted to " + snapshots.size() +
+             " snapshots and " + ranges.size() + " blocks.");
+  }
+
+  boolean needsCompaction() {
+    return numSegments > maxSegments;
+  }
+
+  private static int getFirst(long range) {
+    return (int) (range >>> 32);
+  }
+
+  private static int getLast(long range) {
+    return (int) range;
+  }
+
+  private static long range(int first, int last) {
+    return ((long) first << 32) | (last & 0xffffffffL);
+  }
+
+  /**
+   * Apply an operation to the index in memory and, while a snapshot is
+   * being added, log it to the pending segment.
+   */
+  private void apply(byte op, String id, long arg1, int arg2, int arg3)
+  throws IOException {
+    switch (op) {
+    case OP_RESET:
+      snapshots.clear();
+      ranges.clear();
+      nextSeq = (int) arg1;
+      break;
+    case OP_SNAPSHOT:
+      snapshots.put(id, (int) arg1);
+      nextSeq = Math.max(nextSeq, (int) arg1 + 1);
+      break;
+    case OP_REMOVE:
+      snapshots.remove(id);
+      break;
+    case OP_OPEN: {
+      Long range = ranges.get(arg1);
+      ranges.put(arg1, range(range == null ? arg2 : getFirst(range), OPEN));
+      break;
+    }
+    case OP_CLOSE: {
+      Long range = ranges.get(arg1);
+      if (range != null) {
+        ranges.put(arg1, range(getFirst(range), arg2));
+      }
+      break;
+    }
+    case OP_RANGE:
+      ranges.put(arg1, range(arg2, arg3));
+      break;
+    default:
+      throw new IOException("Unknown snapshot index operation " + op);
+    }
+
+    if (pending == null) {
+      return;
+    }
+    pending.writeByte(op);
+    switch (op) {
+    case OP_SNAPSHOT:
+      Text.writeString(pending, id);
+      pending.writeInt((int) arg1);
+      break;
+    case OP_REMOVE:
+      Text.writeString(pending, id);
+      break;
+    case OP_OPEN:
+    case OP_CLOSE:
+      pending.writeLong(arg1);
+      pending.writeInt(arg2);
+      break;
+    }
+  }
+
+  private void readSegment(long segment) throws IOException {
+    File file = new File(dir, SEGMENT + segment);
+    DataInputStream in = new DataInputStream(
+                           new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot index version " +
+                              version + " in " + file);
+      }
+      for (byte op = in.readByte(); op != OP_END; op = in.readByte()) {
+        switch (op) {
+        case OP_RESET:
+          apply(op, null, in.readInt(), 0, 0);
+          break;
+        case OP_SNAPSHOT:
+          apply(op, Text.readString(in), in.readInt(), 0, 0);
+          break;
+        case OP_REMOVE:
+          apply(op, Text.readString(in), 0, 0, 0);
+          break;
+        case OP_OPEN:
+        case OP_CLOSE:
+          apply(op, null, in.readLong(), in.readInt(), 0);
+          break;
+        case OP_RANGE:
+          apply(op, null, in.readLong(), in.readInt(), in.readInt());
+          break;
+        default:
+          throw new IOException("Unknown snapshot index operation " + op +
+                                " in " + file);
+        }
+      }
+    } catch (EOFException e) {
+      throw new IOException("Snapshot index segment " + file +
+                            " is truncated");
+    } finally {
+      in.close();
+    }
+    nextSegment = segment + 1;
+    numSegments++;
+  }
+
+  /**
+   * Write a segment to a temporary file and rename it, so that readers
+   * never see part of a segment.
+   */
+  private void writeSegment(DataOutputBuffer buf) throws IOException {
+    File tmp = new File(dir, SEGMENT + nextSegment + ".tmp");
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(VERSION);
+      out.write(buf.getData(), 0, buf.getLength());
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(new File(dir, SEGMENT + nextSegment))) {
+      throw new IOException("Could not rename snapshot index segment " + tmp);
+    }
+    nextSegment++;
+    numSegments++;
+  }
+
+  /** The numbers of the segments in the index dir in order */
+  private List<Long> listSegments() throws IOException {
+    String[] names = dir.list();
+    if (names == null) {
+      throw new IOException("Could not list snapshot index dir " + dir);
+    }
+    List<Long> segments = new ArrayList<Long>();
+    for (String name : names) {
+      if (!name.startsWith(SEGMENT) || name.endsWith(".tmp")) {
+        continue;
+      }
+      try {
+        segments.add(Long.parseLong(name.substring(SEGMENT.length())));
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring " + name + " in snapshot index dir " + dir);
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+}
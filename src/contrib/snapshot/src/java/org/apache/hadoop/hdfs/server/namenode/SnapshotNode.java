@@ -27,8 +27,10 @@ import org.apache.hadoop.hdfs.DFSClient.DFSInputStream;
 import org.apache.hadoop.hdfs.protocol.*;
 import org.apache.hadoop.hdfs.server.common.Storage.*;
 import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLog.EditLogFileInputStream;
 import org.apache.hadoop.hdfs.server.namenode.FSImage.CheckpointStates;
 import org.apache.hadoop.hdfs.server.namenode.LeaseManager.*;
+import org.apache.hadoop.hdfs.server.namenode.SnapshotDelta.Record;
 import org.apache.hadoop.hdfs.server.namenode.WaitingRoom.*;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeProtocol;
 import org.apache.hadoop.hdfs.server.protocol.SnapshotProtocol;
@@ -56,6 +58,19 @@ import org.apache.hadoop.metrics.jvm.JvmMetrics;
  * The SnapshotNode uses the Namesystem's jetty server to 
  * retreive files.
  *
+ * If fs.snapshot.incremental is set, the SnapshotNode keeps
+ * the namespace of the last snapshot in memory. A new
+ * snapshot then only downloads the edits, applies the ones
+ * logged since the last snapshot and stores the inodes they
+ * changed as a {@link SnapshotDelta}. Every
+ * fs.snapshot.incremental.maxchain deltas the snapshot is
+ * saved as a full image again, which bounds the number of
+ * deltas a reader has to go through.
+ *
+ * Every snapshot is added to a {@link SnapshotIndex} of the
+ * blocks it references, which the WaitingRoomPurger uses
+ * instead of loading all snapshots.
+ *
  **********************************************************/
 public class SnapshotNode implements SnapshotProtocol {
 
@@ -65,6 +80,9 @@ public class SnapshotNode implements SnapshotProtocol {
   public static final String CURRENT_DIR = "/current";
   public static String SSNAME = "dfs_snapshot_"; // prefix of ss files
 
+  public static final String INCREMENTAL_KEY = "fs.snapshot.incremental";
+  public static final String MAX_CHAIN_KEY = "fs.snapshot.incremental.maxchain";
+
   private Configuration conf; // conf
 
   private String fileServer; // jetty image server namenode listens on
@@ -72,6 +90,7 @@ public class SnapshotNode implements SnapshotProtocol {
 
   private String tempDir; // temp dir to download files from namenode
   private String ssDir; // path to store snapshots in
+  private String wrDir; // waiting room path
 
   private Daemon purgeThread; //waiting room purger thread
 
@@ -84,6 +103,20 @@ public class SnapshotNode implements SnapshotProtocol {
   private NamenodeProtocol namenode;
   private InetSocketAddress nameNodeAddr;
 
+  private boolean incremental; // store snapshots as deltas
+  private int maxChainLength; // deltas between two full images
+
+  // State of the last snapshot in incremental mode
+  private SnapshotStorage lastStore; // its namespace
+  private String lastId;
+  private int lastChainLength; // deltas since the last full image
+  private long lastCheckpointTime; // of the image the namespace started from
+  private long editsOffset; // bytes of edits already applied
+  private long editsNewOffset; // bytes of edits.new already applied
+
+  private SnapshotIndex index; // blocks referenced by the snapshots
+  private boolean lastIndexed; // index is up to date with lastStore
+
   public SnapshotNode(Configuration conf) {
     try {
       this.conf = conf;
@@ -101,6 +134,7 @@ public class SnapshotNode implements SnapshotProtocol {
   private void init() throws IOException {
     ssDir = conf.get("fs.snapshot.dir", "/.SNAPSHOT");
     tempDir = conf.get("fs.snapshot.tempdir", "/tmp/snapshot");
+    wrDir = conf.get("fs.snapshot.waitingroom", "/.WR");
 
     fileServer = getImageServer();
     dfs = FileSystem.get(conf);
@@ -111,6 +145,8 @@ public class SnapshotNode implements SnapshotProtocol {
     }
 
     maxLeaseUpdateThreads = conf.getInt("fs.snapshot.leaseupdatethreads", 100);
+    incremental = conf.getBoolean(INCREMENTAL_KEY, false);
+    maxChainLength = conf.getInt(MAX_CHAIN_KEY, 10);
 
     // Waiting room purge thread
     purgeThread = new Daemon((new WaitingRoom(conf)).getPurger());
@@ -145,6 +181,10 @@ public class SnapshotNode implements SnapshotProtocol {
     return getAddress(nodeport);
   }
 
+  static Path getSnapshotPath(String ssDir, String id) {
+    return new Path(ssDir + "/" + SSNAME + id);
+  }
+
   @Override
   public long getProtocolVersion(String protocol, long clientVersion) throws IOException {
     if (protocol.equals(SnapshotProtocol.class.getName())) {
@@ -191,6 +231,7 @@ public class SnapshotNode implements SnapshotProtocol {
 
     RPC.stopProxy(namenode);
     if (server != null) server.stop();
+    discardLastSnapshot();
   }
 
   /**
@@ -240,45 +281,84 @@ public class SnapshotNode implements SnapshotProtocol {
 
   @Override
   public FileStatus getSnapshotFileStatus(String id) throws IOException {
-    Path ss = new Path(ssDir + "/" + SSNAME + id);
+    Path ss = getSnapshotPath(ssDir, id);
     return dfs.getFileStatus(ss);
   }
 
   @Override
-  public boolean deleteSnapshot(String id) throws IOException {
-    Path fileToDelete = new Path(ssDir + "/" + SSNAME + id);
-    return dfs.delete(fileToDelete, false);
+  public synchronized boolean deleteSnapshot(String id) throws IOException {
+    Path fileToDelete = getSnapshotPath(ssDir, id);
+    if (!dfs.exists(fileToDelete)) {
+      return false;
+    }
+
+    // Snapshots stored as a delta against this one take over its records
+    List<String> dependents = getDependentSnapshots(id);
+    if (!dependents.isEmpty()) {
+      SnapshotDelta delta = SnapshotDelta.readIfDelta(dfs, fileToDelete);
+      for (String dependent : dependents) {
+        if (delta == null) {
+          compactSnapshot(dependent);
+        } else {
+          Path path = getSnapshotPath(ssDir, dependent);
+          SnapshotDelta dependentDelta = SnapshotDelta.readIfDelta(dfs, path);
+          dependentDelta.foldParent(delta);
+          dependentDelta.save(dfs, new Path("/tmp/" + SSNAME + dependent), path);
+        }
+      }
+    }
+    if (id.equals(lastId)) {
+      lastId = null; // the next snapshot can not be a delta against it
+    }
+    if (!dfs.delete(fileToDelete, false)) {
+      return false;
+    }
+    if (index != null) {
+      try {
+        index.removeSnapshot(id);
+      } catch (IOException e) {
+        // the purger only trusts the index for snapshots that exist
+        LOG.warn("Could not remove snapshot " + id + " from the index: " +
+                 StringUtils.stringifyException(e));
+      }
+    }
+    return true;
   }
 
   @Override
   public LocatedBlocks[] getLocatedBlocks(String snapshotId, String path) 
   throws IOException {
-    FSImage fsImage = new FSImage();
-    FSNamesystem namesystem = new FSNamesystem(fsImage, conf);
-    Path ssPath = new Path(ssDir + "/" + SSNAME + snapshotId);
-    FSDataInputStream in = dfs.open(ssPath);
-    fsImage.loadFSImage(ssPath.toString(), in);
-    INode inode = namesystem.dir.getInode(path);
+    SnapshotView view = new SnapshotView(conf, dfs, ssDir, snapshotId);
+    try {
+      Record record = view.getRecord(path);
 
-    if (inode == null) {
-      throw new IOException("File/dir at " + path + 
-                            " does not exist in snapshot " + snapshotId);
-    }
+      if (record == null) {
+        throw new IOException("File/dir at " + path + 
+                              " does not exist in snapshot " + snapshotId);
+      }
 
-    List<LocatedBlocks> blocks = new ArrayList<LocatedBlocks>();
-    getAllLocatedBlocks(inode, blocks); // fill blocks with LocatedBlocks for all files
+      List<Record> files = new ArrayList<Record>();
+      view.getFiles(record, files); // all files at or under path
 
-    LocatedBlocks[] blocksArr = new LocatedBlocks[blocks.size()];
-    for (int i = 0; i < blocksArr.length; ++i) {
-      blocksArr[i] = blocks.get(i);
+      LocatedBlocks[] blocksArr = new LocatedBlocks[files.size()];
+      for (int i = 0; i < blocksArr.length; ++i) {
+        blocksArr[i] = getLocatedBlocks(files.get(i));
+      }
+      return blocksArr;
+    } finally {
+      view.close();
     }
-
-    fsImage.close();
-    return blocksArr;
   }
 
   @Override
-  public void createSnapshot(String snapshotId, boolean updateLeases) throws IOException {
+  public synchronized void createSnapshot(String snapshotId,
+                                          boolean updateLeases)
+  throws IOException {
+    if (incremental) {
+      createIncrementalSnapshot(snapshotId, updateLeases);
+      return;
+    }
+
     // Create new SnapshotStore
     SnapshotStorage ssStore = new SnapshotStorage(conf, new File(tempDir));
 
@@ -295,32 +375,380 @@ public class SnapshotNode implements SnapshotProtocol {
 
     // Save snapshot
     saveSnapshot(ssStore, snapshotId);
+    indexSnapshot(snapshotId, ssStore.getFSNamesystem(), null);
     ssStore.close();
   }
 
-  private void getAllLocatedBlocks(INode inode, List<LocatedBlocks> blocks)
+  private LocatedBlocks getLocatedBlocks(Record file) throws IOException {
+    List<LocatedBlock> lb = new ArrayList<LocatedBlock>();
+    for (Block block: file.blocks) {
+      // DatanodeInfo is unavailable, so set as empty for now
+      lb.add(new LocatedBlock(block, new DatanodeInfo[0]));
+    }
+
+    LocatedBlocks locatedBlocks =  new LocatedBlocks(
+                           file.getLength(), // flength
+                           lb, // blks
+                           false); // isUnderConstruction
+
+    // Update DatanodeInfo from NN
+    return namenode.updateDatanodeInfo(locatedBlocks);
+  }
+
+  /**
+   * Create a snapshot in incremental mode. If the namespace of the last
+   * snapshot is in memory, the edits logged since are applied to it and
+   * only the inodes they changed are stored. The snapshot is stored as a
+   * full image if there is no last snapshot to store a delta against or
+   * the chain of deltas is at its maximum length.
+   */
+  private void createIncrementalSnapshot(String id, boolean updateLeases)
   throws IOException {
-    if (inode.isDirectory()) {
-      INodeDirectory dir = (INodeDirectory) inode;
-      for (INode child: dir.getChildren()) {
-        getAllLocatedBlocks(child, blocks);
+    long startTime = FSNamesystem.now();
+    if (lastStore == null) {
+      SnapshotStorage ssStore = new SnapshotStorage(conf, new File(tempDir));
+      CheckpointSignature sig = downloadSnapshotFiles(ssStore);
+      doMerge(ssStore);
+      setLastSnapshot(ssStore, sig);
+      if (updateLeases) {
+        updateLeasedFiles(ssStore);
       }
+      saveSnapshot(ssStore, id);
+      lastIndexed = indexSnapshot(id, ssStore.getFSNamesystem(), null);
+      lastId = id;
+      lastChainLength = 0;
+      LOG.info("Snapshot " + id + " saved as a full image in " +
+               (FSNamesystem.now() - startTime) + " msec.");
+      return;
+    }
+
+    SnapshotDelta delta;
+    try {
+      delta = applyNewEdits();
+      if (delta == null) {
+        // A checkpoint merged the edits into a new image
+        delta = loadNewImage();
+      }
+      if (updateLeases) {
+        updateLeasedFiles(lastStore);
+        FSNamesystem fsNamesys = lastStore.getFSNamesystem();
+        for (Lease lease : fsNamesys.leaseManager.getSortedLeases()) {
+          for (String path : lease.getPaths()) {
+            INode node = fsNamesys.dir.getInode(path);
+            if (node != null) {
+              delta.add(new Record(path, node));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      discardLastSnapshot();
+      throw e;
+    }
+
+    if (lastId == null || lastChainLength >= maxChainLength ||
+        !dfs.exists(getSnapshotPath(ssDir, lastId))) {
+      saveSnapshot(lastStore, id);
+      lastChainLength = 0;
+      LOG.info("Snapshot " + id + " saved as a full image in " +
+               (FSNamesystem.now() - startTime) + " msec.");
     } else {
-      INodeFile file = (INodeFile) inode;
-      BlockInfo[] fileBlocks = file.getBlocks();
-      List<LocatedBlock> lb = new ArrayList<LocatedBlock>();
-      for (BlockInfo block: fileBlocks) {
-        // DatanodeInfo is unavailable, so set as empty for now
-        lb.add(new LocatedBlock(block, new DatanodeInfo[0]));
+      delta.save(dfs, new Path("/tmp/" + SSNAME + id),
+                 getSnapshotPath(ssDir, id));
+      lastChainLength++;
+      LOG.info("Snapshot " + id + " saved as a delta of " + delta.size() +
+               " inodes against " + lastId + " in " +
+               (FSNamesystem.now() - startTime) + " msec.");
+    }
+    lastIndexed = indexSnapshot(id, lastStore.getFSNamesystem(),
+                                lastIndexed ? delta : null);
+    lastId = id;
+  }
+
+  /**
+   * Add a snapshot to the index. Only the files in delta are looked at
+   * if it is given, otherwise all files in the namespace.
+   * @return whether the snapshot was added
+   */
+  private boolean indexSnapshot(String id, FSNamesystem namesystem,
+                                SnapshotDelta delta) {
+    long startTime = FSNamesystem.now();
+    try {
+      if (index == null) {
+        index = SnapshotIndex.load(conf);
+      }
+      index.beginSnapshot(id);
+      if (delta != null) {
+        for (Record record : delta.getRecords()) {
+          if (!record.isDir) {
+            boolean inWaitingRoom = isInWaitingRoom(record.path);
+            for (Block block : record.blocks) {
+              index.addBlock(block, inWaitingRoom);
+            }
+          }
+        }
+      } else {
+        indexTree(namesystem.dir.rootDir,
+                  namesystem.dir.getInode(wrDir), false);
+      }
+      index.commit();
+      if (index.needsCompaction()) {
+        index.compact(listSnapshots(), namesystem);
+      }
+      LOG.info("Snapshot " + id + " added to the index in " +
+               (FSNamesystem.now() - startTime) + " msec.");
+      return true;
+    } catch (IOException e) {
+      // The purger does not trust the index for snapshots it is missing
+      LOG.warn("Could not add snapshot " + id + " to the index: " +
+               StringUtils.stringifyException(e));
+      index = null;
+      return false;
+    }
+  }
+
+  private void indexTree(INode node, INode wrNode, boolean inWaitingRoom)
+  throws IOException {
+    inWaitingRoom |= node == wrNode;
+    if (node.isDirectory()) {
+      for (INode child : ((INodeDirectory) node).getChildren()) {
+        indexTree(child, wrNode, inWaitingRoom);
+      }
+    } else {
+      Block[] blocks = ((INodeFile) node).getBlocks();
+      if (blocks != null) {
+        for (Block block : blocks) {
+          index.addBlock(block, inWaitingRoom);
+        }
+      }
+    }
+  }
+
+  private boolean isInWaitingRoom(String path) {
+    return path.equals(wrDir) || path.startsWith(wrDir + Path.SEPARATOR);
+  }
+
+  /**
+   * Download the edits and apply what was logged since the last snapshot
+   * to its namespace.
+   * @return the inodes that changed, or null if the edits were merged
+   *         into a new image since the last snapshot
+   */
+  private SnapshotDelta applyNewEdits() throws IOException {
+    CheckpointSignature sig = downloadSnapshotFiles(lastStore, false);
+    if (sig.checkpointTime != lastCheckpointTime) {
+      return null;
+    }
+
+    File edits = getEditsTail(lastStore.getEditsFiles()[0], editsOffset);
+    File editsNew = lastStore.getEditsNewFiles()[0];
+    editsNew = editsNew.exists() ? getEditsTail(editsNew, editsNewOffset)
+                                 : null;
+
+    // Find the paths the new edits change
+    Set<String> paths = new TreeSet<String>();
+    long editsLength =
+      FSEditLog.collectPaths(new EditLogFileInputStream(edits), paths);
+    long editsNewLength = editsNew == null ? 0 :
+      FSEditLog.collectPaths(new EditLogFileInputStream(editsNew), paths);
+    if (editsLength < 0 || editsNewLength < 0) {
+      throw new IOException("Edits have an old layout version");
+    }
+    for (String path : new ArrayList<String>(paths)) {
+      // parents get new listings and modification times
+      if (path.length() > 1) {
+        paths.add(StreamingImageMerger.parentOf(path));
+      }
+    }
+
+    // Remember which inodes were at these paths before
+    FSDirectory fsDir = lastStore.getFSNamesystem().dir;
+    Map<String, INode> before = new HashMap<String, INode>();
+    Map<String, Set<INode>> childrenBefore = new HashMap<String, Set<INode>>();
+    for (String path : paths) {
+      INode node = fsDir.getInode(path);
+      before.put(path, node);
+      if (node != null && node.isDirectory()) {
+        Set<INode> children =
+          Collections.newSetFromMap(new IdentityHashMap<INode, Boolean>());
+        children.addAll(((INodeDirectory) node).getChildren());
+        childrenBefore.put(path, children);
+      }
+    }
+
+    lastStore.getEditLog().loadFSEdits(new EditLogFileInputStream(edits));
+    editsOffset = advance(editsOffset, editsLength);
+    if (editsNew != null) {
+      lastStore.getEditLog().loadFSEdits(new EditLogFileInputStream(editsNew));
+      editsNewOffset = advance(editsNewOffset, editsNewLength);
+    }
+
+    // Inodes that were not at a path before bring their whole subtree
+    SnapshotDelta delta = new SnapshotDelta(lastId,
+        lastStore.getNamespaceID(),
+        lastStore.getFSNamesystem().getGenerationStamp());
+    for (String path : paths) {
+      INode node = fsDir.getInode(path);
+      if (node == null) {
+        continue;
+      }
+      if (node != before.get(path)) {
+        delta.addSubtree(path, node);
+        continue;
+      }
+      delta.add(new Record(path, node));
+      if (node.isDirectory()) {
+        Set<INode> children = childrenBefore.get(path);
+        for (INode child : ((INodeDirectory) node).getChildren()) {
+          if (!children.contains(child)) {
+            delta.addSubtree(SnapshotDelta.childPath(path,
+                             child.getLocalName()), child);
+          }
+        }
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Download and load the image and edits, and compare the namespace with
+   * the one of the last snapshot, which it then replaces.
+   * @return the inodes that changed
+   */
+  private SnapshotDelta loadNewImage() throws IOException {
+    SnapshotStorage ssStore = new SnapshotStorage(conf, new File(tempDir));
+    CheckpointSignature sig = downloadSnapshotFiles(ssStore);
+    doMerge(ssStore);
+    SnapshotDelta delta = new SnapshotDelta(lastId, ssStore.getNamespaceID(),
+        ssStore.getFSNamesystem().getGenerationStamp());
+    diffTree(delta, Path.SEPARATOR, lastStore.getFSNamesystem().dir.rootDir,
+             ssStore.getFSNamesystem().dir.rootDir);
+    lastStore.close();
+    setLastSnapshot(ssStore, sig);
+    return delta;
+  }
+
+  private void diffTree(SnapshotDelta delta, String path,
+                        INode old, INode node) {
+    if (old == null || old.isDirectory() != node.isDirectory()) {
+      delta.addSubtree(path, node);
+      return;
+    }
+    Record record = new Record(path, node);
+    if (!record.sameAs(new Record(path, old))) {
+      delta.add(record);
+    }
+    if (node.isDirectory()) {
+      for (INode child : ((INodeDirectory) node).getChildren()) {
+        String name = child.getLocalName();
+        diffTree(delta, SnapshotDelta.childPath(path, name),
+                 ((INodeDirectory) old).getChild(name), child);
       }
+    }
+  }
 
-      LocatedBlocks locatedBlocks =  new LocatedBlocks(
-                             file.computeContentSummary().getLength(), // flength
-                             lb, // blks
-                             false); // isUnderConstruction
+  /**
+   * Keep the namespace of a snapshot in memory together with how much
+   * of the downloaded edits it contains.
+   */
+  private void setLastSnapshot(SnapshotStorage ssStore,
+                               CheckpointSignature sig) throws IOException {
+    lastStore = ssStore;
+    lastCheckpointTime = sig.checkpointTime;
+    editsOffset = FSEditLog.collectPaths(
+        new EditLogFileInputStream(ssStore.getEditsFiles()[0]),
+        new ArrayList<String>());
+    File editsNew = ssStore.getEditsNewFiles()[0];
+    editsNewOffset = !editsNew.exists() ? 0 : FSEditLog.collectPaths(
+        new EditLogFileInputStream(editsNew), new ArrayList<String>());
+    if (editsOffset < 0 || editsNewOffset < 0) {
+      throw new IOException("Edits have an old layout version");
+    }
+  }
 
-      // Update DatanodeInfo from NN
-      blocks.add(namenode.updateDatanodeInfo(locatedBlocks));
+  private void discardLastSnapshot() {
+    if (lastStore != null) {
+      try {
+        lastStore.close();
+      } catch (IOException e) {
+        LOG.warn(StringUtils.stringifyException(e));
+      }
+    }
+    lastStore = null;
+    lastId = null;
+    lastIndexed = false;
+  }
+
+  /**
+   * Copy an edits file from offset on to a file of its own, after the
+   * layout version, so that it can be read as an edit log.
+   */
+  private static File getEditsTail(File edits, long offset)
+  throws IOException {
+    File tail = new File(edits.getPath() + ".tail");
+    RandomAccessFile in = new RandomAccessFile(edits, "r");
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(tail));
+    try {
+      byte[] buf = new byte[4096];
+      if (in.length() >= 4) {
+        in.readFully(buf, 0, 4);
+        out.write(buf, 0, 4);
+        in.seek(Math.max(offset, 4));
+        for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+          out.write(buf, 0, n);
+        }
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+    return tail;
+  }
+
+  /**
+   * The offset in an edits file after the given number of bytes of its
+   * tail were applied.
+   */
+  private static long advance(long offset, long tailLength) {
+    return tailLength == 0 ? offset : Math.max(offset, 4) + tailLength - 4;
+  }
+
+  /**
+   * The snapshots stored as a delta against the given one.
+   */
+  private List<String> getDependentSnapshots(String id) throws IOException {
+    List<String> dependents = new ArrayList<String>();
+    for (String ssId : listSnapshots()) {
+      if (id.equals(SnapshotDelta.readParentId(dfs,
+                                               getSnapshotPath(ssDir, ssId)))) {
+        dependents.add(ssId);
+      }
+    }
+    return dependents;
+  }
+
+  /**
+   * Rewrite a snapshot stored as a delta as a full image. Other
+   * snapshots stored as deltas against it stay valid.
+   */
+  void compactSnapshot(String id) throws IOException {
+    SnapshotView view = new SnapshotView(conf, dfs, ssDir, id);
+    try {
+      if (view.getChainLength() == 0) {
+        return; // already a full image
+      }
+      Path tmpPath = new Path("/tmp/" + SSNAME + id);
+      FSDataOutputStream out = dfs.create(tmpPath);
+      view.saveImage(tmpPath.toString(), out);
+      out.close();
+
+      Path ssPath = getSnapshotPath(ssDir, id);
+      if (!dfs.delete(ssPath, false) || !dfs.rename(tmpPath, ssPath)) {
+        throw new IOException("Could not replace snapshot " + id);
+      }
+      LOG.info("Snapshot " + id + " compacted to a full image.");
+    } finally {
+      view.close();
     }
   }
 
@@ -332,7 +760,7 @@ public class SnapshotNode implements SnapshotProtocol {
     out.close();
 
     // Rename snapshot
-    Path ssPath = new Path(ssDir + "/" + SSNAME + id);
+    Path ssPath = getSnapshotPath(ssDir, id);
     if (!dfs.rename(tmpPath, ssPath)) {
       throw new IOException("Could not rename temp snapshot file");
     }
@@ -413,7 +841,19 @@ public class SnapshotNode implements SnapshotProtocol {
    * Files will be downloaded in CURRENT_DIR
    * @throws IOException
    */
-  void downloadSnapshotFiles(SnapshotStorage ssStore) throws IOException {
+  CheckpointSignature downloadSnapshotFiles(SnapshotStorage ssStore)
+  throws IOException {
+    return downloadSnapshotFiles(ssStore, true);
+  }
+
+  /**
+   * Download the edits and edits.new files from the name-node, and the
+   * fsimage if withImage is set.
+   * @return the checkpoint signature the files are consistent with
+   */
+  CheckpointSignature downloadSnapshotFiles(SnapshotStorage ssStore,
+                                            boolean withImage)
+  throws IOException {
     CheckpointSignature start = namenode.getCheckpointSignature();
     CheckpointSignature end = null;
     boolean success;
@@ -425,16 +865,18 @@ public class SnapshotNode implements SnapshotProtocol {
       // get fsimage
       String fileId = "getimage=1";
       File[] srcNames = ssStore.getImageFiles();
-      assert srcNames.length == 1 : "No snapshot temporary dir.";
-      TransferFsImage.getFileClient(fileServer, fileId, srcNames, false);
-      LOG.info("Downloaded file " + srcNames[0].getName() + " size " +
-               srcNames[0].length() + " bytes.");
+      if (withImage) {
+        assert srcNames.length == 1 : "No snapshot temporary dir.";
+        TransferFsImage.getFileClient(conf, fileServer, fileId, srcNames, false);
+        LOG.info("Downloaded file " + srcNames[0].getName() + " size " +
+                 srcNames[0].length() + " bytes.");
+      }
 
       // get edits file
       fileId = "getedit=1";
       srcNames = ssStore.getEditsFiles();
       assert srcNames.length == 1 : "No snapshot temporary dir.";
-      TransferFsImage.getFileClient(fileServer, fileId, srcNames, false);
+      TransferFsImage.getFileClient(conf, fileServer, fileId, srcNames, false);
       LOG.info("Downloaded file " + srcNames[0].getName() + " size " +
                srcNames[0].length() + " bytes.");
 
@@ -443,7 +885,7 @@ public class SnapshotNode implements SnapshotProtocol {
         fileId = "geteditnew=1";
         srcNames = ssStore.getEditsNewFiles();
         assert srcNames.length == 1 : "No snapshot temporary dir.";
-        TransferFsImage.getFileClient(fileServer, fileId, srcNames, false);
+        TransferFsImage.getFileClient(conf, fileServer, fileId, srcNames, false);
         LOG.info("Downloaded file " + srcNames[0].getName() + " size " +
                srcNames[0].length() + " bytes.");
       } catch (FileNotFoundException e) {
@@ -458,6 +900,7 @@ public class SnapshotNode implements SnapshotProtocol {
 
       start = end;
     } while (!success);
+    return end;
   }
 
   /**
@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.hdfs.server.namenode.SnapshotDelta.Record;
+
+import java.io.*;
+import java.util.*;
+
+/**********************************************************
+ * A read-only view of one snapshot. The deltas between the
+ * snapshot and the full image it is based on are read when
+ * the view is opened; they only hold what changed and are
+ * small. The full image is only loaded once a path has to be
+ * looked up that none of the deltas has a record for.
+ **********************************************************/
+class SnapshotView implements Closeable {
+
+  private final Configuration conf;
+  private final FileSystem dfs;
+  private final String id;
+  private final List<SnapshotDelta> deltas = new ArrayList<SnapshotDelta>();
+  private final Path basePath;
+
+  private FSImage baseImage;
+  private FSNamesystem baseNamesystem;
+
+  SnapshotView(Configuration conf, FileSystem dfs, String ssDir, String id)
+  throws IOException {
+    this.conf = conf;
+    this.dfs = dfs;
+    this.id = id;
+
+    Set<String> seen = new HashSet<String>();
+    Path path = SnapshotNode.getSnapshotPath(ssDir, id);
+    while (true) {
+      if (!seen.add(path.getName())) {
+        throw new IOException("Snapshot " + id + " depends on itself");
+      }
+      if (!dfs.exists(path)) {
+        throw new FileNotFoundException("Snapshot " + path.getName() +
+            " needed by snapshot " + id + " does not exist");
+      }
+      SnapshotDelta delta = SnapshotDelta.readIfDelta(dfs, path);
+      if (delta == null) {
+        break;
+      }
+      deltas.add(delta); // newest first
+      path = SnapshotNode.getSnapshotPath(ssDir, delta.getParentId());
+    }
+    basePath = path;
+  }
+
+  /** The number of deltas between this snapshot and its full image */
+  int getChainLength() {
+    return deltas.size();
+  }
+
+  /**
+   * Get the record for path.
+   * @return the record, or null if there is no such path in the snapshot
+   */
+  Record getRecord(String path) throws IOException {
+    Record record = lookup(Path.SEPARATOR);
+    for (String name : path.split(Path.SEPARATOR)) {
+      if (name.length() == 0) {
+        continue;
+      }
+      if (record == null || !record.hasChild(name)) {
+        return null;
+      }
+      record = getChild(record, name);
+    }
+    return record;
+  }
+
+  /**
+   * Add the records of all files at or under record to files.
+   */
+  void getFiles(Record record, List<Record> files) throws IOException {
+    if (!record.isDir) {
+      files.add(record);
+      return;
+    }
+    for (String name : record.children) {
+      getFiles(getChild(record, name), files);
+    }
+  }
+
+  /**
+   * Write the snapshot as a full image.
+   */
+  void saveImage(String dest, OutputStream out) throws IOException {
+    FSImage image = new FSImage();
+    FSNamesystem namesystem = new FSNamesystem(image, conf);
+    try {
+      if (deltas.isEmpty()) {
+        namesystem.setGenerationStamp(getBase().getGenerationStamp());
+        image.namespaceID = baseImage.getNamespaceID();
+      } else {
+        image.namespaceID = deltas.get(0).getNamespaceID();
+        namesystem.setGenerationStamp(deltas.get(0).getGenerationStamp());
+      }
+      addToNamespace(namesystem.dir, getRecord(Path.SEPARATOR));
+      namesystem.dir.updateCountForINodeWithQuota();
+      image.saveFSImage(dest, out);
+    } finally {
+      image.close();
+    }
+  }
+
+  private void addToNamespace(FSDirectory fsDir, Record record)
+  throws IOException {
+    if (!record.isDir) {
+      if (fsDir.unprotectedAddFile(record.path, record.permissions,
+            record.blocks, record.replication, record.mtime, record.atime,
+            record.blockSize) == null) {
+        throw new IOException("Could not add file " + record.path);
+      }
+      return;
+    }
+    if (Path.SEPARATOR.equals(record.path)) {
+      fsDir.rootDir.setPermissionStatus(record.permissions);
+    } else {
+      fsDir.unprotectedMkdir(record.path, record.permissions, record.mtime);
+    }
+    for (String name : record.children) {
+      addToNamespace(fsDir, getChild(record, name));
+    }
+    INode node = fsDir.getInode(record.path);
+    if (node.getNsQuota() != record.nsQuota ||
+        node.getDsQuota() != record.dsQuota) {
+      fsDir.unprotectedSetQuota(record.path, record.nsQuota, record.dsQuota);
+      node = fsDir.getInode(record.path);
+    }
+    // adding the children updated the modification time
+    node.setModificationTimeForce(record.mtime);
+  }
+
+  private Record getChild(Record dir, String name) throws IOException {
+    Record child = lookup(SnapshotDelta.childPath(dir.path, name));
+    if (child == null) {
+      throw new IOException("Snapshot " + id + " has no record for " + SnapshotDelta.childPath(dir.path, name));
+    }
+    return child;
+  }
+
+  private Record lookup(String path) throws IOException {
+    for (SnapshotDelta delta : deltas) {
+      Record record = delta.get(path);
+      if (record != null) {
+        return record;
+      }
+    }
+    INode node = getBase().dir.getInode(path);
+    return node == null ? null : new Record(path, node);
+  }
+
+  private FSNamesystem getBase() throws IOException {
+    if (baseNamesystem == null) {
+      baseImage = new FSImage();
+      baseNamesystem = new FSNamesystem(baseImage, conf);
+      FSDataInputStream in = dfs.open(basePath);
+      baseImage.loadFSImage(basePath.toString(), in);
+    }
+    return baseNamesystem;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (baseImage != null) {
+      baseImage.close();
+    }
+  }
+}
@@ -155,16 +155,27 @@ public class WaitingRoom {
     return new WaitingRoomPurger(conf, dfs);
   }
 
+  /**
+   * Deletes the files in the waiting room that no snapshot references.
+   *
+   * If every snapshot is in the {@link SnapshotIndex} of the
+   * SnapshotNode, the blocks of the files are looked up in the index,
+   * fs.snapshot.purge.batch files at a time. Otherwise all snapshots
+   * are loaded and compared with all files in the waiting room.
+   */
   public static class WaitingRoomPurger implements Runnable {
     public static final Log LOG =
       LogFactory.getLog(WaitingRoomPurger.class);
 
+    public static final String BATCH_SIZE_KEY = "fs.snapshot.purge.batch";
+
     private Configuration conf;
     private FileSystem dfs;
 
     private String ssDir;
     private String wrDir; 
     private long cleanupPeriod; // in seconds, DEFAULT 24 hours
+    private int batchSize; // files checked against the index at a time
 
     private boolean shouldRun;
 
@@ -177,6 +188,7 @@ public class WaitingRoom {
       this.ssDir = conf.get("fs.snapshot.dir", "/.SNAPSHOT");
       this.wrDir = conf.get("fs.snapshot.waitingroom", "/.WR");
       this.cleanupPeriod = conf.getLong("fs.snapshot.cleanup", 86400);
+      this.batchSize = conf.getInt(BATCH_SIZE_KEY, 1000);
       this.fileMap = new HashMap<Path, List<Long>>();
       this.blockRefMap = new HashMap<Long, Object>();
     }
@@ -185,29 +197,55 @@ public class WaitingRoom {
       shouldRun = false;
     }
 
-    private void filterMapsWithSnapshots() throws IOException {
-      if (this.fileMap == null) return;
-
+    private List<FileStatus> listSnapshots() throws IOException {
+      List<FileStatus> snapshots = new ArrayList<FileStatus>();
       Path ssPath = new Path(ssDir);
 
-      if (!dfs.exists(ssPath)) return; // ss dir doesn't exist
+      if (!dfs.exists(ssPath)) return snapshots; // ss dir doesn't exist
 
       FileStatus ssStatus = dfs.getFileStatus(ssPath);
       if (!ssStatus.isDir()) {
         throw new IOException("ssDir " + ssDir + " is not a directory");
       }
 
-      List<FileStatus> snapshots = new ArrayList<FileStatus>();
       FileStatus[] files = dfs.listStatus(ssPath);
 
       // Separate snapshot files
       for (FileStatus ss: files) {
         if (ss.isDir()) continue; // skips dirs
         String name = ss.getPath().getName();
-        if (!name.startsWith("dfs_snapshot_")) continue; // not ss file
+        if (!name.startsWith(SnapshotNode.SSNAME)) continue; // not ss file
 
         snapshots.add(ss);
       }
+      return snapshots;
+    }
+
+    /**
+     * Get the sequence numbers of the existing snapshots in the index.
+     * @return the sequence numbers, or null if a snapshot is missing
+     *         from the index
+     */
+    private NavigableSet<Integer> getIndexedSnapshots(SnapshotIndex index)
+    throws IOException {
+      NavigableSet<Integer> seqs = new TreeSet<Integer>();
+      for (FileStatus ss: listSnapshots()) {
+        String id = ss.getPath().getName().substring(
+                                             SnapshotNode.SSNAME.length());
+        Integer seq = index.getSeq(id);
+        if (seq == null) {
+          LOG.info("Snapshot " + id + " is not in the snapshot index.");
+          return null;
+        }
+        seqs.add(seq);
+      }
+      return seqs;
+    }
+
+    private void filterMapsWithSnapshots() throws IOException {
+      if (this.fileMap == null) return;
+
+      List<FileStatus> snapshots = listSnapshots();
 
       // Filter map with each snapshot
       for (FileStatus ss: snapshots) {
@@ -222,6 +260,13 @@ public class WaitingRoom {
       // Short circuit check
       if (blockRefMap.isEmpty()) return;
 
+      expungeFiles();
+
+      // Delete empty dirs in waiting room
+      deleteEmptyDirs();
+    }
+
+    private void expungeFiles() throws IOException {
       // Find unreferenced files in waiting room and delete them
       outer:
       for (Path path: fileMap.keySet()) {
@@ -247,26 +292,29 @@ public class WaitingRoom {
           dfs.delete(path);
         }
       }
-
-      // Delete empty dirs in waiting room
-      deleteEmptyDirs();
     }
 
     private void filterMapsWithSnapshot(Path path) {
       LOG.info("Filtering WaitingRoomPurger maps with snapshot at " + path);
 
       try {
-        FSImage fsImage = new FSImage();
-        FSNamesystem namesystem = new FSNamesystem(fsImage, conf);
-        FSDataInputStream in = dfs.open(path);
-
-        // Load in snapshot image
-        fsImage.loadFSImage(path.toString(), in);
-
-        // Filter block reference map with files in snapshot
-        filterMapWithInode(namesystem.dir.rootDir);
-
-        fsImage.close();
+        SnapshotDelta delta = SnapshotDelta.readIfDelta(dfs, path);
+        if (delta != null) {
+          // The image it is based on is filtered with separately
+          filterMapWithDelta(delta);
+        } else {
+          FSImage fsImage = new FSImage();
+          FSNamesystem namesystem = new FSNamesystem(fsImage, conf);
+          FSDataInputStream in = dfs.open(path);
+
+          // Load in snapshot image
+          fsImage.loadFSImage(path.toString(), in);
+
+          // Filter block reference map with files in snapshot
+          filterMapWithInode(namesystem.dir.rootDir);
+
+          fsImage.close();
+        }
         LOG.info("Successfully filtered WaitingRoomPurger maps with snapshot at " + path);
       } 
       catch (IOException e) {
@@ -296,6 +344,39 @@ public class WaitingRoom {
       }
     }
 
+    private void filterMapWithIndex(SnapshotIndex index,
+                                    NavigableSet<Integer> snapshots) {
+      for (Iterator<Long> it = blockRefMap.keySet().iterator(); it.hasNext();) {
+        if (index.isReferenced(it.next(), snapshots)) {
+          it.remove();
+        }
+      }
+    }
+
+    /**
+     * Delete the unreferenced files among the ones collected so far.
+     */
+    private void purgeBatch(SnapshotIndex index,
+                            NavigableSet<Integer> snapshots)
+    throws IOException {
+      filterMapWithIndex(index, snapshots);
+      expungeFiles();
+      fileMap.clear();
+      blockRefMap.clear();
+    }
+
+    private void filterMapWithDelta(SnapshotDelta delta) {
+      for (SnapshotDelta.Record record: delta.getRecords()) {
+        // Must NOT filter with files in WaitingRoom already!
+        if (record.isDir || record.path.startsWith(wrDir)) continue;
+
+        // Mark all blocks of this file as referenced
+        for (Block block: record.blocks) {
+          blockRefMap.remove(block.getBlockId());
+        }
+      }
+    }
+
     private void deleteEmptyDirs() throws IOException{
       Path wrRoot = new Path(wrDir);
 
@@ -334,14 +415,20 @@ public class WaitingRoom {
       DFSClient client = new DFSClient(conf);
 
       Path wrRoot = new Path(wrDir);
-      addDirToMaps(wrRoot, client);
+      addDirToMaps(wrRoot, client, null, null);
 
       client.close();
 
       LOG.info("WaitingRoomPurger maps loaded successfully.");
     }
 
-    private void addDirToMaps(Path dir, DFSClient client) throws IOException {
+    /**
+     * Add the files under dir to the maps. If an index is given, the
+     * files collected are purged every batchSize files.
+     */
+    private void addDirToMaps(Path dir, DFSClient client, SnapshotIndex index,
+                              NavigableSet<Integer> snapshots)
+    throws IOException {
       FileStatus[] children = dfs.listStatus(dir);
 
       if (children == null) return;
@@ -360,18 +447,45 @@ public class WaitingRoom {
             fileMap.get(path).add(blockId); // add to file block list
             blockRefMap.put(blockId, null); // mark as unrefereced
           }
+
+          if (index != null && fileMap.size() >= batchSize) {
+            purgeBatch(index, snapshots);
+          }
         }
         else {
           // If child is a directory, recurse on it
-          addDirToMaps(child.getPath(), client);
+          addDirToMaps(child.getPath(), client, index, snapshots);
         }
       }
     }
 
     void purge() throws IOException {
-      loadMaps();
-      filterMapsWithSnapshots();
-      expungeWaitingRoom();
+      SnapshotIndex index = SnapshotIndex.load(conf);
+      NavigableSet<Integer> snapshots = getIndexedSnapshots(index);
+      if (snapshots == null) {
+        loadMaps();
+        filterMapsWithSnapshots();
+        expungeWaitingRoom();
+        return;
+      }
+
+      LOG.info("Purging WaitingRoom with the index of " + snapshots.size() +
+               " snapshots.");
+      fileMap.clear();
+      blockRefMap.clear();
+
+      DFSClient client = new DFSClient(conf);
+      try {
+        addDirToMaps(new Path(wrDir), client, index, snapshots);
+        purgeBatch(index, snapshots);
+      } finally {
+        client.close();
+      }
+
+      // Delete empty dirs in waiting room
+      if (dfs.exists(new Path(wrDir))) {
+        deleteEmptyDirs();
+      }
     }
 
     @Override
@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import junit.framework.TestCase;
+import java.io.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.hadoop.hdfs.protocol.FSConstants.SafeModeAction;
+
+/**
+ * Tests snapshots stored as deltas against the previous snapshot.
+ */
+public class TestIncrementalSnapshot extends TestCase {
+
+  private static final Log LOG =
+    LogFactory.getLog(TestIncrementalSnapshot.class);
+
+  private Configuration conf;
+  private MiniDFSCluster cluster;
+  private FileSystem dfs;
+  private SnapshotNode ssNode;
+  private String ssDir;
+
+  @Override
+  protected void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setBoolean(SnapshotNode.INCREMENTAL_KEY, true);
+    conf.setInt(SnapshotNode.MAX_CHAIN_KEY, 100);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    dfs = cluster.getFileSystem();
+    ssNode = new SnapshotNode(conf);
+    ssDir = conf.get("fs.snapshot.dir", "/.SNAPSHOT");
+  }
+
+  @Override
+  protected void tearDown() {
+    ssNode.shutdown();
+    cluster.shutdown();
+  }
+
+  /**
+   * Add the same number of files between snapshots. The deltas have to
+   * stay the same size while the namespace grows.
+   */
+  public void testDeltaSizeFollowsChange() throws IOException {
+    int rounds = 5;
+    int filesPerRound = 100;
+    long[] sizes = new long[rounds];
+    for (int round = 0; round < rounds; round++) {
+      for (int i = 0; i < filesPerRound; i++) {
+        DFSTestUtil.createFile(dfs, new Path("/grow/" + round + "/f" + i),
+                               1, (short)1, 0);
+      }
+      long startTime = System.currentTimeMillis();
+      ssNode.createSnapshot("r" + round, false);
+      long time = System.currentTimeMillis() - startTime;
+      sizes[round] = ssNode.getSnapshotFileStatus("r" + round).getLen();
+      LOG.info("Snapshot of a namespace with " + filesPerRound * (round + 1) +
+               " files took " + time + " msec and " + sizes[round] +
+               " bytes.");
+    }
+
+    // every snapshot shows exactly the files created before it
+    for (int round = 0; round < rounds; round++) {
+      assertEquals(filesPerRound * (round + 1),
+                   ssNode.getLocatedBlocks("r" + round, "/grow").length);
+    }
+
+    // the first snapshot is a full image, the others are deltas
+    assertNull(readParentId("r0"));
+    ssNode.compactSnapshot("r" + (rounds - 1));
+    long fullSize = ssNode.getSnapshotFileStatus("r" + (rounds - 1)).getLen();
+    LOG.info("Full image of the last snapshot has " + fullSize + " bytes.");
+    for (int round = 1; round < rounds - 1; round++) {
+      assertEquals("r" + (round - 1), readParentId("r" + round));
+      assertTrue(sizes[round] < sizes[1] * 3 / 2);
+      assertTrue(sizes[round] < fullSize / 2);
+    }
+    assertEquals(filesPerRound * rounds,
+                 ssNode.getLocatedBlocks("r" + (rounds - 1), "/grow").length);
+  }
+
+  public void testRenameAndDelete() throws IOException {
+    DFSTestUtil.createFile(dfs, new Path("/a/b/f1"), 10, (short)1, 0);
+    DFSTestUtil.createFile(dfs, new Path("/a/b/f2"), 20, (short)1, 0);
+    DFSTestUtil.createFile(dfs, new Path("/c/f3"), 30, (short)1, 0);
+    ssNode.createSnapshot("v1", false);
+
+    // moves /a/b to /c/b
+    assertTrue(dfs.rename(new Path("/a/b"), new Path("/c")));
+    dfs.delete(new Path("/c/f3"), false);
+    DFSTestUtil.createFile(dfs, new Path("/a/b"), 40, (short)1, 0);
+    ssNode.createSnapshot("v2", false);
+
+    // a new image, so v3 is found by comparing the namespaces
+    DistributedFileSystem fs = (DistributedFileSystem)dfs;
+    fs.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+    fs.saveNamespace(false, false);
+    fs.setSafeMode(SafeModeAction.SAFEMODE_LEAVE);
+    DFSTestUtil.createFile(dfs, new Path("/c/b/f4"), 50, (short)1, 0);
+    dfs.delete(new Path("/a"), true);
+    ssNode.createSnapshot("v3", false);
+
+    checkV1();
+    checkV2();
+    checkV3();
+
+    // deleting the full image makes v2 a full image
+    assertTrue(ssNode.deleteSnapshot("v1"));
+    assertNull(readParentId("v2"));
+    checkV2();
+    checkV3();
+
+    // deleting a delta folds it into the next one
+    ssNode.createSnapshot("v4", false);
+    assertTrue(ssNode.deleteSnapshot("v3"));
+    assertEquals("v2", readParentId("v4"));
+    checkV3(); // nothing changed since v3
+    ssNode.compactSnapshot("v4");
+    assertNull(readParentId("v4"));
+    checkV2();
+    checkV3();
+  }
+
+  private void checkV1() throws IOException {
+    checkLength("v1", "/a/b/f1", 10);
+    checkLength("v1", "/a/b/f2", 20);
+    checkLength("v1", "/c/f3", 30);
+    checkMissing("v1", "/c/b");
+  }
+
+  private void checkV2() throws IOException {
+    checkLength("v2", "/a/b", 40);
+    checkLength("v2", "/c/b/f1", 10);
+    checkLength("v2", "/c/b/f2", 20);
+    checkMissing("v2", "/c/f3");
+    checkMissing("v2", "/a/b/f1");
+    assertEquals(2, ssNode.getLocatedBlocks("v2", "/c").length);
+  }
+
+  private void checkV3() throws IOException {
+    String id = dfs.exists(SnapshotNode.getSnapshotPath(ssDir, "v3")) ?
+                "v3" : "v4";
+    checkMissing(id, "/a");
+    checkLength(id, "/c/b/f4", 50);
+    assertEquals(3, ssNode.getLocatedBlocks(id, "/c").length);
+  }
+
+  private void checkLength(String id, String path, long length)
+  throws IOException {
+    LocatedBlocks[] blocks = ssNode.getLocatedBlocks(id, path);
+    assertEquals(1, blocks.length);
+    assertEquals(length, blocks[0].getFileLength());
+  }
+
+  private void checkMissing(String id, String path) throws IOException {
+    try {
+      ssNode.getLocatedBlocks(id, path);
+      fail(path + " should not exist in snapshot " + id);
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private String readParentId(String id) throws IOException {
+    return SnapshotDelta.readParentId(dfs,
+                                      SnapshotNode.getSnapshotPath(ssDir, id));
+  }
+}
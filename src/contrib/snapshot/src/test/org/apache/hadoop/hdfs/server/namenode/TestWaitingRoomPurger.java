@@ -40,8 +40,42 @@ public class TestWaitingRoomPurger extends TestCase {
 
   private static final Log LOG = LogFactory.getLog(TestWaitingRoomPurger.class);
 
+  private static final File INDEX_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"),
+      "snapshotindex");
+
+  @Override
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(INDEX_DIR);
+  }
+
   public void testWaitingRoomPurger() throws IOException {
+    checkPurger(new Configuration(), false);
+  }
+
+  /**
+   * Purge one file at a time with snapshots stored as deltas, which are
+   * added to the index without looking at the whole namespace, and an
+   * index that is compacted after every snapshot.
+   */
+  public void testPurgeInBatches() throws IOException {
     Configuration conf = new Configuration();
+    conf.setInt(WaitingRoomPurger.BATCH_SIZE_KEY, 1);
+    conf.setBoolean(SnapshotNode.INCREMENTAL_KEY, true);
+    conf.setInt(SnapshotIndex.MAX_SEGMENTS_KEY, 1);
+    checkPurger(conf, false);
+  }
+
+  /**
+   * Without the index all snapshots have to be loaded.
+   */
+  public void testSnapshotsMissingFromIndex() throws IOException {
+    checkPurger(new Configuration(), true);
+  }
+
+  private void checkPurger(Configuration conf, boolean dropIndex)
+  throws IOException {
+    conf.set(SnapshotIndex.INDEX_DIR_KEY, INDEX_DIR.getPath());
     MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
     cluster.waitClusterUp();
     FileSystem fs = cluster.getFileSystem();
@@ -93,6 +127,15 @@ public class TestWaitingRoomPurger extends TestCase {
     stream.close();
 
     ssNode.createSnapshot("third", false); // contains bar (V2)
+    if (dropIndex) {
+      ssNode.shutdown();
+      FileUtil.fullyDelete(INDEX_DIR);
+    } else {
+      SnapshotIndex index = SnapshotIndex.load(conf);
+      assertNotNull(index.getSeq("first"));
+      assertNotNull(index.getSeq("second"));
+      assertNotNull(index.getSeq("third"));
+    }
 
     // Verify fs state right now
     assertTrue(fs.exists(bar));
@@ -127,5 +170,10 @@ public class TestWaitingRoomPurger extends TestCase {
     assertFalse(fs.exists(new Path(wrPath + "/foo"))); // deleted: last run
     assertFalse(fs.exists(new Path(wrPath + "/hadoop/bar"))); // deleted: unreferenced
     assertFalse(fs.exists(new Path(wrPath + "/hadoop/mash"))); // deleted: last run
+
+    if (!dropIndex) {
+      ssNode.shutdown();
+    }
+    cluster.shutdown();
   }
 }
\ No newline at end of file
@@ -33,6 +33,7 @@ import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -170,6 +171,15 @@ public class Configuration implements Iterable<Map.Entry<String,String>>,
    */
   private static final WeakHashMap<Configuration,Object> REGISTRY = 
     new WeakHashMap<Configuration,Object>();
+
+  /**
+   * Classes already loaded by name, per class loader, so that hot paths such
+   * as RPC deserialization do not go through Class.forName on every call.
+   * The class loaders are weakly referenced; the classes of a live loader
+   * are kept in a plain map, since nothing else holds on to their names.
+   */
+  private static final Map<ClassLoader, Map<String, Class<?>>>
+    CACHE_CLASSES = new WeakHashMap<ClassLoader, Map<String, Class<?>>>();
   
   /**
    * List of default Resources. Resources are loaded in the order of the list 
@@ -789,7 +799,21 @@ public class Configuration implements Iterable<Map.Entry<String,String>>,
    * @throws ClassNotFoundException if the class is not found.
    */
   public Class<?> getClassByName(String name) throws ClassNotFoundException {
-    return Class.forName(name, true, classLoader);
+    Map<String, Class<?>> map;
+    synchronized (CACHE_CLASSES) {
+      map = CACHE_CLASSES.get(classLoader);
+      if (map == null) {
+        map = Collections.synchronizedMap(new HashMap<String, Class<?>>());
+        CACHE_CLASSES.put(classLoader, map);
+      }
+    }
+
+    Class<?> clazz = map.get(name);
+    if (clazz == null) {
+      clazz = Class.forName(name, true, classLoader);
+      map.put(name, clazz);
+    }
+    return clazz;
   }
 
   /** 
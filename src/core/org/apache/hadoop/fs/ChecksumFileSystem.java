@@ -26,6 +26,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.StringUtils;
 
@@ -332,7 +333,9 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
                           int bytesPerChecksum,
                           Progressable progress)
       throws IOException {
-      super(new CRC32(), bytesPerChecksum, 4);
+      super(DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32,
+                                         bytesPerChecksum),
+            bytesPerChecksum, 4);
       this.datas = fs.getRawFileSystem().create(file, overwrite, bufferSize, 
                                          replication, blockSize, progress);
       int sumBufferSize = fs.getSumBufferSize(bytesPerChecksum, bufferSize);
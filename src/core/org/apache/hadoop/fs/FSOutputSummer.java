@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.Checksum;
 
+import org.apache.hadoop.util.DataChecksum;
+
 /**
  * This is a generic output stream for generating checksums for
  * data before it is written to the underlying stream
@@ -36,6 +38,10 @@ abstract public class FSOutputSummer extends OutputStream {
   private byte checksum[];
   // The number of valid bytes in the buffer.
   private int count;
+  // The most chunks checksumed in one call by a DataChecksum
+  private static final int MAX_CHUNKS_PER_CALL = 128;
+  // internal buffer for the checksums of those chunks
+  private byte chunkSums[];
   
   protected FSOutputSummer(Checksum sum, int maxChunkSize, int checksumSize) {
     this.sum = sum;
@@ -101,6 +107,9 @@ abstract public class FSOutputSummer extends OutputStream {
     if(count==0 && len>=buf.length) {
       // local buffer is empty and user data has one chunk
       // checksum and output data
+      if (canChecksumChunks()) {
+        return writeChecksumChunks(b, off, len);
+      }
       final int length = buf.length;
       sum.update(b, off, length);
       writeChecksumChunk(b, off, length, false);
@@ -120,6 +129,39 @@ abstract public class FSOutputSummer extends OutputStream {
     return bytesToCopy;
   }
 
+  /* A DataChecksum can checksum all the chunks of a write in one call,
+   * as long as its chunks are the chunks of this stream.
+   */
+  private boolean canChecksumChunks() {
+    if (!(sum instanceof DataChecksum)) {
+      return false;
+    }
+    DataChecksum dataChecksum = (DataChecksum)sum;
+    return dataChecksum.getBytesPerChecksum() == buf.length &&
+           dataChecksum.getChecksumSize() == checksum.length;
+  }
+
+  /* Checksum the full chunks at the start of the user data in one call,
+   * and output them chunk by chunk.
+   * @return the number of bytes written
+   */
+  private int writeChecksumChunks(byte b[], int off, int len)
+  throws IOException {
+    final int chunkSize = buf.length;
+    final int numChunks = Math.min(len / chunkSize, MAX_CHUNKS_PER_CALL);
+    if (chunkSums == null) {
+      chunkSums = new byte[MAX_CHUNKS_PER_CALL * checksum.length];
+    }
+    ((DataChecksum)sum).calculateChunkedSums(b, off, numChunks * chunkSize,
+                                             chunkSums, 0);
+    for (int i = 0; i < numChunks; i++) {
+      System.arraycopy(chunkSums, i * checksum.length,
+                       checksum, 0, checksum.length);
+      writeChunk(b, off + i * chunkSize, chunkSize, checksum);
+    }
+    return numChunks * chunkSize;
+  }
+
   /* Forces any buffered output bytes to be checksumed and written out to
    * the underlying output stream. 
    */
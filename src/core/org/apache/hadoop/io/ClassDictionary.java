@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A table of class names shared by the two ends of a connection so that
+ * {@link ObjectWritable} can write a short id instead of a full class name.
+ *
+ * A class reference is written either as a UTF8 class name (the legacy
+ * encoding) or, when the class is in the dictionary, as a negative short.
+ * Class names are never longer than 32767 bytes, so the length prefix of a
+ * UTF8 name is never negative and a reader can always tell the two apart.
+ */
+public class ClassDictionary {
+
+  /** Implemented by writables that can use a connection's dictionary. */
+  public static interface Aware {
+    /** Use the given dictionary for subsequent reads and writes. */
+    void setClassDictionary(ClassDictionary dictionary);
+  }
+
+  /** Largest number of entries addressable by a short id. */
+  public static final int MAX_SIZE = Short.MAX_VALUE;
+
+  /** Classes every dictionary starts with, independent of the protocol. */
+  private static final Class<?>[] BASE_CLASSES = {
+    Boolean.TYPE, Byte.TYPE, Character.TYPE, Short.TYPE, Integer.TYPE,
+    Long.TYPE, Float.TYPE, Double.TYPE, Void.TYPE, String.class,
+    Writable.class, ObjectWritable.NULL_INSTANCE_CLASS,
+    Text.class, BooleanWritable.class, IntWritable.class,
+    LongWritable.class, BytesWritable.class, NullWritable.class
+  };
+
+  private static final Map<Class<?>, ClassDictionary> PROTOCOL_CACHE =
+    new ConcurrentHashMap<Class<?>, ClassDictionary>();
+
+  private static final int MAX_RESOLVED_CACHE_SIZE = 1024;
+  private static final Map<List<String>, ClassDictionary> RESOLVED_CACHE =
+    new ConcurrentHashMap<List<String>, ClassDictionary>();
+
+  private final String[] names;
+  private final Class<?>[] classes;
+  private final Map<Class<?>, Integer> ids;
+
+  private ClassDictionary(String[] names, Class<?>[] classes) {
+    this.names = names;
+    this.classes = classes;
+    this.ids = new HashMap<Class<?>, Integer>(classes.length * 2);
+    for (int i = 0; i < classes.length; i++) {
+      if (classes[i] != null) {
+        ids.put(classes[i], i);
+      }
+    }
+  }
+
+  /**
+   * Build the dictionary for an RPC protocol: the base classes followed by
+   * every parameter and return type of the protocol's methods, sorted by
+   * name so both ends agree on the ids.
+   */
+  public static ClassDictionary forProtocol(Class<?> protocol) {
+    ClassDictionary dictionary = PROTOCOL_CACHE.get(protocol);
+    if (dictionary != null) {
+      return dictionary;
+    }
+    Map<String, Class<?>> byName = new HashMap<String, Class<?>>();
+    for (Method method : protocol.getMethods()) {
+      addClass(byName, method.getReturnType());
+      for (Class<?> param : method.getParameterTypes()) {
+        addClass(byName, param);
+      }
+    }
+    for (Class<?> c : BASE_CLASSES) {
+      byName.remove(c.getName());
+    }
+    int size = Math.min(MAX_SIZE, BASE_CLASSES.length + byName.size());
+    String[] names = new String[size];
+    Class<?>[] classes = new Class<?>[size];
+    int i = 0;
+    for (; i < BASE_CLASSES.length; i++) {
+      names[i] = BASE_CLASSES[i].getName();
+      classes[i] = BASE_CLASSES[i];
+    }
+    for (String name : new TreeSet<String>(byName.keySet())) {
+      if (i == size) {
+        break;
+      }
+      names[i] = name;
+      classes[i++] = byName.get(name);
+    }
+    dictionary = new ClassDictionary(names, classes);
+    PROTOCOL_CACHE.put(protocol, dictionary);
+    return dictionary;
+  }
+
+  private static void addClass(Map<String, Class<?>> byName, Class<?> c) {
+    while (c != null) {
+      byName.put(c.getName(), c);
+      c = c.getComponentType();
+    }
+  }
+
+  /**
+   * Read a dictionary sent by the remote end and resolve its names.
+   * Names that cannot be resolved locally are kept so the ids stay aligned,
+   * but an attempt to decode them fails.
+   */
+  public static ClassDictionary read(DataInput in, Configuration conf)
+    throws IOException {
+    int size = in.readUnsignedShort();
+    if (size > MAX_SIZE) {
+      throw new IOException("Class dictionary too large: " + size);
+    }
+    String[] names = new String[size];
+    for (int i = 0; i < size; i++) {
+      names[i] = Text.readString(in);
+    }
+    List<String> key = Arrays.asList(names);
+    ClassDictionary dictionary = RESOLVED_CACHE.get(key);
+    if (dictionary != null) {
+      return dictionary;
+    }
+    Class<?>[] classes = new Class<?>[size];
+    for (int i = 0; i < size; i++) {
+      try {
+        classes[i] = ObjectWritable.getClassByName(names[i], conf);
+      } catch (ClassNotFoundException e) {
+        classes[i] = null;
+      }
+    }
+    dictionary = new ClassDictionary(names, classes);
+    if (RESOLVED_CACHE.size() < MAX_RESOLVED_CACHE_SIZE) {
+      RESOLVED_CACHE.put(key, dictionary);
+    }
+    return dictionary;
+  }
+
+  /** Write the names of this dictionary. */
+  public void write(DataOutput out) throws IOException {
+    out.writeShort(names.length);
+    for (String name : names) {
+      Text.writeString(out, name);
+    }
+  }
+
+  /** Number of entries in the dictionary. */
+  public int size() {
+    return names.length;
+  }
+
+  /** Write a reference to a class, by id if possible and by name otherwise. */
+  public static void writeClass(DataOutput out, Class<?> c,
+                                ClassDictionary dictionary)
+    throws IOException {
+    if (dictionary != null) {
+      Integer id = dictionary.ids.get(c);
+      if (id != null) {
+        out.writeShort(-1 - id);
+        return;
+      }
+    }
+    UTF8.writeString(out, c.getName());
+  }
+
+  /** Read a class reference written by {@link #writeClass}. */
+  public static Class<?> readClass(DataInput in, ClassDictionary dictionary,
+                                   Configuration conf) throws IOException {
+    short header = in.readShort();
+    if (header < 0) {
+      int id = -1 - header;
+      if (dictionary == null || id >= dictionary.classes.length) {
+        throw new IOException("Unknown class id " + id);
+      }
+      Class<?> c = dictionary.classes[id];
+      if (c == null) {
+        throw new IOException("Class " + dictionary.names[id] +
+                              " in dictionary could not be loaded");
+      }
+      return c;
+    }
+    byte[] bytes = new byte[header];
+    in.readFully(bytes);
+    String className = Text.decode(bytes);
+    try {
+      return ObjectWritable.getClassByName(className, conf);
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException("readObject can't find class " + className, e);
+    }
+  }
+}
@@ -27,12 +27,16 @@ import org.apache.hadoop.conf.*;
 
 /** A polymorphic Writable that writes an instance with it's class name.
  * Handles arrays, strings and primitive types without a Writable wrapper.
+ * When a {@link ClassDictionary} is set, classes found in it are written as
+ * short ids instead of names.
  */
-public class ObjectWritable implements Writable, Configurable {
+public class ObjectWritable
+  implements Writable, Configurable, ClassDictionary.Aware {
 
   private Class declaredClass;
   private Object instance;
   private Configuration conf;
+  private ClassDictionary dictionary;
 
   public ObjectWritable() {}
   
@@ -62,12 +66,16 @@ public class ObjectWritable implements Writable, Configurable {
   }
 
   
+  public void setClassDictionary(ClassDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
   public void readFields(DataInput in) throws IOException {
-    readObject(in, this, this.conf);
+    readObject(in, this, this.conf, dictionary);
   }
   
   public void write(DataOutput out) throws IOException {
-    writeObject(out, instance, declaredClass, conf);
+    writeObject(out, instance, declaredClass, conf, dictionary);
   }
 
   private static final Map<String, Class<?>> PRIMITIVE_NAMES = new HashMap<String, Class<?>>();
@@ -83,6 +91,20 @@ public class ObjectWritable implements Writable, Configurable {
     PRIMITIVE_NAMES.put("void", Void.TYPE);
   }
 
+  /**
+   * Load a class by name, resolving the names of primitive types.
+   */
+  static Class<?> getClassByName(String className, Configuration conf)
+    throws ClassNotFoundException {
+    Class<?> c = PRIMITIVE_NAMES.get(className);
+    if (c == null) {
+      c = conf.getClassByName(className);
+    }
+    return c;
+  }
+
+  static final Class<?> NULL_INSTANCE_CLASS = NullInstance.class;
+
   private static class NullInstance extends Configured implements Writable {
     private Class<?> declaredClass;
     public NullInstance() { super(null); }
@@ -111,20 +133,34 @@ public class ObjectWritable implements Writable, Configurable {
   public static void writeObject(DataOutput out, Object instance,
                                  Class declaredClass, 
                                  Configuration conf) throws IOException {
+    writeObject(out, instance, declaredClass, conf, null);
+  }
+
+  /** Write a {@link Writable}, {@link String}, primitive type, or an array of
+   * the preceding, using ids from <code>dictionary</code> for known classes.
+   * A null dictionary gives the same encoding as
+   * {@link #writeObject(DataOutput, Object, Class, Configuration)}. */
+  public static void writeObject(DataOutput out, Object instance,
+                                 Class declaredClass, Configuration conf,
+                                 ClassDictionary dictionary)
+    throws IOException {
 
     if (instance == null) {                       // null
-      instance = new NullInstance(declaredClass, conf);
-      declaredClass = Writable.class;
+      ClassDictionary.writeClass(out, Writable.class, dictionary);
+      ClassDictionary.writeClass(out, NullInstance.class, dictionary);
+      ClassDictionary.writeClass(out, declaredClass, dictionary);
+      return;
     }
 
-    UTF8.writeString(out, declaredClass.getName()); // always write declared
+    // always write declared
+    ClassDictionary.writeClass(out, declaredClass, dictionary);
 
     if (declaredClass.isArray()) {                // array
       int length = Array.getLength(instance);
       out.writeInt(length);
       for (int i = 0; i < length; i++) {
         writeObject(out, Array.get(instance, i),
-                    declaredClass.getComponentType(), conf);
+                    declaredClass.getComponentType(), conf, dictionary);
       }
       
     } else if (declaredClass == String.class) {   // String
@@ -155,7 +191,7 @@ public class ObjectWritable implements Writable, Configurable {
     } else if (declaredClass.isEnum()) {         // enum
       UTF8.writeString(out, ((Enum)instance).name());
     } else if (Writable.class.isAssignableFrom(declaredClass)) { // Writable
-      UTF8.writeString(out, instance.getClass().getName());
+      ClassDictionary.writeClass(out, instance.getClass(), dictionary);
       ((Writable)instance).write(out);
 
     } else {
@@ -173,19 +209,30 @@ public class ObjectWritable implements Writable, Configurable {
     
   /** Read a {@link Writable}, {@link String}, primitive type, or an array of
    * the preceding. */
-  @SuppressWarnings("unchecked")
   public static Object readObject(DataInput in, ObjectWritable objectWritable, Configuration conf)
     throws IOException {
-    String className = UTF8.readString(in);
-    Class<?> declaredClass = PRIMITIVE_NAMES.get(className);
-    if (declaredClass == null) {
-      try {
-        declaredClass = conf.getClassByName(className);
-      } catch (ClassNotFoundException e) {
-        throw new RuntimeException("readObject can't find class " + className, e);
-      }
-    }    
+    return readObject(in, objectWritable, conf, null);
+  }
+
+  /** Read a {@link Writable}, {@link String}, primitive type, or an array of
+   * the preceding, resolving class ids against <code>dictionary</code>. */
+  public static Object readObject(DataInput in, ObjectWritable objectWritable,
+                                  Configuration conf,
+                                  ClassDictionary dictionary)
+    throws IOException {
+    return readObject(in, ClassDictionary.readClass(in, dictionary, conf),
+                      objectWritable, conf, dictionary);
+  }
 
+  /** Read the rest of an instance whose declared class was already read
+   * with {@link ClassDictionary#readClass}. This lets a caller read values
+   * of primitive types itself, without boxing them. */
+  @SuppressWarnings("unchecked")
+  public static Object readObject(DataInput in, Class<?> declaredClass,
+                                  ObjectWritable objectWritable,
+                                  Configuration conf,
+                                  ClassDictionary dictionary)
+    throws IOException {
     Object instance;
     
     if (declaredClass.isPrimitive()) {            // primitive types
@@ -216,7 +263,7 @@ public class ObjectWritable implements Writable, Configurable {
       int length = in.readInt();
       instance = Array.newInstance(declaredClass.getComponentType(), length);
       for (int i = 0; i < length; i++) {
-        Array.set(instance, i, readObject(in, conf));
+        Array.set(instance, i, readObject(in, null, conf, dictionary));
       }
       
     } else if (declaredClass == String.class) {        // String
@@ -224,22 +271,14 @@ public class ObjectWritable implements Writable, Configurable {
     } else if (declaredClass.isEnum()) {         // enum
       instance = Enum.valueOf((Class<? extends Enum>) declaredClass, UTF8.readString(in));
     } else {                                      // Writable
-      Class instanceClass = null;
-      String str = "";
-      try {
-        str = UTF8.readString(in);
-        instanceClass = conf.getClassByName(str);
-      } catch (ClassNotFoundException e) {
-        throw new RuntimeException("readObject can't find class " + str, e);
-      }
-      
-      Writable writable = WritableFactories.newInstance(instanceClass, conf);
-      writable.readFields(in);
-      instance = writable;
-
+      Class instanceClass = ClassDictionary.readClass(in, dictionary, conf);
       if (instanceClass == NullInstance.class) {  // null
-        declaredClass = ((NullInstance)instance).declaredClass;
+        declaredClass = ClassDictionary.readClass(in, dictionary, conf);
         instance = null;
+      } else {
+        Writable writable = WritableFactories.newInstance(instanceClass, conf);
+        writable.readFields(in);
+        instance = writable;
       }
     }
 
@@ -50,6 +50,7 @@ import javax.net.SocketFactory;
 import org.apache.commons.logging.*;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.ClassDictionary;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
@@ -81,6 +82,7 @@ public class Client {
   final private int maxRetries; //the max. no. of retries for socket connections
   private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
   private int pingInterval; // how often sends ping to the server in msecs
+  private boolean compactClassIds; // if T send class ids instead of names
 
   private SocketFactory socketFactory;           // how to create sockets
   private int refCount = 1;
@@ -88,6 +90,14 @@ public class Client {
   final private static String PING_INTERVAL_NAME = "ipc.ping.interval";
   final static int DEFAULT_PING_INTERVAL = 60000; // 1 min
   final static int PING_CALL_ID = -1;
+
+  /**
+   * If true, connections offer the server a {@link ClassDictionary} for the
+   * protocol and encode classes as ids. Only enable this once all servers
+   * the client talks to understand the dictionary.
+   */
+  public final static String COMPACT_CLASS_IDS_NAME =
+    "ipc.client.compact.classids";
   
   /**
    * set the ping interval value in configuration
@@ -246,8 +256,12 @@ public class Client {
 
       UserGroupInformation ticket = remoteId.getTicket();
       Class<?> protocol = remoteId.getProtocol();
-      header = 
-        new ConnectionHeader(protocol == null ? null : protocol.getName(), ticket);
+      ClassDictionary classDictionary = null;
+      if (compactClassIds && protocol != null) {
+        classDictionary = ClassDictionary.forProtocol(protocol);
+      }
+      header = new ConnectionHeader(
+          protocol == null ? null : protocol.getName(), ticket, classDictionary);
       
       this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
           remoteId.getAddress().toString() +
@@ -535,6 +549,7 @@ public class Client {
               //data to be written
               d = new DataOutputBuffer();
               d.writeInt(call.id);
+              setClassDictionary(call.param);
               call.param.write(d);
               byte[] data = d.getData();
               int dataLength = d.getLength();
@@ -560,6 +575,14 @@ public class Client {
       }
     }
 
+    /* Let a parameter or value use this connection's class dictionary. */
+    private void setClassDictionary(Writable value) {
+      ClassDictionary dictionary = header.getClassDictionary();
+      if (dictionary != null && value instanceof ClassDictionary.Aware) {
+        ((ClassDictionary.Aware)value).setClassDictionary(dictionary);
+      }
+    }
+
     /* Receive a response.
      * Because only one receiver, so no synchronization on in.
      */
@@ -580,6 +603,7 @@ public class Client {
         int state = in.readInt();     // read call status
         if (state == Status.SUCCESS.state) {
           Writable value = ReflectionUtils.newInstance(valueClass, conf);
+          setClassDictionary(value);
           value.readFields(in);                 // read value
           call.setValue(value);
           calls.remove(id);
@@ -711,6 +735,7 @@ public class Client {
     this.maxRetries = conf.getInt("ipc.client.connect.max.retries", 10);
     this.tcpNoDelay = conf.getBoolean("ipc.client.tcpnodelay", false);
     this.pingInterval = getPingInterval(conf);
+    this.compactClassIds = conf.getBoolean(COMPACT_CLASS_IDS_NAME, false);
     if (LOG.isDebugEnabled()) {
       LOG.debug("The ping interval is" + this.pingInterval + "ms.");
     }
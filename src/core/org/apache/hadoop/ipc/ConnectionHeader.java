@@ -19,10 +19,13 @@ package org.apache.hadoop.ipc;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.ClassDictionary;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.security.UnixUserGroupInformation;
@@ -31,14 +34,28 @@ import org.apache.hadoop.security.UserGroupInformation;
 /**
  * The IPC connection header sent by the client to the server
  * on connection establishment.
+ *
+ * A client that wants compact class ids appends its {@link ClassDictionary}
+ * after the user information. Servers that predate the dictionary ignore the
+ * trailing bytes, and a header without it is read as before.
  */
 class ConnectionHeader implements Writable {
   public static final Log LOG = LogFactory.getLog(ConnectionHeader.class);
   
   private String protocol;
   private UserGroupInformation ugi = new UnixUserGroupInformation();
+  private ClassDictionary classDictionary;
+  private Configuration conf;
   
   public ConnectionHeader() {}
+
+  /**
+   * Create an empty {@link ConnectionHeader} to be read by a server, which
+   * resolves the classes of a received dictionary with <code>conf</code>.
+   */
+  public ConnectionHeader(Configuration conf) {
+    this.conf = conf;
+  }
   
   /**
    * Create a new {@link ConnectionHeader} with the given <code>protocol</code>
@@ -49,8 +66,24 @@ class ConnectionHeader implements Writable {
    *            the server
    */
   public ConnectionHeader(String protocol, UserGroupInformation ugi) {
+    this(protocol, ugi, null);
+  }
+
+  /**
+   * Create a new {@link ConnectionHeader} that also offers a
+   * {@link ClassDictionary} for the calls on this connection.
+   * @param protocol protocol used for communication between the IPC client
+   *                 and the server
+   * @param ugi {@link UserGroupInformation} of the client communicating with
+   *            the server
+   * @param classDictionary dictionary of class ids, or null to always send
+   *                        class names
+   */
+  public ConnectionHeader(String protocol, UserGroupInformation ugi,
+                          ClassDictionary classDictionary) {
     this.protocol = protocol;
     this.ugi = ugi;
+    this.classDictionary = classDictionary;
   }
 
   @Override
@@ -66,6 +99,19 @@ class ConnectionHeader implements Writable {
     } else {
       ugi = null;
     }
+
+    boolean dictionaryPresent;
+    try {
+      dictionaryPresent = in.readBoolean();
+    } catch (EOFException e) {
+      dictionaryPresent = false;                // header from an older client
+    }
+    if (dictionaryPresent) {
+      classDictionary = ClassDictionary.read(in,
+          conf == null ? new Configuration() : conf);
+    } else {
+      classDictionary = null;
+    }
   }
 
   @Override
@@ -77,6 +123,10 @@ class ConnectionHeader implements Writable {
     } else {
       out.writeBoolean(false);
     }
+    if (classDictionary != null) {
+      out.writeBoolean(true);
+      classDictionary.write(out);
+    }
   }
 
   public String getProtocol() {
@@ -87,6 +137,11 @@ class ConnectionHeader implements Writable {
     return ugi;
   }
 
+  /** The class dictionary offered by the client, or null if none. */
+  public ClassDictionary getClassDictionary() {
+    return classDictionary;
+  }
+
   public String toString() {
     return protocol + "-" + ugi;
   }
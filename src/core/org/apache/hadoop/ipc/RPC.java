@@ -28,8 +28,10 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -70,39 +72,239 @@ public class RPC {
   private RPC() {}                                  // no public ctor
 
 
+  /**
+   * The parameters of a call, as a server read them. The values of
+   * parameters of primitive types are kept unboxed.
+   */
+  public static interface CallParameters {
+    /** The parameter at index i, of a type that is not primitive. */
+    Object get(int i);
+    boolean getBoolean(int i);
+    byte getByte(int i);
+    char getChar(int i);
+    short getShort(int i);
+    int getInt(int i);
+    long getLong(int i);
+    float getFloat(int i);
+    double getDouble(int i);
+  }
+
+  /**
+   * Makes calls to one protocol method on the instance a server serves,
+   * without reflection. An invoker casts the instance to the protocol and
+   * passes it the parameters with their static types.
+   */
+  public static interface MethodInvoker {
+    /**
+     * Call the method.
+     * @return the value returned by the method, or null if it is void
+     */
+    Object invoke(Object instance, CallParameters parameters)
+      throws IOException;
+  }
+
+  /** The registered invokers, by protocol method. */
+  private static final Map<Method, MethodInvoker> INVOKERS =
+    new ConcurrentHashMap<Method, MethodInvoker>();
+
+  /**
+   * Register the invoker of a protocol method. Servers make the calls to
+   * methods that have no invoker through reflection.
+   * @param protocol the protocol, or an interface it extends
+   * @param methodName the name of the method
+   * @param parameterTypes the parameter types of the method
+   * @param invoker the invoker
+   */
+  public static void registerInvoker(Class<?> protocol, String methodName,
+                                     Class<?>[] parameterTypes,
+                                     MethodInvoker invoker) {
+    try {
+      INVOKERS.put(protocol.getMethod(methodName, parameterTypes), invoker);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException("No method " + methodName +
+          Arrays.toString(parameterTypes) + " in " + protocol.getName());
+    }
+  }
+
+  /** Get the registered invoker of a method, or null. */
+  public static MethodInvoker getInvoker(Method method) {
+    return INVOKERS.get(method);
+  }
+
+  static {
+    registerInvoker(VersionedProtocol.class, "getProtocolVersion",
+        new Class<?>[] {String.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((VersionedProtocol)instance).getProtocolVersion(
+                (String)p.get(0), p.getLong(1));
+          }
+        });
+    registerInvoker(VersionedProtocol.class, "getProtocolSignature",
+        new Class<?>[] {String.class, long.class, int.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((VersionedProtocol)instance).getProtocolSignature(
+                (String)p.get(0), p.getLong(1), p.getInt(2));
+          }
+        });
+  }
+
   /** A method invocation, including the method name and its parameters.*/
-  private static class Invocation implements Writable, Configurable {
+  private static class Invocation
+    implements Writable, Configurable, ClassDictionary.Aware, CallParameters {
     private String methodName;
     private Class[] parameterClasses;
     private Object[] parameters;
+    /** The primitive parameters read by a server, or null. */
+    private long[] primitives;
     private Configuration conf;
+    private ClassDictionary dictionary;
+
+    /** Parameter types per method, since getParameterTypes copies. */
+    private static final Map<Method, Class[]> PARAMETER_CLASSES =
+      new ConcurrentHashMap<Method, Class[]>();
 
     public Invocation() {}
 
     public Invocation(Method method, Object[] parameters) {
       this.methodName = method.getName();
-      this.parameterClasses = method.getParameterTypes();
+      this.parameterClasses = PARAMETER_CLASSES.get(method);
+      if (this.parameterClasses == null) {
+        this.parameterClasses = method.getParameterTypes();
+        PARAMETER_CLASSES.put(method, this.parameterClasses);
+      }
       this.parameters = parameters;
     }
 
     /** The name of the method invoked. */
     public String getMethodName() { return methodName; }
 
-    /** The parameter classes. */
-    public Class[] getParameterClasses() { return parameterClasses; }
+    /** Whether the parameters are of the given classes. */
+    public boolean hasParameterClasses(Class<?>[] classes) {
+      return Arrays.equals(parameterClasses, classes);
+    }
+
+    /** The parameter instances, with the primitive ones boxed. */
+    public Object[] getParameters() {
+      if (primitives != null) {
+        for (int i = 0; i < parameters.length; i++) {
+          if (parameterClasses[i].isPrimitive()) {
+            parameters[i] = box(parameterClasses[i], primitives[i]);
+          }
+        }
+        primitives = null;
+      }
+      return parameters;
+    }
+
+    public Object get(int i) {
+      return parameters[i];
+    }
 
-    /** The parameter instances. */
-    public Object[] getParameters() { return parameters; }
+    public boolean getBoolean(int i) {
+      return primitives != null ? primitives[i] != 0 :
+        ((Boolean)parameters[i]).booleanValue();
+    }
+
+    public byte getByte(int i) {
+      return primitives != null ? (byte)primitives[i] :
+        ((Byte)parameters[i]).byteValue();
+    }
+
+    public char getChar(int i) {
+      return primitives != null ? (char)primitives[i] :
+        ((Character)parameters[i]).charValue();
+    }
+
+    public short getShort(int i) {
+      return primitives != null ? (short)primitives[i] :
+        ((Short)parameters[i]).shortValue();
+    }
+
+    public int getInt(int i) {
+      return primitives != null ? (int)primitives[i] :
+        ((Integer)parameters[i]).intValue();
+    }
+
+    public long getLong(int i) {
+      return primitives != null ? primitives[i] :
+        ((Long)parameters[i]).longValue();
+    }
+
+    public float getFloat(int i) {
+      return primitives != null ? Float.intBitsToFloat((int)primitives[i]) :
+        ((Float)parameters[i]).floatValue();
+    }
+
+    public double getDouble(int i) {
+      return primitives != null ? Double.longBitsToDouble(primitives[i]) :
+        ((Double)parameters[i]).doubleValue();
+    }
 
     public void readFields(DataInput in) throws IOException {
       methodName = UTF8.readString(in);
       parameters = new Object[in.readInt()];
       parameterClasses = new Class[parameters.length];
+      primitives = new long[parameters.length];
       ObjectWritable objectWritable = new ObjectWritable();
       for (int i = 0; i < parameters.length; i++) {
-        parameters[i] = ObjectWritable.readObject(in, objectWritable, this.conf);
-        parameterClasses[i] = objectWritable.getDeclaredClass();
+        Class<?> declaredClass =
+          ClassDictionary.readClass(in, dictionary, this.conf);
+        if (declaredClass.isPrimitive()) {
+          primitives[i] = readPrimitive(in, declaredClass);
+          parameterClasses[i] = declaredClass;
+        } else {
+          parameters[i] = ObjectWritable.readObject(in, declaredClass,
+                                                    objectWritable,
+                                                    this.conf, dictionary);
+          parameterClasses[i] = objectWritable.getDeclaredClass();
+        }
+      }
+    }
+
+    /** Read a primitive value written by ObjectWritable, as a long. */
+    private static long readPrimitive(DataInput in, Class<?> declaredClass)
+      throws IOException {
+      if (declaredClass == Boolean.TYPE) {
+        return in.readBoolean() ? 1 : 0;
+      } else if (declaredClass == Character.TYPE) {
+        return in.readChar();
+      } else if (declaredClass == Byte.TYPE) {
+        return in.readByte();
+      } else if (declaredClass == Short.TYPE) {
+        return in.readShort();
+      } else if (declaredClass == Integer.TYPE) {
+        return in.readInt();
+      } else if (declaredClass == Long.TYPE) {
+        return in.readLong();
+      } else if (declaredClass == Float.TYPE) {
+        return Float.floatToRawIntBits(in.readFloat());
+      } else if (declaredClass == Double.TYPE) {
+        return Double.doubleToRawLongBits(in.readDouble());
       }
+      throw new IOException("Not a parameter type: " + declaredClass);
+    }
+
+    private static Object box(Class<?> declaredClass, long value) {
+      if (declaredClass == Boolean.TYPE) {
+        return Boolean.valueOf(value != 0);
+      } else if (declaredClass == Character.TYPE) {
+        return Character.valueOf((char)value);
+      } else if (declaredClass == Byte.TYPE) {
+        return Byte.valueOf((byte)value);
+      } else if (declaredClass == Short.TYPE) {
+        return Short.valueOf((short)value);
+      } else if (declaredClass == Integer.TYPE) {
+        return Integer.valueOf((int)value);
+      } else if (declaredClass == Long.TYPE) {
+        return Long.valueOf(value);
+      } else if (declaredClass == Float.TYPE) {
+        return Float.valueOf(Float.intBitsToFloat((int)value));
+      }
+      return Double.valueOf(Double.longBitsToDouble(value));
     }
 
     public void write(DataOutput out) throws IOException {
@@ -110,14 +312,19 @@ public class RPC {
       out.writeInt(parameterClasses.length);
       for (int i = 0; i < parameterClasses.length; i++) {
         ObjectWritable.writeObject(out, parameters[i], parameterClasses[i],
-                                   conf);
+                                   conf, dictionary);
       }
     }
 
+    public void setClassDictionary(ClassDictionary dictionary) {
+      this.dictionary = dictionary;
+    }
+
     public String toString() {
       StringBuffer buffer = new StringBuffer();
       buffer.append(methodName);
       buffer.append("(");
+      Object[] parameters = getParameters();
       for (int i = 0; i < parameters.length; i++) {
         if (i != 0)
           buffer.append(", ");
@@ -685,6 +892,34 @@ public class RPC {
     private boolean verbose;
     private boolean authorize = false;
 
+    /**
+     * The methods of each protocol served, looked up on its first call so
+     * that later calls do not look up methods and metrics by name. Methods
+     * with a registered {@link MethodInvoker} are called through it, the
+     * others through Method.invoke.
+     */
+    private final Map<Class<?>, Map<String, MethodEntry[]>> methodTable =
+      new ConcurrentHashMap<Class<?>, Map<String, MethodEntry[]>>();
+
+    /** A protocol method with what is needed to call and account it. */
+    private static class MethodEntry {
+      final Method method;
+      final MethodInvoker invoker;
+      final Class<?>[] parameterTypes;
+      final Class<?> returnType;
+      volatile MetricsTimeVaryingRate metrics;
+
+      MethodEntry(Method method) {
+        this.method = method;
+        this.invoker = getInvoker(method);
+        this.parameterTypes = method.getParameterTypes();
+        this.returnType = method.getReturnType();
+        if (invoker == null) {
+          method.setAccessible(true);
+        }
+      }
+    }
+
     /** Construct an RPC server.
      * @param instance the instance whose methods will be called
      * @param conf the configuration to use
@@ -728,13 +963,20 @@ public class RPC {
         Invocation call = (Invocation)param;
         if (verbose) log("Call: " + call);
 
-        Method method =
-          protocol.getMethod(call.getMethodName(),
-                                   call.getParameterClasses());
-        method.setAccessible(true);
+        MethodEntry entry = getMethodEntry(protocol, call);
 
         long startTime = System.currentTimeMillis();
-        Object value = method.invoke(instance, call.getParameters());
+        Object value;
+        if (entry.invoker != null) {
+          try {
+            value = entry.invoker.invoke(instance, call);
+          } catch (Throwable t) {
+            // fail the call the way Method.invoke would
+            throw new InvocationTargetException(t);
+          }
+        } else {
+          value = entry.method.invoke(instance, call.getParameters());
+        }
         int processingTime = (int) (System.currentTimeMillis() - startTime);
         int qTime = (int) (startTime-receivedTime);
         if (LOG.isDebugEnabled()) {
@@ -745,24 +987,28 @@ public class RPC {
         rpcMetrics.rpcQueueTime.inc(qTime);
         rpcMetrics.rpcProcessingTime.inc(processingTime);
 
-        MetricsTimeVaryingRate m =
-         (MetricsTimeVaryingRate) rpcMetrics.registry.get(call.getMethodName());
-      	if (m == null) {
-      	  try {
-      	    m = new MetricsTimeVaryingRate(call.getMethodName(),
-      	                                        rpcMetrics.registry);
-      	  } catch (IllegalArgumentException iae) {
-      	    // the metrics has been registered; re-fetch the handle
-	    LOG.debug("Error register " + call.getMethodName(), iae);
-      	    m = (MetricsTimeVaryingRate) rpcMetrics.registry.get(
-      	        call.getMethodName());
-      	  }
-      	}
+        MetricsTimeVaryingRate m = entry.metrics;
+        if (m == null) {
+          m = (MetricsTimeVaryingRate) rpcMetrics.registry.get(
+              call.getMethodName());
+          if (m == null) {
+            try {
+              m = new MetricsTimeVaryingRate(call.getMethodName(),
+                                             rpcMetrics.registry);
+            } catch (IllegalArgumentException iae) {
+              // the metrics has been registered; re-fetch the handle
+              LOG.debug("Error register " + call.getMethodName(), iae);
+              m = (MetricsTimeVaryingRate) rpcMetrics.registry.get(
+                  call.getMethodName());
+            }
+          }
+          entry.metrics = m;
+        }
         m.inc(processingTime);
 
         if (verbose) log("Return: "+value);
 
-        return new ObjectWritable(method.getReturnType(), value);
+        return new ObjectWritable(entry.returnType, value);
 
       } catch (InvocationTargetException e) {
         Throwable target = e.getTargetException();
@@ -783,6 +1029,39 @@ public class RPC {
       }
     }
 
+    /**
+     * Find a method of the protocol in the method table, adding the
+     * protocol to the table if this is its first call.
+     */
+    private MethodEntry getMethodEntry(Class<?> protocol, Invocation call)
+      throws NoSuchMethodException {
+      Map<String, MethodEntry[]> methods = methodTable.get(protocol);
+      if (methods == null) {
+        methods = new HashMap<String, MethodEntry[]>();
+        for (Method method : protocol.getMethods()) {
+          MethodEntry[] overloads = methods.get(method.getName());
+          if (overloads == null) {
+            overloads = new MethodEntry[1];
+          } else {
+            overloads = Arrays.copyOf(overloads, overloads.length + 1);
+          }
+          overloads[overloads.length - 1] = new MethodEntry(method);
+          methods.put(method.getName(), overloads);
+        }
+        methodTable.put(protocol, methods);
+      }
+      MethodEntry[] overloads = methods.get(call.getMethodName());
+      if (overloads != null) {
+        for (MethodEntry entry : overloads) {
+          if (call.hasParameterClasses(entry.parameterTypes)) {
+            return entry;
+          }
+        }
+      }
+      throw new NoSuchMethodException(protocol.getName() + "." +
+          call.getMethodName() + Arrays.toString(call.parameterClasses));
+    }
+
     @Override
     public void authorize(Subject user, ConnectionHeader connection) 
     throws AuthorizationException {
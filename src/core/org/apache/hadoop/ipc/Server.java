@@ -64,6 +64,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.security.SecurityUtil;
+import org.apache.hadoop.io.ClassDictionary;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.ReflectionUtils;
@@ -884,7 +885,7 @@ public abstract class Server {
     private String hostAddress;
     private int remotePort;
 
-    ConnectionHeader header = new ConnectionHeader();
+    ConnectionHeader header = new ConnectionHeader(conf);
     Class<?> protocol;
 
     Subject user = null;
@@ -1072,6 +1073,7 @@ public abstract class Server {
         LOG.debug(" got #" + id);
 
       Writable param = ReflectionUtils.newInstance(paramClass, conf);           // read param
+      setClassDictionary(param, this);
       param.readFields(dis);        
         
       Call call = new Call(id, param, this, responder);
@@ -1251,6 +1253,7 @@ public abstract class Server {
     out.writeInt(status.state);           // write status
 
     if (status == Status.SUCCESS) {
+      setClassDictionary(rv, call.connection);
       rv.write(out);
     } else {
       WritableUtils.writeString(out, errorClass);
@@ -1259,6 +1262,20 @@ public abstract class Server {
     call.setResponse(ByteBuffer.wrap(response.toByteArray()));
   }
 
+  /**
+   * Let a parameter or return value use the class dictionary the client
+   * offered in its connection header, if any.
+   */
+  private static void setClassDictionary(Writable value,
+                                         Connection connection) {
+    if (connection != null && value instanceof ClassDictionary.Aware) {
+      ClassDictionary dictionary = connection.header.getClassDictionary();
+      if (dictionary != null) {
+        ((ClassDictionary.Aware)value).setClassDictionary(dictionary);
+      }
+    }
+  }
+
   Configuration getConf() {
     return conf;
   }
@@ -30,7 +30,7 @@ public class PermissionChecker {
   static final Log LOG = LogFactory.getLog(UserGroupInformation.class);
 
   public final String user;
-  protected final Set<String> groups = new HashSet<String>();
+  protected final Set<String> groups;
   public final boolean isSuper;
 
   /**
@@ -47,7 +47,7 @@ public class PermissionChecker {
 
     if (ugi != null) {
       user = ugi.getUserName();
-      groups.addAll(Arrays.asList(ugi.getGroupNames()));
+      groups = new HashSet<String>(Arrays.asList(ugi.getGroupNames()));
       isSuper = user.equals(owner) || groups.contains(supergroup);
     }
     else {
@@ -55,6 +55,19 @@ public class PermissionChecker {
     }
   }
 
+  /**
+   * Create a checker for a caller whose groups are already resolved.
+   * @param user the caller
+   * @param groups the groups of the caller; not copied
+   * @param isSuper whether the caller is a superuser
+   */
+  protected PermissionChecker(String user, Set<String> groups,
+      boolean isSuper) {
+    this.user = user;
+    this.groups = groups;
+    this.isSuper = isSuper;
+  }
+
   /**
    * Check if the callers group contains the required values.
    * @param group group to check
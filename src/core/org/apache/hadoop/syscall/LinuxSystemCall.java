@@ -18,6 +18,7 @@
 
 package org.apache.hadoop.syscall;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 
 import org.apache.commons.logging.Log;
@@ -47,6 +48,26 @@ public class LinuxSystemCall {
     public int getValue() { return value; }
   }
 
+  // advice of posix_fadvise(2) on linux
+  public static final int POSIX_FADV_NORMAL = 0;
+  public static final int POSIX_FADV_RANDOM = 1;
+  public static final int POSIX_FADV_SEQUENTIAL = 2;
+  public static final int POSIX_FADV_WILLNEED = 3;
+  public static final int POSIX_FADV_DONTNEED = 4;
+  public static final int POSIX_FADV_NOREUSE = 5;
+
+  // flags of sync_file_range(2)
+  public static final int SYNC_FILE_RANGE_WAIT_BEFORE = 1;
+  public static final int SYNC_FILE_RANGE_WRITE = 2;
+  public static final int SYNC_FILE_RANGE_WAIT_AFTER = 4;
+
+  // errno of a system call that the platform does not have
+  private static final int ENOSYS = 38;
+
+  private static volatile boolean fadvisePossible = true;
+  private static volatile boolean syncFileRangePossible = true;
+  private static volatile boolean mincorePossible = true;
+
   private static void initialize() throws IOException {
     if (!NativeCodeLoader.isNativeCodeLoaded()) {
       throw new IOException("Native code not loaded!");
@@ -70,5 +91,106 @@ public class LinuxSystemCall {
     return ret;
   }
 
+  /**
+   * Give the kernel advice about the use of a range of a file, with
+   * posix_fadvise(2). Nothing is done if the native library or the system
+   * call is not available.
+   * @return true if the advice was given
+   * @throws IOException if the system call failed
+   */
+  public static boolean posixFadviseIfPossible(FileDescriptor fd,
+      long offset, long len, int advice) throws IOException {
+    if (!fadvisePossible || !NativeCodeLoader.isNativeCodeLoaded()) {
+      return false;
+    }
+    try {
+      int errno = posixFadvise(fd, offset, len, advice);
+      if (errno == ENOSYS) {
+        fadvisePossible = false;
+        return false;
+      }
+      checkErrno("posix_fadvise", errno);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      // a native library without it
+      fadvisePossible = false;
+      return false;
+    }
+  }
+
+  /**
+   * Start or wait for the writeback of a range of a file, with
+   * sync_file_range(2). Nothing is done if the native library or the system
+   * call is not available.
+   * @return true if the system call was made
+   * @throws IOException if the system call failed
+   */
+  public static boolean syncFileRangeIfPossible(FileDescriptor fd,
+      long offset, long nbytes, int flags) throws IOException {
+    if (!syncFileRangePossible || !NativeCodeLoader.isNativeCodeLoaded()) {
+      return false;
+    }
+    try {
+      int errno = syncFileRange(fd, offset, nbytes, flags);
+      if (errno == ENOSYS) {
+        syncFileRangePossible = false;
+        return false;
+      }
+      checkErrno("sync_file_range", errno);
+      return true;
+    } catch (UnsatisfiedLinkError e) {
+      // a native library without it
+      syncFileRangePossible = false;
+      return false;
+    }
+  }
+
+  /**
+   * Count the bytes of a range of a file that are in the page cache, with
+   * mincore(2) on a mapping of the range.
+   * @return the number of cached bytes, or -1 if they cannot be counted
+   *         on this platform
+   * @throws IOException if a system call failed
+   */
+  public static long cachedBytesIfPossible(FileDescriptor fd, long offset,
+      long len) throws IOException {
+    if (!mincorePossible || !NativeCodeLoader.isNativeCodeLoaded()) {
+      return -1;
+    }
+    try {
+      long cached = cachedBytes(fd, offset, len);
+      if (cached == -ENOSYS) {
+        mincorePossible = false;
+        return -1;
+      }
+      if (cached < 0) {
+        checkErrno("mincore", (int)-cached);
+      }
+      return Math.min(cached, len);
+    } catch (UnsatisfiedLinkError e) {
+      // a native library without it
+      mincorePossible = false;
+      return -1;
+    }
+  }
+
+  private static void checkErrno(String call, int errno) throws IOException {
+    if (errno != 0) {
+      throw new IOException(call + " failed with errno " + errno);
+    }
+  }
+
   private native static int kill(int pid, int sig);
+
+  /** @return 0, or the errno of posix_fadvise */
+  private native static int posixFadvise(FileDescriptor fd, long offset,
+      long len, int advice);
+
+  /** @return 0, or the errno of sync_file_range */
+  private native static int syncFileRange(FileDescriptor fd, long offset,
+      long nbytes, int flags);
+
+  /** @return the bytes of the pages in memory, or minus the errno */
+  private native static long cachedBytes(FileDescriptor fd, long offset,
+      long len);
 }
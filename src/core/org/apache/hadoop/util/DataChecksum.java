@@ -22,6 +22,9 @@ import java.util.zip.Checksum;
 import java.util.zip.CRC32;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.ChecksumException;
 
 /**
  * This class provides inteface and utilities for processing checksums for
@@ -36,10 +39,35 @@ public class DataChecksum implements Checksum {
   // checksum types
   public static final int CHECKSUM_NULL    = 0;
   public static final int CHECKSUM_CRC32   = 1;
+  public static final int CHECKSUM_CRC32C  = 2;
   
   private static final int CHECKSUM_NULL_SIZE  = 0;
   private static final int CHECKSUM_CRC32_SIZE = 4;
+  private static final int CHECKSUM_CRC32C_SIZE = 4;
   
+  /**
+   * @return the checksum type of the given name: NULL, CRC32 or CRC32C
+   * @throws IllegalArgumentException if the name is not a checksum type
+   */
+  public static int getChecksumType( String name ) {
+    if ( "NULL".equalsIgnoreCase( name ) ) {
+      return CHECKSUM_NULL;
+    } else if ( "CRC32".equalsIgnoreCase( name ) ) {
+      return CHECKSUM_CRC32;
+    } else if ( "CRC32C".equalsIgnoreCase( name ) ) {
+      return CHECKSUM_CRC32C;
+    }
+    throw new IllegalArgumentException( "Unknown checksum type " + name );
+  }
+  
+  /**
+   * @return the native CRC32C if the platform supports it, and the
+   *         pure java one otherwise
+   */
+  public static Checksum newCrc32C() {
+    return NativeCrc32C.isAvailable() ? new NativeCrc32C()
+                                      : new PureJavaCrc32C();
+  }
   
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum ) {
     if ( bytesPerChecksum <= 0 ) {
@@ -53,12 +81,16 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, new CRC32(), 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, newCrc32C(), 
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
   }
 
-  // This constructor uses the specified summer instance
+  // This constructor uses the specified summer instance for CRC32. The
+  // other types use their own summer, since callers pass a CRC32 one.
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum, Checksum sum ) {
     if ( bytesPerChecksum <= 0 ) {
       return null;
@@ -71,6 +103,9 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, sum, 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, newCrc32C(), 
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
@@ -151,7 +186,7 @@ public class DataChecksum implements Checksum {
        return 0;
      }
 
-     if ( type == CHECKSUM_CRC32 ) {
+     if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
        out.writeInt( (int) summer.getValue() );
      } else {
        throw new IOException( "Unknown Checksum " + type );
@@ -175,7 +210,7 @@ public class DataChecksum implements Checksum {
         return 0;
       }
 
-      if ( type == CHECKSUM_CRC32 ) {
+      if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
         int checksum = (int) summer.getValue();
         buf[offset+0] = (byte) ((checksum >>> 24) & 0xff);
         buf[offset+1] = (byte) ((checksum >>> 16) & 0xff);
@@ -197,7 +232,7 @@ public class DataChecksum implements Checksum {
     * @return true if the checksum matches and false otherwise.
     */
    public boolean compare( byte buf[], int offset ) {
-     if ( size > 0 && type == CHECKSUM_CRC32 ) {
+     if ( size > 0 && ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) ) {
        int checksum = ( (buf[offset+0] & 0xff) << 24 ) | 
                       ( (buf[offset+1] & 0xff) << 16 ) |
                       ( (buf[offset+2] & 0xff) << 8 )  |
@@ -207,6 +242,191 @@ public class DataChecksum implements Checksum {
      return size == 0;
    }
    
+  /**
+   * Computes the checksums of all the chunks of data[off, off+len) in one
+   * call, and stores them from sums[sumsOff] on, getChecksumSize() bytes
+   * per chunk. The last chunk may be shorter than bytesPerChecksum.
+   * The running checksum is reset.
+   */
+  public void calculateChunkedSums( byte[] data, int off, int len,
+                                    byte[] sums, int sumsOff ) {
+    if ( size <= 0 ) {
+      return;
+    }
+    if ( useNativeChunkedSums() ) {
+      NativeCrc32C.chunkedSums( bytesPerChecksum, data, off, len,
+                                sums, sumsOff, false );
+      return;
+    }
+    while ( len > 0 ) {
+      int chunkLen = Math.min( len, bytesPerChecksum );
+      summer.reset();
+      summer.update( data, off, chunkLen );
+      putInt( sums, sumsOff, (int) summer.getValue() );
+      off += chunkLen;
+      len -= chunkLen;
+      sumsOff += size;
+    }
+    reset();
+  }
+
+  /**
+   * Verifies all the chunks of data[off, off+len) in one call against the
+   * checksums stored from sums[sumsOff] on.
+   * The running checksum is reset.
+   * @param fileName the name of the data, for the error message
+   * @param basePos the position of data[off] in the file
+   * @throws ChecksumException at the position of the first chunk that does
+   *         not match its checksum
+   */
+  public void verifyChunkedSums( byte[] data, int off, int len,
+                                 byte[] sums, int sumsOff,
+                                 String fileName, long basePos )
+                                 throws ChecksumException {
+    if ( size <= 0 ) {
+      return;
+    }
+    int badChunk = -1;
+    if ( useNativeChunkedSums() ) {
+      badChunk = NativeCrc32C.chunkedSums( bytesPerChecksum, data, off, len,
+                                           sums, sumsOff, true );
+    } else {
+      for ( int chunk = 0; chunk * (long) bytesPerChecksum < len; chunk++ ) {
+        int chunkOff = chunk * bytesPerChecksum;
+        summer.reset();
+        summer.update( data, off + chunkOff,
+                       Math.min( len - chunkOff, bytesPerChecksum ) );
+        if ( getInt( sums, sumsOff + chunk * size ) !=
+             (int) summer.getValue() ) {
+          badChunk = chunk;
+          break;
+        }
+      }
+    }
+    reset();
+    if ( badChunk >= 0 ) {
+      int chunkOff = badChunk * bytesPerChecksum;
+      summer.update( data, off + chunkOff,
+                     Math.min( len - chunkOff, bytesPerChecksum ) );
+      int computed = (int) summer.getValue();
+      reset();
+      throw checksumError( fileName, basePos + chunkOff,
+                           getInt( sums, sumsOff + badChunk * size ),
+                           computed );
+    }
+  }
+
+  /**
+   * Computes the checksums of the chunks of the remaining bytes of data
+   * into sums from its position on, like
+   * {@link #calculateChunkedSums(byte[], int, int, byte[], int)}.
+   * The positions of the buffers are not changed.
+   */
+  public void calculateChunkedSums( ByteBuffer data, ByteBuffer sums ) {
+    if ( size <= 0 ) {
+      return;
+    }
+    if ( data.hasArray() && sums.hasArray() ) {
+      calculateChunkedSums( data.array(),
+                            data.arrayOffset() + data.position(),
+                            data.remaining(), sums.array(),
+                            sums.arrayOffset() + sums.position() );
+      return;
+    }
+    if ( useNativeChunkedSums() && data.isDirect() && sums.isDirect() ) {
+      NativeCrc32C.chunkedSums( bytesPerChecksum, data, data.position(),
+                                data.remaining(), sums, sums.position(),
+                                false );
+      return;
+    }
+    ByteBuffer in = data.duplicate();
+    byte[] chunk = new byte[bytesPerChecksum];
+    int sumsPos = sums.position();
+    while ( in.hasRemaining() ) {
+      int chunkLen = Math.min( in.remaining(), bytesPerChecksum );
+      in.get( chunk, 0, chunkLen );
+      summer.reset();
+      summer.update( chunk, 0, chunkLen );
+      sums.putInt( sumsPos, (int) summer.getValue() );
+      sumsPos += size;
+    }
+    reset();
+  }
+
+  /**
+   * Verifies the chunks of the remaining bytes of data against the
+   * checksums in sums from its position on, like
+   * {@link #verifyChunkedSums(byte[], int, int, byte[], int, String, long)}.
+   * The positions of the buffers are not changed.
+   */
+  public void verifyChunkedSums( ByteBuffer data, ByteBuffer sums,
+                                 String fileName, long basePos )
+                                 throws ChecksumException {
+    if ( size <= 0 ) {
+      return;
+    }
+    if ( data.hasArray() && sums.hasArray() ) {
+      verifyChunkedSums( data.array(), data.arrayOffset() + data.position(),
+                         data.remaining(), sums.array(),
+                         sums.arrayOffset() + sums.position(),
+                         fileName, basePos );
+      return;
+    }
+    if ( useNativeChunkedSums() && data.isDirect() && sums.isDirect() ) {
+      int badChunk = NativeCrc32C.chunkedSums( bytesPerChecksum, data,
+          data.position(), data.remaining(), sums, sums.position(), true );
+      if ( badChunk < 0 ) {
+        return;
+      }
+    }
+    // the slow way, which also finds the values of a bad chunk
+    ByteBuffer in = data.duplicate();
+    byte[] chunk = new byte[bytesPerChecksum];
+    int sumsPos = sums.position();
+    long pos = basePos;
+    while ( in.hasRemaining() ) {
+      int chunkLen = Math.min( in.remaining(), bytesPerChecksum );
+      in.get( chunk, 0, chunkLen );
+      summer.reset();
+      summer.update( chunk, 0, chunkLen );
+      int expected = sums.getInt( sumsPos );
+      int computed = (int) summer.getValue();
+      if ( expected != computed ) {
+        reset();
+        throw checksumError( fileName, pos, expected, computed );
+      }
+      sumsPos += size;
+      pos += chunkLen;
+    }
+    reset();
+  }
+
+  /** The native CRC32C computes all the chunks in a single JNI call */
+  private boolean useNativeChunkedSums() {
+    return type == CHECKSUM_CRC32C && summer instanceof NativeCrc32C;
+  }
+
+  private static ChecksumException checksumError( String fileName, long pos,
+                                                  int expected, int computed ) {
+    return new ChecksumException( "Checksum error: " + fileName + " at " +
+                                  pos + " exp: " + expected + " got: " +
+                                  computed, pos );
+  }
+
+  private static int getInt( byte[] buf, int offset ) {
+    return ( (buf[offset+0] & 0xff) << 24 ) |
+           ( (buf[offset+1] & 0xff) << 16 ) |
+           ( (buf[offset+2] & 0xff) << 8 )  |
+           ( (buf[offset+3] & 0xff) );
+  }
+
+  private static void putInt( byte[] buf, int offset, int value ) {
+    buf[offset+0] = (byte) ((value >>> 24) & 0xff);
+    buf[offset+1] = (byte) ((value >>> 16) & 0xff);
+    buf[offset+2] = (byte) ((value >>> 8) & 0xff);
+    buf[offset+3] = (byte) (value & 0xff);
+  }
+
   private final int type;
   private final int size;
   private final Checksum summer;
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C checksum computed by the crc32 instruction of SSE4.2 in the
+ * native hadoop library.
+ *
+ * It is only available if the native library is loaded and the CPU has
+ * the instruction; use {@link DataChecksum#newCrc32C()} to get the fastest
+ * CRC32C implementation of the platform. Short updates are computed in
+ * java, since they would not pay for the JNI call.
+ */
+public class NativeCrc32C implements Checksum {
+  /** Updates shorter than this are not worth a JNI call */
+  private static final int MIN_NATIVE_LEN = 64;
+
+  private static boolean nativeCrc32CLoaded = false;
+
+  static {
+    if (NativeCodeLoader.isNativeCodeLoaded()) {
+      try {
+        nativeCrc32CLoaded = isSupported();
+      } catch (Throwable t) {
+        // Ignore a native library without the crc32c functions
+      }
+    }
+  }
+
+  /** the current CRC value, bit-flipped */
+  private int crc;
+
+  /**
+   * @throws UnsupportedOperationException if the native CRC32C is not
+   *         available
+   */
+  public NativeCrc32C() {
+    if (!nativeCrc32CLoaded) {
+      throw new UnsupportedOperationException("Native CRC32C not available");
+    }
+    reset();
+  }
+
+  /**
+   * @return true if the native library is loaded and the CPU supports the
+   *         SSE4.2 crc32 instruction
+   */
+  public static boolean isAvailable() {
+    return nativeCrc32CLoaded;
+  }
+
+  /** {@inheritDoc} */
+  public long getValue() {
+    return (~crc) & 0xffffffffL;
+  }
+
+  /** {@inheritDoc} */
+  public void reset() {
+    crc = 0xffffffff;
+  }
+
+  /** {@inheritDoc} */
+  public void update(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    if (len < MIN_NATIVE_LEN) {
+      crc = PureJavaCrc32C.update(crc, b, off, len);
+    } else {
+      crc = nativeUpdate(crc, b, off, len);
+    }
+  }
+
+  /** {@inheritDoc} */
+  public void update(int b) {
+    crc = PureJavaCrc32C.update(crc, b);
+  }
+
+  /**
+   * Computes the checksums of all the bytesPerChecksum chunks of
+   * data[off, off+len) into sums, or compares them with the ones in sums
+   * if verify is set. The checksums are big-endian ints.
+   * @return the index of the first chunk with a mismatching checksum, or
+   *         -1 if they all match
+   */
+  static int chunkedSums(int bytesPerChecksum, byte[] data, int off, int len,
+      byte[] sums, int sumsOff, boolean verify) {
+    checkChunkedSums(bytesPerChecksum, data.length, off, len,
+        sums.length, sumsOff);
+    return nativeChunkedSums(bytesPerChecksum, data, off, len,
+        sums, sumsOff, verify);
+  }
+
+  /**
+   * Same as {@link #chunkedSums(int, byte[], int, int, byte[], int, boolean)}
+   * on direct buffers, between their absolute offsets off and sumsOff.
+   */
+  static int chunkedSums(int bytesPerChecksum, ByteBuffer data, int off,
+      int len, ByteBuffer sums, int sumsOff, boolean verify) {
+    checkChunkedSums(bytesPerChecksum, data.limit(), off, len,
+        sums.limit(), sumsOff);
+    return nativeChunkedSumsByteBuffer(bytesPerChecksum, data, off, len,
+        sums, sumsOff, verify);
+  }
+
+  private static void checkChunkedSums(int bytesPerChecksum, int dataLength,
+      int off, int len, int sumsLength, int sumsOff) {
+    if (bytesPerChecksum <= 0) {
+      throw new IllegalArgumentException("Invalid bytesPerChecksum "
+          + bytesPerChecksum);
+    }
+    long sumsLen = 4L * ((len + (long)bytesPerChecksum - 1) / bytesPerChecksum);
+    if (off < 0 || len < 0 || off > dataLength - len
+        || sumsOff < 0 || sumsOff > sumsLength - sumsLen) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+  }
+
+  private native static boolean isSupported();
+
+  private native static int nativeUpdate(int crc, byte[] b, int off, int len);
+
+  private native static int nativeChunkedSums(int bytesPerChecksum,
+      byte[] data, int off, int len, byte[] sums, int sumsOff, boolean verify);
+
+  private native static int nativeChunkedSumsByteBuffer(int bytesPerChecksum,
+      ByteBuffer data, int off, int len, ByteBuffer sums, int sumsOff,
+      boolean verify);
+}
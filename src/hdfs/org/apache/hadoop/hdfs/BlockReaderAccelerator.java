@@ -116,11 +116,6 @@ class BlockReaderAccelerator implements java.io.Closeable {
     this.length = length;
     this.verifyChecksum = verifyChecksum;
     this.metrics = metrics;
-
-     // create a checksum checker
-     if (this.verifyChecksum) {
-       this.checker = new PureJavaCrc32();
-     }
   }
   
   /**
@@ -156,6 +151,12 @@ class BlockReaderAccelerator implements java.io.Closeable {
     DataChecksum dsum = DataChecksum.newDataChecksum(cksumHeader, 0);
     this.bytesPerChecksum = dsum.getBytesPerChecksum();
 
+    // create a checksum checker of the type of the block
+    if (this.verifyChecksum) {
+      this.checker = DataChecksum.newDataChecksum(dsum.getChecksumType(),
+          bytesPerChecksum, new PureJavaCrc32());
+    }
+
     // align the startOffset with the previous crc chunk
     long delta = startOffset % bytesPerChecksum;
     long newOffset = startOffset - delta;
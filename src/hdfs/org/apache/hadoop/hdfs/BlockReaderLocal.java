@@ -73,10 +73,18 @@ public class BlockReaderLocal extends BlockReader {
   private FileInputStream dataIn;  // reader for the data file
   private FileInputStream checksumIn;
   private DFSClientMetrics metrics;
+
+  // the mapped block, and the position of the next read in it
+  private MappedBlock mappedBlock;
+  private long mappedPos;
+  private boolean verifyChecksum;
+  private boolean skipVerified;
   
   static private volatile ProtocolProxy<ClientDatanodeProtocol> datanode;
   static private final LRUCache<Block, BlockPathInfo> cache = 
     new LRUCache<Block, BlockPathInfo>(10000);
+  // the mapped blocks, kept across the readers of a block
+  static private volatile LRUCache<Block, MappedBlock> mmapCache;
   static private final Path src = new Path("/BlockReaderLocal:localfile");
   
   /**
@@ -113,6 +121,16 @@ public class BlockReaderLocal extends BlockReader {
     // call to this method will repopulate the cache.
     try {
 
+      if (conf.getBoolean("dfs.read.shortcircuit.mmap", false)) {
+        MappedBlock mapped = getMappedBlock(conf, blk, pathinfo,
+            startOffset + length);
+        if (mapped != null) {
+          return new BlockReaderLocal(blk, startOffset, length, pathinfo,
+              metrics, mapped, verifyChecksum, conf.getBoolean(
+                  "dfs.read.shortcircuit.mmap.skip.verified", false));
+        }
+      }
+
       // get a local file system
       File blkfile = new File(pathinfo.getBlockPath());
       FileInputStream dataIn = new FileInputStream(blkfile);
@@ -158,6 +176,61 @@ public class BlockReaderLocal extends BlockReader {
     }
   }
 
+  /**
+   * Get the mapping of a block from the cache, or map it if it is not
+   * cached or does not reach the end of the read.
+   * @return the mapped block, or null if it cannot be mapped
+   */
+  private static MappedBlock getMappedBlock(Configuration conf, Block blk,
+      BlockPathInfo pathinfo, long end) throws IOException {
+    if (mmapCache == null) {
+      synchronized (BlockReaderLocal.class) {
+        if (mmapCache == null) {
+          mmapCache = new LRUCache<Block, MappedBlock>(
+              conf.getInt("dfs.read.shortcircuit.mmap.cache.size", 256));
+        }
+      }
+    }
+    MappedBlock mapped = mmapCache.get(blk);
+    if (mapped != null && mapped.getLength() >= end) {
+      return mapped;
+    }
+    // the block was not mapped yet, or has grown since
+    mapped = MappedBlock.map(blk, pathinfo);
+    if (mapped == null) {
+      mmapCache.remove(blk);
+    } else {
+      mmapCache.put(blk, mapped);
+    }
+    return mapped;
+  }
+
+  private BlockReaderLocal(Block block, long startOffset, long length,
+                          BlockPathInfo pathinfo, DFSClientMetrics metrics,
+                          MappedBlock mappedBlock, boolean verifyChecksum,
+                          boolean skipVerified)
+                          throws IOException {
+    super(
+        src, // dummy path, avoid constructing a Path object dynamically
+        1);
+
+    long blockLength = mappedBlock.getLength();
+    if (startOffset < 0 || length < 0 || startOffset + length > blockLength) {
+      String msg = " Offset " + startOffset + " and length " + length
+      + " don't match block " + block + " ( blockLen " + blockLength + " )";
+      LOG.warn("BlockReaderLocal requested with incorrect offset: " + msg);
+      throw new IOException(msg);
+    }
+    this.pathinfo = pathinfo;
+    this.startOffset = startOffset;
+    this.length = length;
+    this.metrics = metrics;
+    this.mappedBlock = mappedBlock;
+    this.mappedPos = startOffset;
+    this.verifyChecksum = verifyChecksum;
+    this.skipVerified = skipVerified;
+  }
+
   private BlockReaderLocal(Configuration conf, String hdfsfile, Block block,      
                           long startOffset, long length,
                           BlockPathInfo pathinfo, DFSClientMetrics metrics,
@@ -276,7 +349,16 @@ public class BlockReaderLocal extends BlockReader {
       LOG.debug("BlockChecksumFileSystem read off " + off + " len " + len);
     }   
     metrics.readsFromLocalFile.inc();
-    if (checksum == null) {
+    if (mappedBlock != null) {
+      long remaining = startOffset + length - mappedPos;
+      if (remaining <= 0) {
+        return len == 0 ? 0 : -1;
+      }
+      int n = (int)Math.min(len, remaining);
+      mappedBlock.read(mappedPos, buf, off, n, verifyChecksum, skipVerified);
+      mappedPos += n;
+      return n;
+    } else if (checksum == null) {
       return dataIn.read(buf, off, len);
     }
     else {
@@ -289,7 +371,12 @@ public class BlockReaderLocal extends BlockReader {
     if (LOG.isDebugEnabled()) {
       LOG.debug("BlockChecksumFileSystem skip " + n);
     }
-    if (checksum == null) {
+    if (mappedBlock != null) {
+      long skipped = Math.max(0,
+          Math.min(n, startOffset + length - mappedPos));
+      mappedPos += skipped;
+      return skipped;
+    } else if (checksum == null) {
       return dataIn.skip(n);
     }
     else {
@@ -360,8 +447,14 @@ public class BlockReaderLocal extends BlockReader {
    * OS pages into this process's page. It will be automatically unmapped when
    * the ByteBuffer that is returned here goes out of scope. This method is
    * currently invoked only by the FSDataInputStream ScatterGather api.
+   * A mapped block hands out a buffer on its cached mapping, after
+   * verifying the checksums of the range.
    */
   public ByteBuffer readAll() throws IOException {
+    if (mappedBlock != null) {
+      return mappedBlock.slice(startOffset, (int)length, verifyChecksum,
+          skipVerified);
+    }
     MappedByteBuffer bb = dataIn.getChannel().map(FileChannel.MapMode.READ_ONLY,
                                  startOffset, length);
     return bb;  
@@ -372,6 +465,11 @@ public class BlockReaderLocal extends BlockReader {
     if (LOG.isDebugEnabled()) {
       LOG.debug("BlockChecksumFileSystem close");
     }
+    if (mappedBlock != null) {
+      // the mapping is kept in the cache for the next reader
+      mappedBlock = null;
+      return;
+    }
     dataIn.close();
     if (checksumIn != null) {
       checksumIn.close();
@@ -45,7 +45,6 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.CRC32;
 
 import javax.net.SocketFactory;
 import javax.security.auth.login.LoginException;
@@ -116,6 +115,7 @@ import org.apache.hadoop.security.UnixUserGroupInformation;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.LRUCache;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.PureJavaCrc32;
 import org.apache.hadoop.util.StringUtils;
@@ -162,6 +162,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private DFSClientMetrics metrics = new DFSClientMetrics();
   protected Integer dataTransferVersion = -1;
   private boolean shortCircuitLocalReads = false;
+  private boolean preferCachedNodes = true;
+  // the checksum of the blocks written
+  private int checksumType = DataChecksum.CHECKSUM_CRC32;
+  // the datanodes that last served a block from their block cache
+  private final LRUCache<Long, DatanodeInfo> cachedBlockNodes =
+    new LRUCache<Long, DatanodeInfo>(10000);
   private final InetAddress localHost;
   private InetSocketAddress nameNodeAddr;
 
@@ -387,6 +393,13 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     if (this.shortCircuitLocalReads) {
       LOG.debug("Configured to shortcircuit reads to " + localHost);
     }
+    this.preferCachedNodes = conf.getBoolean("dfs.read.prefer.cached.nodes",
+        true);
+    this.checksumType = DataChecksum.getChecksumType(
+        conf.get("dfs.checksum.type", "CRC32"));
+    if (this.checksumType == DataChecksum.CHECKSUM_NULL) {
+      throw new IOException("Blocks cannot be written without checksums");
+    }
     this.leasechecker = new LeaseChecker(this.clientName, this.conf);
   }
   
@@ -2111,12 +2124,21 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     protected int bytesPerChecksum;
     protected int checksumSize;
     protected boolean gotEOS = false;
+    private boolean blockCached = false;
 
     byte[] skipBuf = null;
     ByteBuffer checksumBytes = null;
     int dataLeft = 0;
     boolean isLastPacket = false;
 
+    // Packets are verified as a whole rather than chunk by chunk by
+    // FSInputChecker. A packet that does not fit in the buffer of a read
+    // is kept in packetBuf, from which the reads are served.
+    private boolean verifyPackets = false;
+    private byte[] packetBuf = null;
+    private int packetPos = 0;
+    private boolean packetBuffered = false;
+
     /* FSInputChecker interface */
 
     /* same interface as inputStream java.io.InputStream#read()
@@ -2147,7 +2169,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       int nRead = super.read(buf, off, len);
 
       // if gotEOS was set in the previous read and checksum is enabled :
-      if (dnSock != null && gotEOS && !eosBefore && nRead >= 0 && needChecksum()) {
+      if (dnSock != null && gotEOS && !eosBefore && nRead >= 0 && verifyPackets) {
         //checksum is verified and there are no errors.
         checksumOk(dnSock);
       }
@@ -2216,11 +2238,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       checksumBytes.limit(requiredSize);
     }
 
+    private byte[] getPacketBuf(int dataLen) {
+      if (packetBuf == null || packetBuf.length < dataLen) {
+        packetBuf = new byte[dataLen];
+      }
+      return packetBuf;
+    }
+
     @Override
     protected synchronized int readChunk(long pos, byte[] buf, int offset,
                                          int len, byte[] checksumBuf)
                                          throws IOException {
-      // Read one chunk.
+      // Read whole chunks, as many as fit in buf.
 
       if ( gotEOS ) {
         if ( startOffset < 0 ) {
@@ -2243,6 +2272,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
 
       // Read next packet if the previous packet has been read completely.
+      boolean packetInBuf = false;
       if (dataLeft <= 0) {
         //Read packet headers.
         int packetLen = in.readInt();
@@ -2273,19 +2303,40 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         lastSeqNo = seqno;
         isLastPacket = lastPacketInBlock;
         dataLeft = dataLen;
+        packetBuffered = false;
         adjustChecksumBytes(dataLen);
         if (dataLen > 0) {
           IOUtils.readFully(in, checksumBytes.array(), 0,
                             checksumBytes.limit());
+          if (verifyPackets) {
+            // verify all the chunks of the packet in one call, in place
+            // if the packet fits in buf
+            packetInBuf = len >= dataLen;
+            byte[] packet = packetInBuf ? buf : getPacketBuf(dataLen);
+            int packetOff = packetInBuf ? offset : 0;
+            IOUtils.readFully(in, packet, packetOff, dataLen);
+            checksum.verifyChunkedSums(packet, packetOff, dataLen,
+                                       checksumBytes.array(), 0,
+                                       file.toString(), chunkOffset);
+            packetPos = 0;
+            packetBuffered = !packetInBuf;
+          }
         }
       }
 
-      int chunkLen = Math.min(dataLeft, bytesPerChecksum);
-
-      if ( chunkLen > 0 ) {
-        // len should be >= chunkLen
-        IOUtils.readFully(in, buf, offset, chunkLen);
-        checksumBytes.get(checksumBuf, 0, checksumSize);
+      int chunkLen;
+      if (packetInBuf) {
+        chunkLen = dataLeft;
+      } else {
+        // as many whole chunks as buf takes; len should be >= one chunk
+        chunkLen = Math.min(dataLeft,
+            Math.max(len - len % bytesPerChecksum, bytesPerChecksum));
+        if (chunkLen > 0 && packetBuffered) {
+          System.arraycopy(packetBuf, packetPos, buf, offset, chunkLen);
+          packetPos += chunkLen;
+        } else if (chunkLen > 0) {
+          IOUtils.readFully(in, buf, offset, chunkLen);
+        }
       }
 
       dataLeft -= chunkLen;
@@ -2306,12 +2357,13 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                          DataChecksum checksum, boolean verifyChecksum,
                          long startOffset, long firstChunkOffset,
                          Socket dnSock ) {
+      // the packets are verified here, not by FSInputChecker
       super(new Path("/blk_" + blockId + ":of:" + file)/*too non path-like?*/,
-            1, verifyChecksum,
-            checksum.getChecksumSize() > 0? checksum : null,
+            1, false, null,
             checksum.getBytesPerChecksum(),
             checksum.getChecksumSize());
 
+      this.verifyPackets = verifyChecksum && checksum.getChecksumSize() > 0;
       this.dnSock = dnSock;
       this.in = in;
       this.checksum = checksum;
@@ -2406,6 +2458,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               " for file " + file +
                               " for block " + blockId);
       }
+      boolean blockCached = false;
+      if (dataTransferVersion >= DataTransferProtocol.CACHED_BLOCK_VERSION) {
+        blockCached = in.readBoolean();
+      }
       DataChecksum checksum = DataChecksum.newDataChecksum( in , new PureJavaCrc32());
       //Warning when we get CHECKSUM_NULL?
 
@@ -2419,8 +2475,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               startOffset + " for file " + file);
       }
 
-      return new BlockReader( file, blockId, in, checksum, verifyChecksum,
-                              startOffset, firstChunkOffset, sock );
+      BlockReader reader = new BlockReader( file, blockId, in, checksum,
+          verifyChecksum, startOffset, firstChunkOffset, sock );
+      reader.blockCached = blockCached;
+      return reader;
+    }
+
+    /**
+     * @return true if the datanode serves the block from its block cache
+     */
+    public boolean isBlockCached() {
+      return blockCached;
     }
 
     @Override
@@ -2923,6 +2988,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               blk.getGenerationStamp(),
               offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock,
               buffersize, verifyChecksum, clientName);
+          updateCachedNode(blk, chosenNode, blockReader);
           return chosenNode;
         } catch (IOException ex) {
           // Put chosen node into dead list, continue
@@ -3081,7 +3147,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         DatanodeInfo[] nodes = block.getLocations();
         DatanodeInfo chosenNode = null;
         try {
-          chosenNode = bestNode(nodes, deadNodes);
+          chosenNode = cachedNode(block);
+          if (chosenNode == null) {
+            chosenNode = bestNode(nodes, deadNodes);
+          }
           InetSocketAddress targetAddr =
                             NetUtils.createSocketAddr(chosenNode.getName());
           return new DNAddrPair(chosenNode, targetAddr);
@@ -3128,6 +3197,40 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
     }
 
+    /**
+     * @return the live location of the block that served it from its block
+     *         cache the last time, or null
+     */
+    private DatanodeInfo cachedNode(LocatedBlock block) {
+      if (!preferCachedNodes) {
+        return null;
+      }
+      DatanodeInfo cachedNode =
+        cachedBlockNodes.get(block.getBlock().getBlockId());
+      if (cachedNode == null || deadNodes.containsKey(cachedNode)
+          || block.getLocations() == null) {
+        return null;
+      }
+      for (DatanodeInfo node : block.getLocations()) {
+        if (node.equals(cachedNode)) {
+          return node;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Remember whether a datanode served a block from its block cache.
+     */
+    private void updateCachedNode(Block blk, DatanodeInfo node,
+                                  BlockReader reader) {
+      if (reader.isBlockCached()) {
+        cachedBlockNodes.put(blk.getBlockId(), node);
+      } else if (node.equals(cachedBlockNodes.get(blk.getBlockId()))) {
+        cachedBlockNodes.remove(blk.getBlockId());
+      }
+    }
+
     private void fetchBlockByteRange(LocatedBlock block, long start,
                                      long end, byte[] buf, int offset) throws IOException {
       //
@@ -3174,6 +3277,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                               block.getBlock().getGenerationStamp(),
                                               start, len, buffersize,
                                               verifyChecksum, clientName);
+              updateCachedNode(block.getBlock(), chosenNode, reader);
             }
             int nread = reader.readAll(buf, offset, len);
             if (nread != len) {
@@ -4468,7 +4572,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         int bytesPerChecksum, short replication, boolean forceSync,
         boolean doParallelWrites, DatanodeInfo[] favoredNodes)
     throws IOException {
-      super(new CRC32(), bytesPerChecksum, 4);
+      super(DataChecksum.newDataChecksum(checksumType, bytesPerChecksum),
+            bytesPerChecksum, 4);
       this.forceSync = forceSync;
       this.doParallelWrites = doParallelWrites;
       this.src = src;
@@ -4488,7 +4593,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               "multiple of io.bytes.per.checksum");
 
       }
-      checksum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32,
+      checksum = DataChecksum.newDataChecksum(checksumType,
                                               bytesPerChecksum,
                                               new PureJavaCrc32());
     }
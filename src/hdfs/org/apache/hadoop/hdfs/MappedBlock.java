@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockPathInfo;
+import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.PureJavaCrc32;
+
+/**
+ * A local block file and its checksums mapped into memory, shared by the
+ * short circuit readers of the block.
+ *
+ * Reads copy straight from the mapping, without a system call, and a
+ * range can be handed out as a buffer on the mapping without any copy.
+ * The full chunks whose checksums were verified are remembered, so that a
+ * reader may skip verifying them again. A partial last chunk is always
+ * verified, since it may still be appended to.
+ *
+ * The mappings are released by the garbage collector once no reader and
+ * no buffer handed out refers to them.
+ */
+class MappedBlock {
+  private final Block block;
+  private final ByteBuffer data;
+  private final ByteBuffer checksums;
+  private final DataChecksum checksum;
+  private final int bytesPerChecksum;
+  private final int checksumSize;
+  private final long length;
+  private final BitSet verified = new BitSet();
+
+  private MappedBlock(Block block, ByteBuffer data, ByteBuffer checksums,
+      DataChecksum checksum) {
+    this.block = block;
+    this.data = data;
+    this.checksums = checksums;
+    this.checksum = checksum;
+    this.bytesPerChecksum = checksum.getBytesPerChecksum();
+    this.checksumSize = checksum.getChecksumSize();
+    long len = data.capacity();
+    if (checksumSize > 0) {
+      // only the bytes that have their checksum written can be read
+      len = Math.min(len,
+          (long)(checksums.capacity() / checksumSize) * bytesPerChecksum);
+    }
+    this.length = len;
+  }
+
+  /**
+   * Map the block and meta files of a local replica.
+   * @return the mapped replica, or null if the block file is too large
+   *         to be mapped in one buffer
+   */
+  static MappedBlock map(Block block, BlockPathInfo pathinfo)
+      throws IOException {
+    FileInputStream dataIn = new FileInputStream(pathinfo.getBlockPath());
+    FileInputStream checksumIn = null;
+    try {
+      FileChannel dataChannel = dataIn.getChannel();
+      if (dataChannel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+      checksumIn = new FileInputStream(pathinfo.getMetaPath());
+      BlockMetadataHeader header = BlockMetadataHeader.readHeader(
+          new DataInputStream(checksumIn), new PureJavaCrc32());
+      FileChannel checksumChannel = checksumIn.getChannel();
+      long headerSize = checksumChannel.position();
+      MappedByteBuffer data = dataChannel.map(FileChannel.MapMode.READ_ONLY,
+          0, dataChannel.size());
+      MappedByteBuffer checksums = checksumChannel.map(
+          FileChannel.MapMode.READ_ONLY, headerSize,
+          checksumChannel.size() - headerSize);
+      return new MappedBlock(block, data, checksums, header.getChecksum());
+    } finally {
+      // the mappings stay valid once the files are closed
+      IOUtils.closeStream(checksumIn);
+      IOUtils.closeStream(dataIn);
+    }
+  }
+
+  Block getBlock() {
+    return block;
+  }
+
+  /** @return the number of bytes of the block that can be read */
+  long getLength() {
+    return length;
+  }
+
+  /**
+   * Copy len bytes of the block starting at pos into buf.
+   * @param verify verify the checksums of the chunks read
+   * @param skipVerified do not verify the chunks that were verified before
+   */
+  void read(long pos, byte[] buf, int off, int len, boolean verify,
+      boolean skipVerified) throws IOException {
+    checkRange(pos, len);
+    ByteBuffer in = data.duplicate();
+    in.position((int)pos);
+    in.get(buf, off, len);
+    if (verify) {
+      verifyChunks(pos, len, buf, off, skipVerified);
+    }
+  }
+
+  /**
+   * @return a read only buffer on len bytes of the mapping starting at pos
+   */
+  ByteBuffer slice(long pos, int len, boolean verify, boolean skipVerified)
+      throws IOException {
+    checkRange(pos, len);
+    if (verify) {
+      verifyChunks(pos, len, null, 0, skipVerified);
+    }
+    ByteBuffer out = data.asReadOnlyBuffer();
+    out.position((int)pos);
+    out.limit((int)pos + len);
+    return out.slice();
+  }
+
+  private void checkRange(long pos, int len) throws IOException {
+    if (pos < 0 || len < 0 || pos + len > length) {
+      throw new IOException("Offset " + pos + " and length " + len
+          + " don't match mapped block " + block + " ( blockLen " + length
+          + " )");
+    }
+  }
+
+  /**
+   * Verify the chunks overlapping the given range of the block. A chunk
+   * that is in buf as a whole is verified from there, the others are
+   * copied from the mapping first.
+   */
+  private void verifyChunks(long pos, int len, byte[] buf, int off,
+      boolean skipVerified) throws IOException {
+    if (checksumSize == 0 || len == 0) {
+      return;
+    }
+    DataChecksum sum = DataChecksum.newDataChecksum(
+        checksum.getChecksumType(), bytesPerChecksum, new PureJavaCrc32());
+    byte[] chunkBuf = null;
+    byte[] expected = new byte[checksumSize];
+    int lastFullChunk = (int)(length / bytesPerChecksum) - 1;
+    int first = (int)(pos / bytesPerChecksum);
+    int last = (int)((pos + len - 1) / bytesPerChecksum);
+    for (int chunk = first; chunk <= last; chunk++) {
+      if (skipVerified && isVerified(chunk)) {
+        continue;
+      }
+      long chunkStart = (long)chunk * bytesPerChecksum;
+      int chunkLen = (int)Math.min(bytesPerChecksum, length - chunkStart);
+      sum.reset();
+      if (buf != null && chunkStart >= pos
+          && chunkStart + chunkLen <= pos + len) {
+        sum.update(buf, off + (int)(chunkStart - pos), chunkLen);
+      } else {
+        if (chunkBuf == null) {
+          chunkBuf = new byte[bytesPerChecksum];
+        }
+        ByteBuffer in = data.duplicate();
+        in.position((int)chunkStart);
+        in.get(chunkBuf, 0, chunkLen);
+        sum.update(chunkBuf, 0, chunkLen);
+      }
+      ByteBuffer sums = checksums.duplicate();
+      sums.position(chunk * checksumSize);
+      sums.get(expected);
+      if (!sum.compare(expected, 0)) {
+        throw new ChecksumException("Checksum error: " + block
+            + " at chunk offset " + chunkStart, chunkStart);
+      }
+      if (chunk <= lastFullChunk) {
+        synchronized (verified) {
+          verified.set(chunk);
+        }
+      }
+    }
+  }
+
+  private boolean isVerified(int chunk) {
+    synchronized (verified) {
+      return verified.get(chunk);
+    }
+  }
+}
@@ -0,0 +1,565 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.protocol;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.protocol.FSConstants.DatanodeReportType;
+import org.apache.hadoop.hdfs.protocol.FSConstants.SafeModeAction;
+import org.apache.hadoop.hdfs.protocol.FSConstants.UpgradeAction;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.RPC.CallParameters;
+import org.apache.hadoop.ipc.RPC.MethodInvoker;
+
+/**
+ * Typed invokers of the methods of {@link ClientProtocol}.
+ * Every method of the protocol needs one; TestProtocolInvokers checks it.
+ */
+public class ClientProtocolInvokers {
+  private ClientProtocolInvokers() {}
+
+  /**
+   * Register the invokers of the methods of {@link ClientProtocol}, so that
+   * RPC servers call them without reflection.
+   */
+  public static void register() {
+    RPC.registerInvoker(ClientProtocol.class, "abandonBlock",
+        new Class<?>[] {Block.class, String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).abandonBlock(
+                (Block)p.get(0), (String)p.get(1), (String)p.get(2));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "abandonFile",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).abandonFile(
+                (String)p.get(0), (String)p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlock",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlock(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlock",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlock(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlock",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class,
+            DatanodeInfo[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlock(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2),
+                (DatanodeInfo[])p.get(3));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlockAndFetchMetaInfo",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlockAndFetchMetaInfo(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlockAndFetchMetaInfo",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class,
+            DatanodeInfo[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlockAndFetchMetaInfo(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2),
+                (DatanodeInfo[])p.get(3));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlockAndFetchMetaInfo",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class,
+            long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlockAndFetchMetaInfo(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2),
+                p.getLong(3));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlockAndFetchMetaInfo",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class,
+            DatanodeInfo[].class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlockAndFetchMetaInfo(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2),
+                (DatanodeInfo[])p.get(3), p.getLong(4));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "addBlockAndFetchVersion",
+        new Class<?>[] {String.class, String.class, DatanodeInfo[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).addBlockAndFetchVersion(
+                (String)p.get(0), (String)p.get(1), (DatanodeInfo[])p.get(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "append",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).append(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "appendAndFetchMetaInfo",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).appendAndFetchMetaInfo(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "closeRecoverLease",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).closeRecoverLease(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "closeRecoverLease",
+        new Class<?>[] {String.class, String.class, boolean.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).closeRecoverLease(
+                (String)p.get(0), (String)p.get(1), p.getBoolean(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "complete",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).complete(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "complete",
+        new Class<?>[] {String.class, String.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).complete(
+                (String)p.get(0), (String)p.get(1), p.getLong(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "concat",
+        new Class<?>[] {String.class, String[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).concat(
+                (String)p.get(0), (String[])p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "concat",
+        new Class<?>[] {String.class, String[].class, boolean.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).concat(
+                (String)p.get(0), (String[])p.get(1), p.getBoolean(2));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "create",
+        new Class<?>[] {String.class, FsPermission.class, String.class,
+            boolean.class, short.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).create(
+                (String)p.get(0), (FsPermission)p.get(1), (String)p.get(2),
+                p.getBoolean(3), p.getShort(4), p.getLong(5));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "create",
+        new Class<?>[] {String.class, FsPermission.class, String.class,
+            boolean.class, boolean.class, short.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).create(
+                (String)p.get(0), (FsPermission)p.get(1), (String)p.get(2),
+                p.getBoolean(3), p.getBoolean(4), p.getShort(5), p.getLong(6));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "delete",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).delete((String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "delete",
+        new Class<?>[] {String.class, boolean.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).delete(
+                (String)p.get(0), p.getBoolean(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "distributedUpgradeProgress",
+        new Class<?>[] {UpgradeAction.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).distributedUpgradeProgress(
+                (UpgradeAction)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "finalizeUpgrade",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).finalizeUpgrade();
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "fsync",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).fsync(
+                (String)p.get(0), (String)p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getBlockLocations",
+        new Class<?>[] {String.class, long.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getBlockLocations(
+                (String)p.get(0), p.getLong(1), p.getLong(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getContentSummary",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getContentSummary(
+                (String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getCorruptFiles",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getCorruptFiles();
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getDataTransferProtocolVersion",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getDataTransferProtocolVersion();
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getDatanodeReport",
+        new Class<?>[] {DatanodeReportType.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getDatanodeReport(
+                (DatanodeReportType)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getFileInfo",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getFileInfo((String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getHdfsFileInfo",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getHdfsFileInfo((String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getHdfsListing",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getHdfsListing((String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getListing",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getListing((String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getLocatedPartialListing",
+        new Class<?>[] {String.class, byte[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getLocatedPartialListing(
+                (String)p.get(0), (byte[])p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getPartialListing",
+        new Class<?>[] {String.class, byte[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getPartialListing(
+                (String)p.get(0), (byte[])p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getPreferredBlockSize",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getPreferredBlockSize(
+                (String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "getStats",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).getStats();
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "listCorruptFileBlocks",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).listCorruptFileBlocks(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "metaSave",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).metaSave((String)p.get(0));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "mkdirs",
+        new Class<?>[] {String.class, FsPermission.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).mkdirs(
+                (String)p.get(0), (FsPermission)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "open",
+        new Class<?>[] {String.class, long.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).open(
+                (String)p.get(0), p.getLong(1), p.getLong(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "openAndFetchMetaInfo",
+        new Class<?>[] {String.class, long.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).openAndFetchMetaInfo(
+                (String)p.get(0), p.getLong(1), p.getLong(2));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "recoverLease",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).recoverLease(
+                (String)p.get(0), (String)p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "refreshNodes",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).refreshNodes();
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "rename",
+        new Class<?>[] {String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).rename(
+                (String)p.get(0), (String)p.get(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "renewLease",
+        new Class<?>[] {String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).renewLease((String)p.get(0));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "reportBadBlocks",
+        new Class<?>[] {LocatedBlock[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).reportBadBlocks(
+                (LocatedBlock[])p.get(0));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "saveNamespace",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).saveNamespace();
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "saveNamespace",
+        new Class<?>[] {boolean.class, boolean.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).saveNamespace(
+                p.getBoolean(0), p.getBoolean(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "setOwner",
+        new Class<?>[] {String.class, String.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).setOwner(
+                (String)p.get(0), (String)p.get(1), (String)p.get(2));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "setPermission",
+        new Class<?>[] {String.class, FsPermission.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).setPermission(
+                (String)p.get(0), (FsPermission)p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "setQuota",
+        new Class<?>[] {String.class, long.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).setQuota(
+                (String)p.get(0), p.getLong(1), p.getLong(2));
+            return null;
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "setReplication",
+        new Class<?>[] {String.class, short.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).setReplication(
+                (String)p.get(0), p.getShort(1));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "setSafeMode",
+        new Class<?>[] {SafeModeAction.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((ClientProtocol)instance).setSafeMode(
+                (SafeModeAction)p.get(0));
+          }
+        });
+    RPC.registerInvoker(ClientProtocol.class, "setTimes",
+        new Class<?>[] {String.class, long.class, long.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((ClientProtocol)instance).setTimes(
+                (String)p.get(0), p.getLong(1), p.getLong(2));
+            return null;
+          }
+        });
+  }
+}
@@ -37,8 +37,11 @@ public interface DataTransferProtocol {
    * The block packet ack protocol: seqno, reply0, reply1, ...
    * Version 21:
    * 		namespace federation: all requests have an additional field namespace id
+   * Version 23:
+   *    the status of OP_READ_BLOCK is followed by whether the block is
+   *    served from the block cache of the datanode
    */
-  public static final int DATA_TRANSFER_VERSION = 22;
+  public static final int DATA_TRANSFER_VERSION = 23;
 
   // the lowest version that added force sync field.
   static final int FORCESYNC_FIELD_VERSION = 20;
@@ -49,6 +52,9 @@ public interface DataTransferProtocol {
   // the lowest version that supports scatter-gather
   static final int SCATTERGATHER_VERSION = 22;
 
+  // the lowest version that tells whether a read block is cached
+  static final int CACHED_BLOCK_VERSION = 23;
+
   // Processed at datanode stream-handler
   public static final byte OP_WRITE_BLOCK = (byte) 80;
   public static final byte OP_READ_BLOCK = (byte) 81;
@@ -74,6 +74,15 @@ public interface HdfsConstants {
   public static final String DFS_IMAGE_TRANSFER_RATE_KEY =
     "dfs.image.transfer.bandwidthPerSec";
   public static final long DFS_IMAGE_TRANSFER_RATE_DEFAULT = 0;  // disable
+  public static final String DFS_IMAGE_TRANSFER_CHUNKSIZE_KEY =
+    "dfs.image.transfer.chunksize";
+  public static final long DFS_IMAGE_TRANSFER_CHUNKSIZE_DEFAULT = 0; // disable
+  public static final String DFS_IMAGE_TRANSFER_COMPRESS_KEY =
+    "dfs.image.transfer.compress";
+  public static final boolean DFS_IMAGE_TRANSFER_COMPRESS_DEFAULT = false;
+  public static final String DFS_IMAGE_TRANSFER_RETRIES_KEY =
+    "dfs.image.transfer.retries";
+  public static final int DFS_IMAGE_TRANSFER_RETRIES_DEFAULT = 3;
   public static final String DFS_IMAGE_SAVE_ON_START_KEY =
     "dfs.image.save.on.start";
   public static final boolean DFS_IMAGE_SAVE_ON_START_DEFAULT = true;
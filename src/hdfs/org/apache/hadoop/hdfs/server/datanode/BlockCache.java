@@ -0,0 +1,356 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Frequently read blocks of a datanode and their checksums, kept in direct
+ * memory so that {@link BlockSender} serves them without disk I/O.
+ *
+ * Every read counts towards the frequency of its block, and the counts
+ * are halved every {@link #AGING_PERIOD} reads so that blocks which are
+ * no longer read lose their weight. A finalized block is loaded once it
+ * has been read dfs.datanode.block.cache.min.reads times, and only if the
+ * blocks it evicts to fit into dfs.datanode.block.cache.size bytes were
+ * read less often than itself.
+ *
+ * A cached block is dropped when it is invalidated or its generation
+ * stamp changes.
+ */
+class BlockCache {
+  public static final Log LOG = DataNode.LOG;
+
+  /** Reads after which the frequencies are halved */
+  static final int AGING_PERIOD = 10000;
+
+  /** A block of a namespace */
+  private static class Key {
+    final int namespaceId;
+    final long blockId;
+    final long genStamp;
+
+    Key(int namespaceId, Block block) {
+      this.namespaceId = namespaceId;
+      this.blockId = block.getBlockId();
+      this.genStamp = block.getGenerationStamp();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key)o;
+      return namespaceId == that.namespaceId && blockId == that.blockId
+          && genStamp == that.genStamp;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int)(blockId ^ (blockId >>> 32)) * 31 + namespaceId;
+    }
+  }
+
+  /**
+   * The data and the meta file of a cached block. It is also the stream
+   * factory of the {@link BlockSender} of the block.
+   */
+  static class CachedBlock implements BlockSender.InputStreamFactory {
+    private final ByteBuffer data;
+    private final ByteBuffer meta;
+
+    private CachedBlock(ByteBuffer data, ByteBuffer meta) {
+      this.data = data;
+      this.meta = meta;
+    }
+
+    long getLength() {
+      return data.capacity();
+    }
+
+    long getMemoryUsage() {
+      return data.capacity() + meta.capacity();
+    }
+
+    @Override
+    public InputStream createStream(long offset) throws IOException {
+      ByteBuffer buf = data.duplicate();
+      buf.position((int)offset);
+      return new ByteBufferInputStream(buf);
+    }
+
+    /** @return a stream of the meta file, header included */
+    DataInputStream getMetaDataInputStream() {
+      return new DataInputStream(new ByteBufferInputStream(meta.duplicate()));
+    }
+  }
+
+  /** Read a buffer from its position to its limit */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buf.remaining());
+      buf.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int)Math.max(0, Math.min(n, buf.remaining()));
+      buf.position(buf.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
+  }
+
+  private final FSDatasetInterface data;
+  private final DataNodeMetrics metrics;
+  private final long capacity;
+  private final long maxBlockSize;
+  private final int minReads;
+
+  private final Map<Key, CachedBlock> blocks = new HashMap<Key, CachedBlock>();
+  private final Map<Key, Integer> frequencies = new HashMap<Key, Integer>();
+  private final Set<Key> loading = new HashSet<Key>();
+  private long used = 0;
+  private int reads = 0;
+
+  BlockCache(Configuration conf, FSDatasetInterface data,
+      DataNodeMetrics metrics) {
+    this.data = data;
+    this.metrics = metrics;
+    this.capacity = conf.getLong("dfs.datanode.block.cache.size", 0);
+    this.maxBlockSize = conf.getLong("dfs.datanode.block.cache.max.block.size",
+        capacity / 4);
+    this.minReads = conf.getInt("dfs.datanode.block.cache.min.reads", 3);
+    LOG.info("Block cache of " + capacity + " bytes for blocks of at most "
+        + maxBlockSize + " bytes read " + minReads + " times");
+  }
+
+  /**
+   * Count a read of a block, and load the block if it became frequent
+   * enough.
+   * @return the cached block, or null if the block is to be read from disk
+   */
+  CachedBlock getBlock(int namespaceId, Block block) {
+    Key key = new Key(namespaceId, block);
+    int frequency;
+    synchronized (this) {
+      frequency = recordRead(key);
+      CachedBlock cached = blocks.get(key);
+      if (cached != null) {
+        metrics.blockCacheHits.inc();
+        return cached;
+      }
+      metrics.blockCacheMisses.inc();
+      if (frequency < minReads || !loading.add(key)) {
+        return null;
+      }
+    }
+
+    CachedBlock cached = null;
+    try {
+      cached = load(namespaceId, block);
+    } catch (IOException e) {
+      LOG.warn("Could not cache block " + block + " of namespace "
+          + namespaceId + ": " + e);
+    }
+    synchronized (this) {
+      // the block may have been invalidated while it was loaded
+      if (!loading.remove(key) || cached == null
+          || !makeRoom(cached.getMemoryUsage(), frequency)) {
+        return null;
+      }
+      blocks.put(key, cached);
+      used += cached.getMemoryUsage();
+      metrics.blockCacheUsed.set(used);
+      return cached;
+    }
+  }
+
+  /** @return the number of reads of the block, including this one */
+  private int recordRead(Key key) {
+    if (++reads >= AGING_PERIOD) {
+      reads = 0;
+      for (Iterator<Map.Entry<Key, Integer>> it =
+          frequencies.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<Key, Integer> entry = it.next();
+        if (entry.getValue() <= 1 && !blocks.containsKey(entry.getKey())) {
+          it.remove();
+        } else {
+          entry.setValue(entry.getValue() >> 1);
+        }
+      }
+    }
+    Integer frequency = frequencies.get(key);
+    int f = frequency == null ? 1 : frequency + 1;
+    frequencies.put(key, f);
+    return f;
+  }
+
+  private int getFrequency(Key key) {
+    Integer frequency = frequencies.get(key);
+    return frequency == null ? 0 : frequency;
+  }
+
+  /**
+   * Evict the least frequently read blocks until size more bytes fit,
+   * unless that would evict a block read at least as often.
+   * @return true if there is room
+   */
+  private boolean makeRoom(long size, int frequency) {
+    if (size > capacity) {
+      return false;
+    }
+    long needed = used + size - capacity;
+    if (needed <= 0) {
+      return true;
+    }
+    // find the victims first, so that nothing is evicted for nothing
+    Map<Key, CachedBlock> victims = new HashMap<Key, CachedBlock>();
+    long freed = 0;
+    while (freed < needed) {
+      Key victim = null;
+      int victimFrequency = Integer.MAX_VALUE;
+      for (Key key : blocks.keySet()) {
+        int f = getFrequency(key);
+        if (f < victimFrequency && !victims.containsKey(key)) {
+          victim = key;
+          victimFrequency = f;
+        }
+      }
+      if (victim == null || victimFrequency >= frequency) {
+        return false;
+      }
+      CachedBlock cached = blocks.get(victim);
+      victims.put(victim, cached);
+      freed += cached.getMemoryUsage();
+    }
+    for (Key key : victims.keySet()) {
+      remove(key);
+      metrics.blockCacheEvictions.inc();
+    }
+    return true;
+  }
+
+  private void remove(Key key) {
+    CachedBlock cached = blocks.remove(key);
+    if (cached != null) {
+      used -= cached.getMemoryUsage();
+      metrics.blockCacheUsed.set(used);
+    }
+  }
+
+  /**
+   * Read a finalized block and its meta file into direct buffers.
+   * @return the loaded block, or null if it cannot be cached
+   */
+  private CachedBlock load(int namespaceId, Block block) throws IOException {
+    if (!data.isValidBlock(namespaceId, block)) {
+      return null;    // not finalized, or gone
+    }
+    long length = data.getLength(namespaceId, block);
+    if (length > maxBlockSize || length > Integer.MAX_VALUE) {
+      return null;
+    }
+    FSDatasetInterface.MetaDataInputStream metaIn =
+        data.getMetaDataInputStream(namespaceId, block);
+    InputStream dataIn = null;
+    try {
+      ByteBuffer meta = readFully(metaIn, metaIn.getLength());
+      dataIn = data.getBlockInputStream(namespaceId, block);
+      ByteBuffer blockData = readFully(dataIn, length);
+      return new CachedBlock(blockData, meta);
+    } finally {
+      IOUtils.closeStream(dataIn);
+      IOUtils.closeStream(metaIn);
+    }
+  }
+
+  private static ByteBuffer readFully(InputStream in, long length)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect((int)length);
+    byte[] b = new byte[(int)Math.min(length, 64 * 1024)];
+    while (buf.hasRemaining()) {
+      int n = in.read(b, 0, Math.min(b.length, buf.remaining()));
+      if (n < 0) {
+        throw new IOException("Premature EOF: " + buf.remaining()
+            + " bytes left of " + length);
+      }
+      buf.put(b, 0, n);
+    }
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Drop the cached copies of blocks that were deleted or changed.
+   */
+  synchronized void invalidate(int namespaceId, Block[] blocks) {
+    for (Block b : blocks) {
+      Key key = new Key(namespaceId, b);
+      remove(key);
+      frequencies.remove(key);
+      loading.remove(key);
+    }
+  }
+
+  synchronized boolean contains(int namespaceId, Block block) {
+    return blocks.containsKey(new Key(namespaceId, block));
+  }
+
+  synchronized long getUsed() {
+    return used;
+  }
+}
@@ -21,16 +21,17 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSInputChecker;
 import org.apache.hadoop.fs.FSOutputSummer;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -41,6 +42,7 @@ import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol.PipelineAck;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.syscall.LinuxSystemCall;
 import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.StringUtils;
@@ -81,6 +83,10 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   private DataNode datanode = null;
   volatile private boolean mirrorError;
   private int namespaceId;
+  // page cache management of the block file, see manageWriterOsCache()
+  private FileDescriptor outFd; // null if the page cache is not managed
+  private long lastCacheManagementOffset;
+  private long lastCacheDropOffset;
 
   BlockReceiver(int namespaceId, Block block, DataInputStream in, String inAddr,
                 String myAddr, boolean isRecovery, String clientName, 
@@ -111,6 +117,10 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
         this.checksumOut = new DataOutputStream(new BufferedOutputStream(
                                                   streams.checksumOut, 
                                                   SMALL_BUFFER_SIZE));
+        if ((datanode.syncBehindWrites || datanode.dropCacheBehindWrites) &&
+            out instanceof FileOutputStream) {
+          this.outFd = ((FileOutputStream)out).getFD();
+        }
         // If this block is for appends, then remove it from periodic
         // validation.
         if (datanode.blockScanner != null && isRecovery) {
@@ -196,6 +206,47 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
   }
 
+  /**
+   * Every cacheDropLagBytes, start the writeback of what was written since
+   * the last call, and drop the pages of the window before it, which had
+   * the time to be written back, from the page cache. This keeps the
+   * kernel from writing back in bursts that stall the pipeline, and the
+   * written blocks from evicting the data that is read.
+   */
+  private void manageWriterOsCache(long offsetInBlock) {
+    if (outFd == null ||
+        offsetInBlock - lastCacheManagementOffset < datanode.cacheDropLagBytes) {
+      return;
+    }
+    try {
+      if (datanode.syncBehindWrites) {
+        long start = System.currentTimeMillis();
+        long nbytes = offsetInBlock - lastCacheManagementOffset;
+        if (LinuxSystemCall.syncFileRangeIfPossible(outFd,
+            lastCacheManagementOffset, nbytes,
+            LinuxSystemCall.SYNC_FILE_RANGE_WRITE)) {
+          datanode.myMetrics.writebackBytes.inc(nbytes);
+          datanode.myMetrics.writebackLatency.inc(
+              System.currentTimeMillis() - start);
+        }
+      }
+      if (datanode.dropCacheBehindWrites &&
+          lastCacheManagementOffset > lastCacheDropOffset) {
+        long len = lastCacheManagementOffset - lastCacheDropOffset;
+        if (LinuxSystemCall.posixFadviseIfPossible(outFd, lastCacheDropOffset,
+            len, LinuxSystemCall.POSIX_FADV_DONTNEED)) {
+          datanode.myMetrics.pageCacheDroppedBytes.inc(len);
+        }
+        lastCacheDropOffset = lastCacheManagementOffset;
+      }
+      lastCacheManagementOffset = offsetInBlock;
+    } catch (IOException e) {
+      LOG.warn("Cannot manage the page cache of " + block
+          + ", giving up on it", e);
+      outFd = null;
+    }
+  }
+
   /**
    * While writing to mirrorOut, failure to write to mirror should not
    * affect this datanode.
@@ -220,32 +271,26 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   private void verifyChunks( byte[] dataBuf, int dataOff, int len, 
                              byte[] checksumBuf, int checksumOff ) 
                              throws IOException {
-    while (len > 0) {
-      int chunkLen = Math.min(len, bytesPerChecksum);
-      
-      checksum.update(dataBuf, dataOff, chunkLen);
-
-      if (!checksum.compare(checksumBuf, checksumOff)) {
-        if (srcDataNode != null) {
-          try {
-            LOG.info("report corrupt block " + block + " from datanode " +
-                      srcDataNode + " to namenode");
-            LocatedBlock lb = new LocatedBlock(block, 
-                                            new DatanodeInfo[] {srcDataNode});
-            datanode.reportBadBlocks(namespaceId, new LocatedBlock[] {lb});
-          } catch (IOException e) {
-            LOG.warn("Failed to report bad block " + block + 
-                      " from datanode " + srcDataNode + " to namenode");
-          }
+    try {
+      checksum.verifyChunkedSums(dataBuf, dataOff, len, checksumBuf,
+                                 checksumOff, block.toString(),
+                                 offsetInBlock - len);
+    } catch (ChecksumException ce) {
+      LOG.warn("Checksum error in block " + block + " from " + inAddr, ce);
+      if (srcDataNode != null) {
+        try {
+          LOG.info("report corrupt block " + block + " from datanode " +
+                    srcDataNode + " to namenode");
+          LocatedBlock lb = new LocatedBlock(block, 
+                                          new DatanodeInfo[] {srcDataNode});
+          datanode.reportBadBlocks(namespaceId, new LocatedBlock[] {lb});
+        } catch (IOException e) {
+          LOG.warn("Failed to report bad block " + block + 
+                    " from datanode " + srcDataNode + " to namenode");
         }
-        throw new IOException("Unexpected checksum mismatch " + 
-                              "while writing " + block + " from " + inAddr);
       }
-
-      checksum.reset();
-      dataOff += chunkLen;
-      checksumOff += checksumSize;
-      len -= chunkLen;
+      throw new IOException("Unexpected checksum mismatch " + 
+                            "while writing " + block + " from " + inAddr);
     }
   }
 
@@ -521,6 +566,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
 
           /// flush entire packet before sending ack
           flush(forceSync);
+          manageWriterOsCache(offsetInBlock);
 
           // Record time taken to write packet
           long writePacketDuration = System.currentTimeMillis() - writeStartTime;
@@ -573,6 +619,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     try {
       // write data chunk header
       if (!finalized) {
+        if (isRecovery) {
+          checkReplicaChecksum();
+        }
         BlockMetadataHeader.writeHeader(checksumOut, checksum);
       }
       if (clientName.length() > 0) {
@@ -706,6 +755,32 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     datanode.data.setChannelPosition(namespaceId, block, streams, offsetInBlock, offsetInChecksum);
   }
 
+  /**
+   * The data already in a replica that is appended to or recovered keeps
+   * its checksums, so the new data must use the same checksum.
+   */
+  private void checkReplicaChecksum() throws IOException {
+    FSDataset.BlockInputStreams instr = null;
+    try {
+      instr = datanode.data.getTmpInputStreams(namespaceId, block, 0, 0);
+      if (instr.checksumIn.available() < BlockMetadataHeader.getHeaderSize()) {
+        return;                 // no header written yet
+      }
+      DataChecksum replicaChecksum = BlockMetadataHeader.readHeader(
+          new DataInputStream(instr.checksumIn)).getChecksum();
+      if (replicaChecksum.getChecksumType() != checksum.getChecksumType() ||
+          replicaChecksum.getBytesPerChecksum() != bytesPerChecksum) {
+        throw new IOException("Block " + block + " has checksum type " +
+            replicaChecksum.getChecksumType() + " with bytesPerChecksum " +
+            replicaChecksum.getBytesPerChecksum() + " but is written with " +
+            "checksum type " + checksum.getChecksumType() +
+            " with bytesPerChecksum " + bytesPerChecksum);
+      }
+    } finally {
+      IOUtils.closeStream(instr);
+    }
+  }
+
   /**
    * reads in the partial crc chunk and computes checksum
    * of pre-existing data in partial chunk.
@@ -741,7 +816,8 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
 
     // compute crc of partial chunk from data read in the block file.
-    partialCrc = new CRC32();
+    partialCrc = DataChecksum.newDataChecksum(checksum.getChecksumType(),
+                                              bytesPerChecksum);
     partialCrc.update(buf, 0, sizePartialChunk);
     LOG.info("Read in partial CRC chunk from disk for block " + block);
 
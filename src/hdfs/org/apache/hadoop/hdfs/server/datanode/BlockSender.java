@@ -18,8 +18,10 @@
 package org.apache.hadoop.hdfs.server.datanode;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,16 +29,18 @@ import java.io.OutputStream;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
-import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.net.SocketOutputStream;
+import org.apache.hadoop.syscall.LinuxSystemCall;
 import org.apache.hadoop.util.ChecksumUtil;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.StringUtils;
@@ -70,6 +74,31 @@ public class BlockSender implements java.io.Closeable, FSConstants {
   private final String clientTraceFmt; // format of client trace log message
   private final MemoizedBlock memoizedBlock;
 
+  // state of a block sent with sendPackets()
+  private ByteBuffer pktBuf;
+  private int maxChunksPerPacket;
+  private ByteBuffer pending;        // bytes of the packet not sent yet
+  private long transferRemaining;    // data of the packet not sent yet
+  private boolean trailerQueued;     // the end of block marker
+  private long initialOffset;
+  private long totalSent;            // bytes sent, including crc
+  private long startTime;
+
+  // page cache management of the block file, see manageOsCache()
+  private FileDescriptor blockInFd;  // null if the page cache is not managed
+  private DataNodeMetrics metrics;
+  private long readaheadLength;
+  private long readaheadOffset;      // the end of the readahead asked for
+  private boolean dropCacheBehindReads;
+  private long cacheDropLagBytes;
+  private long lastCacheDropOffset;
+
+  /**
+   * Reads shorter than this keep their pages in the page cache, since they
+   * are likely random reads of hot data.
+   */
+  private static final long LONG_READ_THRESHOLD_BYTES = 256 * 1024;
+
   /**
    * Minimum buffer used while sending data to clients. Used only if
    * transferTo() is enabled. 64KB is not that large. It could be larger, but
@@ -97,6 +126,7 @@ public class BlockSender implements java.io.Closeable, FSConstants {
             datanode.data.getMetaDataInputStream(namespaceId, block), BUFFER_SIZE))
           : null, new BlockInputStreamFactory(namespaceId, block, datanode.data), 
       clientTraceFmt);
+    initOsCache(datanode);
   }
 
   public BlockSender(int namespaceId, Block block, long blockLength, long startOffset, long length,
@@ -109,7 +139,7 @@ public class BlockSender implements java.io.Closeable, FSConstants {
          metadataIn, streamFactory, null);
   }
 
-  private BlockSender(int namespaceId, Block block, long blockLength, long startOffset, long length,
+  BlockSender(int namespaceId, Block block, long blockLength, long startOffset, long length,
               boolean corruptChecksumOk, boolean chunkOffsetOK,
               boolean verifyChecksum, boolean transferToAllowed,
               DataInputStream metadataIn, InputStreamFactory streamFactory, 
@@ -201,10 +231,90 @@ public class BlockSender implements java.io.Closeable, FSConstants {
     }
   }
 
+  /**
+   * Prepare the page cache management of the block file the way the
+   * datanode is configured, and count the bytes of the read that are
+   * already in the page cache.
+   */
+  private void initOsCache(DataNode datanode) {
+    if (!(blockIn instanceof FileInputStream)) {
+      return;
+    }
+    try {
+      FileDescriptor fd = ((FileInputStream)blockIn).getFD();
+      metrics = datanode.myMetrics;
+      if (datanode.pageCacheMetrics) {
+        long len = endOffset - offset;
+        long cached = LinuxSystemCall.cachedBytesIfPossible(fd, offset, len);
+        if (cached >= 0) {
+          metrics.pageCacheHitBytes.inc(cached);
+          metrics.pageCacheMissBytes.inc(len - cached);
+        }
+      }
+      readaheadLength = datanode.readaheadLength;
+      readaheadOffset = offset;
+      dropCacheBehindReads = datanode.dropCacheBehindReads &&
+          endOffset - offset >= LONG_READ_THRESHOLD_BYTES;
+      cacheDropLagBytes = datanode.cacheDropLagBytes;
+      lastCacheDropOffset = offset;
+      blockInFd = fd;
+    } catch (IOException e) {
+      LOG.warn("Cannot manage the page cache of " + block, e);
+    }
+  }
+
+  /**
+   * Keep the readahead readaheadLength bytes ahead of the read, and drop
+   * the pages of a long read from the page cache once they are sent.
+   * Called before each packet is read.
+   */
+  private void manageOsCache() {
+    if (blockInFd == null) {
+      return;
+    }
+    try {
+      if (readaheadLength > 0 && readaheadOffset < endOffset &&
+          readaheadOffset - offset < readaheadLength / 2) {
+        long len = Math.min(readaheadLength, endOffset - readaheadOffset);
+        if (LinuxSystemCall.posixFadviseIfPossible(blockInFd, readaheadOffset,
+            len, LinuxSystemCall.POSIX_FADV_WILLNEED)) {
+          metrics.readaheadBytes.inc(len);
+        }
+        readaheadOffset += len;
+      }
+      if (dropCacheBehindReads &&
+          offset - lastCacheDropOffset >= cacheDropLagBytes) {
+        dropCacheBehindReads(offset);
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot manage the page cache of " + block
+          + ", giving up on it", e);
+      blockInFd = null;
+    }
+  }
+
+  private void dropCacheBehindReads(long end) throws IOException {
+    if (end > lastCacheDropOffset &&
+        LinuxSystemCall.posixFadviseIfPossible(blockInFd, lastCacheDropOffset,
+            end - lastCacheDropOffset, LinuxSystemCall.POSIX_FADV_DONTNEED)) {
+      metrics.pageCacheDroppedBytes.inc(end - lastCacheDropOffset);
+    }
+    lastCacheDropOffset = end;
+  }
+
   /**
    * close opened files.
    */
   public void close() throws IOException {
+    if (blockInFd != null && dropCacheBehindReads && blockIn != null) {
+      try {
+        dropCacheBehindReads(offset);
+      } catch (IOException e) {
+        LOG.warn("Cannot drop the pages of " + block + " from the page cache",
+            e);
+      }
+      blockInFd = null;
+    }
     IOException ioe = null;
     // close checksum file
     if(checksumIn!=null) {
@@ -251,17 +361,10 @@ public class BlockSender implements java.io.Closeable, FSConstants {
   }
 
   /**
-   * Sends upto maxChunks chunks of data.
-   * 
-   * When blockInPosition is >= 0, assumes 'out' is a 
-   * {@link SocketOutputStream} and tries 
-   * {@link SocketOutputStream#transferToFully(FileChannel, long, int)} to
-   * send data (and updates blockInPosition).
+   * @return the number of data bytes of the next packet of at most
+   *         maxChunks chunks
    */
-  private int sendChunks(ByteBuffer pkt, int maxChunks, OutputStream out) 
-                         throws IOException {
-    // Sends multiple chunks in one packet with a single write().
-
+  private int nextPacketLength(int maxChunks) {
     int len = (int) Math.min(endOffset - offset,
                             (((long) bytesPerChecksum) * ((long) maxChunks)));
 
@@ -272,11 +375,14 @@ public class BlockSender implements java.io.Closeable, FSConstants {
     if (len > bytesPerChecksum && len % bytesPerChecksum != 0) {
       len -= len % bytesPerChecksum;
     }
+    return len;
+  }
 
-    if (len == 0) {
-      return 0;
-    }
-
+  /**
+   * Put the header and the checksums of the packet of len data bytes at
+   * the current offset into pkt. The data goes after them.
+   */
+  private void putPacketHeader(ByteBuffer pkt, int len) throws IOException {
     int numChunks = (len + bytesPerChecksum - 1)/bytesPerChecksum;
     int packetLen = len + numChunks*checksumSize + 4;
     pkt.clear();
@@ -312,6 +418,31 @@ public class BlockSender implements java.io.Closeable, FSConstants {
         }
       }
     }
+  }
+
+  /**
+   * Sends upto maxChunks chunks of data.
+   * 
+   * When blockInPosition is >= 0, assumes 'out' is a 
+   * {@link SocketOutputStream} and tries 
+   * {@link SocketOutputStream#transferToFully(FileChannel, long, int)} to
+   * send data (and updates blockInPosition).
+   */
+  private int sendChunks(ByteBuffer pkt, int maxChunks, OutputStream out) 
+                         throws IOException {
+    // Sends multiple chunks in one packet with a single write().
+
+    int len = nextPacketLength(maxChunks);
+    if (len == 0) {
+      return 0;
+    }
+
+    int numChunks = (len + bytesPerChecksum - 1)/bytesPerChecksum;
+    int packetLen = len + numChunks*checksumSize + 4;
+    putPacketHeader(pkt, len);
+    int checksumOff = pkt.position();
+    int checksumLen = numChunks * checksumSize;
+    byte[] buf = pkt.array();
     
     int dataOff = checksumOff + checksumLen;
     
@@ -320,22 +451,8 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       IOUtils.readFully(blockIn, buf, dataOff, len);
 
       if (verifyChecksum) {
-        int dOff = dataOff;
-        int cOff = checksumOff;
-        int dLeft = len;
-
-        for (int i=0; i<numChunks; i++) {
-          checksum.reset();
-          int dLen = Math.min(dLeft, bytesPerChecksum);
-          checksum.update(buf, dOff, dLen);
-          if (!checksum.compare(buf, cOff)) {
-            throw new ChecksumException("Checksum failed at " + 
-                                        (offset + len - dLeft), len);
-          }
-          dLeft -= dLen;
-          dOff += dLen;
-          cOff += checksumSize;
-        }
+        checksum.verifyChunkedSums(buf, dataOff, len, buf, checksumOff,
+                                   block.toString(), offset);
       }
       
       // only recompute checksum if we can't trust the meta data due to 
@@ -460,6 +577,7 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       ByteBuffer pktBuf = ByteBuffer.allocate(pktSize);
 
       while (endOffset > offset) {
+        manageOsCache();
         long len = sendChunks(pktBuf, maxChunksPerPacket, 
                               streamForSendChunks);
         offset += len;
@@ -495,6 +613,129 @@ public class BlockSender implements java.io.Closeable, FSConstants {
   boolean isBlockReadFully() {
     return blockReadFully;
   }
+
+  /**
+   * @return true if the block can be sent with {@link #sendPackets}, which
+   *         needs transferTo() from the block file
+   */
+  boolean canSendNonBlocking() {
+    return transferToAllowed && !verifyChecksum &&
+        blockIn instanceof FileInputStream;
+  }
+
+  /**
+   * Start sending the block to a non-blocking channel. The packets are
+   * sent by {@link #sendPackets(WritableByteChannel)} whenever the channel
+   * can take more, so that no thread waits for a slow reader.
+   *
+   * @param prefix bytes to send in front of the block, like the op status
+   */
+  void startNonBlocking(byte[] prefix) throws IOException {
+    initialOffset = offset;
+    startTime = ClientTraceLog.isInfoEnabled() ? System.nanoTime() : 0;
+    FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
+    blockInPosition = fileChannel.position();
+    maxChunksPerPacket = (Math.max(BUFFER_SIZE, MIN_BUFFER_WITH_TRANSFERTO)
+                          + bytesPerChecksum - 1)/bytesPerChecksum;
+    pktBuf = ByteBuffer.allocate(SIZE_OF_INTEGER + DataNode.PKT_HEADER_LEN
+        + (bytesPerChecksum + checksumSize) * maxChunksPerPacket);
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(header);
+    out.write(prefix);
+    checksum.writeHeader(out);
+    if (chunkOffsetOK) {
+      out.writeLong(offset);
+    }
+    pending = ByteBuffer.wrap(header.toByteArray());
+  }
+
+  /**
+   * Send as much of the block as the channel takes without blocking.
+   * @return true once the whole block and the end of block marker are sent
+   */
+  boolean sendPackets(WritableByteChannel out) throws IOException {
+    try {
+      FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
+      while (true) {
+        if (pending != null && pending.hasRemaining()) {
+          out.write(pending);
+          if (pending.hasRemaining()) {
+            return false;
+          }
+        }
+        if (transferRemaining > 0) {
+          long n = fileChannel.transferTo(blockInPosition, transferRemaining,
+              out);
+          if (n <= 0 && blockInPosition >= fileChannel.size()) {
+            throw new IOException("Block file of " + block
+                + " ends before offset " + blockInPosition);
+          }
+          blockInPosition += n;
+          transferRemaining -= n;
+          if (transferRemaining > 0) {
+            return false;
+          }
+        } else if (offset < endOffset) {
+          nextPacket(fileChannel);
+        } else if (!trailerQueued) {
+          pending = ByteBuffer.allocate(SIZE_OF_INTEGER); // end of block
+          trailerQueued = true;
+        } else {
+          return true;
+        }
+      }
+    } catch (IOException e) {
+      throw ioeToSocketException(e);
+    }
+  }
+
+  /**
+   * Queue the header and the checksums of the next packet, and its data
+   * for transferTo() unless the checksums have to be recomputed.
+   */
+  private void nextPacket(FileChannel fileChannel) throws IOException {
+    manageOsCache();
+    int len = nextPacketLength(maxChunksPerPacket);
+    int numChunks = (len + bytesPerChecksum - 1)/bytesPerChecksum;
+    putPacketHeader(pktBuf, len);
+    int checksumOff = pktBuf.position();
+    int dataOff = checksumOff + numChunks * checksumSize;
+
+    if (memoizedBlock.hasBlockChanged(len)) {
+      fileChannel.position(blockInPosition);
+      IOUtils.readFileChannelFully(fileChannel, pktBuf.array(), dataOff, len);
+      ChecksumUtil.updateChunkChecksum(
+        pktBuf.array(), checksumOff, dataOff, len, checksum
+      );
+      pktBuf.limit(dataOff + len);
+      blockInPosition += len;
+    } else {
+      pktBuf.limit(dataOff);
+      transferRemaining = len;
+    }
+    pktBuf.position(0);
+    pending = pktBuf;
+
+    offset += len;
+    totalSent += len + numChunks * checksumSize;
+    seqno++;
+  }
+
+  /**
+   * Close the files of a block sent with {@link #sendPackets}.
+   * @return the bytes sent, including crc
+   */
+  long finishNonBlocking() throws IOException {
+    if (clientTraceFmt != null) {
+      final long endTime = System.nanoTime();
+      ClientTraceLog.info(String.format(clientTraceFmt, totalSent,
+          initialOffset, endTime - startTime));
+    }
+    blockReadFully = (initialOffset == 0 && offset >= blockLength);
+    close();
+    return totalSent;
+  }
   
   public static interface InputStreamFactory {
     public InputStream createStream(long offset) throws IOException; 
@@ -684,7 +684,8 @@ class DataBlockScanner {
     try {
       adjustThrottler();
         
-      while (datanode.shouldRun && !Thread.interrupted()
+      // keep the interrupt of a shutdown for DataBlockScannerSet.run
+      while (datanode.shouldRun && !Thread.currentThread().isInterrupted()
           && datanode.isNamespaceAlive(namespaceId)
           ) {
         long now = System.currentTimeMillis();
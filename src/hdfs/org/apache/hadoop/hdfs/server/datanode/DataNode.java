@@ -180,6 +180,7 @@ public class DataNode extends Configured
   }
   
   public FSDatasetInterface data = null;
+  BlockCache blockCache = null;       // frequently read blocks, or null
   
   //TODO this should be not used at all
   private static InetSocketAddress nameNodeAddr;
@@ -216,6 +217,14 @@ public class DataNode extends Configured
   int socketWriteExtentionTimeout = 0;  
   boolean transferToAllowed = true;
   int writePacketSize = 0;
+  // page cache management of the block files, see BlockSender and
+  // BlockReceiver
+  long readaheadLength;
+  boolean dropCacheBehindReads;
+  boolean dropCacheBehindWrites;
+  boolean syncBehindWrites;
+  long cacheDropLagBytes;
+  boolean pageCacheMetrics;
   boolean syncOnClose;
   boolean supportAppends;
   
@@ -226,6 +235,7 @@ public class DataNode extends Configured
   int artificialBlockReceivedDelay = 0;
 
   public DataBlockScannerSet blockScanner = null;
+  DirectoryScanner directoryScanner = null;
   
   private static final Random R = new Random();
   
@@ -304,6 +314,7 @@ public class DataNode extends Configured
       AbstractList<File> dataDirs, int numOfNameSpaces) throws IOException {
     initFsDataSet(conf, dataDirs, numOfNameSpaces);
     initDataBlockScanner(conf); 
+    initDirectoryScanner(conf);
   }
   
   /**
@@ -368,6 +379,18 @@ public class DataNode extends Configured
     this.transferToAllowed = conf.getBoolean("dfs.datanode.transferTo.allowed",
                                              true);
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.readaheadLength = conf.getLong("dfs.datanode.readahead.bytes",
+                                        4 * 1024 * 1024);
+    this.dropCacheBehindReads = conf.getBoolean(
+        "dfs.datanode.drop.cache.behind.reads", false);
+    this.dropCacheBehindWrites = conf.getBoolean(
+        "dfs.datanode.drop.cache.behind.writes", false);
+    this.syncBehindWrites = conf.getBoolean(
+        "dfs.datanode.sync.behind.writes", false);
+    this.cacheDropLagBytes = conf.getLong("dfs.datanode.cache.drop.lag.bytes",
+                                          8 * 1024 * 1024);
+    this.pageCacheMetrics = conf.getBoolean(
+        "dfs.datanode.page.cache.metrics", false);
     
     this.deletedReportInterval =
       conf.getLong("dfs.blockreport.intervalMsec", BLOCKREPORT_INTERVAL);
@@ -679,6 +702,9 @@ public class DataNode extends Configured
     if (blockScanner != null) { 
       blockScanner.shutdown();
     }
+    if (directoryScanner != null) {
+      directoryScanner.shutdown();
+    }
     if (storage != null) {
       try {
         this.storage.unlockAll();
@@ -902,6 +928,7 @@ public class DataNode extends Configured
             //
             long brStartTime = now();
             Block[] bReport = data.getBlockReport(namespaceId);
+            myMetrics.blockReportGeneration.inc(now() - brStartTime);
 
             DatanodeCommand cmd = nsNamenode.blockReport(nsRegistration,
                     new BlockReport(BlockListAsLongs.convertToArrayLongs(bReport)));
@@ -1036,6 +1063,9 @@ public class DataNode extends Configured
          if (blockScanner != null) {
            blockScanner.deleteBlocks(namespaceId, toDelete);
          }        
+         if (blockCache != null) {
+           blockCache.invalidate(namespaceId, toDelete);
+         }
          data.invalidate(namespaceId, toDelete);
        } catch(IOException e) {
          checkDiskError();
@@ -1918,6 +1948,9 @@ public class DataNode extends Configured
     } else {
       data = new FSDataset(this, conf, numNamespaces);
     }
+    if (conf.getLong("dfs.datanode.block.cache.size", 0) > 0) {
+      blockCache = new BlockCache(conf, data, myMetrics);
+    }
   }
 
   public static class KeepAliveHeartbeater implements Runnable {
@@ -2298,6 +2331,9 @@ public class DataNode extends Configured
         + ", oldblock=" + oldblock + "(length=" + oldblock.getNumBytes()
         + "), newblock=" + newblock + "(length=" + newblock.getNumBytes()
         + "), datanode=" + getDatanodeInfo());
+    if (blockCache != null) {
+      blockCache.invalidate(namespaceId, new Block[] {oldblock});
+    }
     data.updateBlock(namespaceId, oldblock, newblock);
     if (finalize) {
       data.finalizeBlockIfNeeded(namespaceId, newblock);
@@ -2803,6 +2839,28 @@ public class DataNode extends Configured
     }
   }
   
+  /**
+   * See {@link DirectoryScanner}
+   */
+  private synchronized void initDirectoryScanner(Configuration conf) {
+    if (directoryScanner != null) {
+      return;
+    }
+    String reason = null;
+    if (conf.getLong("dfs.datanode.directoryscan.interval", 21600) <= 0) {
+      reason = "it is turned off by configuration";
+    } else if (!(data instanceof FSDataset)) {
+      reason = "it is supported only with FSDataset";
+    }
+
+    if (reason == null) {
+      directoryScanner = new DirectoryScanner(this, (FSDataset)data, conf);
+      directoryScanner.start();
+    } else {
+      LOG.info("Directory scanning is disabled because " + reason + ".");
+    }
+  }
+  
   /** 
    * Get host:port with host set to Datanode host and port set to the
    * port {@link DataXceiver} is serving.
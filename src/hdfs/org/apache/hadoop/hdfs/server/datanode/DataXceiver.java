@@ -30,6 +30,9 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -60,6 +63,8 @@ class DataXceiver implements Runnable, FSConstants {
   String localAddress;  // local address of this daemon
   DataNode datanode;
   DataXceiverServer dataXceiverServer;
+  // the rest of the request is served by the selector of the server
+  private boolean handedOff = false;
   
   public DataXceiver(Socket s, DataNode datanode, 
       DataXceiverServer dataXceiverServer) {
@@ -180,7 +185,7 @@ class DataXceiver implements Runnable, FSConstants {
       LOG.debug(datanode.getDatanodeInfo() + ":Number of active connections is: "
                                + datanode.getXceiverCount());
       updateCurrentThreadName("Idle state");
-      if (cleanup) {
+      if (cleanup && !handedOff) {
         IOUtils.closeStream(in);
         IOUtils.closeSocket(s);
         dataXceiverServer.childSockets.remove(s);
@@ -220,16 +225,44 @@ class DataXceiver implements Runnable, FSConstants {
         : datanode.getDNRegistrationForNS(namespaceId) + " Served block " + block + " to " +
             s.getInetAddress();
     updateCurrentThreadName("sending block " + block);
+    boolean cached = false;
     try {
       try {
-        blockSender = new BlockSender(namespaceId, block, startOffset, length,
-            true, true, false, datanode, clientTraceFmt);
+        BlockCache.CachedBlock cachedBlock = datanode.blockCache == null
+            ? null : datanode.blockCache.getBlock(namespaceId, block);
+        if (cachedBlock != null) {
+          // no disk I/O and no transferTo() for a cached block
+          blockSender = new BlockSender(namespaceId, block,
+              cachedBlock.getLength(), startOffset, length, true, true, false,
+              false, cachedBlock.getMetaDataInputStream(), cachedBlock,
+              clientTraceFmt);
+          cached = true;
+        } else {
+          blockSender = new BlockSender(namespaceId, block, startOffset,
+              length, true, true, false, datanode, clientTraceFmt);
+        }
       } catch(IOException e) {
         out.writeShort(DataTransferProtocol.OP_STATUS_ERROR);
         throw e;
       }
 
+      SocketChannel channel = s.getChannel();
+      if (dataXceiverServer.selector != null && channel != null &&
+          blockSender.canSendNonBlocking()) {
+        // send op status and data whenever the client takes them
+        blockSender.startNonBlocking(new byte[] {
+            (byte)(DataTransferProtocol.OP_STATUS_SUCCESS >>> 8),
+            (byte)DataTransferProtocol.OP_STATUS_SUCCESS,
+            0}); // not cached
+        dataXceiverServer.selector.sendNonBlocking(channel,
+            SelectionKey.OP_WRITE, new NonBlockingRead(namespaceId, block,
+                blockSender, channel, startTime));
+        handedOff = true;
+        return;
+      }
+
       out.writeShort(DataTransferProtocol.OP_STATUS_SUCCESS); // send op status
+      out.writeBoolean(cached);
       long read = blockSender.sendBlock(out, baseStream, null); // send data
 
       if (blockSender.isBlockReadFully()) {
@@ -243,14 +276,7 @@ class DataXceiver implements Runnable, FSConstants {
         } catch (IOException ignored) {}
       }
       
-      long readDuration = System.currentTimeMillis() - startTime;
-      datanode.myMetrics.bytesReadLatency.inc(readDuration);
-      datanode.myMetrics.bytesRead.inc((int) read);
-      if (read > KB_RIGHT_SHIFT_MIN) {
-        datanode.myMetrics.bytesReadRate.inc((int) (read >> KB_RIGHT_SHIFT_BITS),
-                              readDuration);
-      }
-      datanode.myMetrics.blocksRead.inc();
+      updateReadMetrics(read, startTime);
     } catch ( SocketException ignored ) {
       // Its ok for remote side to close the connection anytime.
       datanode.myMetrics.blocksRead.inc();
@@ -264,8 +290,95 @@ class DataXceiver implements Runnable, FSConstants {
                 StringUtils.stringifyException(ioe) );
       throw ioe;
     } finally {
-      IOUtils.closeStream(out);
+      if (!handedOff) {
+        IOUtils.closeStream(out);
+        IOUtils.closeStream(blockSender);
+      }
+    }
+  }
+
+  private void updateReadMetrics(long read, long startTime) {
+    long readDuration = System.currentTimeMillis() - startTime;
+    datanode.myMetrics.bytesReadLatency.inc(readDuration);
+    datanode.myMetrics.bytesRead.inc((int) read);
+    if (read > KB_RIGHT_SHIFT_MIN) {
+      datanode.myMetrics.bytesReadRate.inc((int) (read >> KB_RIGHT_SHIFT_BITS),
+                            readDuration);
+    }
+    datanode.myMetrics.blocksRead.inc();
+  }
+
+  /**
+   * The data of a block read, sent by the selector of the server whenever
+   * the client can take more. Then the optional checksum status of the
+   * client is read the same way.
+   */
+  private class NonBlockingRead extends DataXceiverSelector.Handler {
+    private final int namespaceId;
+    private final Block block;
+    private final BlockSender blockSender;
+    private final SocketChannel channel;
+    private final long startTime;
+    private ByteBuffer status = null;
+    private boolean sent = false;
+
+    NonBlockingRead(int namespaceId, Block block, BlockSender blockSender,
+        SocketChannel channel, long startTime) {
+      super(datanode.socketWriteTimeout);
+      this.namespaceId = namespaceId;
+      this.block = block;
+      this.blockSender = blockSender;
+      this.channel = channel;
+      this.startTime = startTime;
+    }
+
+    void ready(SelectionKey key) throws IOException {
+      if (!sent) {
+        if (!blockSender.sendPackets(channel)) {
+          return;
+        }
+        sent = true;
+        updateReadMetrics(blockSender.finishNonBlocking(), startTime);
+        if (!blockSender.isBlockReadFully()) {
+          dataXceiverServer.selector.cancel(key);
+          return;
+        }
+        // See if client verification succeeded. 
+        // This is an optional response from client.
+        status = ByteBuffer.allocate(2);
+        timeout = datanode.socketTimeout;
+        key.interestOps(SelectionKey.OP_READ);
+        return;
+      }
+      if (channel.read(status) >= 0 && status.hasRemaining()) {
+        return;
+      }
+      if (!status.hasRemaining() &&
+          status.getShort(0) == DataTransferProtocol.OP_STATUS_CHECKSUM_OK &&
+          datanode.blockScanner != null) {
+        datanode.blockScanner.verifiedByClient(namespaceId, block);
+      }
+      dataXceiverServer.selector.cancel(key);
+    }
+
+    void failed(IOException e) {
+      if (sent) {
+        return; // the status is optional
+      }
+      if (e instanceof SocketException) {
+        // Its ok for remote side to close the connection anytime.
+        datanode.myMetrics.blocksRead.inc();
+        return;
+      }
+      LOG.warn(datanode.getDatanodeInfo() +  ":Got exception while serving " + 
+          "namespaceId: " + namespaceId + " block: " + block + " to " +
+          s.getInetAddress() + ":\n" + StringUtils.stringifyException(e));
+    }
+
+    void close() {
       IOUtils.closeStream(blockSender);
+      IOUtils.closeSocket(s);
+      dataXceiverServer.childSockets.remove(s);
     }
   }
 
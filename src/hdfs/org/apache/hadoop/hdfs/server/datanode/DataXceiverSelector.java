@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * The event loop of the data transfer server in NIO mode.
+ *
+ * Connections wait in the selector until their request arrives, and are
+ * then handed to the thread pool of the server. A read of a block comes
+ * back here once its header is known, and is sent whenever the client can
+ * take more data, so that neither idle connections nor slow readers hold
+ * a thread.
+ */
+class DataXceiverSelector implements Runnable {
+  public static final Log LOG = DataNode.LOG;
+
+  /** How often the connections are checked for timeouts */
+  private static final long SELECT_TIMEOUT = 1000;
+
+  /**
+   * Something waiting in the selector for its channel to become ready.
+   */
+  static abstract class Handler {
+    /** how long the channel may stay idle, or 0 for ever */
+    long timeout;
+    long lastActivity = System.currentTimeMillis();
+
+    Handler(long timeout) {
+      this.timeout = timeout;
+    }
+
+    /** The channel is ready for the operations of its key. */
+    abstract void ready(SelectionKey key) throws IOException;
+
+    /** Release everything. Called once, when the key is cancelled. */
+    abstract void close();
+
+    void failed(IOException e) {
+      LOG.info("DataXceiverSelector: " + StringUtils.stringifyException(e));
+    }
+  }
+
+  private final DataNode datanode;
+  private final DataXceiverServer server;
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final Queue<Runnable> pendingChanges =
+    new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicInteger numNonBlockingReads = new AtomicInteger();
+  private long lastTimeoutCheck = System.currentTimeMillis();
+
+  DataXceiverSelector(ServerSocketChannel serverChannel, DataNode datanode,
+      DataXceiverServer server) throws IOException {
+    this.serverChannel = serverChannel;
+    this.datanode = datanode;
+    this.server = server;
+    this.selector = Selector.open();
+  }
+
+  public void run() {
+    try {
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+      while (datanode.shouldRun) {
+        selector.select(SELECT_TIMEOUT);
+        for (Runnable change; (change = pendingChanges.poll()) != null; ) {
+          change.run();
+        }
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Handler handler = (Handler) key.attachment();
+          handler.lastActivity = System.currentTimeMillis();
+          try {
+            handler.ready(key);
+          } catch (IOException e) {
+            handler.failed(e);
+            cancel(key);
+          } catch (RuntimeException e) {
+            LOG.error("DataXceiverSelector: unexpected exception", e);
+            cancel(key);
+          }
+        }
+        closeTimedOut();
+      }
+    } catch (ClosedSelectorException ignored) {
+      // killed
+    } catch (Throwable t) {
+      LOG.error(datanode.getDatanodeInfo() + ":DataXceiverSelector: Exiting due to:"
+          + StringUtils.stringifyException(t));
+      datanode.shouldRun = false;
+    } finally {
+      closeAll();
+    }
+  }
+
+  /**
+   * Accept the pending connections, and wait for their requests.
+   */
+  private void accept() throws IOException {
+    for (SocketChannel channel; (channel = serverChannel.accept()) != null; ) {
+      Socket s = channel.socket();
+      try {
+        channel.configureBlocking(false);
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(datanode.socketTimeout*5);
+        channel.register(selector, SelectionKey.OP_READ,
+            new NewConnection(s, s.getSoTimeout()));
+      } catch (IOException e) {
+        LOG.warn(datanode.getDatanodeInfo() + ":DataXceiverSelector: "
+            + StringUtils.stringifyException(e));
+        IOUtils.closeSocket(s);
+      }
+    }
+  }
+
+  /**
+   * A connection waiting for its request.
+   */
+  private class NewConnection extends Handler {
+    private final Socket s;
+
+    NewConnection(Socket s, long timeout) {
+      super(timeout);
+      this.s = s;
+    }
+
+    void ready(SelectionKey key) {
+      // the thread reads the request with the streams of the socket, which
+      // use selectors of their own
+      key.cancel();
+      server.diskioPool.execute(new DataXceiver(s, datanode, server));
+    }
+
+    void close() {
+      IOUtils.closeSocket(s);
+    }
+  }
+
+  /**
+   * Send the rest of a block read from the selector thread. Called by the
+   * thread that read the request, which must not touch the socket again.
+   */
+  void sendNonBlocking(final SocketChannel channel, final int ops,
+      final Handler handler) {
+    numNonBlockingReads.incrementAndGet();
+    pendingChanges.add(new Runnable() {
+      public void run() {
+        try {
+          channel.configureBlocking(false);
+          channel.register(selector, ops, handler);
+        } catch (IOException e) {
+          handler.failed(e);
+          closeHandler(handler);
+        }
+      }
+    });
+    selector.wakeup();
+  }
+
+  /**
+   * @return the number of block reads sent by the selector thread
+   */
+  int getNumNonBlockingReads() {
+    return numNonBlockingReads.get();
+  }
+
+  void cancel(SelectionKey key) {
+    key.cancel();
+    closeHandler((Handler) key.attachment());
+  }
+
+  private void closeHandler(Handler handler) {
+    if (!(handler instanceof NewConnection)) {
+      numNonBlockingReads.decrementAndGet();
+    }
+    handler.close();
+  }
+
+  private void closeTimedOut() {
+    long now = System.currentTimeMillis();
+    if (now - lastTimeoutCheck < SELECT_TIMEOUT) {
+      return;
+    }
+    lastTimeoutCheck = now;
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (!key.isValid() || !(attachment instanceof Handler)) {
+        continue;
+      }
+      Handler handler = (Handler) attachment;
+      if (handler.timeout > 0 && now - handler.lastActivity > handler.timeout) {
+        LOG.info("DataXceiverSelector: closing " + key.channel()
+            + " after " + handler.timeout + " msec without activity");
+        cancel(key);
+      }
+    }
+  }
+
+  private void closeAll() {
+    try {
+      for (Runnable change; (change = pendingChanges.poll()) != null; ) {
+        change.run();
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.isValid() && key.attachment() instanceof Handler) {
+          cancel(key);
+        }
+      }
+      selector.close();
+    } catch (IOException e) {
+      LOG.warn(datanode.getDatanodeInfo() + ":DataXceiverSelector: "
+          + StringUtils.stringifyException(e));
+    } catch (ClosedSelectorException ignored) {
+    }
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      LOG.warn(datanode.getDatanodeInfo() + ":DataXceiverSelector: "
+          + StringUtils.stringifyException(e));
+    }
+  }
+
+  void wakeup() {
+    selector.wakeup();
+  }
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -58,6 +59,7 @@ class DataXceiverServer implements Runnable, FSConstants {
   static final int MAX_XCEIVER_COUNT = 256;
   int maxXceiverCount = MAX_XCEIVER_COUNT;
   DataXceiverThreadPool diskioPool;     // pool of threads for disk io
+  DataXceiverSelector selector;         // event loop in NIO mode, or null
 
   // number of active threads doing writes to disk blocks
   AtomicInteger numberWriters = new AtomicInteger(0);
@@ -122,6 +124,20 @@ class DataXceiverServer implements Runnable, FSConstants {
         MAX_XCEIVER_COUNT);
     this.diskioPool = new DataXceiverThreadPool(conf, datanode.threadGroup, 
                                                 maxXceiverCount);
+    if (conf.getBoolean("dfs.datanode.xceiver.nio", false)) {
+      ServerSocketChannel channel = ss.getChannel();
+      if (channel == null) {
+        LOG.warn("dfs.datanode.xceiver.nio needs dfs.datanode.socket.write.timeout"
+            + " to be positive, serving connections with a thread each");
+      } else {
+        try {
+          this.selector = new DataXceiverSelector(channel, datanode, this);
+        } catch (IOException e) {
+          LOG.warn("Could not open a selector, serving connections with a"
+              + " thread each: " + StringUtils.stringifyException(e));
+        }
+      }
+    }
     
     this.estimateBlockSize = conf.getLong("dfs.block.size", DEFAULT_BLOCK_SIZE);
     
@@ -133,6 +149,10 @@ class DataXceiverServer implements Runnable, FSConstants {
   /**
    */
   public void run() {
+    if (selector != null) {
+      selector.run();
+      return;
+    }
     while (datanode.shouldRun) {
       try {
         Socket s = ss.accept();
@@ -162,6 +182,9 @@ class DataXceiverServer implements Runnable, FSConstants {
     assert datanode.shouldRun == false :
       "shoudRun should be set to false before killing";
     diskioPool.shutdown();
+    if (selector != null) {
+      selector.wakeup();
+    }
     try {
       this.ss.close();
     } catch (IOException ie) {
@@ -189,6 +212,13 @@ class DataXceiverServer implements Runnable, FSConstants {
     return diskioPool.getActiveCount() + numberWriters.intValue();
   }
 
+  /**
+   * How many block reads are sent by the selector without a thread?
+   */
+  int getNonBlockingReadCount() {
+    return selector == null ? 0 : selector.getNumNonBlockingReads();
+  }
+
   /**
    * One more writer
    */
@@ -23,6 +23,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSDir;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.HardLink;
@@ -31,30 +32,55 @@ import org.apache.hadoop.io.IOUtils;
 /**
  * This class is used by the datanode to maintain the map from a block 
  * to its metadata.
+ *
+ * The info of a finalized replica is only a view of its entry in the
+ * {@link ReplicaMap}: it refers to the directory of the replica, and
+ * builds the block file from it when asked.
  */
 class DatanodeBlockInfo {
 
-  private FSVolume volume;       // volume where the block belongs
+  private final FSVolume volume; // volume where the block belongs
+  private final FSDir dir;       // directory of a finalized block
+  private final long blockId;
   private File     file;         // block file
   private boolean detached;      // copy-on-write done for block
 
   DatanodeBlockInfo(FSVolume vol, File file) {
     this.volume = vol;
+    this.dir = null;
+    this.blockId = 0;
     this.file = file;
     detached = false;
   }
   
   DatanodeBlockInfo(FSVolume vol) {
-    this.volume = vol;
+    this(vol, null);
+  }
+
+  /**
+   * The info of a finalized block in a directory of its volume.
+   */
+  DatanodeBlockInfo(FSDir dir, long blockId, boolean detached) {
+    this.volume = dir.getVolume();
+    this.dir = dir;
+    this.blockId = blockId;
     this.file = null;
-    detached = false;
+    this.detached = detached;
   }
 
   FSVolume getVolume() {
     return volume;
   }
 
+  /** @return the directory of a finalized block, or null */
+  FSDir getDir() {
+    return dir;
+  }
+
   File getFile() {
+    if (file == null && dir != null) {
+      file = new File(dir.getDirectory(), Block.BLOCK_FILE_PREFIX + blockId);
+    }
     return file;
   }
 
@@ -108,6 +134,7 @@ class DatanodeBlockInfo {
     if (isDetached()) {
       return false;
     }
+    File file = getFile();
     if (file == null || volume == null) {
       throw new IOException("detachBlock:Block not found. " + block);
     }
@@ -129,6 +156,6 @@ class DatanodeBlockInfo {
   
   public String toString() {
     return getClass().getSimpleName() + "(volume=" + volume
-        + ", file=" + file + ", detached=" + detached + ")";
+        + ", file=" + getFile() + ", detached=" + detached + ")";
   }
 }
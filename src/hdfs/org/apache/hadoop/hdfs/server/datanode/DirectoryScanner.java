@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSDir;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
+
+/**
+ * DirectoryScanner reconciles the volume map with the block files on disk.
+ *
+ * Block reports are generated from the volume map, so the block files that
+ * are lost, truncated or put in place behind the back of the datanode are
+ * only noticed by this scanner. Every interval it walks the directories of
+ * finalized blocks of every namespace, one volume at a time, in a thread of
+ * minimum priority that looks at no more than a configured number of block
+ * files a second, and compares them with the map. A difference is checked
+ * again under the lock of its block before the map is changed:
+ * <ul>
+ * <li>a block file missing from the map is added to it, and is part of the
+ * next block report</li>
+ * <li>a replica whose block file has gone is removed from the map, and is
+ * reported deleted to the namenode</li>
+ * <li>a replica whose length or generation stamp differs from its files
+ * takes the ones of the files</li>
+ * </ul>
+ */
+class DirectoryScanner implements Runnable {
+  public static final Log LOG = LogFactory.getLog(DirectoryScanner.class);
+
+  private static final Random R = new Random();
+
+  private final DataNode datanode;
+  private final FSDataset dataset;
+  private final DataNodeMetrics metrics;
+  private final long scanInterval;
+  private final DataTransferThrottler throttler;
+
+  private Thread scannerThread = null;
+  private volatile boolean shouldRun = true;
+
+  // progress of the current scan
+  private long replicasToScan;
+  private long blocksScanned;
+
+  DirectoryScanner(DataNode datanode, FSDataset dataset, Configuration conf) {
+    this.datanode = datanode;
+    this.dataset = dataset;
+    this.metrics = datanode.getMetrics();
+    this.scanInterval =
+      conf.getLong("dfs.datanode.directoryscan.interval", 21600) * 1000L;
+    this.throttler = new DataTransferThrottler(
+        conf.getLong("dfs.datanode.directoryscan.blocks.per.sec", 1000));
+  }
+
+  public synchronized void start() {
+    if (scannerThread != null) {
+      return;
+    }
+    scannerThread = new Thread(this, "DirectoryScanner");
+    scannerThread.setDaemon(true);
+    scannerThread.setPriority(Thread.MIN_PRIORITY);
+    scannerThread.start();
+  }
+
+  public synchronized void shutdown() {
+    shouldRun = false;
+    if (scannerThread != null) {
+      scannerThread.interrupt();
+    }
+  }
+
+  private boolean shouldRun() {
+    return shouldRun && datanode.shouldRun
+        && !Thread.currentThread().isInterrupted();
+  }
+
+  public void run() {
+    // The volume map was just loaded from the disks: spread the first scans
+    // of the datanodes over the interval.
+    long delay = (long)(R.nextDouble() * scanInterval);
+    while (shouldRun()) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        break;
+      }
+      delay = scanInterval;
+      try {
+        scan();
+      } catch (Exception e) {
+        LOG.error("Directory scan failed", e);
+      }
+    }
+    LOG.info("Exiting DirectoryScanner");
+  }
+
+  /**
+   * Scan the block files of every namespace once.
+   */
+  void scan() {
+    long startTime = System.currentTimeMillis();
+    Integer[] namespaces = dataset.volumeMap.getNamespaceList();
+    replicasToScan = 0;
+    for (int namespaceId : namespaces) {
+      replicasToScan += dataset.volumeMap.size(namespaceId);
+    }
+    blocksScanned = 0;
+    metrics.directoryScanProgress.set(0);
+    for (int namespaceId : namespaces) {
+      for (FSVolume volume : dataset.volumes.getVolumes()) {
+        if (!shouldRun()) {
+          return;
+        }
+        scanVolume(namespaceId, volume);
+      }
+    }
+    metrics.directoryScanProgress.set(100);
+    long scanTime = System.currentTimeMillis() - startTime;
+    metrics.directoryScans.inc(scanTime);
+    LOG.info("Finished scanning " + blocksScanned + " block files of "
+        + namespaces.length + " namespaces in " + scanTime + " msecs");
+  }
+
+  /**
+   * Reconcile the volume map with the block files of a namespace on a
+   * volume.
+   */
+  private void scanVolume(int namespaceId, FSVolume volume) {
+    List<FSDir> dirs = volume.getBlockDirs(namespaceId);
+    long[] scannedIds = new long[1024];
+    int numScanned = 0;
+    Set<FSDir> unlisted = new HashSet<FSDir>();
+    for (FSDir dir : dirs) {
+      if (!shouldRun()) {
+        return;
+      }
+      File[] files = dir.getDirectory().listFiles();
+      if (files == null) {
+        // a failed disk is taken care of by FSDataset.checkDataDir; the
+        // replicas of the directory are left as they are
+        LOG.warn("Could not list " + dir.getDirectory());
+        unlisted.add(dir);
+        continue;
+      }
+      for (File file : files) {
+        if (!Block.isBlockFilename(file)) {
+          // including the files of invalidated replicas waiting for their
+          // deletion, which FSDataset.invalidate renamed under the block lock
+          continue;
+        }
+        throttler.throttle(1);
+        long genStamp = FSDataset.getGenerationStampFromFile(files, file);
+        Block diskBlock = new Block(file, file.length(), genStamp);
+        if (numScanned == scannedIds.length) {
+          scannedIds = Arrays.copyOf(scannedIds, 2 * numScanned);
+        }
+        scannedIds[numScanned++] = diskBlock.getBlockId();
+        checkBlockFile(namespaceId, dir, file, diskBlock);
+        updateProgress();
+      }
+    }
+
+    // A replica whose file was not seen may have been finalized after its
+    // directory was listed: checkReplica looks for the file again.
+    Arrays.sort(scannedIds, 0, numScanned);
+    for (Block block : dataset.volumeMap.getFinalizedBlocks(namespaceId,
+        volume)) {
+      if (Arrays.binarySearch(scannedIds, 0, numScanned,
+          block.getBlockId()) < 0) {
+        checkReplica(namespaceId, block, unlisted);
+      }
+    }
+  }
+
+  private void updateProgress() {
+    blocksScanned++;
+    metrics.directoryScanBlocks.inc();
+    if (replicasToScan > 0) {
+      metrics.directoryScanProgress.set(
+          (int)Math.min(99, 100 * blocksScanned / replicasToScan));
+    }
+  }
+
+  /**
+   * Reconcile the volume map with a block file found in a directory of
+   * finalized blocks.
+   */
+  private void checkBlockFile(int namespaceId, FSDir dir, File file,
+      Block diskBlock) {
+    if (isReplica(namespaceId, dir, diskBlock)) {
+      return;
+    }
+    long blockId = diskBlock.getBlockId();
+    dataset.lockBlock(blockId);
+    try {
+      // look again at both the map and the disk
+      File[] files = dir.getDirectory().listFiles();
+      if (files == null || !file.exists()) {
+        return;
+      }
+      diskBlock = new Block(blockId, file.length(),
+          FSDataset.getGenerationStampFromFile(files, file));
+      Block block = dataset.volumeMap.getBlock(namespaceId, blockId);
+      if (block == null) {
+        LOG.warn("Adding block file " + file + " missing from the volume map");
+        dataset.volumeMap.add(namespaceId, diskBlock,
+            new DatanodeBlockInfo(dir, blockId, false));
+        metrics.directoryScanMissingReplicas.inc();
+        return;
+      }
+      DatanodeBlockInfo info = dataset.volumeMap.get(namespaceId, block);
+      if (info == null || info.getDir() != dir) {
+        // being written, or a copy of a finalized replica somewhere else
+        return;
+      }
+      if (block.getNumBytes() != diskBlock.getNumBytes()
+          || block.getGenerationStamp() != diskBlock.getGenerationStamp()) {
+        LOG.warn("Updating replica " + block + " to the block file " + file
+            + " of length " + diskBlock.getNumBytes()
+            + " and generation stamp " + diskBlock.getGenerationStamp());
+        dataset.volumeMap.add(namespaceId, diskBlock,
+            new DatanodeBlockInfo(dir, blockId, info.isDetached()));
+        metrics.directoryScanMismatchedReplicas.inc();
+      }
+    } finally {
+      dataset.unlockBlock(blockId);
+    }
+  }
+
+  /**
+   * @return true if diskBlock is a finalized replica of dir in the volume
+   *         map, with the same length and generation stamp
+   */
+  private boolean isReplica(int namespaceId, FSDir dir, Block diskBlock) {
+    Block block = dataset.volumeMap.getBlock(namespaceId,
+        diskBlock.getBlockId());
+    if (block == null || block.getNumBytes() != diskBlock.getNumBytes()
+        || block.getGenerationStamp() != diskBlock.getGenerationStamp()) {
+      return false;
+    }
+    DatanodeBlockInfo info = dataset.volumeMap.get(namespaceId, block);
+    return info != null && info.getDir() == dir;
+  }
+
+  /**
+   * Remove a finalized replica whose block file was not found from the
+   * volume map, if the file is really gone and its directory was listed.
+   */
+  private void checkReplica(int namespaceId, Block block,
+      Set<FSDir> unlisted) {
+    dataset.lockBlock(block.getBlockId());
+    try {
+      DatanodeBlockInfo info = dataset.volumeMap.get(namespaceId, block);
+      if (info == null || info.getDir() == null
+          || unlisted.contains(info.getDir()) || info.getFile().exists()) {
+        return;
+      }
+      LOG.warn("Removing replica " + block + " whose block file "
+          + info.getFile() + " is missing");
+      dataset.volumeMap.remove(namespaceId, block);
+    } finally {
+      dataset.unlockBlock(block.getBlockId());
+    }
+    metrics.directoryScanMissingFiles.inc();
+    if (datanode.blockScanner != null) {
+      datanode.blockScanner.deleteBlock(namespaceId, block);
+    }
+    if (datanode.blockCache != null) {
+      datanode.blockCache.invalidate(namespaceId, new Block[] {block});
+    }
+    try {
+      datanode.notifyNamenodeDeletedBlock(namespaceId, block);
+    } catch (IOException e) {
+      LOG.warn("Could not report the missing replica " + block
+          + " to the namenode", e);
+    }
+  }
+}
@@ -19,6 +19,7 @@ package org.apache.hadoop.hdfs.server.datanode;
 
 import java.nio.channels.FileChannel;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
@@ -37,11 +38,10 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.management.NotCompliantMBeanException;
@@ -62,6 +62,7 @@ import org.apache.hadoop.hdfs.server.protocol.InterDatanodeProtocol;
 import org.apache.hadoop.hdfs.util.LightWeightHashSet;
 import org.apache.hadoop.metrics.util.MBeanUtil;
 import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.VersionInfo;
 import org.apache.hadoop.util.DiskChecker;
 import org.apache.hadoop.util.DiskChecker.DiskErrorException;
@@ -163,8 +164,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       this.dfsUsage.start();
     }
     
-    void getBlockInfo(LightWeightHashSet<Block> blocks){
-      dataDir.getBlockInfo(blocks);
+    void getBlockDirs(List<FSDir> dirs) {
+      synchronized (dataDir) {
+        dataDir.getBlockDirs(dirs);
+      }
     }
     
     /**
@@ -246,12 +249,12 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       fsd.getBlockAndFileInfo(blockSet);
       for (BlockAndFile b : blockSet) {
         File f = b.pathfile;  // full path name of block file
-        lock.writeLock().lock();
+        lockBlock(b.block.getBlockId());
         try {
           volumeMap.add(namespaceId, b.block, new DatanodeBlockInfo(volume, f));
           volumeMap.addOngoingCreates(namespaceId, b.block, ActiveFile.createStartupRecoveryFile(f));
         } finally {
-          lock.writeLock().unlock();
+          unlockBlock(b.block.getBlockId());
         }
         if (DataNode.LOG.isDebugEnabled()) {
           DataNode.LOG.debug("recoverBlocksBeingWritten for block " + b.block + "namespaceId: "+namespaceId);
@@ -322,22 +325,29 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return FSDataset.createTmpFile(b, f);
     }
 
-    File addBlock(Block b, File f) throws IOException {
-      File blockFile = dataDir.addBlock(namespaceId, b, f);
-      File metaFile = getMetaFile(blockFile , b);
+    FSDir addBlock(Block b, File f) throws IOException {
+      FSDir dir;
+      synchronized (dataDir) {
+        dir = dataDir.addBlock(namespaceId, b, f);
+      }
+      File metaFile = getMetaFile(new File(dir.getDirectory(), b.getBlockName()), b);
       dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
-      return blockFile;
+      return dir;
     }
       
     void checkDirs() throws DiskErrorException {
-      dataDir.checkDirTree();
+      synchronized (dataDir) {
+        dataDir.checkDirTree();
+      }
       DiskChecker.checkDir(tmpDir);
       DiskChecker.checkDir(detachDir);
       DiskChecker.checkDir(blocksBeingWritten);
     }
       
     void clearPath(File f) {
-      dataDir.clearPath(f);
+      synchronized (dataDir) {
+        dataDir.clearPath(f);
+      }
     }
       
     public String toString() {
@@ -399,6 +409,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    */
   class FSDir {
     File dir;
+    FSVolume volume;
     int numBlocks = 0;
     FSDir children[];
     int lastChildIdx = 0;
@@ -406,6 +417,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     File getDirectory(){
       return dir;
     }
+
+    FSVolume getVolume() {
+      return volume;
+    }
     	
     public FSDir() { 
     }
@@ -416,6 +431,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     
     public FSDir(int namespaceId, File dir, FSVolume volume) throws IOException {
       this.dir = dir;
+      this.volume = volume;
       this.children = null;      
       if (!dir.exists()) {
         if (!dir.mkdirs()) {
@@ -436,8 +452,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
             numBlocks++;
             if (volume != null) {   
               long genStamp = FSDataset.getGenerationStampFromFile(files, file);    
-                volumeMap.add(namespaceId, new Block(file, file.length(), genStamp),     
-                  new DatanodeBlockInfo(volume, file));   
+              Block b = new Block(file, file.length(), genStamp);
+              volumeMap.add(namespaceId, b,
+                  new DatanodeBlockInfo(this, b.getBlockId(), false));
             }
           }
         }
@@ -454,13 +471,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
         
-    public File addBlock(int namespaceId, Block b, File src) throws IOException {
+    /**
+     * Move a block into the tree.
+     * @return the directory the block was moved to
+     */
+    public FSDir addBlock(int namespaceId, Block b, File src) throws IOException {
       //First try without creating subdirectories
-      File file = addBlock(namespaceId, b, src, false, false);          
-      return (file != null) ? file : addBlock(namespaceId, b, src, true, true);
+      FSDir dir = addBlock(namespaceId, b, src, false, false);          
+      return (dir != null) ? dir : addBlock(namespaceId, b, src, true, true);
     }
 
-    private File addBlock(int namespaceId, Block b, File src, boolean createOk, 
+    private FSDir addBlock(int namespaceId, Block b, File src, boolean createOk, 
                           boolean resetIdx) throws IOException {
       if (numBlocks < maxBlocksPerDir) {
         File dest = new File(dir, b.getBlockName());
@@ -478,7 +499,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
 
         numBlocks += 1;
-        return dest;
+        return this;
       }
             
       if (lastChildIdx < 0 && resetIdx) {
@@ -490,10 +511,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         //Check if any child-tree has room for a block.
         for (int i=0; i < children.length; i++) {
           int idx = (lastChildIdx + i)%children.length;
-          File file = children[idx].addBlock(namespaceId, b, src, false, resetIdx);
-          if (file != null) {
+          FSDir dir = children[idx].addBlock(namespaceId, b, src, false, resetIdx);
+          if (dir != null) {
             lastChildIdx = idx;
-            return file; 
+            return dir; 
           }
         }
         lastChildIdx = -1;
@@ -507,7 +528,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         children = new FSDir[maxBlocksPerDir];
         for (int idx = 0; idx < maxBlocksPerDir; idx++) {
           children[idx] = new FSDir(namespaceId, new File(dir,
-              DataStorage.BLOCK_SUBDIR_PREFIX + idx));
+              DataStorage.BLOCK_SUBDIR_PREFIX + idx), volume);
         }
       }
             
@@ -517,22 +538,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
 
     /**
-     * Populate the given blockSet with any child blocks
-     * found at this node.
+     * Add this node and all the nodes below it to dirs.
      */
-    public void getBlockInfo(LightWeightHashSet<Block> blockSet) {
+    void getBlockDirs(List<FSDir> dirs) {
+      dirs.add(this);
       if (children != null) {
         for (int i = 0; i < children.length; i++) {
-          children[i].getBlockInfo(blockSet);
-        }
-      }
-
-      File blockFiles[] = dir.listFiles();
-      for (int i = 0; i < blockFiles.length; i++) {
-        if (Block.isBlockFilename(blockFiles[i])) {
-          long genStamp = 
-            FSDataset.getGenerationStampFromFile(blockFiles, blockFiles[i]);
-          blockSet.add(new Block(blockFiles[i], blockFiles[i].length(), genStamp));
+          children[i].getBlockDirs(dirs);
         }
       }
     }
@@ -642,6 +654,12 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private final long reserved;
     private final FSDataset dataset;
     private DU dfsUsage;
+    /** block streams of the volume open for reading or writing */
+    private final AtomicInteger xceiverCount = new AtomicInteger();
+    /** moving average of the time a read or write of the volume takes */
+    private volatile long ioLatency = 0;
+    /** number of blocks the volume was chosen for */
+    private final AtomicLong blocksChosen = new AtomicLong();
     
     FSVolume(FSDataset dataset, File currentDir, Configuration conf) throws IOException {
       this.reserved = conf.getLong("dfs.datanode.du.reserved", 0);
@@ -667,6 +685,41 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     public File getCurrentDir() {
       return currentDir;
     }
+
+    /** @return the number of block streams open on this volume */
+    int getXceiverCount() {
+      return xceiverCount.get();
+    }
+
+    void beginIO() {
+      xceiverCount.incrementAndGet();
+    }
+
+    void endIO() {
+      xceiverCount.decrementAndGet();
+    }
+
+    /**
+     * Add the time of a read or write to the moving average. Concurrent
+     * callers may lose a sample, which does not matter for an average.
+     */
+    void recordIOLatency(long nanos) {
+      long latency = ioLatency;
+      ioLatency = latency + ((nanos - latency) >> 3);
+    }
+
+    /** @return the moving average of the I/O latency in nanoseconds */
+    long getIOLatency() {
+      return ioLatency;
+    }
+
+    void incBlocksChosen() {
+      blocksChosen.incrementAndGet();
+    }
+
+    long getBlocksChosen() {
+      return blocksChosen.get();
+    }
     
     public File getRbwDir(int namespaceId) throws IOException {
       NamespaceSlice ns = getNamespaceSlice(namespaceId);
@@ -674,15 +727,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
     
     void decDfsUsed(int namespaceId, long value) {
-      // this lock is put in FSVolume since it is called only ReplicaFileDeleteWork
-      lock.writeLock().lock();
-      try{
+      // called only by ReplicaFileDeleteWork, under the same shared lock as
+      // the block operations adding to the counter and the readers of it
+      lock.readLock().lock();
+      try {
         NamespaceSlice ns = getNamespaceSlice(namespaceId);
         if (ns != null) {
           ns.decDfsUsed(value);
         }
       } finally {
-        lock.writeLock().unlock();
+        lock.readLock().unlock();
       }
     }
     
@@ -723,7 +777,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return usage.getFilesystem();
     }
      
-    File addBlock(int namespaceId, Block b, File f) throws IOException {
+    FSDir addBlock(int namespaceId, Block b, File f) throws IOException {
       NamespaceSlice ns = getNamespaceSlice(namespaceId);
       return ns.addBlock(b, f);
     }
@@ -790,11 +844,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
 
-    void getBlockInfo(int namespaceId, LightWeightHashSet<Block> blockSet)
-        throws IOException {
+    /**
+     * @return the directories of the finalized blocks of the namespace on
+     *         this volume
+     */
+    List<FSDir> getBlockDirs(int namespaceId) {
+      List<FSDir> dirs = new ArrayList<FSDir>();
       NamespaceSlice ns = getNamespaceSlice(namespaceId);
-      ns.getBlockInfo(blockSet);
-      return;
+      if (ns != null) {
+        ns.getBlockDirs(dirs);
+      }
+      return dirs;
     }
     
     public void shutdown() {
@@ -815,17 +875,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
     
   static class FSVolumeSet {
-    FSVolume[] volumes = null;
-    int curVolume = 0;
-    ExecutorService scannersExecutor;
+    volatile FSVolume[] volumes = null;
+    BlockVolumeChoosingPolicy blockChooser;
     boolean supportAppends;
 
-    private FSVolumeSet(FSVolume[] volumes, int threads, boolean supportAppends) {
+    private FSVolumeSet(FSVolume[] volumes, BlockVolumeChoosingPolicy blockChooser,
+        boolean supportAppends) {
       this.volumes = volumes;
+      this.blockChooser = blockChooser;
       this.supportAppends = supportAppends;
-      if (threads > 1) {
-        scannersExecutor = Executors.newFixedThreadPool(threads);
-      }
     }
     
     protected int numberOfVolumes() {
@@ -836,28 +894,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return this.volumes;
     }
       
-    private FSVolume getNextVolume(long blockSize) throws IOException {
-      
+    private synchronized FSVolume getNextVolume(long blockSize) throws IOException {
+      FSVolume[] volumes = this.volumes;
       if(volumes.length < 1) {
         throw new DiskOutOfSpaceException("No more available volumes");
       }
-      
-      // since volumes could've been removed because of the failure
-      // make sure we are not out of bounds
-      if(curVolume >= volumes.length) {
-        curVolume = 0;
-      }
-      
-      int startVolume = curVolume;
-      
-      while (true) {
-        FSVolume volume = volumes[curVolume];
-        curVolume = (curVolume + 1) % volumes.length;
-        if (volume.getAvailable() > blockSize) { return volume; }
-        if (curVolume == startVolume) {
-          throw new DiskOutOfSpaceException("Insufficient space for an additional block");
-        }
-      }
+      FSVolume volume = blockChooser.chooseVolume(volumes, blockSize);
+      volume.incBlocksChosen();
+      return volume;
     }
       
     private long getDfsUsed() throws IOException {
@@ -903,38 +947,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       volumes.length + " volumes in " + scanTime + " seconds");
     }
       
-    private void getBlockInfo(int namespaceId, LightWeightHashSet<Block> blockSet) {
-      long startTime = System.currentTimeMillis();
-      if (scannersExecutor != null) {
-        List<Future<LightWeightHashSet<Block>>> builders =
-          new ArrayList<Future<LightWeightHashSet<Block>>>();
-        for (int idx = 0; idx < volumes.length; idx++) {
-          builders.add(scannersExecutor.submit(
-              new BlockInfoBuilder(volumes[idx], namespaceId)));
-        }
-        for (Future<LightWeightHashSet<Block>> future : builders) {
-          try {
-            blockSet.addAll(future.get());
-          } catch (ExecutionException ex) {
-            DataNode.LOG.error("Error scanning volumes ", ex.getCause());
-          } catch (InterruptedException iex) {
-            DataNode.LOG.error("Error waiting for scan", iex);
-          }
-        }
-      } else {
-        for (int idx = 0; idx < volumes.length; idx++) {
-          try{  
-            volumes[idx].getBlockInfo(namespaceId, blockSet);
-          } catch (IOException e) {
-            DataNode.LOG.error("Error scanning volumes ", e.getCause());
-          }
-        }
-      }
-      long scanTime = (System.currentTimeMillis() - startTime)/1000;
-      DataNode.LOG.info("Finished generating block report for " +
-          volumes.length + " volumes in " + scanTime + " seconds");
-    }
-      
     /**
      * goes over all the volumes and checkDir eachone of them
      * if one throws DiskErrorException - removes from the list of active 
@@ -944,6 +956,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private List<FSVolume> checkDirs() {
       
       ArrayList<FSVolume> removed_vols = null;  
+      FSVolume[] volumes = this.volumes;
       
       for (int idx = 0; idx < volumes.length; idx++) {
         FSVolume fsv = volumes[idx];
@@ -955,21 +968,21 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
             removed_vols = new ArrayList<FSVolume>(1);
           }
           removed_vols.add(volumes[idx]);
-          volumes[idx] = null; //remove the volume
         }
       }
       
-      // repair array - copy non null elements
+      // replace the array of volumes, others may be iterating the old one
       int removed_size = (removed_vols==null)? 0 : removed_vols.size();
       if(removed_size > 0) {
-        FSVolume fsvs[] = new FSVolume [volumes.length-removed_size];
-        for(int idx=0,idy=0; idx<volumes.length; idx++) {
-          if(volumes[idx] != null) {
-            fsvs[idy] = volumes[idx];
-            idy++;
+        synchronized (this) {
+          List<FSVolume> remaining = new ArrayList<FSVolume>();
+          for (FSVolume fsv : this.volumes) {
+            if (!removed_vols.contains(fsv)) {
+              remaining.add(fsv);
+            }
           }
+          this.volumes = remaining.toArray(new FSVolume[remaining.size()]);
         }
-        volumes = fsvs; // replace array of volumes
       }
       DataNode.LOG.info("Completed FSVolumeSet.checkDirs. Removed=" + removed_size + 
           "volumes. List of current volumes: " +   toString());
@@ -1000,22 +1013,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
   }
   
-  private static class BlockInfoBuilder implements Callable<LightWeightHashSet<Block>> {
-    FSVolume volume;
-    int namespaceId;
-
-    public BlockInfoBuilder(FSVolume volume, int namespaceId) {
-      this.volume = volume;
-      this.namespaceId = namespaceId;
-    }
-
-    @Override
-    public LightWeightHashSet<Block> call() throws Exception {
-      LightWeightHashSet<Block> result = new LightWeightHashSet<Block>();
-      volume.getBlockInfo(namespaceId, result);
-      return result;
-    }
-  }
   //////////////////////////////////////////////////////
   //
   // FSDataSet
@@ -1141,7 +1138,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   /** Return the block file for the given ID */ 
   public File findBlockFile(int namespaceId, long blockId) {
-    lock.readLock().lock();
+    lockBlock(blockId);
     try {
       final Block eb = new Block(blockId);
       File blockfile = null;
@@ -1159,13 +1156,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
       return blockfile;
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(blockId);
     }
   }
 
   /** {@inheritDoc} */
   public Block getStoredBlock(int namespaceId, long blkid) throws IOException {
-    lock.readLock().lock();
+    lockBlock(blkid);
     try {
       File blockfile = findBlockFile(namespaceId, blkid);
       if (blockfile == null) {
@@ -1180,7 +1177,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       block.setGenerationStamp(parseGenerationStamp(blockfile, metafile));
       return block;
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(blkid);
     }
   }
 
@@ -1209,7 +1206,22 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   VolumeMap volumeMap; 
   static  Random random = new Random();
   FSDatasetAsyncDiskService asyncDiskService;
+  /**
+   * Held exclusively to change the set of volumes or namespaces, and
+   * shared by everything else. The replica of a block is changed under the
+   * shared lock and the lock of the block, the directory tree of a
+   * namespace on a volume under the monitor of that tree. Operations on
+   * different blocks, and on the disks of different volumes, therefore
+   * never wait for each other.
+   */
   ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+  private static final int NUM_BLOCK_LOCKS = 1024;
+  private final ReentrantLock[] blockLocks = new ReentrantLock[NUM_BLOCK_LOCKS];
+  {
+    for (int i = 0; i < blockLocks.length; i++) {
+      blockLocks[i] = new ReentrantLock();
+    }
+  }
   private boolean shouldHardLinkBlockCopy;
   private int validVolsRequired;
   
@@ -1261,8 +1273,21 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         DataNode.LOG.info("FSDataset added volume - "
             + storage.getStorageDir(idx).getCurrentDir());
       }
-      int threads = conf.getInt("dfs.datanode.blockscanner.threads", 1);
-      volumes = new FSVolumeSet(volArray, threads, datanode.isSupportAppends());
+      if (conf.get("dfs.datanode.blockscanner.threads") != null) {
+        DataNode.LOG.warn("dfs.datanode.blockscanner.threads is deprecated"
+            + " and ignored: block reports are generated from the replicas in"
+            + " memory, and the block directories are reconciled with them"
+            + " by the directory scanner, see"
+            + " dfs.datanode.directoryscan.interval and"
+            + " dfs.datanode.directoryscan.blocks.per.sec.");
+      }
+      Class<? extends BlockVolumeChoosingPolicy> chooserClass = conf.getClass(
+          "dfs.datanode.block.volume.choice.policy",
+          LoadAwareVolumeChoosingPolicy.class, BlockVolumeChoosingPolicy.class);
+      BlockVolumeChoosingPolicy blockChooser =
+          ReflectionUtils.newInstance(chooserClass, conf);
+      volumes = new FSVolumeSet(volArray, blockChooser,
+          datanode.isSupportAppends());
       registerMBean(storage.getStorageID());
       initialized = true;
     } finally {
@@ -1336,6 +1361,26 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
 
+  private ReentrantLock getBlockLock(long blockId) {
+    int hash = (int)(blockId ^ (blockId >>> 32));
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return blockLocks[hash & (NUM_BLOCK_LOCKS - 1)];
+  }
+
+  /**
+   * Lock the dataset shared and the block exclusively.
+   */
+  void lockBlock(long blockId) {
+    lock.readLock().lock();
+    getBlockLock(blockId).lock();
+  }
+
+  void unlockBlock(long blockId) {
+    getBlockLock(blockId).unlock();
+    lock.readLock().unlock();
+  }
+
   /**
    * Return the total space used by dfs datanode
    */
@@ -1401,7 +1446,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   @Override
   public long getVisibleLength(int namespaceId, Block b) throws IOException {
-    lock.readLock().lock();
+    lockBlock(b.getBlockId());
     try {
       ActiveFile activeFile = volumeMap.getOngoingCreates(namespaceId, b);
 
@@ -1411,14 +1456,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         return getLength(namespaceId, b);
       }
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(b.getBlockId());
     }
   }
 
   @Override
   public void setVisibleLength(int namespaceId, Block b, long length)
     throws IOException {
-    lock.writeLock().lock();
+    lockBlock(b.getBlockId());
     try {
       ActiveFile activeFile = volumeMap.getOngoingCreates(namespaceId, b);
 
@@ -1430,7 +1475,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         );
       }
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(b.getBlockId());
     }
   }
 
@@ -1456,11 +1501,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   public InputStream getBlockInputStream(int namespaceId, Block b, long seekOffset) throws IOException {
     File blockFile = getBlockFile(namespaceId, b);
+    DatanodeBlockInfo info = volumeMap.get(namespaceId, b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
     if (seekOffset > 0) {
       blockInFile.seek(seekOffset);
     }
-    return new FileInputStream(blockInFile.getFD());
+    if (info == null) {
+      return new FileInputStream(blockInFile.getFD());
+    }
+    return new VolumeInputStream(blockInFile.getFD(), info.getVolume());
   }
 
   /**
@@ -1468,7 +1517,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    */
   public BlockInputStreams getTmpInputStreams(int namespaceId, Block b, 
                           long blkOffset, long ckoff) throws IOException {
-    lock.readLock().lock();
+    lockBlock(b.getBlockId());
     try {
       DatanodeBlockInfo info = volumeMap.get(namespaceId, b);
       if (info == null) {
@@ -1491,16 +1540,105 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return new BlockInputStreams(new FileInputStream(blockInFile.getFD()),
           new FileInputStream(metaInFile.getFD()));
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(b.getBlockId());
     }
   }
     
-  private BlockWriteStreams createBlockWriteStreams( File f , File metafile) throws IOException {
-      return new BlockWriteStreams(new FileOutputStream(new RandomAccessFile( f , "rw" ).getFD()),
+  private BlockWriteStreams createBlockWriteStreams(FSVolume v, File f,
+      File metafile) throws IOException {
+      return new BlockWriteStreams(
+          new VolumeOutputStream(new RandomAccessFile( f , "rw" ).getFD(), v),
           new FileOutputStream( new RandomAccessFile( metafile , "rw" ).getFD() ));
 
   }
 
+  /**
+   * The stream of a block file read by an xceiver. It counts as load of its
+   * volume until it is closed, and times its reads. Reads with transferTo
+   * go through the channel and are not timed.
+   */
+  static class VolumeInputStream extends FileInputStream {
+    private final FSVolume volume;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    VolumeInputStream(FileDescriptor fd, FSVolume volume) {
+      super(fd);
+      this.volume = volume;
+      volume.beginIO();
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      int b = super.read();
+      volume.recordIOLatency(System.nanoTime() - start);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+      return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      int n = super.read(b, off, len);
+      volume.recordIOLatency(System.nanoTime() - start);
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed.compareAndSet(false, true)) {
+        volume.endIO();
+      }
+      super.close();
+    }
+  }
+
+  /**
+   * The stream of a block file written by an xceiver. It counts as load of
+   * its volume until it is closed, and times its writes.
+   */
+  static class VolumeOutputStream extends FileOutputStream {
+    private final FSVolume volume;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    VolumeOutputStream(FileDescriptor fd, FSVolume volume) {
+      super(fd);
+      this.volume = volume;
+      volume.beginIO();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      super.write(b);
+      volume.recordIOLatency(System.nanoTime() - start);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      super.write(b, off, len);
+      volume.recordIOLatency(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed.compareAndSet(false, true)) {
+        volume.endIO();
+      }
+      super.close();
+    }
+  }
+
   /**
    * Make a copy of the block if this block is linked to an existing
    * snapshot. This ensures that modifying this block does not modify
@@ -1513,14 +1651,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   public boolean detachBlock(int namespaceId, Block block, int numLinks) throws IOException {
     DatanodeBlockInfo info = null;
 
-    lock.readLock().lock();
+    lockBlock(block.getBlockId());
     try {
       info = volumeMap.get(namespaceId, block);
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(block.getBlockId());
     }
     
-    return info.detachBlock(namespaceId, block, numLinks);
+    if (!info.detachBlock(namespaceId, block, numLinks)) {
+      return false;
+    }
+    volumeMap.setDetached(namespaceId, block);
+    return true;
   }
 
   /** {@inheritDoc} */
@@ -1582,7 +1724,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * not being created
    */
   private ArrayList<Thread> getActiveThreads(int namespaceId, Block block) {
-    lock.writeLock().lock();
+    lockBlock(block.getBlockId());
     try {
       //check ongoing create threads
       final ActiveFile activefile = volumeMap.getOngoingCreates(namespaceId, block);
@@ -1601,7 +1743,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
       }
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(block.getBlockId());
     }
     return null;
   }
@@ -1615,7 +1757,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    */
   private List<Thread> tryUpdateBlock(int namespaceId, 
       Block oldblock, Block newblock) throws IOException {
-    lock.writeLock().lock();
+    lockBlock(oldblock.getBlockId());
     try {
       //check ongoing create threads
       ArrayList<Thread> activeThreads = getActiveThreads(namespaceId, oldblock);
@@ -1674,14 +1816,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         ActiveFile af = volumeMap.removeOngoingCreates(namespaceId, oldblock);
         volumeMap.addOngoingCreates(namespaceId, newblock, af);
       }
-      volumeMap.update(namespaceId, oldblock, newblock);
+      volumeMap.update(namespaceId, oldblock, new Block(
+          newblock.getBlockId(), blockFile.length(), newblock.getGenerationStamp()));
   
       // paranoia! verify that the contents of the stored block 
       // matches the block file on disk.
       validateBlockMetadata(namespaceId, newblock);
       return null;
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(oldblock.getBlockId());
     }
   }
 
@@ -1795,8 +1938,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     // Serialize access to /tmp, and check if file already there.
     //
     File f = null;
+    FSVolume v = null;
     List<Thread> threads = null;
-    lock.writeLock().lock();
+    lockBlock(b.getBlockId());
     try {
       //
       // Is it already in the create process?
@@ -1816,7 +1960,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
         volumeMap.removeOngoingCreates(namespaceId, b);
       }
-      FSVolume v = null;
       if (!isRecovery) {
         v = volumes.getNextVolume(blockSize);
         // create temporary file to hold block in the designated volume
@@ -1874,7 +2017,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       volumeMap.addOngoingCreates(namespaceId, b, new ActiveFile(f, threads));
       
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(b.getBlockId());
     }
 
     try {
@@ -1895,7 +2038,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     File metafile = getMetaFile(f, b);
     DataNode.LOG.debug("writeTo blockfile is " + f + " of size " + f.length());
     DataNode.LOG.debug("writeTo metafile is " + metafile + " of size " + metafile.length());
-    return createBlockWriteStreams( f , metafile);
+    return createBlockWriteStreams(v, f, metafile);
   }
 
   /**
@@ -1931,7 +2074,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   File createTmpFile(int namespaceId, FSVolume vol, Block blk,
                         boolean replicationRequest) throws IOException {
-    lock.writeLock().lock();
+    lockBlock(blk.getBlockId());
     try {
       if ( vol == null ) {
         vol = volumeMap.get(namespaceId, blk).getVolume();
@@ -1941,7 +2084,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
       return vol.createTmpFile(namespaceId, blk, replicationRequest);
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(blk.getBlockId());
     }
   }
 
@@ -1971,9 +2114,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    */
   private void finalizeBlockInternal(int namespaceId, Block b, boolean reFinalizeOk)
     throws IOException {
-    lock.writeLock().lock();
-    DatanodeBlockInfo replicaInfo = volumeMap.get(namespaceId, b);
+    lockBlock(b.getBlockId());
     try {
+      DatanodeBlockInfo replicaInfo = volumeMap.get(namespaceId, b);
       ActiveFile activeFile = volumeMap.getOngoingCreates(namespaceId, b);
       if (activeFile == null) {
         if (reFinalizeOk) {
@@ -1992,12 +2135,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                               " for block " + b);
       }
           
-      File dest = null;
-      dest = v.addBlock(namespaceId, b, f);
-      volumeMap.add(namespaceId, b, new DatanodeBlockInfo(v, dest));
+      long length = f.length();
+      FSDir dest = v.addBlock(namespaceId, b, f);
+      volumeMap.add(namespaceId,
+          new Block(b.getBlockId(), length, b.getGenerationStamp()),
+          new DatanodeBlockInfo(dest, b.getBlockId(), false));
       volumeMap.removeOngoingCreates(namespaceId, b);
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(b.getBlockId());
     }
   }
 
@@ -2006,7 +2151,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * finalized, otherwise returns false.
    */
   private boolean isFinalized(int namespaceId, Block b) {
-    lock.readLock().lock();
+    lockBlock(b.getBlockId());
     try {
       FSVolume v = volumeMap.get(namespaceId, b).getVolume();
       if (v == null) {
@@ -2024,7 +2169,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
       return false;             // block is not finalized
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(b.getBlockId());
     }
   }
   
@@ -2032,7 +2177,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * Remove the temporary block file (if any)
    */
   public void unfinalizeBlock(int namespaceId, Block b) throws IOException {
-    lock.writeLock().lock();
+    lockBlock(b.getBlockId());
     try {
       // remove the block from in-memory data structure
       ActiveFile activefile = volumeMap.removeOngoingCreates(namespaceId, b);
@@ -2046,7 +2191,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
       }
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(b.getBlockId());
     }
   }
 
@@ -2091,19 +2236,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
   
   /**
-   * Return a table of block data for given namespace
+   * Return a table of block data for given namespace. The finalized
+   * replicas are taken from the volume map rather than from the disks,
+   * which are reconciled with it by the {@link DirectoryScanner}.
    */
   public Block[] getBlockReport(int namespaceId) {
-    LightWeightHashSet<Block> blockSet = new LightWeightHashSet<Block>();
     lock.readLock().lock();
     try {
-      volumes.getBlockInfo(namespaceId, blockSet);
-      Block blockTable[] = new Block[blockSet.size()];
-      int i = 0;
-      for (Iterator<Block> it = blockSet.iterator(); it.hasNext(); i++) {
-        blockTable[i] = it.next();
-      }
-      return blockTable;
+      List<Block> blocks = volumeMap.getFinalizedBlocks(namespaceId, null);
+      return blocks.toArray(new Block[blocks.size()]);
     } finally {
       lock.readLock().unlock();
     }
@@ -2233,7 +2374,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
       FSVolume v;
-      lock.writeLock().lock();
+      File blockFileRenamed;
+      File metaFileRenamed;
+      long dfsBytes;
+      lockBlock(invalidBlks[i].getBlockId());
       try {
         f = getFile(namespaceId, invalidBlks[i]);
         DatanodeBlockInfo dinfo = volumeMap.get(namespaceId, invalidBlks[i]);
@@ -2273,28 +2417,31 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         //TODO ???
         v.clearPath(namespaceId, parent);
         volumeMap.remove(namespaceId, invalidBlks[i]);
-      } finally {
-        lock.writeLock().unlock();
-      }
-      File metaFile = getMetaFile( f, invalidBlks[i]);
-      long dfsBytes = f.length() + metaFile.length();
-      
 
-      //rename the files to be deleted
-      //for safety we add prefix instead of suffix,
-      //so the valid block files still start with "blk_"
-      File blockFileRenamed = new File(f.getParent()
-		  + File.separator + DELETE_FILE_EXT + f.getName());
-      File metaFileRenamed = new File(metaFile.getParent()
-		  + File.separator + DELETE_FILE_EXT + metaFile.getName());
-
-      if((!f.renameTo(blockFileRenamed)) ||
-		  (!metaFile.renameTo(metaFileRenamed))) {
-	  DataNode.LOG.warn("Unexpected error trying to delete block "
+        File metaFile = getMetaFile( f, invalidBlks[i]);
+        dfsBytes = f.length() + metaFile.length();
+
+        //rename the files to be deleted
+        //for safety we add prefix instead of suffix,
+        //so the valid block files still start with "blk_".
+        //The block is still locked: the directory scanner checks a block
+        //file missing from the volume map again under this lock, and must
+        //not take a file waiting for its deletion for a new replica.
+        blockFileRenamed = new File(f.getParent()
+            + File.separator + DELETE_FILE_EXT + f.getName());
+        metaFileRenamed = new File(metaFile.getParent()
+            + File.separator + DELETE_FILE_EXT + metaFile.getName());
+
+        if((!f.renameTo(blockFileRenamed)) ||
+            (!metaFile.renameTo(metaFileRenamed))) {
+          DataNode.LOG.warn("Unexpected error trying to delete block "
                   + invalidBlks[i] +
                   ". Cannot rename files for deletion.");
-	  error = true;
-	  continue;
+          error = true;
+          continue;
+        }
+      } finally {
+        unlockBlock(invalidBlks[i].getBlockId());
       }
       if(invalidBlks[i].getNumBytes() != BlockCommand.NO_ACK){
         datanode.notifyNamenodeDeletedBlock(namespaceId, invalidBlks[i]);
@@ -2414,9 +2561,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
 
     if(volumes != null) {
-      if (volumes.scannersExecutor != null) {
-        volumes.scannersExecutor.shutdown();
-      }
       for (FSVolume volume : volumes.volumes) {
         if(volume != null) {
           volume.shutdown();
@@ -2456,6 +2600,31 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return toString();
   }
 
+  public String getVolumeInfo() {
+    StringBuilder info = new StringBuilder("{");
+    FSVolumeSet volumeSet = volumes;
+    FSVolume[] vols = volumeSet == null ? new FSVolume[0] : volumeSet.getVolumes();
+    for (int i = 0; i < vols.length; i++) {
+      FSVolume v = vols[i];
+      long available;
+      try {
+        available = v.getAvailable();
+      } catch (IOException e) {
+        available = -1;
+      }
+      if (i > 0) {
+        info.append(",");
+      }
+      info.append("\"").append(v).append("\":{")
+          .append("\"availableSpace\":").append(available)
+          .append(",\"xceiverCount\":").append(v.getXceiverCount())
+          .append(",\"ioLatencyMicros\":").append(v.getIOLatency() / 1000)
+          .append(",\"blocksChosen\":").append(v.getBlocksChosen())
+          .append("}");
+    }
+    return info.append("}").toString();
+  }
+
   @Override
   public BlockRecoveryInfo startBlockRecovery(int namespaceId, long blockId)
       throws IOException {
@@ -2476,7 +2645,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         break;
     }
 
-    lock.readLock().lock();
+    lockBlock(blockId);
     try {
       // now that writers are stopped, re-fetch the block's meta info
       stored = getStoredBlock(namespaceId, blockId);
@@ -2501,7 +2670,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       validateBlockMetadata(namespaceId, stored);
       return info;
     } finally {
-      lock.readLock().unlock();
+      unlockBlock(blockId);
     }
   }
 
@@ -2667,7 +2836,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       throws IOException {
     boolean hardlink = true;
     File dstBlockFile = null;
-    lock.writeLock().lock();
+    lockBlock(dstBlock.getBlockId());
     try {
       if (isValidBlock(dstNamespaceId, dstBlock) ||
           volumeMap.getOngoingCreates(dstNamespaceId, dstBlock) != null) {
@@ -2697,7 +2866,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       volumeMap.add(dstNamespaceId, dstBlock,
           new DatanodeBlockInfo(dstVol, dstBlockFile));
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(dstBlock.getBlockId());
     }
 
     if (dstBlockFile == null) {
@@ -2721,7 +2890,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   private void copyBlockLocalFinalize(int dstNamespaceId,
       Block dstBlock, File dstBlockFile)
     throws IOException {
-    lock.writeLock().lock();
+    lockBlock(dstBlock.getBlockId());
     try {
       DatanodeBlockInfo info = volumeMap.get(dstNamespaceId, dstBlock);
       if (info == null) {
@@ -2729,11 +2898,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
       FSVolume dstVol = info.getVolume();
       // Finalize block on disk.
-      File dest = dstVol.addBlock(dstNamespaceId, dstBlock, dstBlockFile);
-      volumeMap.add(dstNamespaceId, dstBlock, new DatanodeBlockInfo(dstVol, dest));
+      long length = dstBlockFile.length();
+      FSDir dest = dstVol.addBlock(dstNamespaceId, dstBlock, dstBlockFile);
+      volumeMap.add(dstNamespaceId,
+          new Block(dstBlock.getBlockId(), length, dstBlock.getGenerationStamp()),
+          new DatanodeBlockInfo(dest, dstBlock.getBlockId(), false));
       volumeMap.removeOngoingCreates(dstNamespaceId, dstBlock);
     } finally {
-      lock.writeLock().unlock();
+      unlockBlock(dstBlock.getBlockId());
     }
   }
 
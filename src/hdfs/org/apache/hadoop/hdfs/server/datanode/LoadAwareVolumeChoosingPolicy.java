@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.util.DiskChecker.DiskOutOfSpaceException;
+
+/**
+ * Choose a volume with room for the block at random, weighing every volume
+ * by how much space it has left and how busy it is.
+ *
+ * The weight of a volume is its available space relative to the emptiest
+ * volume, divided by one plus the number of block streams open on it and
+ * by its average I/O latency relative to the fastest volume. Latencies
+ * below dfs.datanode.volume.choice.latency.floor.ms count as equal, so
+ * that the noise of writes to the page cache does not move blocks around.
+ *
+ * Choosing at random rather than the heaviest volume keeps the writers
+ * that start together from piling onto one volume before its load shows,
+ * and keeps sending a few blocks to slow volumes so that their latency is
+ * measured again.
+ */
+public class LoadAwareVolumeChoosingPolicy implements
+    BlockVolumeChoosingPolicy, Configurable {
+  private Configuration conf;
+  private long latencyFloor;
+  private final Random random = new Random();
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.latencyFloor = conf.getLong(
+        "dfs.datanode.volume.choice.latency.floor.ms", 1) * 1000000L;
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public FSVolume chooseVolume(FSVolume[] volumes, long blockSize)
+      throws IOException {
+    if (volumes.length < 1) {
+      throw new DiskOutOfSpaceException("No more available volumes");
+    }
+    long[] available = new long[volumes.length];
+    long maxAvailable = 0;
+    long minLatency = Long.MAX_VALUE;
+    for (int i = 0; i < volumes.length; i++) {
+      available[i] = volumes[i].getAvailable();
+      if (available[i] > blockSize) {
+        maxAvailable = Math.max(maxAvailable, available[i]);
+        minLatency = Math.min(minLatency,
+            Math.max(latencyFloor, volumes[i].getIOLatency()));
+      }
+    }
+    if (maxAvailable == 0) {
+      throw new DiskOutOfSpaceException("Insufficient space for an additional block");
+    }
+
+    double[] weights = new double[volumes.length];
+    double total = 0;
+    for (int i = 0; i < volumes.length; i++) {
+      if (available[i] <= blockSize) {
+        continue;
+      }
+      double space = (double) available[i] / maxAvailable;
+      double load = 1 + volumes[i].getXceiverCount();
+      double latency = (double) Math.max(latencyFloor,
+          volumes[i].getIOLatency()) / minLatency;
+      weights[i] = space / (load * latency);
+      total += weights[i];
+    }
+
+    double r = random.nextDouble() * total;
+    int last = 0;
+    for (int i = 0; i < volumes.length; i++) {
+      if (weights[i] == 0) {
+        continue;
+      }
+      last = i;
+      r -= weights[i];
+      if (r < 0) {
+        break;
+      }
+    }
+    return volumes[last];
+  }
+}
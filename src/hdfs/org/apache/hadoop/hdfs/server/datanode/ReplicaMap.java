@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSDir;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.util.LightWeightLongHashTable;
+
+/**
+ * The replicas of a namespace keyed by block id.
+ *
+ * A finalized replica takes no objects of its own: the table keeps its
+ * generation stamp, its length, whether it was detached, and a reference
+ * to the {@link FSDir} holding its files, which is shared with the other
+ * replicas of that directory. Its {@link DatanodeBlockInfo} is created on
+ * lookup and rebuilds the block file from the directory and the block id
+ * when asked. The other replicas are few, and keep the DatanodeBlockInfo
+ * they were added with. The length of a finalized replica is the one of
+ * its block file, so that block reports need not look at the disks.
+ *
+ * Like the maps of blocks it replaces, a lookup only finds a replica if
+ * the generation stamps match or one of them is the wildcard.
+ *
+ * This class is not thread safe.
+ */
+class ReplicaMap extends LightWeightLongHashTable {
+  private long[] genStamps;
+  private long[] lengths;
+  /** The FSDir of a finalized replica, or its DatanodeBlockInfo */
+  private Object[] locations;
+  /** A bit for every slot whose finalized replica was detached */
+  private long[] detached;
+
+  ReplicaMap() {
+    this(MINIMUM_CAPACITY);
+  }
+
+  ReplicaMap(int initCapacity) {
+    super(initCapacity);
+    allocateValues(getCapacity());
+  }
+
+  private void allocateValues(int capacity) {
+    genStamps = new long[capacity];
+    lengths = new long[capacity];
+    locations = new Object[capacity];
+    detached = new long[(capacity + 63) >>> 6];
+  }
+
+  @Override
+  protected void resizeValues(int newCapacity, int[] moved) {
+    long[] oldGenStamps = genStamps;
+    long[] oldLengths = lengths;
+    Object[] oldLocations = locations;
+    long[] oldDetached = detached;
+    allocateValues(newCapacity);
+    for (int i = 0; i < moved.length; i++) {
+      if (moved[i] >= 0) {
+        genStamps[moved[i]] = oldGenStamps[i];
+        lengths[moved[i]] = oldLengths[i];
+        locations[moved[i]] = oldLocations[i];
+        setDetached(moved[i], (oldDetached[i >>> 6] & (1L << i)) != 0);
+      }
+    }
+  }
+
+  @Override
+  protected void moveValue(int from, int to) {
+    genStamps[to] = genStamps[from];
+    lengths[to] = lengths[from];
+    locations[to] = locations[from];
+    setDetached(to, isDetached(from));
+  }
+
+  @Override
+  protected void clearValue(int index) {
+    locations[index] = null;
+    setDetached(index, false);
+  }
+
+  @Override
+  protected long getValueBytesPerSlot() {
+    // the generation stamp, the length, a compressed reference and the
+    // detached bit
+    return 8 + 8 + 4;
+  }
+
+  private boolean isDetached(int index) {
+    return (detached[index >>> 6] & (1L << index)) != 0;
+  }
+
+  private void setDetached(int index, boolean value) {
+    if (value) {
+      detached[index >>> 6] |= 1L << index;
+    } else {
+      detached[index >>> 6] &= ~(1L << index);
+    }
+  }
+
+  /**
+   * @return the slot of the replica of block, or -1 if there is none
+   *         with a matching generation stamp
+   */
+  private int find(Block block) {
+    int i = indexOf(block.getBlockId());
+    if (i >= 0 && !GenerationStamp.equalsWithWildcard(genStamps[i],
+        block.getGenerationStamp())) {
+      return -1;
+    }
+    return i;
+  }
+
+  private DatanodeBlockInfo getInfo(int i) {
+    Object location = locations[i];
+    if (location instanceof FSDir) {
+      return new DatanodeBlockInfo((FSDir) location, getKey(i), isDetached(i));
+    }
+    return (DatanodeBlockInfo) location;
+  }
+
+  /** @return the replica of block, or null */
+  DatanodeBlockInfo get(Block block) {
+    int i = find(block);
+    return i < 0 ? null : getInfo(i);
+  }
+
+  /**
+   * @return the block of the replica with the given id, with the length
+   *         and generation stamp in the map, or null
+   */
+  Block getBlock(long blockId) {
+    int i = indexOf(blockId);
+    return i < 0 ? null : new Block(blockId, lengths[i], genStamps[i]);
+  }
+
+  /**
+   * Add the replica of a block, replacing the replica with the same id.
+   * @return the replaced replica, or null
+   */
+  DatanodeBlockInfo put(Block block, DatanodeBlockInfo info) {
+    DatanodeBlockInfo old = null;
+    long genStamp = block.getGenerationStamp();
+    int i = indexOf(block.getBlockId());
+    if (i >= 0) {
+      old = getInfo(i);
+      if (genStamp == GenerationStamp.WILDCARD_STAMP) {
+        genStamp = genStamps[i];
+      }
+    } else {
+      i = addKey(block.getBlockId());
+    }
+    genStamps[i] = genStamp;
+    lengths[i] = block.getNumBytes();
+    FSDir dir = info.getDir();
+    locations[i] = dir != null ? dir : info;
+    setDetached(i, dir != null && info.isDetached());
+    return old;
+  }
+
+  /**
+   * Remove the replica of block.
+   * @return the removed replica, or null
+   */
+  DatanodeBlockInfo remove(Block block) {
+    int i = find(block);
+    if (i < 0) {
+      return null;
+    }
+    DatanodeBlockInfo old = getInfo(i);
+    removeAt(i);
+    shrinkIfNecessary();
+    return old;
+  }
+
+  /**
+   * Change the generation stamp and the length of the replica of oldBlock.
+   * @return the replica, or null if there is none
+   */
+  DatanodeBlockInfo update(Block oldBlock, Block newBlock) {
+    if (oldBlock.getBlockId() != newBlock.getBlockId()) {
+      DatanodeBlockInfo info = remove(oldBlock);
+      if (info != null) {
+        put(newBlock, info);
+      }
+      return info;
+    }
+    int i = find(oldBlock);
+    if (i < 0) {
+      return null;
+    }
+    genStamps[i] = newBlock.getGenerationStamp();
+    lengths[i] = newBlock.getNumBytes();
+    return getInfo(i);
+  }
+
+  /**
+   * Remember that the finalized replica of block was detached.
+   */
+  void setDetached(Block block) {
+    int i = find(block);
+    if (i >= 0) {
+      setDetached(i, true);
+    }
+  }
+
+  /**
+   * Add the finalized replicas to blocks, only those on the given volume
+   * if it is not null.
+   */
+  void getFinalizedBlocks(FSVolume volume, List<Block> blocks) {
+    for (int i = nextUsed(0); i >= 0; i = nextUsed(i + 1)) {
+      Object location = locations[i];
+      if (location instanceof FSDir
+          && (volume == null || ((FSDir) location).getVolume() == volume)) {
+        blocks.add(new Block(getKey(i), lengths[i], genStamps[i]));
+      }
+    }
+  }
+
+  /**
+   * Remove the replicas on the given volumes.
+   * @return the ids of the removed replicas
+   */
+  long[] removeVolumes(Collection<FSVolume> volumes) {
+    long[] removed = new long[size];
+    int n = 0;
+    for (int i = nextUsed(0); i >= 0; i = nextUsed(i + 1)) {
+      if (volumes.contains(getInfo(i).getVolume())) {
+        removed[n++] = getKey(i);
+      }
+    }
+    for (int j = 0; j < n; j++) {
+      removeAt(indexOf(removed[j]));
+    }
+    shrinkIfNecessary();
+    long[] result = new long[n];
+    System.arraycopy(removed, 0, result, 0, n);
+    return result;
+  }
+}
@@ -17,11 +17,11 @@
  */
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.ActiveFile;
@@ -29,20 +29,41 @@ import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
 
 /**
  * Maintains the replicas map.
+ *
+ * The replicas of a namespace are kept in {@link ReplicaMap}s, striped by
+ * block id so that lookups and updates of different blocks rarely wait for
+ * each other. A caller that reads and then changes the entries of a block
+ * holds the lock of that block in {@link FSDataset}.
  */
 class VolumeMap {
+  private static final int NUM_STRIPES = 64;
 
-  // Map of block Id to DatanodeBlockInfo, indexed by namespace
-  private Map<Integer, Map<Block, DatanodeBlockInfo>> namespaceMap;
-  private Map<Integer, Map<Block, ActiveFile>> ongoingCreates;
+  // Replicas by block id, indexed by namespace
+  private final Map<Integer, ReplicaMap[]> namespaceMap;
+  private final Map<Integer, Map<Block, ActiveFile>> ongoingCreates;
 
   VolumeMap(int numNamespaces) {
-    namespaceMap = new HashMap<Integer, Map<Block, DatanodeBlockInfo>>(numNamespaces);
-    ongoingCreates = new HashMap<Integer, Map<Block, ActiveFile>>(numNamespaces);
+    namespaceMap = new ConcurrentHashMap<Integer, ReplicaMap[]>(numNamespaces);
+    ongoingCreates = new ConcurrentHashMap<Integer, Map<Block, ActiveFile>>(numNamespaces);
+  }
+
+  /** @return the stripe of the namespace that holds block, or null */
+  private ReplicaMap getStripe(int namespaceId, Block block) {
+    return getStripe(namespaceId, block.getBlockId());
+  }
+
+  /** @return the stripe of the namespace that holds the block id, or null */
+  private ReplicaMap getStripe(int namespaceId, long id) {
+    ReplicaMap[] stripes = namespaceMap.get(namespaceId);
+    if (stripes == null) {
+      return null;
+    }
+    int hash = (int)(id ^ (id >>> 32));
+    return stripes[(hash ^ (hash >>> 16)) & (NUM_STRIPES - 1)];
   }
 
 
-  synchronized Integer[] getNamespaceList() {
+  Integer[] getNamespaceList() {
     return namespaceMap.keySet().toArray(
         new Integer[namespaceMap.keySet().size()]);
   }
@@ -57,20 +78,17 @@ class VolumeMap {
     int removed_blocks = 0;
 
     for (Integer namespaceId : namespaceMap.keySet()) {
-      Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
-      Iterator<Entry<Block, DatanodeBlockInfo>> dbi = m.entrySet().iterator();
-      while (dbi.hasNext()) {
-        Entry<Block, DatanodeBlockInfo> entry = dbi.next();
-        for (FSVolume v : failed_vols) {
-          if (entry.getValue().getVolume() == v) {
-            DataNode.LOG.warn("removing block " + entry.getKey().getBlockId()
-                + " from vol " + v.toString() + ", form namespace: "
-                + namespaceId);
-            dbi.remove();
-            removed_blocks++;
-            break;
-          }
+      for (ReplicaMap m : namespaceMap.get(namespaceId)) {
+        long[] removed;
+        synchronized (m) {
+          removed = m.removeVolumes(failed_vols);
         }
+        for (long blockId : removed) {
+          DataNode.LOG.warn("removing block " + blockId
+              + " from vols " + failed_vols + ", form namespace: "
+              + namespaceId);
+        }
+        removed_blocks += removed.length;
       }
     }
     return removed_blocks;
@@ -90,10 +108,55 @@ class VolumeMap {
    */
   DatanodeBlockInfo get(int namespaceId, Block block) {
     checkBlock(block);
-    synchronized(this){
-      Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
-      return m != null ? m.get(block) : null;
+    ReplicaMap m = getStripe(namespaceId, block);
+    if (m == null) {
+      return null;
+    }
+    synchronized (m) {
+      return m.get(block);
+    }
+  }
+
+  /**
+   * Get the replica with the given id whatever its generation stamp
+   * 
+   * @param namespaceId
+   * @param blockId
+   * @return the block of the replica, with the length and generation stamp
+   *         kept in the map, or null
+   */
+  Block getBlock(int namespaceId, long blockId) {
+    ReplicaMap m = getStripe(namespaceId, blockId);
+    if (m == null) {
+      return null;
+    }
+    synchronized (m) {
+      return m.getBlock(blockId);
+    }
+  }
+
+  /**
+   * Get the finalized replicas of a namespace. The stripes are locked one
+   * at a time, so that writers are not held up by the whole copy: a replica
+   * added or removed meanwhile may or may not be part of the result.
+   * 
+   * @param namespaceId
+   * @param volume
+   *          only get the replicas on this volume, if it is not null
+   * @return the blocks of the replicas
+   */
+  List<Block> getFinalizedBlocks(int namespaceId, FSVolume volume) {
+    ReplicaMap[] stripes = namespaceMap.get(namespaceId);
+    if (stripes == null) {
+      return new ArrayList<Block>(0);
     }
+    List<Block> blocks = new ArrayList<Block>(size(namespaceId));
+    for (ReplicaMap m : stripes) {
+      synchronized (m) {
+        m.getFinalizedBlocks(volume, blocks);
+      }
+    }
+    return blocks;
   }
 
   /**
@@ -109,23 +172,39 @@ class VolumeMap {
   DatanodeBlockInfo add(int namespaceId, Block block,
       DatanodeBlockInfo replicaInfo) {
     checkBlock(block);
-    synchronized(this){
-      Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
+    ReplicaMap m = getStripe(namespaceId, block);
+    synchronized (m) {
       return m.put(block, replicaInfo);
     }
   }
 
   DatanodeBlockInfo update(int namespaceId, Block oldB, Block newB) {
-    Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
+    ReplicaMap m = getStripe(namespaceId, oldB);
     if (m == null) {
       return null;
     }
+    if (oldB.getBlockId() != newB.getBlockId()) {
+      DatanodeBlockInfo bi = remove(namespaceId, oldB);
+      if (bi != null) {
+        add(namespaceId, newB, bi);
+      }
+      return bi;
+    }
+    synchronized (m) {
+      return m.update(oldB, newB);
+    }
+  }
 
-    DatanodeBlockInfo bi = m.remove(oldB);
-    if (bi != null) {
-      m.put(newB, bi);
+  /**
+   * Remember that the finalized replica of block was detached.
+   */
+  void setDetached(int namespaceId, Block block) {
+    ReplicaMap m = getStripe(namespaceId, block);
+    if (m != null) {
+      synchronized (m) {
+        m.setDetached(block);
+      }
     }
-    return bi;
   }
 
   /**
@@ -141,9 +220,12 @@ class VolumeMap {
    */
   DatanodeBlockInfo remove(int namespaceId, Block block) {
     checkBlock(block);
-    synchronized(this){
-      Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
-      return m != null ? m.remove(block) : null;
+    ReplicaMap m = getStripe(namespaceId, block);
+    if (m == null) {
+      return null;
+    }
+    synchronized (m) {
+      return m.remove(block);
     }
   }
 
@@ -153,19 +235,51 @@ class VolumeMap {
    * @param namespaceId
    * @return the number of replicas in the map
    */
-  synchronized int size(int namespaceId) {
-    Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
-    return m != null ? m.size() : 0;
+  int size(int namespaceId) {
+    ReplicaMap[] stripes = namespaceMap.get(namespaceId);
+    if (stripes == null) {
+      return 0;
+    }
+    int size = 0;
+    for (ReplicaMap m : stripes) {
+      synchronized (m) {
+        size += m.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Get the approximate memory used by the replicas of a namespace
+   * 
+   * @param namespaceId
+   * @return the number of bytes
+   */
+  long getMemoryUsage(int namespaceId) {
+    ReplicaMap[] stripes = namespaceMap.get(namespaceId);
+    if (stripes == null) {
+      return 0;
+    }
+    long memory = 0;
+    for (ReplicaMap m : stripes) {
+      synchronized (m) {
+        memory += m.getMemoryUsage();
+      }
+    }
+    return memory;
   }
 
   synchronized void initNamespace(int namespaceId) {
-    Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
+    ReplicaMap[] m = namespaceMap.get(namespaceId);
     if(m != null){
       return; 
     }
-    m = new HashMap<Block, DatanodeBlockInfo>();
+    m = new ReplicaMap[NUM_STRIPES];
+    for (int i = 0; i < m.length; i++) {
+      m[i] = new ReplicaMap();
+    }
     namespaceMap.put(namespaceId, m);    
-    Map<Block, ActiveFile> oc = new HashMap<Block, ActiveFile>();
+    Map<Block, ActiveFile> oc = new ConcurrentHashMap<Block, ActiveFile>();
     ongoingCreates.put(namespaceId, oc);
   }
 
@@ -179,32 +293,27 @@ class VolumeMap {
 
   ActiveFile getOngoingCreates(int namespaceId, Block block) {
     checkBlock(block);
-    synchronized(this){
-      Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
-      return m != null ? m.get(block) : null;
-    }
+    Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
+    return m != null ? m.get(block) : null;
   }
 
   ActiveFile removeOngoingCreates(int namespaceId, Block block) { 
     checkBlock(block);
-    synchronized(this){
-      Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
-      return m != null ? m.remove(block) : null;
-    }
+    Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
+    return m != null ? m.remove(block) : null;
   }
 
   ActiveFile addOngoingCreates(int namespaceId, Block block, ActiveFile af) {
     checkBlock(block);
-    synchronized(this){
-      Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
-      return m.put(block, af);
-    }
+    Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
+    return m.put(block, af);
   }
 
   public synchronized String toString() {
     String ret = "VolumeMap: ";
     for (Integer namespaceId : namespaceMap.keySet()) {
-      ret += namespaceMap.get(namespaceId).toString();
+      ret += "namespace " + namespaceId + ": " + size(namespaceId)
+          + " replicas";
       ret += "\n---\n";
       ret += ongoingCreates.get(namespaceId).toString();
     }
@@ -24,6 +24,8 @@ import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.jvm.JvmMetrics;
 import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
+import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
@@ -65,6 +67,28 @@ public class DataNodeMetrics implements Updater {
   public MetricsTimeVaryingInt blockVerificationFailures =
                        new MetricsTimeVaryingInt("block_verification_failures", registry);
   
+  public MetricsTimeVaryingInt blockCacheHits =
+                new MetricsTimeVaryingInt("block_cache_hits", registry);
+  public MetricsTimeVaryingInt blockCacheMisses =
+                new MetricsTimeVaryingInt("block_cache_misses", registry);
+  public MetricsTimeVaryingInt blockCacheEvictions =
+                new MetricsTimeVaryingInt("block_cache_evictions", registry);
+  public MetricsLongValue blockCacheUsed =
+                new MetricsLongValue("block_cache_used", registry);
+
+  public MetricsTimeVaryingLong pageCacheHitBytes =
+                new MetricsTimeVaryingLong("page_cache_hit_bytes", registry);
+  public MetricsTimeVaryingLong pageCacheMissBytes =
+                new MetricsTimeVaryingLong("page_cache_miss_bytes", registry);
+  public MetricsTimeVaryingLong readaheadBytes =
+                new MetricsTimeVaryingLong("readahead_bytes", registry);
+  public MetricsTimeVaryingLong pageCacheDroppedBytes =
+                new MetricsTimeVaryingLong("page_cache_dropped_bytes", registry);
+  public MetricsTimeVaryingLong writebackBytes =
+                new MetricsTimeVaryingLong("writeback_bytes", registry);
+  public MetricsTimeVaryingRate writebackLatency =
+                new MetricsTimeVaryingRate("writeback_latency", registry);
+
   public MetricsTimeVaryingInt readsFromLocalClient = 
                 new MetricsTimeVaryingInt("reads_from_local_client", registry);
   public MetricsTimeVaryingInt readsFromRemoteClient = 
@@ -93,6 +117,22 @@ public class DataNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
                     new MetricsTimeVaryingRate("blockReports", registry);
+  public MetricsTimeVaryingRate blockReportGeneration =
+                    new MetricsTimeVaryingRate("block_report_generation", registry);
+
+  public MetricsTimeVaryingRate directoryScans =
+                new MetricsTimeVaryingRate("directory_scans", registry);
+  public MetricsTimeVaryingLong directoryScanBlocks =
+                new MetricsTimeVaryingLong("directory_scan_blocks", registry);
+  public MetricsIntValue directoryScanProgress =
+                new MetricsIntValue("directory_scan_progress", registry,
+                    "Percent of the replicas covered by the current directory scan");
+  public MetricsTimeVaryingInt directoryScanMissingFiles =
+                new MetricsTimeVaryingInt("directory_scan_missing_files", registry);
+  public MetricsTimeVaryingInt directoryScanMissingReplicas =
+                new MetricsTimeVaryingInt("directory_scan_missing_replicas", registry);
+  public MetricsTimeVaryingInt directoryScanMismatchedReplicas =
+                new MetricsTimeVaryingInt("directory_scan_mismatched_replicas", registry);
 
   public MetricsTimeVaryingRate bytesReadLatency = 
                       new MetricsTimeVaryingRate("bytes_read_latency", registry);
@@ -166,5 +206,8 @@ public class DataNodeMetrics implements Updater {
     replaceBlockOp.resetMinMax();
     heartbeats.resetMinMax();
     blockReports.resetMinMax();
+    blockReportGeneration.resetMinMax();
+    directoryScans.resetMinMax();
+    writebackLatency.resetMinMax();
   }
 }
@@ -69,4 +69,10 @@ public interface FSDatasetMBean {
    */
   public String getStorageInfo();
 
+  /**
+   * Returns the available space, the open block streams, the average I/O
+   * latency and the number of new blocks of every volume, as JSON
+   */
+  public String getVolumeInfo();
+
 }
@@ -18,9 +18,9 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.hadoop.hdfs.protocol.Block;
-import org.apache.hadoop.hdfs.util.GSet;
 import org.apache.hadoop.hdfs.util.LightWeightGSet;
 
 /**
@@ -315,7 +315,7 @@ public class BlocksMap {
   /** Constant {@link LightWeightGSet} capacity. */
   private final int capacity;
   
-  private GSet<Block, BlockInfo> blocks;
+  private LightWeightGSet<Block, BlockInfo> blocks;
 
   BlocksMap(int initialCapacity, float loadFactor) {
     this.capacity = computeCapacity();
@@ -479,6 +479,19 @@ public class BlocksMap {
   Iterable<BlockInfo> getBlocks() {
     return blocks;
   }
+  /** @return the number of rows {@link #getBlocks(int, List)} walks */
+  int getNumRows() {
+    return blocks.getNumRows();
+  }
+
+  /**
+   * Add the blocks of a row of the map to a list. Walking the map one row
+   * at a time, unlike the iterator, can release the lock in between.
+   */
+  void getBlocks(int row, List<BlockInfo> list) {
+    blocks.getElements(row, list);
+  }
+
   /**
    * Check if the block exists in map
    */
@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.util.LightWeightLongMap;
 import org.apache.hadoop.ipc.Server;
 
 import java.util.*;
@@ -28,13 +29,20 @@ import java.util.*;
  * corrupt. While reporting replicas of a Block, we hide any corrupt
  * copies. These copies are removed once Block is found to have 
  * expected number of good replicas.
- * Mapping: Block -> TreeSet<DatanodeDescriptor> 
+ * Mapping: Block id -> DatanodeDescriptor[]
+ *
+ * The map is keyed by primitive block ids and the nodes of a block are
+ * kept in a small array that is replaced, never modified, when a node is
+ * added or removed, so the map stays small when it grows to millions of
+ * blocks after many disks failed.
  */
 
 public class CorruptReplicasMap{
 
-  private Map<Block, Collection<DatanodeDescriptor>> corruptReplicasMap =
-    new TreeMap<Block, Collection<DatanodeDescriptor>>();
+  private final LightWeightLongMap<DatanodeDescriptor[]> corruptReplicasMap =
+    new LightWeightLongMap<DatanodeDescriptor[]>();
+  // the number of corrupt replicas of all blocks
+  private long numReplicas = 0;
   
   /**
    * Mark the block belonging to datanode as corrupt.
@@ -44,14 +52,18 @@ public class CorruptReplicasMap{
    * @return if the block gets added or not
    */
   public boolean addToCorruptReplicasMap(Block blk, DatanodeDescriptor dn) {
-    Collection<DatanodeDescriptor> nodes = getNodes(blk);
-    if (nodes == null) {
-      nodes = new TreeSet<DatanodeDescriptor>();
-      corruptReplicasMap.put(blk, nodes);
-    }
+    DatanodeDescriptor[] nodes = corruptReplicasMap.get(blk.getBlockId());
     boolean added = false;
-    if (!nodes.contains(dn)) {
-      added = nodes.add(dn);
+    if (nodes == null || indexOf(nodes, dn) < 0) {
+      if (nodes == null) {
+        nodes = new DatanodeDescriptor[] { dn };
+      } else {
+        nodes = Arrays.copyOf(nodes, nodes.length + 1);
+        nodes[nodes.length - 1] = dn;
+      }
+      corruptReplicasMap.put(blk.getBlockId(), nodes);
+      numReplicas++;
+      added = true;
       NameNode.stateChangeLog.info("BLOCK NameSystem.addToCorruptReplicasMap: "+
                                    blk.getBlockName() +
                                    " added as corrupt on " + dn.getName() +
@@ -66,14 +78,25 @@ public class CorruptReplicasMap{
     return added;
   }
 
+  private static int indexOf(DatanodeDescriptor[] nodes,
+                             DatanodeDescriptor node) {
+    for (int i = 0; i < nodes.length; i++) {
+      if (nodes[i].equals(node)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Remove Block from CorruptBlocksMap
    *
    * @param blk Block to be removed
    */
   void removeFromCorruptReplicasMap(Block blk) {
-    if (corruptReplicasMap != null) {
-      corruptReplicasMap.remove(blk);
+    DatanodeDescriptor[] nodes = corruptReplicasMap.remove(blk.getBlockId());
+    if (nodes != null) {
+      numReplicas -= nodes.length;
     }
   }
 
@@ -85,17 +108,25 @@ public class CorruptReplicasMap{
              false if the replica is not in the map
    */ 
   boolean removeFromCorruptReplicasMap(Block blk, DatanodeDescriptor datanode) {
-    Collection<DatanodeDescriptor> datanodes = corruptReplicasMap.get(blk);
+    DatanodeDescriptor[] datanodes = corruptReplicasMap.get(blk.getBlockId());
     if (datanodes==null)
       return false;
-    if (datanodes.remove(datanode)) { // remove the replicas
-      if (datanodes.isEmpty()) {
-        // remove the block if there is no more corrupted replicas
-        corruptReplicasMap.remove(blk);
-      }
-      return true;
+    int index = indexOf(datanodes, datanode);
+    if (index < 0) {
+      return false;
     }
-    return false;
+    numReplicas--;
+    if (datanodes.length == 1) {
+      // remove the block if there is no more corrupted replicas
+      corruptReplicasMap.remove(blk.getBlockId());
+    } else {
+      DatanodeDescriptor[] nodes = new DatanodeDescriptor[datanodes.length - 1];
+      System.arraycopy(datanodes, 0, nodes, 0, index);
+      System.arraycopy(datanodes, index + 1, nodes, index,
+                       nodes.length - index);
+      corruptReplicasMap.put(blk.getBlockId(), nodes);
+    }
+    return true;
   }
     
 
@@ -103,10 +134,21 @@ public class CorruptReplicasMap{
    * Get Nodes which have corrupt replicas of Block
    * 
    * @param blk Block for which nodes are requested
-   * @return collection of nodes. Null if does not exists
+   * @return the nodes, in the array of the map, which is replaced and never
+   *         modified when the nodes change: the caller must not modify it
+   *         either. Null if does not exists
+   */
+  DatanodeDescriptor[] getNodes(Block blk) {
+    return corruptReplicasMap.get(blk.getBlockId());
+  }
+
+  /**
+   * @param nodes nodes returned by {@link #getNodes}, or null
+   * @return true if node is one of the nodes
    */
-  Collection<DatanodeDescriptor> getNodes(Block blk) {
-    return corruptReplicasMap.get(blk);
+  static boolean contains(DatanodeDescriptor[] nodes,
+                          DatanodeDescriptor node) {
+    return nodes != null && indexOf(nodes, node) >= 0;
   }
 
   /**
@@ -117,16 +159,25 @@ public class CorruptReplicasMap{
    * @return true if replica is corrupt, false if does not exists in this map
    */
   boolean isReplicaCorrupt(Block blk, DatanodeDescriptor node) {
-    Collection<DatanodeDescriptor> nodes = getNodes(blk);
-    return ((nodes != null) && (nodes.contains(node)));
+    DatanodeDescriptor[] nodes = corruptReplicasMap.get(blk.getBlockId());
+    return ((nodes != null) && (indexOf(nodes, node) >= 0));
   }
 
   public int numCorruptReplicas(Block blk) {
-    Collection<DatanodeDescriptor> nodes = getNodes(blk);
-    return (nodes == null) ? 0 : nodes.size();
+    DatanodeDescriptor[] nodes = corruptReplicasMap.get(blk.getBlockId());
+    return (nodes == null) ? 0 : nodes.length;
   }
   
   public int size() {
     return corruptReplicasMap.size();
   }
+
+  /**
+   * @return the approximate number of bytes used by the map
+   */
+  public long getMemoryUsage() {
+    // an array header per block and a reference per replica
+    return corruptReplicasMap.getMemoryUsage() +
+      corruptReplicasMap.size() * 16L + numReplicas * 8L;
+  }
 }
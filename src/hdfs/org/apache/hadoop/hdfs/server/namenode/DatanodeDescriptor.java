@@ -29,7 +29,7 @@ import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
 import org.apache.hadoop.hdfs.server.protocol.BlockCommand;
 import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol;
-import org.apache.hadoop.hdfs.util.LightWeightHashSet;
+import org.apache.hadoop.hdfs.util.LightWeightBlockSet;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.WritableUtils;
@@ -109,8 +109,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
   /** A queue of blocks to be recovered by this datanode */
   private BlockQueue recoverBlocks = new BlockQueue();
   /** A set of blocks to be invalidated by this datanode */
-  private LightWeightHashSet<Block> invalidateBlocks 
-    = new LightWeightHashSet<Block>();
+  private LightWeightBlockSet invalidateBlocks = new LightWeightBlockSet();
   /** A set of INodeFileUnderConstruction that this datanode is part of */
   private Set<INodeFileUnderConstruction> openINodes
     = new HashSet<INodeFileUnderConstruction>();
@@ -394,6 +393,15 @@ public class DatanodeDescriptor extends DatanodeInfo {
       return invalidateBlocks.size();
     }
   }
+
+  /**
+   * The approximate number of bytes used by the block invalidation items
+   */
+  long getInvalidateBlocksMemory() {
+    synchronized (invalidateBlocks) {
+      return invalidateBlocks.getMemoryUsage();
+    }
+  }
   
   BlockCommand getReplicationCommand(int maxTransfers) {
     List<BlockTargetPair> blocktargetlist = replicateBlocks.poll(maxTransfers);
@@ -413,8 +421,8 @@ public class DatanodeDescriptor extends DatanodeInfo {
   BlockCommand getInvalidateBlocks(int maxblocks) {
     Block[] deleteList = null;
     synchronized (invalidateBlocks) {
-      deleteList = invalidateBlocks.pollToArray(new Block[Math.min(
-          invalidateBlocks.size(), maxblocks)]);
+      List<Block> blocks = invalidateBlocks.pollN(maxblocks);
+      deleteList = blocks.toArray(new Block[blocks.size()]);
     }
     return (deleteList == null || deleteList.length == 0) ? 
         null: new BlockCommand(DatanodeProtocol.DNA_INVALIDATE, deleteList);
@@ -562,6 +570,10 @@ public class DatanodeDescriptor extends DatanodeInfo {
     int underReplicatedBlocks;
     int decommissionOnlyReplicas;
     int underReplicatedInOpenFiles;
+    // progress of the last check
+    int percentDone;
+    long estimatedTimeLeft = -1;
+    long lockTime;
 
     synchronized void set(int underRep, int onlyRep, int underConstruction) {
       underReplicatedBlocks = underRep;
@@ -569,6 +581,12 @@ public class DatanodeDescriptor extends DatanodeInfo {
       underReplicatedInOpenFiles = underConstruction;
     }
 
+    synchronized void setProgress(int percent, long timeLeft, long lockMillis) {
+      percentDone = percent;
+      estimatedTimeLeft = timeLeft;
+      lockTime = lockMillis;
+    }
+
     synchronized int getUnderReplicatedBlocks() {
       return underReplicatedBlocks;
     }
@@ -580,6 +598,21 @@ public class DatanodeDescriptor extends DatanodeInfo {
     synchronized int getUnderReplicatedInOpenFiles() {
       return underReplicatedInOpenFiles;
     }
+
+    /** The percentage of blocks known to be sufficiently replicated */
+    synchronized int getPercentDone() {
+      return percentDone;
+    }
+
+    /** Estimated milliseconds until decommission completes, -1 if unknown */
+    synchronized long getEstimatedTimeLeft() {
+      return estimatedTimeLeft;
+    }
+
+    /** Milliseconds the namesystem lock was held by the last check */
+    synchronized long getLockTime() {
+      return lockTime;
+    }
   } // End of class DecommissioningStatus
   
   /**
@@ -20,7 +20,11 @@ package org.apache.hadoop.hdfs.server.namenode;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,6 +37,13 @@ import org.apache.hadoop.hdfs.server.namenode.DatanodeDescriptor.Decommissioning
 class DecommissionManager {
   static final Log LOG = LogFactory.getLog(DecommissionManager.class);
 
+  /** The block has not reached its replication factor */
+  static final int UNDER_REPLICATED = 1;
+  /** All the replicas of the block are on decommissioning nodes */
+  static final int DECOMMISSION_ONLY = 2;
+  /** The block belongs to a file under construction */
+  static final int IN_OPEN_FILE = 4;
+
   private final FSNamesystem fsnamesystem;
 
   DecommissionManager(FSNamesystem namesystem) {
@@ -47,7 +58,14 @@ class DecommissionManager {
     private final long recheckInterval;
     /** The number of decommission nodes to check for each interval */
     private final int numNodesPerCheck;
-    private final DecommissioningStatus nodeStatus = new DecommissioningStatus();
+    /** The number of blocks of a node to check for each interval */
+    private final int numBlocksPerCheck;
+    /** The number of blocks to check while holding the lock once */
+    private final int numBlocksPerLock;
+
+    // the blocks each decommissioning node still waits for
+    private final Map<DatanodeDescriptor, NodeTracker> trackers =
+      new ConcurrentHashMap<DatanodeDescriptor, NodeTracker>();
 
     // datanodes that just started decomission,
     // which has higher priority to be checked next
@@ -65,9 +83,12 @@ class DecommissionManager {
     // if there was an attempt to stop nodeBeingCheck from decommission
     private volatile boolean pendingToStopDecommission = false;
     
-    Monitor(int recheckIntervalInSecond, int numNodesPerCheck) {
+    Monitor(int recheckIntervalInSecond, int numNodesPerCheck,
+        int numBlocksPerCheck, int numBlocksPerLock) {
       this.recheckInterval = recheckIntervalInSecond * 1000L;
       this.numNodesPerCheck = numNodesPerCheck;
+      this.numBlocksPerCheck = Math.max(1, numBlocksPerCheck);
+      this.numBlocksPerLock = Math.max(1, numBlocksPerLock);
     }
 
     /**
@@ -114,7 +135,9 @@ class DecommissionManager {
                toBeChecked.remove(datanode)) {
         checked.remove(datanode);
       }
+      trackers.remove(datanode);
       datanode.decommissioningStatus.set(0, 0, 0);
+      datanode.decommissioningStatus.setProgress(0, -1, 0);
       return true;
     }
     
@@ -124,110 +147,98 @@ class DecommissionManager {
             nodeBeingCheck.getName());
         nodeBeingCheck.stopDecommission();
         nodeBeingCheck.decommissioningStatus.set(0, 0, 0);
+        nodeBeingCheck.decommissioningStatus.setProgress(0, -1, 0);
         pendingToStopDecommission = false;
       }
     }
 
+    /**
+     * A block has reached its replication factor. It is not waited for by
+     * any decommissioning node anymore. Called with the write lock held.
+     */
+    void blockReplicated(Block block) {
+      if (trackers.isEmpty()) {
+        return;
+      }
+      for (NodeTracker tracker : trackers.values()) {
+        tracker.removePending(block);
+      }
+    }
+
     /**
      * Change, if appropriate, the admin state of a datanode to 
      * decommission completed. Return true if decommission is complete.
+     *
+     * The blocks of a node are scanned once when its decommission starts.
+     * The ones that have not reached their replication factor are kept by
+     * the node's tracker and only these are checked again later, or dropped
+     * as soon as they are reported replicated. At most numBlocksPerCheck
+     * blocks are checked per call, in chunks of numBlocksPerLock blocks
+     * under the write lock. Once no block is left, all the blocks of the
+     * node are scanned again before the node is declared decommissioned.
      */
     private boolean checkDecommissionStateInternal(boolean newlyStartedNode) {
+      final DatanodeDescriptor node = nodeBeingCheck;
       LOG.info("Decommission started checking the progress of " +
-          nodeBeingCheck.getName());
-      fsnamesystem.readLock();
-      int numOfBlocks;
-      try {
-        if (!nodeBeingCheck.isDecommissionInProgress()) {
-          return true;
-        }
-        // initialize decominssioning status
-        numOfBlocks = nodeBeingCheck.numBlocks();
-      } finally {
-        fsnamesystem.readUnlock();
+          node.getName());
+      NodeTracker tracker = trackers.get(node);
+      if (newlyStartedNode || tracker == null) {
+        // the first pass of the loop below starts scanning the node
+        tracker = new NodeTracker(node);
+        trackers.put(node, tracker);
       }
-      
-      nodeStatus.set(0, 0, 0);
-      if (newlyStartedNode) {
-        // add all nodes to needed replication queue
-        // limit the number of scans
-        final int numOfBlocksToCheck = Math.max(10000, numOfBlocks/5);
-        int numCheckedBlocks = 0;
-        boolean hasMore;
-        do {
-          fsnamesystem.writeLock();
-          try {
-            Iterator<Block> it = nodeBeingCheck.getBlockIterator();
-            // scan to the last checked position
-            for(int i=0; i<numCheckedBlocks && it.hasNext(); i++, it.next()) ;
-            // start checking blocks
-            for (int i=0; i<numOfBlocksToCheck && it.hasNext(); i++) {
-              // put the block into neededReplication queue
-              fsnamesystem.isReplicationInProgress(
-                  nodeStatus, nodeBeingCheck, it.next(), true);
-              numCheckedBlocks++;
-            }
-            hasMore = it.hasNext();
-          } finally {
-            fsnamesystem.writeUnlock();
-          }
-        } while (hasMore);
-      } else {
-        // Check to see if all blocks in this decommissioned
-        // node has reached their target replication factor.
-        ArrayList<Block> needReplicationBlocks = new ArrayList<Block>();
-        fsnamesystem.readLock();
+
+      long lockTime = 0;
+      int budget = numBlocksPerCheck;
+      // every pending block is checked at most once per call
+      int toRecheck = tracker.numPending();
+      boolean complete = false;
+      while (budget > 0 && !complete) {
+        long start = System.currentTimeMillis();
+        fsnamesystem.writeLock();
         try {
-          for( Iterator<Block> it = nodeBeingCheck.getBlockIterator();
-                                    it.hasNext(); ) {
-            final Block block = fsnamesystem.isReplicationInProgress(
-                nodeStatus, nodeBeingCheck, it.next(), false);
-            if (block != null) {
-              needReplicationBlocks.add(block);
-            }
+          if (!node.isDecommissionInProgress()) {
+            break;
           }
-        } finally {
-          fsnamesystem.readUnlock();
-        }
-        
-        if (!needReplicationBlocks.isEmpty()) {
-          // re-insert them into needReplication queue
-          LOG.info("Decommission found " +
-              needReplicationBlocks.size() + " under-replicated blocks");
-          fsnamesystem.writeLock();
-          try {
-            for (Block block : needReplicationBlocks) {
-              fsnamesystem.isReplicationInProgress(
-                  null, nodeBeingCheck, block, true);
-            }
-          } finally {
-            fsnamesystem.writeUnlock();
+          int limit = Math.min(budget, numBlocksPerLock);
+          if (tracker.isScanning()) {
+            budget -= tracker.scan(limit);
+            complete = tracker.isVerified();
+          } else if (toRecheck > 0) {
+            int checked = tracker.recheck(Math.min(limit, toRecheck));
+            toRecheck -= checked;
+            budget -= checked;
+          } else if (tracker.numPending() == 0) {
+            tracker.startScan();
+          } else {
+            break;
           }
+        } finally {
+          fsnamesystem.writeUnlock();
+          lockTime += System.currentTimeMillis() - start;
         }
       }
-      
+
       fsnamesystem.writeLock();
-      nodeBeingCheck.decommissioningStatus.set(
-          nodeStatus.getUnderReplicatedBlocks(),
-          nodeStatus.getDecommissionOnlyReplicas(),
-          nodeStatus.getUnderReplicatedInOpenFiles());
       try {
+        tracker.publish(lockTime);
         handlePendingStopDecommission();
-        if (!nodeBeingCheck.isDecommissionInProgress()) {
+        if (!node.isDecommissionInProgress()) {
+          trackers.remove(node);
           return true;
         }
-        if (!newlyStartedNode && nodeBeingCheck.decommissioningStatus.
-            getUnderReplicatedBlocks() == 0) {
-         nodeBeingCheck.setDecommissioned();
-         LOG.info("Decommission complete for node " + nodeBeingCheck.getName());
-         return true;
+        if (complete) {
+          node.setDecommissioned();
+          trackers.remove(node);
+          LOG.info("Decommission complete for node " + node.getName());
+          return true;
         }
       } finally {
         fsnamesystem.writeUnlock();
       }
       
       LOG.info("Decommission finished checking the progress of " +
-          nodeBeingCheck.getName());
+          node.getName() + ": " + tracker);
       return false;
     }
 
@@ -283,13 +294,13 @@ class DecommissionManager {
     synchronized private boolean getDecommissionInProgressNode() {
       do {
         nodeBeingCheck = newlyStarted.poll();
-      } while (nodeBeingCheck != null && !nodeBeingCheck.isAlive);
+      } while (nodeBeingCheck != null && !isAlive(nodeBeingCheck));
       if (nodeBeingCheck != null)
         return true;
       
       do {
         nodeBeingCheck = toBeChecked.poll();
-      } while (nodeBeingCheck != null && !nodeBeingCheck.isAlive);
+      } while (nodeBeingCheck != null && !isAlive(nodeBeingCheck));
       if (nodeBeingCheck == null) {
         // all datanodes have been checked; preparing for the next iteration
         LinkedList<DatanodeDescriptor> tmp = toBeChecked;
@@ -299,6 +310,17 @@ class DecommissionManager {
       return false;
     }
     
+    /**
+     * Dead nodes are dropped from the queues until they come back.
+     */
+    private boolean isAlive(DatanodeDescriptor datanode) {
+      if (!datanode.isAlive) {
+        trackers.remove(datanode);
+        return false;
+      }
+      return true;
+    }
+
     /**
      * Mark the given datanode as just checked
      * @param datanode
@@ -334,4 +356,167 @@ class DecommissionManager {
       }
     }
   }
+
+  /**
+   * The blocks of a decommissioning node that have not reached their
+   * replication factor yet. Except for the counters that are published,
+   * a tracker is only accessed with the namesystem write lock held.
+   */
+  class NodeTracker {
+    private final DatanodeDescriptor node;
+    private final long startTime = System.currentTimeMillis();
+    // pending blocks and their state, in the order they are checked
+    private final LinkedHashMap<Block, Integer> pending =
+      new LinkedHashMap<Block, Integer>();
+    private int decommissionOnly = 0;
+    private int inOpenFiles = 0;
+    // blocks that left the pending set since the tracker started
+    private long resolved = 0;
+
+    // the blocks of the node that are being scanned, null if not scanning
+    private Block[] scanBlocks;
+    private int scanPosition;
+    // whether the last scan completed without finding a pending block
+    private boolean verified = false;
+
+    NodeTracker(DatanodeDescriptor node) {
+      this.node = node;
+    }
+
+    int numPending() {
+      return pending.size();
+    }
+
+    boolean isScanning() {
+      return scanBlocks != null;
+    }
+
+    boolean isVerified() {
+      return verified;
+    }
+
+    /**
+     * Take a copy of the blocks of the node to scan them.
+     * The block list of the node can change while the lock is released.
+     */
+    void startScan() {
+      scanBlocks = new Block[node.numBlocks()];
+      int i = 0;
+      for (Iterator<Block> it = node.getBlockIterator();
+           it.hasNext() && i < scanBlocks.length; ) {
+        scanBlocks[i++] = it.next();
+      }
+      scanPosition = 0;
+      verified = false;
+    }
+
+    /**
+     * Check up to limit blocks of the scan.
+     * @return the number of blocks checked
+     */
+    int scan(int limit) {
+      int count = 0;
+      for (; count < limit && scanPosition < scanBlocks.length; count++) {
+        Block block = scanBlocks[scanPosition];
+        scanBlocks[scanPosition++] = null;
+        if (block != null && !pending.containsKey(block)) {
+          addPending(block, fsnamesystem.checkDecommissionBlock(
+              node, block, pending.isEmpty()));
+        }
+      }
+      if (scanPosition == scanBlocks.length) {
+        scanBlocks = null;
+        verified = pending.isEmpty();
+      }
+      return count;
+    }
+
+    /**
+     * Check the up to limit pending blocks that were checked the longest
+     * time ago again.
+     * @return the number of blocks checked
+     */
+    int recheck(int limit) {
+      List<Block> blocks = new ArrayList<Block>();
+      for (Iterator<Block> it = pending.keySet().iterator();
+           it.hasNext() && blocks.size() < limit; ) {
+        blocks.add(it.next());
+      }
+      for (Block block : blocks) {
+        take(block);
+        int state = fsnamesystem.checkDecommissionBlock(node, block, false);
+        if (state == 0) {
+          resolved++;
+        } else {
+          addPending(block, state); // to the end of the order
+        }
+      }
+      return blocks.size();
+    }
+
+    private void addPending(Block block, int state) {
+      if (state == 0) {
+        return;
+      }
+      pending.put(block, state);
+      if ((state & DECOMMISSION_ONLY) != 0) {
+        decommissionOnly++;
+      }
+      if ((state & IN_OPEN_FILE) != 0) {
+        inOpenFiles++;
+      }
+    }
+
+    private Integer take(Block block) {
+      Integer state = pending.remove(block);
+      if (state != null) {
+        if ((state & DECOMMISSION_ONLY) != 0) {
+          decommissionOnly--;
+        }
+        if ((state & IN_OPEN_FILE) != 0) {
+          inOpenFiles--;
+        }
+      }
+      return state;
+    }
+
+    /** The block does not have to be waited for anymore */
+    void removePending(Block block) {
+      if (take(block) != null) {
+        resolved++;
+      }
+    }
+
+    /**
+     * Publish the state of the tracker in the status of the node.
+     * @param lockTime milliseconds the lock was held during the last check
+     */
+    void publish(long lockTime) {
+      int numBlocks = node.numBlocks();
+      int left = pending.size() +
+        (scanBlocks == null ? 0 : scanBlocks.length - scanPosition);
+      int percent = numBlocks == 0 ? 100 :
+        (int) (100L * Math.max(0, numBlocks - left) / numBlocks);
+      long elapsed = System.currentTimeMillis() - startTime;
+      long timeLeft = -1;
+      if (scanBlocks == null && resolved > 0) {
+        timeLeft = elapsed * pending.size() / resolved;
+      }
+      node.decommissioningStatus.set(pending.size(), decommissionOnly,
+          inOpenFiles);
+      node.decommissioningStatus.setProgress(percent, timeLeft, lockTime);
+    }
+
+    @Override
+    public String toString() {
+      DecommissioningStatus status = node.decommissioningStatus;
+      return status.getUnderReplicatedBlocks() + " under-replicated blocks, " +
+        (isScanning() ? (scanBlocks.length - scanPosition) +
+                        " blocks left to scan, " : "") +
+        status.getPercentDone() + "% done, " +
+        (status.getEstimatedTimeLeft() < 0 ? "unknown time" :
+         (status.getEstimatedTimeLeft() / 1000) + " seconds") + " left, " +
+        "lock held for " + status.getLockTime() + " msec";
+    }
+  }
 }
@@ -52,7 +52,7 @@ class FSDirectory implements FSConstants, Closeable {
 
   final INodeDirectoryWithQuota rootDir;
   FSImage fsImage;  
-  private boolean ready = false;
+  private volatile boolean ready = false;
   private final int lsLimit;  // max list limit
   /**
    * Caches frequently used file names used in {@link INode} to reuse 
@@ -64,14 +64,17 @@ class FSDirectory implements FSConstants, Closeable {
   private ReentrantReadWriteLock bLock;
   private Condition cond;
   private boolean hasRwLock;
+  // tells optimistic readers of the namesystem about our writes
+  private final FSNamesystemLock nsLock;
 
   // utility methods to acquire and release read lock and write lock
-  // if hasRwLock is false, then readLocks morph into writeLocks.
+  // if hasRwLock is false, then readLocks morph into exclusive locks,
+  // which are not write sections for the optimistic readers.
   void readLock() {
     if (hasRwLock) {
       this.bLock.readLock().lock();
     } else {
-      writeLock();
+      this.bLock.writeLock().lock();
     }
   }
 
@@ -79,15 +82,17 @@ class FSDirectory implements FSConstants, Closeable {
     if (hasRwLock) {
       this.bLock.readLock().unlock();
     } else {
-      writeUnlock();
+      this.bLock.writeLock().unlock();
     }
   }
 
   void writeLock() {
     this.bLock.writeLock().lock();
+    nsLock.beginWrite();
   }
 
   void writeUnlock() {
+    nsLock.endWrite();
     this.bLock.writeLock().unlock();
   }
 
@@ -110,6 +115,7 @@ class FSDirectory implements FSConstants, Closeable {
         Integer.MAX_VALUE, -1);
     this.fsImage = fsImage;
     this.fsImage.setFSNamesystem(ns);
+    this.nsLock = ns.getFsLock();
     int configuredLimit = conf.getInt(
         "dfs.ls.limit", 1000);
     this.lsLimit = configuredLimit>0 ?
@@ -165,6 +171,17 @@ class FSDirectory implements FSConstants, Closeable {
     }
   }
 
+  /**
+   * Forget the traverse checks the permission cache remembered for inode
+   * and the directories below it.
+   */
+  private void invalidatePermissionCache(INode inode) {
+    FSNamesystem namesystem = getFSNamesystem();
+    if (namesystem != null && namesystem.permissionCache != null) {
+      namesystem.permissionCache.invalidate(inode);
+    }
+  }
+
   private void incrDeletedFileCount(int count) {
     if (getFSNamesystem() != null)
       NameNode.getNameNodeMetrics().numFilesDeleted.inc(count);
@@ -177,6 +194,13 @@ class FSDirectory implements FSConstants, Closeable {
     fsImage.close();
   }
 
+  /**
+   * @return true if the image is loaded
+   */
+  boolean isReady() {
+    return ready;
+  }
+
   /**
    * Block until the object is ready to be used.
    */
@@ -543,6 +567,8 @@ class FSDirectory implements FSConstants, Closeable {
         // update dstInodes
         dstInodes[dstInodes.length-1] = dstChild;
         srcInodes[srcInodes.length-1] = null;
+        // the directories below dstChild got new ancestors
+        invalidatePermissionCache(dstChild);
         return true;
         }
       } finally {
@@ -681,6 +707,7 @@ class FSDirectory implements FSConstants, Closeable {
         if(inode == null)
             throw new FileNotFoundException("File does not exist: " + src);
         inode.setPermission(permissions);
+        invalidatePermissionCache(inode);
     } finally {
       writeUnlock();
     }
@@ -704,6 +731,7 @@ class FSDirectory implements FSConstants, Closeable {
       if (groupname != null) {
         inode.setGroup(groupname);
       }
+      invalidatePermissionCache(inode);
     } finally {
       writeUnlock();
     }
@@ -851,6 +879,8 @@ class FSDirectory implements FSConstants, Closeable {
           removeChild(inodes, inodes.length-1);
           // set the parent's modification time
           inodes[inodes.length-2].setModificationTime(modificationTime);
+          // do not keep the deleted directories in the cache
+          invalidatePermissionCache(targetNode);
           // GC all the blocks underneath the node.
           if (toBeDeletedBlocks == null) {
             ArrayList<Block> v = new ArrayList<Block>();
@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -923,6 +924,145 @@ public class FSEditLog {
     return numEdits;
   }
 
+  /**
+   * Read an edit log without applying it and add the paths of all the
+   * files and directories it modifies to the given collection. This
+   * includes both the source and the destination of renames. Only logs
+   * written with the current layout version are understood.
+   * 
+   * @return the number of bytes taken by the log version and the complete
+   *         transactions that were read, or -1 if the log was written with
+   *         an older layout version
+   */
+  static long collectPaths(EditLogInputStream edits,
+      Collection<String> paths) throws IOException {
+    StreamingImageMerger.PositionInputStream bin =
+      new StreamingImageMerger.PositionInputStream(
+          new BufferedInputStream(edits), null);
+    DataInputStream rawIn = new DataInputStream(bin);
+    int numEdits = 0;
+    long validLength = 0;
+    try {
+      int logVersion;
+      try {
+        logVersion = rawIn.readInt();
+      } catch (EOFException e) {
+        return 0; // empty log
+      }
+      if (logVersion != FSConstants.LAYOUT_VERSION) {
+        return -1;
+      }
+      validLength = bin.getPos();
+      Checksum checksum = getChecksumForRead();
+      DataInputStream in =
+        new DataInputStream(new CheckedInputStream(bin, checksum));
+      while (true) {
+        checksum.reset();
+        byte opcode;
+        try {
+          opcode = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+        if (opcode == OP_INVALID) {
+          break;
+        }
+        numEdits++;
+        switch (opcode) {
+        case OP_ADD:
+        case OP_CLOSE: {
+          in.readInt();
+          paths.add(FSImage.readString(in));
+          readShort(in);        // replication
+          readLong(in);         // modification time
+          readLong(in);         // access time
+          readLong(in);         // block size
+          readBlocks(in);
+          PermissionStatus.read(in);
+          if (opcode == OP_ADD) {
+            FSImage.readString(in); // client name
+            FSImage.readString(in); // client machine
+          }
+          break;
+        }
+        case OP_SET_REPLICATION:
+          paths.add(FSImage.readString(in));
+          readShort(in);
+          break;
+        case OP_CONCAT_DELETE: {
+          int length = in.readInt();
+          for (int i = 0; i < length - 1; i++) {
+            paths.add(FSImage.readString(in));
+          }
+          readLong(in);
+          break;
+        }
+        case OP_RENAME:
+          in.readInt();
+          paths.add(FSImage.readString(in));
+          paths.add(FSImage.readString(in));
+          readLong(in);
+          break;
+        case OP_DELETE:
+          in.readInt();
+          paths.add(FSImage.readString(in));
+          readLong(in);
+          break;
+        case OP_MKDIR:
+          in.readInt();
+          paths.add(FSImage.readString(in));
+          readLong(in);         // modification time
+          readLong(in);         // access time
+          PermissionStatus.read(in);
+          break;
+        case OP_SET_GENSTAMP:
+          in.readLong();
+          break;
+        case OP_DATANODE_ADD:
+          new FSImage.DatanodeImage().readFields(in);
+          break;
+        case OP_DATANODE_REMOVE:
+          new DatanodeID().readFields(in);
+          break;
+        case OP_SET_PERMISSIONS:
+          paths.add(FSImage.readString(in));
+          FsPermission.read(in);
+          break;
+        case OP_SET_OWNER:
+          paths.add(FSImage.readString(in));
+          FSImage.readString_EmptyAsNull(in);
+          FSImage.readString_EmptyAsNull(in);
+          break;
+        case OP_SET_NS_QUOTA:
+          paths.add(FSImage.readString(in));
+          readLongWritable(in);
+          break;
+        case OP_CLEAR_NS_QUOTA:
+          paths.add(FSImage.readString(in));
+          break;
+        case OP_SET_QUOTA:
+          paths.add(FSImage.readString(in));
+          readLongWritable(in);
+          readLongWritable(in);
+          break;
+        case OP_TIMES:
+          in.readInt();
+          paths.add(FSImage.readString(in));
+          readLong(in);
+          readLong(in);
+          break;
+        default:
+          throw new IOException("Never seen opcode " + opcode);
+        }
+        validateChecksum(true, rawIn, checksum, numEdits);
+        validLength = bin.getPos();
+      }
+    } finally {
+      rawIn.close();
+    }
+    return validLength;
+  }
+
   /**
    * Validate a transaction's checksum
    */
@@ -1195,7 +1195,7 @@ public class FSImage extends Storage {
   /** Update the root node's attributes
    * @throws QuotaExceededException
    */
-  private void updateRootAttr(INode root, FSNamesystem namesystem)
+  void updateRootAttr(INode root, FSNamesystem namesystem)
   throws QuotaExceededException {
     long nsQuota = root.getNsQuota();
     long dsQuota = root.getDsQuota();
@@ -1333,7 +1333,7 @@ public class FSImage extends Storage {
    * @param in data input stream from which image is read
    * @return an inode
    */
-  private INode loadINode(long imgVersion, FSNamesystem fsNamesys, DataInputStream in)
+  INode loadINode(long imgVersion, FSNamesystem fsNamesys, DataInputStream in)
   throws IOException {
     long modificationTime = 0;
     long atime = 0;
@@ -1493,25 +1493,9 @@ public class FSImage extends Storage {
     DigestOutputStream fout = new DigestOutputStream(fstream, digester);
     DataOutputStream out = new DataOutputStream(fout);
     try {
-      out.writeInt(FSConstants.LAYOUT_VERSION);
-      out.writeInt(namespaceID);
-      out.writeLong(fsDir.rootDir.numItemsInTree());
-      out.writeLong(fsNamesys.getGenerationStamp());
-      
-      if (forceUncompressed) {
-        out.writeBoolean(false);
-      } else {
-        out.writeBoolean(compressImage);
-      }
-      if (!forceUncompressed && compressImage) {
-        String codecClassName = saveCodec.getClass().getCanonicalName();
-        Text.writeString(out, codecClassName);
-        out = new DataOutputStream(saveCodec.createOutputStream(fout));
-        LOG.info("Saving image file " + dest + 
-            " compressed using codec " + codecClassName);
-      } else {
-        out = new DataOutputStream(new BufferedOutputStream(fout));
-      }
+      out = writeImageHeader(dest, fout, namespaceID,
+          fsDir.rootDir.numItemsInTree(), fsNamesys.getGenerationStamp(),
+          forceUncompressed);
       
       byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
       ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
@@ -1535,6 +1519,34 @@ public class FSImage extends Storage {
     this.setImageDigest(new MD5Hash(digester.digest()));
   }
   
+  /**
+   * Write the image header and return the stream that the inodes should
+   * be written to, which compresses them if so configured.
+   */
+  DataOutputStream writeImageHeader(String dest, OutputStream fout,
+      int namespaceID, long numItems, long genstamp,
+      boolean forceUncompressed) throws IOException {
+    DataOutputStream out = new DataOutputStream(fout);
+    out.writeInt(FSConstants.LAYOUT_VERSION);
+    out.writeInt(namespaceID);
+    out.writeLong(numItems);
+    out.writeLong(genstamp);
+
+    if (forceUncompressed) {
+      out.writeBoolean(false);
+    } else {
+      out.writeBoolean(compressImage);
+    }
+    if (!forceUncompressed && compressImage) {
+      String codecClassName = saveCodec.getClass().getCanonicalName();
+      Text.writeString(out, codecClassName);
+      LOG.info("Saving image file " + dest + 
+          " compressed using codec " + codecClassName);
+      return new DataOutputStream(saveCodec.createOutputStream(fout));
+    }
+    return new DataOutputStream(new BufferedOutputStream(fout));
+  }
+
   private class FSImageSaver implements Runnable {
     private StorageDirectory sd;
     private File imageFile;
@@ -1776,8 +1788,8 @@ public class FSImage extends Storage {
   /*
    * Save one inode's attributes to the image.
    */
-  private static void saveINode2Image(INode node,
-                                      DataOutputStream out) throws IOException {
+  static void saveINode2Image(INode node,
+                              DataOutputStream out) throws IOException {
     byte[] name = node.getLocalNameBytes();
     out.writeShort(name.length);
     out.write(name);
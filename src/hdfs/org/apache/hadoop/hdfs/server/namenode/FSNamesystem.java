@@ -21,7 +21,7 @@ import org.apache.commons.logging.*;
 
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.hdfs.DFSUtil;
-import org.apache.hadoop.hdfs.util.LightWeightHashSet;
+import org.apache.hadoop.hdfs.util.LightWeightBlockSet;
 import org.apache.hadoop.hdfs.util.PathValidator;
 import org.apache.hadoop.hdfs.protocol.*;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
@@ -34,6 +34,7 @@ import org.apache.hadoop.hdfs.server.namenode.DatanodeDescriptor.Decommissioning
 import org.apache.hadoop.hdfs.server.namenode.DecommissionManager.Monitor;
 import org.apache.hadoop.hdfs.server.namenode.metrics.FSNamesystemMBean;
 import org.apache.hadoop.hdfs.server.namenode.metrics.FSNamesystemMetrics;
+import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.PermissionChecker;
 import org.apache.hadoop.security.UnixUserGroupInformation;
@@ -161,6 +162,7 @@ public class FSNamesystem extends ReconfigurableBase
   private boolean persistBlocks;
   private UserGroupInformation fsOwner;
   private String supergroup;
+  PermissionCache permissionCache;
   private PermissionStatus defaultPermission;
   // FSNamesystemMetrics counter variables
   private FSNamesystemMetrics myFSMetrics;
@@ -177,6 +179,8 @@ public class FSNamesystem extends ReconfigurableBase
   volatile long scheduledReplicationBlocksCount = 0L;
   volatile long excessBlocksCount = 0L;
   volatile long pendingDeletionBlocksCount = 0L;
+  volatile long corruptReplicasMemory = 0L;
+  volatile long pendingDeletionMemory = 0L;
   //
   // Stores the correct file name hierarchy
   //
@@ -224,8 +228,8 @@ public class FSNamesystem extends ReconfigurableBase
   // on the machine in question.
   // Mapping: StorageID -> ArrayList<Block>
   //
-  private Map<String, LightWeightHashSet<Block>> recentInvalidateSets =
-    new TreeMap<String, LightWeightHashSet<Block>>();
+  private Map<String, LightWeightBlockSet> recentInvalidateSets =
+    new TreeMap<String, LightWeightBlockSet>();
 
   //
   // Keeps a TreeSet for every named node.  Each treeset contains
@@ -257,6 +261,10 @@ public class FSNamesystem extends ReconfigurableBase
 
   // list of blocks that need to be checked for possible overreplication
   private LightWeightLinkedSet<Block> overReplicatedBlocks = new LightWeightLinkedSet<Block>();
+  // fills the replication queues when the namenode starts
+  private volatile ReplicationQueueInitializer replQueueInitializer = null;
+  private int replQueueInitThreads;
+  private int replQueueInitBlocksPerLock;
 
   public LeaseManager leaseManager = new LeaseManager(this);
 
@@ -343,6 +351,8 @@ public class FSNamesystem extends ReconfigurableBase
 
   // lock to protect FSNamesystem.
   private FSNamesystemLock fsLock;
+  // serve getFileInfo and getBlockLocations without taking the lock
+  private boolean optimisticReads;
   boolean hasRwLock = false; // shall we use read/write locks?
 
   // do not use manual override to exit safemode
@@ -440,7 +450,9 @@ public class FSNamesystem extends ReconfigurableBase
       conf.get("dfs.hosts.exclude", ""));
     this.dnthread = new Daemon(new DecommissionManager(this).new Monitor(
       conf.getInt("dfs.namenode.decommission.interval", 30),
-      conf.getInt("dfs.namenode.decommission.nodes.per.interval", 5)));
+      conf.getInt("dfs.namenode.decommission.nodes.per.interval", 5),
+      conf.getInt("dfs.namenode.decommission.blocks.per.interval", 500000),
+      conf.getInt("dfs.namenode.decommission.blocks.per.lock", 1000)));
     dnthread.start();
 
     this.dnsToSwitchMapping = ReflectionUtils.newInstance(
@@ -543,6 +555,74 @@ public class FSNamesystem extends ReconfigurableBase
   void downgradeLock(){
     fsLock.downgradeLock();
   }
+
+  FSNamesystemLock getFsLock() {
+    return fsLock;
+  }
+
+  /**
+   * A read of the namespace that first runs without any lock. The result
+   * is only used if no write section overlapped the read; otherwise the
+   * caller redoes the read under the lock.
+   */
+  private abstract class OptimisticRead<T> {
+    private T result;
+    private long stamp;
+
+    /**
+     * Read without taking any lock. The read may see a namespace in the
+     * middle of a change, so it must not modify anything, and its
+     * failures are rechecked under the lock.
+     */
+    abstract T read() throws IOException;
+
+    /**
+     * @return true if {@link #getResult()} holds a consistent result
+     */
+    boolean tryRead() {
+      if (!optimisticReads || !dir.isReady()) {
+        return false;
+      }
+      NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
+      stamp = fsLock.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          result = read();
+          if (fsLock.validate(stamp)) {
+            if (metrics != null) {
+              metrics.numOptimisticReads.inc();
+            }
+            return true;
+          }
+        } catch (Throwable t) {
+          // the namespace changed under the read, or the read failed;
+          // either way it is decided under the lock
+        }
+      }
+      if (metrics != null) {
+        metrics.numOptimisticReadRetries.inc();
+      }
+      return false;
+    }
+
+    T getResult() {
+      return result;
+    }
+
+    /**
+     * Check the permissions of the read without taking the lock. A failure
+     * is not final: the read is redone under the lock, which also takes
+     * care of the audit only mode.
+     */
+    void checkPermissionOptimistic(String path, INode[] inodes,
+        FsAction access) throws AccessControlException {
+      FSPermissionChecker pc = permissionCache.getPermissionChecker();
+      if (!pc.isSuper) {
+        pc.setOptimisticRead(fsLock, stamp);
+        pc.checkPermission(path, inodes, false, null, null, access, null);
+      }
+    }
+  }
   
   /**
    * Set parameters derived from heartbeat interval.
@@ -578,8 +658,16 @@ public class FSNamesystem extends ReconfigurableBase
     LOG.info("fsOwner=" + fsOwner);
 
     this.hasRwLock = conf.getBoolean("dfs.rwlock", false);
+    this.optimisticReads = conf.getBoolean("dfs.namenode.optimistic.reads",
+      false);
+    this.replQueueInitThreads = conf.getInt(
+      "dfs.namenode.replqueue.init.threads", 4);
+    this.replQueueInitBlocksPerLock = conf.getInt(
+      "dfs.namenode.replqueue.init.blocks.per.lock", 10000);
     this.supergroup = conf.get("dfs.permissions.supergroup", "supergroup");
     this.isPermissionEnabled = conf.getBoolean("dfs.permissions", true);
+    this.permissionCache = new PermissionCache(fsOwner.getUserName(),
+      supergroup, conf);
     this.setPersistBlocks(conf.getBoolean("dfs.persist.blocks", false));
     LOG.info("supergroup=" + supergroup);
     LOG.info("isPermissionEnabled=" + isPermissionEnabled);
@@ -771,14 +859,13 @@ public class FSNamesystem extends ReconfigurableBase
             " c: " + numReplicas.corruptReplicas() +
             " e: " + numReplicas.excessReplicas() + ") ");
 
-          Collection<DatanodeDescriptor> corruptNodes =
-            corruptReplicas.getNodes(block);
+          DatanodeDescriptor[] corruptNodes = corruptReplicas.getNodes(block);
 
           for (Iterator<DatanodeDescriptor> jt = blocksMap.nodeIterator(block);
                jt.hasNext();) {
             DatanodeDescriptor node = jt.next();
             String state = "";
-            if (corruptNodes != null && corruptNodes.contains(node)) {
+            if (CorruptReplicasMap.contains(corruptNodes, node)) {
               state = "(corrupt)";
             } else if (node.isDecommissioned() ||
               node.isDecommissionInProgress()) {
@@ -921,7 +1008,7 @@ public class FSNamesystem extends ReconfigurableBase
       blocksMap.nodeIterator(block); it.hasNext();) {
       String storageID = it.next().getStorageID();
       // filter invalidate replicas
-      LightWeightHashSet<Block> blocks = recentInvalidateSets.get(storageID);
+      LightWeightBlockSet blocks = recentInvalidateSets.get(storageID);
       if (blocks == null || !blocks.contains(block)) {
         machineSet.add(storageID);
       }
@@ -1062,16 +1149,36 @@ public class FSNamesystem extends ReconfigurableBase
    *
    * @see #getBlockLocations(String, long, long)
    */
-  LocatedBlocks getBlockLocations(String clientMachine, String src,
-                                  long offset, long length,
-                                  BlockMetaInfoType type) throws IOException {
-    INode[] inodes = dir.getExistingPathINodes(src);
-    if (isPermissionEnabled) {
-      checkPathAccess(src, inodes, FsAction.READ);
+  LocatedBlocks getBlockLocations(String clientMachine, final String src,
+                                  final long offset, final long length,
+                                  final BlockMetaInfoType type) throws IOException {
+    LocatedBlocks blocks;
+    OptimisticRead<LocatedBlocks> optimistic = new OptimisticRead<LocatedBlocks>() {
+      LocatedBlocks read() throws IOException {
+        checkBlockLocationsRange(src, offset, length);
+        INode[] inodes = dir.rootDir.getExistingPathINodes(src);
+        if (isPermissionEnabled) {
+          checkPermissionOptimistic(src, inodes, FsAction.READ);
+        }
+        INode inode = inodes[inodes.length - 1];
+        if (inode == null || inode.isDirectory()) {
+          return null;
+        }
+        return createLocatedBlocks((INodeFile)inode, offset, length,
+            Integer.MAX_VALUE, type, false);
+      }
+    };
+    if (optimistic.tryRead()) {
+      blocks = optimistic.getResult();
+      logOpenEvent(src);
+    } else {
+      INode[] inodes = dir.getExistingPathINodes(src);
+      if (isPermissionEnabled) {
+        checkPathAccess(src, inodes, FsAction.READ);
+      }
+      blocks = getBlockLocations(src, inodes[inodes.length-1],
+          offset, length, false, type);
     }
-
-    LocatedBlocks blocks = getBlockLocations(src, inodes[inodes.length-1],
-        offset, length, false, type);
     if (blocks != null) {
       //sort the blocks
       DatanodeDescriptor client = host2DataNodeMap.getDatanodeByHost(
@@ -1104,20 +1211,29 @@ public class FSNamesystem extends ReconfigurableBase
   public LocatedBlocks getBlockLocations(String src, INode inode, long offset, long length,
                                          boolean doAccessTime, BlockMetaInfoType type)
     throws IOException {
+    checkBlockLocationsRange(src, offset, length);
+    final LocatedBlocks ret = getBlockLocationsInternal(src, inode,
+      offset, length, Integer.MAX_VALUE, doAccessTime, type);
+    logOpenEvent(src);
+    return ret;
+  }
+
+  private static void checkBlockLocationsRange(String src, long offset,
+      long length) throws IOException {
     if (offset < 0) {
       throw new IOException("Negative offset is not supported. File: " + src);
     }
     if (length < 0) {
       throw new IOException("Negative length is not supported. File: " + src);
     }
-    final LocatedBlocks ret = getBlockLocationsInternal(src, inode,
-      offset, length, Integer.MAX_VALUE, doAccessTime, type);
+  }
+
+  private void logOpenEvent(String src) {
     if (auditLog.isInfoEnabled()) {
       logAuditEvent(UserGroupInformation.getCurrentUGI(),
         Server.getRemoteIp(),
         "open", src, null, null);
     }
-    return ret;
   }
 
   private LocatedBlocks getBlockLocationsInternal(String src,
@@ -1192,86 +1308,101 @@ public class FSNamesystem extends ReconfigurableBase
     throws IOException {
     readLock();
     try {
-      Block[] blocks = inode.getBlocks();
-      if (blocks == null) {
-        return null;
-      }
-      if (blocks.length == 0) {
-        return inode.createLocatedBlocks(
-            new ArrayList<LocatedBlock>(blocks.length), 
-            type, this.getFSImage().namespaceID,
-            this.nameNode.getClientProtocolMethodsFingerprint());
-      }
-      List<LocatedBlock> results;
-      results = new ArrayList<LocatedBlock>(blocks.length);
-
-      int curBlk = 0;
-      long curPos = 0, blkSize = 0;
-      int nrBlocks = (blocks[0].getNumBytes() == 0) ? 0 : blocks.length;
-      for (curBlk = 0; curBlk < nrBlocks; curBlk++) {
-        blkSize = blocks[curBlk].getNumBytes();
-        assert blkSize > 0 : "Block of size 0";
-        if (curPos + blkSize > offset) {
-          break;
-        }
-        curPos += blkSize;
-      }
+      return createLocatedBlocks(inode, offset, length, nrBlocksToReturn,
+          type, true);
+    } finally {
+      readUnlock();
+    }
+  }
 
-      if (nrBlocks > 0 && curBlk == nrBlocks)   // offset >= end of file
-      {
-        return null;
+  /**
+   * Get the locations of the blocks of inode within the specified range.
+   * The caller either holds the read lock, or validates an optimistic read.
+   * @param locked whether the caller holds the lock
+   */
+  private LocatedBlocks createLocatedBlocks(INodeFile inode,
+                                            long offset, long length,
+                                            int nrBlocksToReturn,
+                                            BlockMetaInfoType type,
+                                            boolean locked)
+    throws IOException {
+    Block[] blocks = inode.getBlocks();
+    if (blocks == null) {
+      return null;
+    }
+    if (blocks.length == 0) {
+      return inode.createLocatedBlocks(
+          new ArrayList<LocatedBlock>(blocks.length), 
+          type, this.getFSImage().namespaceID,
+          this.nameNode.getClientProtocolMethodsFingerprint());
+    }
+    List<LocatedBlock> results;
+    results = new ArrayList<LocatedBlock>(blocks.length);
+
+    int curBlk = 0;
+    long curPos = 0, blkSize = 0;
+    int nrBlocks = (blocks[0].getNumBytes() == 0) ? 0 : blocks.length;
+    for (curBlk = 0; curBlk < nrBlocks; curBlk++) {
+      blkSize = blocks[curBlk].getNumBytes();
+      assert blkSize > 0 : "Block of size 0";
+      if (curPos + blkSize > offset) {
+        break;
       }
+      curPos += blkSize;
+    }
 
-      long endOff = offset + length;
+    if (nrBlocks > 0 && curBlk == nrBlocks)   // offset >= end of file
+    {
+      return null;
+    }
 
-      do {
-        // get block locations
-        int numNodes = blocksMap.numNodes(blocks[curBlk]);
-        int numCorruptNodes = countNodes(blocks[curBlk]).corruptReplicas();
-        int numCorruptReplicas = corruptReplicas.numCorruptReplicas(blocks[curBlk]);
-        if (numCorruptNodes != numCorruptReplicas) {
-          LOG.warn("Inconsistent number of corrupt replicas for " +
-            blocks[curBlk] + "blockMap has " + numCorruptNodes +
-            " but corrupt replicas map has " + numCorruptReplicas);
-        }
-        DatanodeDescriptor[] machineSet = null;
-        boolean blockCorrupt = false;
-        if (inode.isUnderConstruction() && curBlk == blocks.length - 1
-            && blocksMap.numNodes(blocks[curBlk]) == 0) {
-          // get unfinished block locations
-          INodeFileUnderConstruction cons = (INodeFileUnderConstruction)inode;
-          machineSet = cons.getTargets();
-          blockCorrupt = false;
-        } else {
-          blockCorrupt = (numCorruptNodes == numNodes);
-          int numMachineSet = blockCorrupt ? numNodes : 
-                              (numNodes - numCorruptNodes);
-          machineSet = new DatanodeDescriptor[numMachineSet];
-          if (numMachineSet > 0) {
-            numNodes = 0;
-            for(Iterator<DatanodeDescriptor> it = 
-                blocksMap.nodeIterator(blocks[curBlk]); it.hasNext();) {
-              DatanodeDescriptor dn = it.next();
-              boolean replicaCorrupt = corruptReplicas.isReplicaCorrupt(blocks[curBlk], dn);
-              if (blockCorrupt || (!blockCorrupt && !replicaCorrupt))
-                machineSet[numNodes++] = dn;
-            }
+    long endOff = offset + length;
+
+    do {
+      // get block locations
+      int numNodes = blocksMap.numNodes(blocks[curBlk]);
+      int numCorruptNodes = countNodes(blocks[curBlk]).corruptReplicas();
+      int numCorruptReplicas = corruptReplicas.numCorruptReplicas(blocks[curBlk]);
+      if (locked && numCorruptNodes != numCorruptReplicas) {
+        LOG.warn("Inconsistent number of corrupt replicas for " +
+          blocks[curBlk] + "blockMap has " + numCorruptNodes +
+          " but corrupt replicas map has " + numCorruptReplicas);
+      }
+      DatanodeDescriptor[] machineSet = null;
+      boolean blockCorrupt = false;
+      if (inode.isUnderConstruction() && curBlk == blocks.length - 1
+          && blocksMap.numNodes(blocks[curBlk]) == 0) {
+        // get unfinished block locations
+        INodeFileUnderConstruction cons = (INodeFileUnderConstruction)inode;
+        machineSet = cons.getTargets();
+        blockCorrupt = false;
+      } else {
+        blockCorrupt = (numCorruptNodes == numNodes);
+        int numMachineSet = blockCorrupt ? numNodes : 
+                            (numNodes - numCorruptNodes);
+        machineSet = new DatanodeDescriptor[numMachineSet];
+        if (numMachineSet > 0) {
+          numNodes = 0;
+          for(Iterator<DatanodeDescriptor> it = 
+              blocksMap.nodeIterator(blocks[curBlk]); it.hasNext();) {
+            DatanodeDescriptor dn = it.next();
+            boolean replicaCorrupt = corruptReplicas.isReplicaCorrupt(blocks[curBlk], dn);
+            if (blockCorrupt || (!blockCorrupt && !replicaCorrupt))
+              machineSet[numNodes++] = dn;
           }
         }
-        results.add(new LocatedBlock(blocks[curBlk], machineSet, curPos,
-          blockCorrupt));
-        curPos += blocks[curBlk].getNumBytes();
-        curBlk++;
-      } while (curPos < endOff
-        && curBlk < blocks.length
-        && results.size() < nrBlocksToReturn);
+      }
+      results.add(new LocatedBlock(blocks[curBlk], machineSet, curPos,
+        blockCorrupt));
+      curPos += blocks[curBlk].getNumBytes();
+      curBlk++;
+    } while (curPos < endOff
+      && curBlk < blocks.length
+      && results.size() < nrBlocksToReturn);
 
-      return inode.createLocatedBlocks(results, type,
-          this.getFSImage().namespaceID, this.nameNode
-              .getClientProtocolMethodsFingerprint());
-    } finally {
-      readUnlock();
-    }
+    return inode.createLocatedBlocks(results, type,
+        this.getFSImage().namespaceID, this.nameNode
+            .getClientProtocolMethodsFingerprint());
   }
 
   /**
@@ -1925,7 +2056,7 @@ public class FSNamesystem extends ReconfigurableBase
           //
           for (DatanodeDescriptor dd : targets) {
             String datanodeId = dd.getStorageID();
-            LightWeightHashSet<Block> v = recentInvalidateSets.get(datanodeId);
+            LightWeightBlockSet v = recentInvalidateSets.get(datanodeId);
             if (v != null && v.remove(last)) {
               if (v.isEmpty()) {
                 recentInvalidateSets.remove(datanodeId);
@@ -2490,7 +2621,7 @@ public class FSNamesystem extends ReconfigurableBase
    * @param n datanode
    */
   void removeFromInvalidates(String storageID) {
-    LightWeightHashSet<Block> blocks = recentInvalidateSets.remove(storageID);
+    LightWeightBlockSet blocks = recentInvalidateSets.remove(storageID);
     if (blocks != null) {
       pendingDeletionBlocksCount -= blocks.size();
     }
@@ -2517,10 +2648,10 @@ public class FSNamesystem extends ReconfigurableBase
    * @param n datanode
    */
   void addToInvalidatesNoLog(Block b, DatanodeInfo n, boolean ackRequired) {
-    LightWeightHashSet<Block> invalidateSet = recentInvalidateSets.get(n
+    LightWeightBlockSet invalidateSet = recentInvalidateSets.get(n
         .getStorageID());
     if (invalidateSet == null) {
-      invalidateSet = new LightWeightHashSet<Block>();
+      invalidateSet = new LightWeightBlockSet();
       recentInvalidateSets.put(n.getStorageID(), invalidateSet);
     }
     if(!ackRequired){
@@ -2558,9 +2689,9 @@ public class FSNamesystem extends ReconfigurableBase
     if (size == 0) {
       return;
     }
-    for (Map.Entry<String, LightWeightHashSet<Block>> entry : recentInvalidateSets
+    for (Map.Entry<String, LightWeightBlockSet> entry : recentInvalidateSets
         .entrySet()) {
-      LightWeightHashSet<Block> blocks = entry.getValue();
+      LightWeightBlockSet blocks = entry.getValue();
       if (blocks.size() > 0) {
         out.println(datanodeMap.get(entry.getKey()).getName() + blocks);
       }
@@ -2885,6 +3016,21 @@ public class FSNamesystem extends ReconfigurableBase
    */
   FileStatus getFileInfo(String src) throws IOException {
     src = dir.normalizePath(src);
+    final String srcs = src;
+    OptimisticRead<FileStatus> optimistic = new OptimisticRead<FileStatus>() {
+      FileStatus read() throws IOException {
+        INode[] inodes = dir.rootDir.getExistingPathINodes(srcs);
+        if (isPermissionEnabled) {
+          checkPermissionOptimistic(srcs, inodes, null);
+        }
+        INode targetNode = inodes[inodes.length-1];
+        return targetNode == null ? null :
+          FSDirectory.createFileStatus(srcs, targetNode);
+      }
+    };
+    if (optimistic.tryRead()) {
+      return optimistic.getResult();
+    }
     INode[] inodes = dir.rootDir.getExistingPathINodes(src);
 
     if (isPermissionEnabled) {
@@ -2902,6 +3048,22 @@ public class FSNamesystem extends ReconfigurableBase
    * @throws IOException if permission to access file is denied by the system
    */
   HdfsFileStatus getHdfsFileInfo(String src) throws IOException {
+    final String srcs = dir.normalizePath(src);
+    OptimisticRead<HdfsFileStatus> optimistic =
+      new OptimisticRead<HdfsFileStatus>() {
+      HdfsFileStatus read() throws IOException {
+        INode[] inodes = dir.rootDir.getExistingPathINodes(srcs);
+        if (isPermissionEnabled) {
+          checkPermissionOptimistic(srcs, inodes, null);
+        }
+        INode targetNode = inodes[inodes.length-1];
+        return targetNode == null ? null :
+          FSDirectory.getHdfsFileInfo(targetNode);
+      }
+    };
+    if (optimistic.tryRead()) {
+      return optimistic.getResult();
+    }
     if (isPermissionEnabled) {
       INode[] inodes = dir.getExistingPathINodes(src);
       checkTraverse(src, inodes);
@@ -3874,6 +4036,12 @@ public class FSNamesystem extends ReconfigurableBase
       underReplicatedBlocksCount = neededReplications.size();
       scheduledReplicationBlocksCount = workFound;
       corruptReplicaBlocksCount = corruptReplicas.size();
+      corruptReplicasMemory = corruptReplicas.getMemoryUsage();
+      long memory = 0;
+      for (LightWeightBlockSet blocks : recentInvalidateSets.values()) {
+        memory += blocks.getMemoryUsage();
+      }
+      pendingDeletionMemory = memory;
     } finally {
       writeUnlock();
     }
@@ -4212,13 +4380,13 @@ public class FSNamesystem extends ReconfigurableBase
     int corrupt = 0;
     int excess = 0;
     Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
-    Collection<DatanodeDescriptor> nodesCorrupt = corruptReplicas.getNodes(block);
+    DatanodeDescriptor[] nodesCorrupt = corruptReplicas.getNodes(block);
     DatanodeDescriptor excessReplica = null;
     while (it.hasNext()) {
       DatanodeDescriptor node = it.next();
       Collection<Block> excessBlocks =
         excessReplicateMap.get(node.getStorageID());
-      if ((nodesCorrupt != null) && (nodesCorrupt.contains(node))) {
+      if (CorruptReplicasMap.contains(nodesCorrupt, node)) {
         corrupt++;
       } else if (node.isDecommissionInProgress() || node.isDecommissioned()) {
         decommissioned++;
@@ -4230,7 +4398,7 @@ public class FSNamesystem extends ReconfigurableBase
       containingNodes.add(node);
       // Check if this replica is corrupt
       // If so, do not select the node as src node
-      if ((nodesCorrupt != null) && nodesCorrupt.contains(node)) {
+      if (CorruptReplicasMap.contains(nodesCorrupt, node)) {
         continue;
       }
       if (node.getNumberOfBlocksToBeReplicated() >= maxReplicationStreams) {
@@ -4293,7 +4461,7 @@ public class FSNamesystem extends ReconfigurableBase
         return 0;
       }
 
-      LightWeightHashSet<Block> invalidateSet = recentInvalidateSets
+      LightWeightBlockSet invalidateSet = recentInvalidateSets
           .get(nodeId);
       if (invalidateSet == null) {
         return 0;
@@ -4938,6 +5106,10 @@ public class FSNamesystem extends ReconfigurableBase
     } else {
       updateNeededReplications(block, curReplicaDelta, 0);
     }
+    if (numLiveReplicas >= fileReplication && dnthread != null) {
+      // decommissioning nodes do not have to wait for this block anymore
+      ((Monitor) dnthread.getRunnable()).blockReplicated(storedBlock);
+    }
     if (numCurrentReplica > fileReplication) {
       processOverReplicatedBlock(block, fileReplication, node, delNodeHint);
     }
@@ -4988,18 +5160,15 @@ public class FSNamesystem extends ReconfigurableBase
    * @param blk Block whose corrupt replicas need to be invalidated
    */
   void invalidateCorruptReplicas(Block blk) {
-    Collection<DatanodeDescriptor> nodes = corruptReplicas.getNodes(blk);
+    // invalidateBlock replaces the array of the map, never modifies it
+    DatanodeDescriptor[] nodes = corruptReplicas.getNodes(blk);
     boolean gotException = false;
     if (nodes == null) {
       return;
     }
-    // Make a copy of this list, since calling invalidateBlock will modify
-    // the original (avoid CME)
-    nodes = new ArrayList<DatanodeDescriptor>(nodes);
     NameNode.stateChangeLog.debug("NameNode.invalidateCorruptReplicas: " +
-        "invalidating corrupt replicas on " + nodes.size() + "nodes");
-    for (Iterator<DatanodeDescriptor> it = nodes.iterator(); it.hasNext();) {
-      DatanodeDescriptor node = it.next();
+        "invalidating corrupt replicas on " + nodes.length + "nodes");
+    for (DatanodeDescriptor node : nodes) {
       try {
         invalidateBlock(blk, node, true);
       } catch (IOException e) {
@@ -5018,53 +5187,101 @@ public class FSNamesystem extends ReconfigurableBase
   /**
    * For each block in the name-node verify whether it belongs to any file,
    * over or under replicated. Place it into the respective queue.
+   * Unless dfs.namenode.replqueue.init.threads is 0, this is done by
+   * background threads, and the queues are in use while they fill up.
    */
   private void processMisReplicatedBlocks() {
     writeLock();
     try {
-      long nrInvalid = 0, nrOverReplicated = 0, nrUnderReplicated = 0;
+      if (replQueueInitializer != null) {
+        replQueueInitializer.stop();
+      }
       neededReplications.clear();
-      for (BlocksMap.BlockInfo block : blocksMap.getBlocks()) {
-        INodeFile fileINode = block.getINode();
-        if (fileINode == null) {
-          // block does not belong to any file
-          nrInvalid++;
-          addToInvalidates(block, false);
-          continue;
-        }
-        // If this is a last block of a file under construction ignore it.
-        if (fileINode.getLastBlock().equals(block)
-            && fileINode.isUnderConstruction()) {
-          continue;
-        }
-
-        // calculate current replication
-        short expectedReplication = fileINode.getReplication();
-        NumberReplicas num = countNodes(block);
-        int numCurrentReplica = num.liveReplicas();
-        // add to under-replicated queue if need to be
-        if (neededReplications.add(block,
-          numCurrentReplica,
-          num.decommissionedReplicas(),
-          expectedReplication)) {
-          nrUnderReplicated++;
-        }
-
-        if (numCurrentReplica > expectedReplication) {
-          // over-replicated block
-          nrOverReplicated++;
-          overReplicatedBlocks.add(block);
-        }
+      replQueueInitializer = new ReplicationQueueInitializer(this, blocksMap,
+          replQueueInitThreads, replQueueInitBlocksPerLock);
+      if (replQueueInitThreads > 0) {
+        replQueueInitializer.start();
+      } else {
+        replQueueInitializer.run();
       }
-      LOG.info("Total number of blocks = " + blocksMap.size());
-      LOG.info("Number of invalid blocks = " + nrInvalid);
-      LOG.info("Number of under-replicated blocks = " + nrUnderReplicated);
-      LOG.info("Number of  over-replicated blocks = " + nrOverReplicated);
     } finally {
       writeUnlock();
     }
   }
 
+  /**
+   * Check whether a block may have to be put into a replication queue.
+   * This only needs the read lock.
+   */
+  boolean isMisReplicatedCandidate(BlocksMap.BlockInfo block) {
+    INodeFile fileINode = block.getINode();
+    if (fileINode == null) {
+      return true;
+    }
+    // If this is a last block of a file under construction ignore it.
+    if (fileINode.getLastBlock().equals(block)
+        && fileINode.isUnderConstruction()) {
+      return false;
+    }
+    return countNodes(block).liveReplicas() != fileINode.getReplication();
+  }
+
+  /**
+   * Put the blocks into the replication queues they belong to.
+   * The caller holds the write lock.
+   */
+  void processMisReplicatedBlocks(List<BlocksMap.BlockInfo> blocks,
+      ReplicationQueueInitializer counters) {
+    for (BlocksMap.BlockInfo block : blocks) {
+      if (blocksMap.getStoredBlock(block) != block) {
+        // removed since it was found
+        continue;
+      }
+      INodeFile fileINode = block.getINode();
+      if (fileINode == null) {
+        // block does not belong to any file
+        counters.nrInvalid.incrementAndGet();
+        addToInvalidates(block, false);
+        continue;
+      }
+      // If this is a last block of a file under construction ignore it.
+      if (fileINode.getLastBlock().equals(block)
+          && fileINode.isUnderConstruction()) {
+        continue;
+      }
+
+      // calculate current replication
+      short expectedReplication = fileINode.getReplication();
+      NumberReplicas num = countNodes(block);
+      int numCurrentReplica = num.liveReplicas();
+      // add to under-replicated queue if need to be
+      if (neededReplications.add(block,
+        numCurrentReplica,
+        num.decommissionedReplicas(),
+        expectedReplication)) {
+        counters.nrUnderReplicated.incrementAndGet();
+      }
+
+      if (numCurrentReplica > expectedReplication) {
+        // over-replicated block
+        counters.nrOverReplicated.incrementAndGet();
+        overReplicatedBlocks.add(block);
+      }
+    }
+  }
+
+  /**
+   * @return the percentage of the blocks put into the replication queues,
+   *         100 once the queues are initialized
+   */
+  public int getReplQueueInitPercent() {
+    ReplicationQueueInitializer initializer = replQueueInitializer;
+    if (initializer == null || initializer.isDone()) {
+      return isPopulatingReplQueues() ? 100 : 0;
+    }
+    return initializer.getPercentDone();
+  }
+
   /**
    * This is called from the ReplicationMonitor to process over
    * replicated blocks.
@@ -5123,11 +5340,11 @@ public class FSNamesystem extends ReconfigurableBase
       // replicas in this case.
 
       int live = 0;
-      Collection<DatanodeDescriptor> nodesCorrupt = corruptReplicas.getNodes(block);
+      DatanodeDescriptor[] nodesCorrupt = corruptReplicas.getNodes(block);
       for (Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
            it.hasNext();) {
         DatanodeDescriptor node = it.next();
-        if (((nodesCorrupt != null) && (nodesCorrupt.contains(node))) ||
+        if (CorruptReplicasMap.contains(nodesCorrupt, node) ||
           node.isDecommissionInProgress() || node.isDecommissioned()) {
           // do nothing
         } else {
@@ -5238,7 +5455,7 @@ public class FSNamesystem extends ReconfigurableBase
         delNodeHint = null;
       }
       nonExcess = new ArrayList<DatanodeDescriptor>();
-      Collection<DatanodeDescriptor> corruptNodes = corruptReplicas.getNodes(block);
+      DatanodeDescriptor[] corruptNodes = corruptReplicas.getNodes(block);
       for (Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
            it.hasNext();) {
         DatanodeDescriptor cur = it.next();
@@ -5246,7 +5463,7 @@ public class FSNamesystem extends ReconfigurableBase
         if (excessBlocks == null || !excessBlocks.contains(block)) {
           if (!cur.isDecommissionInProgress() && !cur.isDecommissioned()) {
             // exclude corrupt replicas
-            if (corruptNodes == null || !corruptNodes.contains(cur)) {
+            if (!CorruptReplicasMap.contains(corruptNodes, cur)) {
               nonExcess.add(cur);
               originalDatanodes.add(cur);
             }
@@ -5730,7 +5947,7 @@ public class FSNamesystem extends ReconfigurableBase
     return getDatanodeListForReport(type).size();
   }
 
-  private ArrayList<DatanodeDescriptor> getDatanodeListForReport(
+  ArrayList<DatanodeDescriptor> getDatanodeListForReport(
     DatanodeReportType type) {
     readLock();
     try {
@@ -6018,10 +6235,10 @@ public class FSNamesystem extends ReconfigurableBase
     int live = 0;
     int corrupt = 0;
     int excess = 0;
-    Collection<DatanodeDescriptor> nodesCorrupt = corruptReplicas.getNodes(b);
+    DatanodeDescriptor[] nodesCorrupt = corruptReplicas.getNodes(b);
     while (nodeIter.hasNext()) {
       DatanodeDescriptor node = nodeIter.next();
-      if ((nodesCorrupt != null) && (nodesCorrupt.contains(node))) {
+      if (CorruptReplicasMap.contains(nodesCorrupt, node)) {
         corrupt++;
       } else if (node.isDecommissionInProgress() || node.isDecommissioned()) {
         count++;
@@ -6043,13 +6260,13 @@ public class FSNamesystem extends ReconfigurableBase
    */
   private int countLiveNodes(Block b, Iterator<DatanodeDescriptor> nodeIter) {
     int live = 0;
-    Collection<DatanodeDescriptor> nodesCorrupt = null;
+    DatanodeDescriptor[] nodesCorrupt = null;
     if (corruptReplicas.size() != 0) {
       nodesCorrupt = corruptReplicas.getNodes(b);
     }
     while (nodeIter.hasNext()) {
       DatanodeDescriptor node = nodeIter.next();
-      if (((nodesCorrupt != null) && (nodesCorrupt.contains(node))) ||
+      if (CorruptReplicasMap.contains(nodesCorrupt, node) ||
         node.isDecommissionInProgress() || node.isDecommissioned()) {
         // do nothing
       } else {
@@ -6097,56 +6314,55 @@ public class FSNamesystem extends ReconfigurableBase
   }
 
   /**
-   * Check if a block on srcNode has reached its replication factor or not
+   * Check if a block on a decommissioning node has reached its replication
+   * factor, and queue it for replication if it has not and it is neither
+   * queued nor being replicated yet.
    *
-   *@param status decomission status to update; null means no update
    * @param srcNode a datanode
    * @param block   a block
-   * @param addToNeeded if the block needs to add to needReplication queue
-   * @return block if not addToNeeded and the block needes to added later
-   */
-  Block isReplicationInProgress(final DecommissioningStatus status,
-      final DatanodeDescriptor srcNode, final Block block,
-      boolean addToNeeded) {
+   * @param logInfo whether to log the replication state of the block
+   * @return 0 if the block is sufficiently replicated or does not belong to
+   *         a file anymore, otherwise a combination of
+   *         {@link DecommissionManager#UNDER_REPLICATED},
+   *         {@link DecommissionManager#DECOMMISSION_ONLY} and
+   *         {@link DecommissionManager#IN_OPEN_FILE}
+   */
+  int checkDecommissionBlock(final DatanodeDescriptor srcNode,
+      final Block block, boolean logInfo) {
+    assert (hasWriteLock());
     INode fileINode = blocksMap.getINode(block);
     if (fileINode == null) {
-      return null;
+      return 0;
     }
     NumberReplicas num = countNodes(block);
     int curReplicas = num.liveReplicas();
     int curExpectedReplicas = getReplication(block);
-    if (curExpectedReplicas > curReplicas) {
-      if (status!= null) {
-        //Log info about one block for this node which needs replication
-        if (status.underReplicatedBlocks == 0) {
-          logBlockReplicationInfo(block, srcNode, num);
-        }
-        status.underReplicatedBlocks++;
-        if ((curReplicas == 0) && (num.decommissionedReplicas() > 0)) {
-          status.decommissionOnlyReplicas++;
-        }
-        if (fileINode.isUnderConstruction()) {
-          status.underReplicatedInOpenFiles++;
-        }
-      }
-      if (!neededReplications.contains(block) &&
-        pendingReplications.getNumReplicas(block) == 0) {
-        //
-        // These blocks have been reported from the datanode
-        // after the startDecommission method has been executed. These
-        // blocks were in flight when the decommissioning was started.
-        //
-        if (addToNeeded) {
-          neededReplications.add(block,
-              curReplicas,
-              num.decommissionedReplicas(),
-              curExpectedReplicas);
-        } else {
-          return block;
-        }
-      }
+    if (curExpectedReplicas <= curReplicas) {
+      return 0;
     }
-    return null;
+    if (logInfo) {
+      logBlockReplicationInfo(block, srcNode, num);
+    }
+    int state = DecommissionManager.UNDER_REPLICATED;
+    if ((curReplicas == 0) && (num.decommissionedReplicas() > 0)) {
+      state |= DecommissionManager.DECOMMISSION_ONLY;
+    }
+    if (fileINode.isUnderConstruction()) {
+      state |= DecommissionManager.IN_OPEN_FILE;
+    }
+    if (!neededReplications.contains(block) &&
+      pendingReplications.getNumReplicas(block) == 0) {
+      //
+      // These blocks have been reported from the datanode
+      // after the startDecommission method has been executed. These
+      // blocks were in flight when the decommissioning was started.
+      //
+      neededReplications.add(block,
+          curReplicas,
+          num.decommissionedReplicas(),
+          curExpectedReplicas);
+    }
+    return state;
   }
 
   /**
@@ -7023,8 +7239,7 @@ public class FSNamesystem extends ReconfigurableBase
                                               FsAction subAccess)
     throws AccessControlException {
     boolean permissionCheckFailed = false;
-    FSPermissionChecker pc = new FSPermissionChecker(
-      fsOwner.getUserName(), supergroup);
+    FSPermissionChecker pc = permissionCache.getPermissionChecker();
     if (!pc.isSuper) {
       dir.waitForReady();
       readLock();
@@ -7105,6 +7320,26 @@ public class FSNamesystem extends ReconfigurableBase
     return pendingDeletionBlocksCount;
   }
 
+  /** @return the percentage of callers found in the permission cache */
+  public int getGroupCacheHitRatio() {
+    return permissionCache.getGroupCacheHitRatio();
+  }
+
+  /** @return the percentage of traverse checks answered by the cache */
+  public int getTraverseCacheHitRatio() {
+    return permissionCache.getTraverseCacheHitRatio();
+  }
+
+  /** The approximate number of bytes used by the corrupt replicas map */
+  public long getCorruptReplicasMemory() {
+    return corruptReplicasMemory;
+  }
+
+  /** The approximate number of bytes used by the blocks pending deletion */
+  public long getPendingDeletionMemory() {
+    return pendingDeletionMemory;
+  }
+
   public long getExcessBlocks() {
     return excessBlocksCount;
   }
@@ -7840,6 +8075,11 @@ public class FSNamesystem extends ReconfigurableBase
           .getDecommissionOnlyReplicas());
       innerinfo.put("underReplicateInOpenFiles", node.decommissioningStatus
           .getUnderReplicatedInOpenFiles());
+      innerinfo.put("percentDone", node.decommissioningStatus
+          .getPercentDone());
+      innerinfo.put("estimatedTimeLeft", node.decommissioningStatus
+          .getEstimatedTimeLeft());
+      innerinfo.put("lockTime", node.decommissioningStatus.getLockTime());
       info.put(node.getHostName() + ":" + node.getPort(), innerinfo);
     }
     return JSON.toString(info);
@@ -56,8 +56,20 @@ package org.apache.hadoop.hdfs.server.namenode;
  *   upgradeableReadUnlock();
  * }
  * 
+ * 3. reads that take no lock at all, and are thrown away if a write
+ * section overlapped them:
+ * long stamp = tryOptimisticRead();
+ * ..
+ * if (!validate(stamp)) {
+ *   .. redo the read under readLock()
+ * }
+ * 
+ * Every write lock, and every other lock under which the namespace is
+ * modified, has to be bracketed by beginWrite() and endWrite() for the
+ * validation to work. Read locks are not, even when they are exclusive.
  */
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FSNamesystemLock {
@@ -66,6 +78,16 @@ public class FSNamesystemLock {
   private ReentrantReadWriteLock lock2;
   private boolean hasRwLock;
 
+  /**
+   * The low 32 bits count the write sections in progress, the high bits
+   * count the finished ones. The value only grows, so an optimistic read
+   * is valid if and only if the value did not change during the read.
+   * It never starts at 0, which is not a valid stamp.
+   */
+  private static final long WRITERS_MASK = 0xffffffffL;
+  private static final long WRITE_FINISHED = (1L << 32) - 1;
+  private final AtomicLong writeState = new AtomicLong(WRITERS_MASK + 1);
+
   FSNamesystemLock(boolean hasRwLock) {
     this.hasRwLock = hasRwLock;
     this.lock1 = new ReentrantReadWriteLock();
@@ -77,13 +99,15 @@ public class FSNamesystemLock {
   }
 
   /**
-   * Acquire read lock.
+   * Acquire read lock. Without the read-write lock it is exclusive, but
+   * it is still no write section: optimistic reads stay valid across it.
    */
   void readLock() {
     if (this.hasRwLock) {
       this.lock2.readLock().lock();
     } else {
-      writeLock();
+      this.lock1.writeLock().lock();
+      this.lock2.writeLock().lock();
     }
   }
 
@@ -94,7 +118,8 @@ public class FSNamesystemLock {
     if (this.hasRwLock) {
       this.lock2.readLock().unlock();
     } else {
-      writeUnlock();
+      this.lock2.writeLock().unlock();
+      this.lock1.writeLock().unlock();
     }
   }
 
@@ -104,12 +129,14 @@ public class FSNamesystemLock {
   void writeLock() {
     this.lock1.writeLock().lock();
     this.lock2.writeLock().lock();
+    beginWrite();
   }
 
   /**
    * Release full write lock.
    */
   void writeUnlock() {
+    endWrite();
     this.lock2.writeLock().unlock();
     this.lock1.writeLock().unlock();
   }
@@ -134,6 +161,7 @@ public class FSNamesystemLock {
   void upgradeableReadUnlock() {
     // we need to check if it was upgraded
     if (lock2.isWriteLockedByCurrentThread()) {
+      endWrite();
       this.lock2.writeLock().unlock();
     }
     this.lock1.writeLock().unlock();
@@ -146,6 +174,7 @@ public class FSNamesystemLock {
    */
   void upgradeLock() {
     this.lock2.writeLock().lock();
+    beginWrite();
   }
 
   /**
@@ -154,6 +183,42 @@ public class FSNamesystemLock {
    * Downgrade will fail if the lock has not been upgraded.
    */
   void downgradeLock() {
+    endWrite();
     this.lock2.writeLock().unlock();
   }
+
+  /**
+   * Mark the start of a section that modifies the namespace.
+   */
+  void beginWrite() {
+    writeState.incrementAndGet();
+  }
+
+  /**
+   * Mark the end of a section started by {@link #beginWrite()}.
+   */
+  void endWrite() {
+    writeState.addAndGet(WRITE_FINISHED);
+  }
+
+  /**
+   * Start a read that takes no lock.
+   * @return a stamp for {@link #validate(long)}, or 0 if a write is in
+   *         progress and the read should take the read lock right away
+   */
+  long tryOptimisticRead() {
+    long state = writeState.get();
+    return (state & WRITERS_MASK) == 0 ? state : 0;
+  }
+
+  /**
+   * Check that no write section started or finished since
+   * {@link #tryOptimisticRead()} returned stamp. The compare-and-set makes
+   * the reads before it visible to any later writer, so a writer that
+   * starts after a successful validation cannot have been seen.
+   * @return true if the values read in between are consistent
+   */
+  boolean validate(long stamp) {
+    return stamp != 0 && writeState.compareAndSet(stamp, stamp);
+  }
 }
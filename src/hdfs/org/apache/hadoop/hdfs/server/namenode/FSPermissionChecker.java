@@ -31,9 +31,31 @@ import org.apache.hadoop.security.UserGroupInformation;
 class FSPermissionChecker extends PermissionChecker {
   static final Log LOG = LogFactory.getLog(UserGroupInformation.class);
 
+  /** The cached caller, or null if the checker is not cached */
+  private final PermissionCache.Caller caller;
+  /** The lock and stamp of the optimistic read being checked, if any */
+  private FSNamesystemLock lock;
+  private long stamp;
+
   FSPermissionChecker(String fsOwner, String supergroup
       ) throws AccessControlException{
     super(fsOwner, supergroup);
+    this.caller = null;
+  }
+
+  FSPermissionChecker(PermissionCache.Caller caller) {
+    super(caller.user, caller.groups, caller.isSuper);
+    this.caller = caller;
+  }
+
+  /**
+   * Check an optimistic read started with stamp. Its traversals are only
+   * remembered while no write section overlapped it, since a write may
+   * have invalidated them already.
+   */
+  void setOptimisticRead(FSNamesystemLock lock, long stamp) {
+    this.lock = lock;
+    this.stamp = stamp;
   }
 
   /**
@@ -108,9 +130,20 @@ class FSPermissionChecker extends PermissionChecker {
 
   private void checkTraverse(INode[] inodes, int last
       ) throws AccessControlException {
-    for(int j = 0; j <= last; j++) {
+    if (caller == null || last < 0) {
+      for(int j = 0; j <= last; j++) {
+        check(inodes[j], FsAction.EXECUTE);
+      }
+      return;
+    }
+    // only check below the deepest directory known to be traversable
+    PermissionCache.Traversable traversable = caller.getTraversable();
+    for(int j = traversable.find(inodes, last) + 1; j <= last; j++) {
       check(inodes[j], FsAction.EXECUTE);
     }
+    if (inodes[last] != null) {
+      traversable.add(inodes[last], lock, stamp);
+    }
   }
 
   private void checkSubAccess(INode inode, FsAction access
@@ -25,6 +25,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.util.StringUtils;
 
 /**
@@ -45,25 +46,20 @@ public class GetImageServlet extends HttpServlet {
       FSImage nnImage = (FSImage)context.getAttribute("name.system.image");
       TransferFsImage ff = new TransferFsImage(pmap, request, response);
       if (ff.getImage()) {
-        response.setHeader(TransferFsImage.CONTENT_LENGTH,
-          String.valueOf(nnImage.getFsImageName().length()));
         // send fsImage
-        TransferFsImage.getFileServer(response.getOutputStream(),
-                                      nnImage.getFsImageName(),
-                                      nnImage.imageTransferThrottler); 
+        ff.sendFile(response, nnImage.getFsImageName(),
+                    nnImage.imageTransferThrottler);
       } else if (ff.getEdit()) {
-        response.setHeader(TransferFsImage.CONTENT_LENGTH,
-          String.valueOf(nnImage.getFsEditName().length()));
         // send edits
-        TransferFsImage.getFileServer(response.getOutputStream(),
-                                      nnImage.getFsEditName(),
-                                      nnImage.imageTransferThrottler);
+        ff.sendFile(response, nnImage.getFsEditName(),
+                    nnImage.imageTransferThrottler);
       } else if (ff.putImage()) {
         // issue a HTTP get request to download the new fsimage 
         nnImage.validateCheckpointUpload(ff.getToken());
+        Configuration conf = (Configuration)context.getAttribute("name.conf");
         nnImage.checkpointUploadDone(
-            TransferFsImage.getFileClient(ff.getInfoServer(), "getimage=1", 
-            nnImage.getFsImageNameCheckpoint(), true));
+            TransferFsImage.getFileClient(conf, ff.getInfoServer(),
+            "getimage=1", nnImage.getFsImageNameCheckpoint(), true));
       }
     } catch (Exception ie) {
       String errMsg = "GetImage failed. " + StringUtils.stringifyException(ie);
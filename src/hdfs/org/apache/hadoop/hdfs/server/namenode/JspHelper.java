@@ -306,6 +306,13 @@ public class JspHelper {
     return "Safe mode is ON. <em>" + fsn.getSafeModeTip() + "</em><br>";
   }
 
+  public String getReplQueueInitText() {
+    int percent = fsn.getReplQueueInitPercent();
+    if (percent == 0 || percent == 100)
+      return "";
+    return "Initializing replication queues: " + percent + "% done.<br>";
+  }
+
   public static String getWarningText(FSNamesystem fsn) {
     // Ideally this should be displayed in RED
     long missingBlocks = fsn.getMissingBlocksCount();
@@ -20,10 +20,13 @@ package org.apache.hadoop.hdfs.server.namenode;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -46,7 +49,9 @@ import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.hdfs.protocol.FSConstants.DatanodeReportType;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants;
+import org.apache.hadoop.hdfs.server.namenode.FSNamesystem.BlockMetaInfoType;
 import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.util.StringUtils;
 
 /**
  * This class provides rudimentary checking of DFS volumes for errors and
@@ -69,6 +74,16 @@ import org.apache.hadoop.fs.permission.PermissionStatus;
  *  Additionally, the tool collects a detailed overall DFS statistics, and
  *  optionally can print detailed statistics on block locations and replication
  *  factors of each file.
+ * <p>The directories are checked by dfs.fsck.threads worker threads, or as
+ * many as the threads parameter asks for, up to dfs.fsck.max.threads. Each
+ * one lists a directory and gets the block locations of its files
+ * dfs.fsck.batch files at a time under one read lock, so the namesystem lock
+ * is never held for long. The statistics are counted by every worker and
+ * added up at the end. With the machine parameter the output is one line
+ * of tab separated fields per file, directory and block, a NOTICE line per
+ * problem found in a block, an ACTION line per file moved or deleted, and a
+ * SUMMARY line per statistic, for {@link org.apache.hadoop.hdfs.tools.DFSck} to filter
+ * and render.</p>
  */
 public class NamenodeFsck {
   public static final Log LOG = LogFactory.getLog(NameNode.class.getName());
@@ -85,6 +100,23 @@ public class NamenodeFsck {
   public static final int FIXING_MOVE = 1;
   /** Delete corrupted files. */
   public static final int FIXING_DELETE = 2;
+
+  public static final String THREADS_KEY = "dfs.fsck.threads";
+  public static final String MAX_THREADS_KEY = "dfs.fsck.max.threads";
+  public static final int DEFAULT_MAX_THREADS = 8;
+  public static final String BATCH_KEY = "dfs.fsck.batch";
+
+  // status of a file in the machine readable output
+  public static final String FILE_HEALTHY = "HEALTHY";
+  public static final String FILE_CORRUPT = "CORRUPT";
+  public static final String FILE_UNDER_REPLICATED = "UNDER_REPLICATED";
+  public static final String FILE_MIS_REPLICATED = "MIS_REPLICATED";
+
+  private static final PrintWriter NO_OUTPUT = new PrintWriter(new Writer() {
+    public void write(char[] cbuf, int off, int len) {}
+    public void flush() {}
+    public void close() {}
+  });
   
   private NameNode nn;
   private String lostFound = null;
@@ -97,8 +129,13 @@ public class NamenodeFsck {
   private boolean showRacks = false;
   private boolean showCorruptFileBlocks = false;
   private boolean showDecommissioningFileBlocks = false;
+  private boolean machineOutput = false;
   private int fixing = FIXING_NONE;
   private String path = "/";
+  private int threads;
+  private int batchSize;
+  /** why the parameters of the request are rejected, or null */
+  private String badParameter = null;
 
   // We return back N files that are corrupt; the list of files returned is
   // ordered by block id; to allow continuation support, pass in the last block
@@ -123,6 +160,10 @@ public class NamenodeFsck {
     this.conf = conf;
     this.nn = nn;
     this.out = response.getWriter();
+    int maxThreads = Math.max(1,
+        conf.getInt(MAX_THREADS_KEY, DEFAULT_MAX_THREADS));
+    this.threads = Math.min(conf.getInt(THREADS_KEY, 1), maxThreads);
+    this.batchSize = Math.max(1, conf.getInt(BATCH_KEY, 100));
     for (Iterator<String> it = pmap.keySet().iterator(); it.hasNext();) {
       String key = it.next();
       if (key.equals("path")) { this.path = pmap.get("path")[0]; }
@@ -133,6 +174,23 @@ public class NamenodeFsck {
       else if (key.equals("locations")) { this.showLocations = true; }
       else if (key.equals("racks")) { this.showRacks = true; }
       else if (key.equals("openforwrite")) {this.showOpenFiles = true; }
+      else if (key.equals("machine")) { this.machineOutput = true; }
+      else if (key.equals("threads")) {
+        String value = pmap.get("threads")[0];
+        try {
+          this.threads = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          this.threads = 0;
+        }
+        if (this.threads < 1) {
+          badParameter = "Invalid number of threads '" + value
+              + "': it must be a number from 1 to " + maxThreads;
+        } else if (this.threads > maxThreads) {
+          LOG.info("Fsck asked for " + this.threads + " threads, using "
+              + maxThreads + ", the value of " + MAX_THREADS_KEY);
+          this.threads = maxThreads;
+        }
+      }
       else if (key.equals("listcorruptfileblocks")) {
         this.showCorruptFileBlocks = true;
       } else if (key.equals("decommissioning")) {
@@ -150,6 +208,9 @@ public class NamenodeFsck {
    */
   public void fsck() throws IOException {
     try {
+      if (badParameter != null) {
+        throw new IllegalArgumentException(badParameter);
+      }
       FileStatus[] files = nn.namesystem.dir.getListing(path);
       FsckResult res = new FsckResult();
       res.totalRacks = nn.getNetworkTopology().getNumOfRacks();
@@ -168,10 +229,12 @@ public class NamenodeFsck {
           return;
         }
 
-        for (int i = 0; i < files.length; i++) {
-          check(files[i], res);
+        checkAll(files, res);
+        if (machineOutput) {
+          out.print(res.toMachineString());
+        } else {
+          out.println(res);
         }
-        out.println(res);
         // DFSck client scans for the string HEALTHY/CORRUPT to check the status
         // of file system and return appropriate code. Changing the output 
         // string might break testcases. 
@@ -298,27 +361,197 @@ public class NamenodeFsck {
     }
   }
   
-  private void check(FileStatus file, FsckResult res) throws IOException {
-    int minReplication = nn.namesystem.getMinReplication();
-    String path = file.getPath().toString();
-    boolean isOpen = false;
+  /**
+   * Check the given files and everything under the given directories.
+   */
+  private void checkAll(FileStatus[] files, FsckResult res)
+    throws IOException {
+    final FsckWalk walk = new FsckWalk();
+    StringWriter buf = new StringWriter();
+    checkListing(files, res, new PrintWriter(buf), buf, walk);
+    if (threads <= 1) {
+      walk.run(res);
+    } else {
+      final FsckResult[] results = new FsckResult[threads];
+      Thread[] workers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+        final FsckResult workerRes = results[i] = new FsckResult();
+        workers[i] = new Thread("fsck worker " + i) {
+          public void run() {
+            walk.run(workerRes);
+          }
+        };
+        workers[i].setDaemon(true);
+        workers[i].start();
+      }
+      try {
+        for (Thread worker : workers) {
+          worker.join();
+        }
+      } catch (InterruptedException e) {
+        walk.fail(e);
+        throw new IOException("Interrupted while checking " + path);
+      }
+      for (FsckResult workerRes : results) {
+        res.add(workerRes);
+      }
+    }
+    if (walk.error != null) {
+      if (walk.error instanceof IOException) {
+        throw (IOException) walk.error;
+      }
+      throw new IOException(StringUtils.stringifyException(walk.error));
+    }
+  }
 
-    if (file.isDir()) {
-      FileStatus[] files = nn.namesystem.dir.getListing(path);
-      if (files == null) {
-        return;
+  /**
+   * The directories that still have to be checked, which worker threads
+   * take one at a time.
+   */
+  private class FsckWalk {
+    private final LinkedList<String> dirs = new LinkedList<String>();
+    private int busy = 0; // workers checking a directory
+    private Throwable error = null;
+
+    /** Add directories, the first one is taken next */
+    synchronized void add(List<String> paths) {
+      for (int i = paths.size() - 1; i >= 0; i--) {
+        dirs.addFirst(paths.get(i));
       }
-      if (showFiles) {
-        out.println(path + " <dir>");
+      notifyAll();
+    }
+
+    /**
+     * @return the next directory, or null once all are checked
+     */
+    private synchronized String take() throws InterruptedException {
+      while (dirs.isEmpty() && busy > 0 && error == null) {
+        wait();
       }
-      res.totalDirs++;
-      for (int i = 0; i < files.length; i++) {
-        check(files[i], res);
+      if (dirs.isEmpty() || error != null) {
+        return null;
       }
+      busy++;
+      return dirs.removeFirst();
+    }
+
+    private synchronized void done() {
+      busy--;
+      notifyAll();
+    }
+
+    synchronized void fail(Throwable t) {
+      if (error == null) {
+        error = t;
+      }
+      notifyAll();
+    }
+
+    /** Check directories until there are none left */
+    void run(FsckResult res) {
+      StringWriter buf = new StringWriter();
+      PrintWriter workerOut = new PrintWriter(buf);
+      try {
+        for (String dir = take(); dir != null; dir = take()) {
+          try {
+            checkDir(dir, res, workerOut, buf, this);
+          } finally {
+            done();
+          }
+        }
+      } catch (Throwable t) {
+        fail(t);
+      }
+    }
+  }
+
+  private void checkDir(String dir, FsckResult res, PrintWriter out,
+                        StringWriter buf, FsckWalk walk) throws IOException {
+    FileStatus[] files = nn.namesystem.dir.getListing(dir);
+    if (files == null) {
       return;
     }
+    if (machineOutput) {
+      out.println("DIR\t" + dir);
+    } else if (showFiles) {
+      out.println(dir + " <dir>");
+    }
+    res.totalDirs++;
+    checkListing(files, res, out, buf, walk);
+  }
+
+  /**
+   * Check the files of a listing in batches and hand its directories
+   * to the walk.
+   */
+  private void checkListing(FileStatus[] files, FsckResult res,
+                            PrintWriter out, StringWriter buf, FsckWalk walk)
+    throws IOException {
+    List<String> dirs = new ArrayList<String>();
+    List<FileStatus> batch = new ArrayList<FileStatus>();
+    for (FileStatus file : files) {
+      if (file.isDir()) {
+        dirs.add(file.getPath().toString());
+        continue;
+      }
+      batch.add(file);
+      if (batch.size() >= batchSize) {
+        checkFiles(batch, res, out, buf);
+        batch.clear();
+      }
+    }
+    checkFiles(batch, res, out, buf);
+    walk.add(dirs);
+  }
+
+  /**
+   * Get the block locations of a batch of files under one read lock, then
+   * check them without the lock and write what was printed to the output.
+   */
+  private void checkFiles(List<FileStatus> batch, FsckResult res,
+                          PrintWriter out, StringWriter buf)
+    throws IOException {
+    LocatedBlocks[] blocks = new LocatedBlocks[batch.size()];
+    nn.namesystem.readLock();
+    try {
+      for (int i = 0; i < blocks.length; i++) {
+        String src = batch.get(i).getPath().toString();
+        INode[] inodes = nn.namesystem.dir.getExistingPathINodes(src);
+        blocks[i] = nn.namesystem.getBlockLocations(src,
+            inodes[inodes.length - 1], 0, batch.get(i).getLen(), false,
+            BlockMetaInfoType.NONE);
+      }
+    } finally {
+      nn.namesystem.readUnlock();
+    }
+    for (int i = 0; i < blocks.length; i++) {
+      if (machineOutput) {
+        check(batch.get(i), blocks[i], res, NO_OUTPUT, out);
+      } else {
+        check(batch.get(i), blocks[i], res, out, null);
+      }
+    }
+    out.flush();
+    synchronized (this.out) {
+      this.out.print(buf.toString());
+      this.out.flush();
+    }
+    buf.getBuffer().setLength(0);
+  }
+
+  /**
+   * Check the blocks of a file.
+   * @param out where the text report goes
+   * @param machineOut where the machine readable report goes, or null
+   */
+  private void check(FileStatus file, LocatedBlocks blocks, FsckResult res,
+                     PrintWriter out, PrintWriter machineOut)
+    throws IOException {
+    int minReplication = nn.namesystem.getMinReplication();
+    String path = file.getPath().toString();
+    boolean isOpen = false;
+
     long fileLen = file.getLen();
-    LocatedBlocks blocks = nn.namesystem.getBlockLocations(path, 0, fileLen);
     if (blocks == null) { // the file is deleted
       return;
     }
@@ -333,6 +566,7 @@ public class NamenodeFsck {
     res.totalFiles++;
     res.totalSize += fileLen;
     res.totalBlocks += blocks.locatedBlockCount();
+    res.fileSizes[FsckResult.bucket(fileLen)]++;
     if (showOpenFiles && isOpen) {
       out.print(path + " " + fileLen + " bytes, " +
         blocks.locatedBlockCount() + " block(s), OPENFORWRITE: ");
@@ -349,6 +583,7 @@ public class NamenodeFsck {
     int underReplicatedPerFile = 0;
     int misReplicatedPerFile = 0;
     StringBuffer report = new StringBuffer();
+    StringBuffer machineReport = new StringBuffer();
     int i = 0;
     for (LocatedBlock lBlk : blocks.getLocatedBlocks()) {
       Block block = lBlk.getBlock();
@@ -356,6 +591,7 @@ public class NamenodeFsck {
       String blkName = block.toString();
       DatanodeInfo[] locs = lBlk.getLocations();
       res.totalReplicas += locs.length;
+      res.blockSizes[FsckResult.bucket(block.getNumBytes())]++;
       short targetFileReplication = file.getReplication();
       if (locs.length > targetFileReplication) {
         res.excessiveReplicas += (locs.length - targetFileReplication);
@@ -366,6 +602,8 @@ public class NamenodeFsck {
         corrupt++;
         res.corruptBlocks++;
         out.print("\n" + path + ": CORRUPT block " + block.getBlockName()+"\n");
+        appendNotice(machineReport, machineOut, path,
+            "CORRUPT block " + block.getBlockName());
       }
       if (locs.length >= minReplication)
         res.numMinReplicatedBlocks++;
@@ -380,6 +618,10 @@ public class NamenodeFsck {
                     ". Target Replicas is " +
                     targetFileReplication + " but found " +
                     locs.length + " replica(s).");
+        appendNotice(machineReport, machineOut, path,
+            "Under replicated " + block + ". Target Replicas is " +
+            targetFileReplication + " but found " + locs.length +
+            " replica(s).");
       }
       // verify block placement policy
       int missingRacks = nn.getBlockPlacementPolicy().
@@ -397,10 +639,16 @@ public class NamenodeFsck {
                     block +
                     ". Block should be additionally replicated on " + 
                     missingRacks + " more rack(s).");
+        appendNotice(machineReport, machineOut, path,
+            "Replica placement policy is violated for " + block +
+            ". Block should be additionally replicated on " +
+            missingRacks + " more rack(s).");
       }
       report.append(i + ". " + blkName + " len=" + block.getNumBytes());
       if (locs.length == 0) {
         report.append(" MISSING!");
+        appendNotice(machineReport, machineOut, path,
+            "MISSING block " + block.getBlockName());
         res.addMissing(block.toString(), block.getNumBytes());
         missing++;
         missize += block.getNumBytes();
@@ -420,8 +668,34 @@ public class NamenodeFsck {
         }
       }
       report.append('\n');
+      if (machineOut != null && showBlocks) {
+        machineReport.append("BLOCK\t" + path + "\t" + i + "\t" + blkName +
+                             "\t" + block.getNumBytes() + "\t" + locs.length +
+                             "\t");
+        for (int j = 0; j < locs.length; j++) {
+          if (j > 0) { machineReport.append(','); }
+          machineReport.append(showRacks ? NodeBase.getPath(locs[j])
+                                         : locs[j].getName());
+        }
+        machineReport.append('\n');
+      }
       i++;
     }
+    if (machineOut != null) {
+      String status = FILE_HEALTHY;
+      if (missing > 0 || corrupt > 0) {
+        status = FILE_CORRUPT;
+      } else if (underReplicatedPerFile > 0) {
+        status = FILE_UNDER_REPLICATED;
+      } else if (misReplicatedPerFile > 0) {
+        status = FILE_MIS_REPLICATED;
+      }
+      machineOut.println("FILE\t" + path + "\t" + status + "\t" + fileLen +
+          "\t" + file.getReplication() + "\t" + blocks.locatedBlockCount() +
+          "\t" + missing + "\t" + corrupt + "\t" + underReplicatedPerFile +
+          "\t" + misReplicatedPerFile + "\t" + (isOpen ? 1 : 0));
+      machineOut.print(machineReport);
+    }
     if ((missing > 0) || (corrupt > 0)) {
       if (!showFiles && (missing > 0)) {
         out.print("\n" + path + ": MISSING " + missing
@@ -432,12 +706,20 @@ public class NamenodeFsck {
       case FIXING_NONE:
         break;
       case FIXING_MOVE:
-        if (!isOpen)
-          lostFoundMove(file, blocks);
+        if (!isOpen) {
+          boolean moved = lostFoundMove(file, blocks);
+          printAction(out, machineOut, path, "MOVE", moved,
+              moved ? "moved to " + lostFound + path
+                    : "could not be moved to /lost+found");
+        }
         break;
       case FIXING_DELETE:
-        if (!isOpen)
-          nn.namesystem.deleteInternal(path, null, false, false);
+        if (!isOpen) {
+          boolean deleted = nn.namesystem.deleteInternal(path, null, false,
+              false);
+          printAction(out, machineOut, path, "DELETE", deleted,
+              deleted ? "deleted" : "could not be deleted");
+        }
       }
     }
     if (showFiles) {
@@ -452,7 +734,37 @@ public class NamenodeFsck {
     }
   }
   
-  private void lostFoundMove(FileStatus file, LocatedBlocks blocks)
+  /**
+   * Add a problem found in a block to the machine readable report.
+   */
+  private static void appendNotice(StringBuffer machineReport,
+                                   PrintWriter machineOut, String path,
+                                   String notice) {
+    if (machineOut != null) {
+      machineReport.append("NOTICE\t" + path + "\t" + notice + "\n");
+    }
+  }
+
+  /**
+   * Report the move or the deletion of a corrupt file, so that it is never
+   * done silently.
+   */
+  private static void printAction(PrintWriter out, PrintWriter machineOut,
+                                  String path, String action,
+                                  boolean succeeded, String message) {
+    if (machineOut != null) {
+      machineOut.println("ACTION\t" + path + "\t" + action + "\t" +
+          (succeeded ? "OK" : FAILURE_STATUS) + "\t" + message);
+    } else {
+      out.println("\n" + path + ": " + message);
+    }
+  }
+
+  /**
+   * @return true if the file was moved to /lost+found
+   */
+  private synchronized boolean lostFoundMove(FileStatus file,
+                                             LocatedBlocks blocks)
     throws IOException {
     final DFSClient dfs = new DFSClient(NameNode.getAddress(conf), conf);
     try {
@@ -460,7 +772,7 @@ public class NamenodeFsck {
       lostFoundInit(dfs);
     }
     if (!lfInitedOk) {
-      return;
+      return false;
     }
     String target = lostFound + file.getPath();
     String errmsg = "Failed to move " + file.getPath() + " to /lost+found";
@@ -469,7 +781,7 @@ public class NamenodeFsck {
           file.getOwner(), file.getGroup(), file.getPermission()); 
       if (!nn.namesystem.dir.mkdirs(target, ps, false, FSNamesystem.now())) {
         LOG.warn(errmsg);
-        return;
+        return false;
       }
       // create chains
       int chain = 0;
@@ -510,10 +822,11 @@ public class NamenodeFsck {
       }
       if (fos != null) fos.close();
       LOG.warn("\n - moved corrupted file " + file.getPath() + " to /lost+found");
-      dfs.delete(file.getPath().toString(), true);
+      return dfs.delete(file.getPath().toString(), true);
     }  catch (Exception e) {
       e.printStackTrace();
       LOG.warn(errmsg + ": " + e.getMessage());
+      return false;
     }
     } finally {
       dfs.close();
@@ -686,7 +999,54 @@ public class NamenodeFsck {
     private long totalReplicas = 0L;
     private int totalDatanodes = 0;
     private int totalRacks = 0;
+    // counts by power of two of the size, see bucket()
+    private long[] fileSizes = new long[64];
+    private long[] blockSizes = new long[64];
     
+    /**
+     * The histogram bucket of a size. Bucket 0 holds size 0 and
+     * bucket k holds the sizes from 2^(k-1) to 2^k - 1.
+     */
+    static int bucket(long size) {
+      return size <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(size);
+    }
+
+    /** Add the counts of another result, for a part of the namespace. */
+    void add(FsckResult other) {
+      missingIds.addAll(other.missingIds);
+      missingSize += other.missingSize;
+      corruptFiles += other.corruptFiles;
+      corruptBlocks += other.corruptBlocks;
+      excessiveReplicas += other.excessiveReplicas;
+      missingReplicas += other.missingReplicas;
+      numOverReplicatedBlocks += other.numOverReplicatedBlocks;
+      numUnderReplicatedBlocks += other.numUnderReplicatedBlocks;
+      numMisReplicatedBlocks += other.numMisReplicatedBlocks;
+      numMinReplicatedBlocks += other.numMinReplicatedBlocks;
+      totalBlocks += other.totalBlocks;
+      totalOpenFilesBlocks += other.totalOpenFilesBlocks;
+      totalFiles += other.totalFiles;
+      totalOpenFiles += other.totalOpenFiles;
+      totalDirs += other.totalDirs;
+      totalSize += other.totalSize;
+      totalOpenFilesSize += other.totalOpenFilesSize;
+      totalReplicas += other.totalReplicas;
+      for (int i = 0; i < fileSizes.length; i++) {
+        fileSizes[i] += other.fileSizes[i];
+        blockSizes[i] += other.blockSizes[i];
+      }
+    }
+
+    /** Return the number of files per size, see {@link #bucket(long)}. */
+    public long[] getFileSizeHistogram() {
+      return fileSizes;
+    }
+
+    /** Return the number of blocks per size, see {@link #bucket(long)}. */
+    public long[] getBlockSizeHistogram() {
+      return blockSizes;
+    }
+
     /**
      * DFS is considered healthy if there are no missing blocks.
      */
@@ -860,8 +1220,75 @@ public class NamenodeFsck {
       if (totalReplicas > 0)        res.append(" (" + ((float) (missingReplicas * 100) / (float) totalReplicas) + " %)");
       res.append("\n Number of data-nodes:\t\t" + totalDatanodes);
       res.append("\n Number of racks:\t\t" + totalRacks);
+      appendHistogram(res, "File sizes", fileSizes);
+      appendHistogram(res, "Block sizes", blockSizes);
       return res.toString();
     }
+
+    private static void appendHistogram(StringBuffer res, String name,
+                                        long[] counts) {
+      res.append("\n " + name + ":");
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          res.append("\n  " + bucketName(i) + ":\t" + counts[i]);
+        }
+      }
+    }
+
+    private static String bucketName(int bucket) {
+      if (bucket == 0) {
+        return "0 B";
+      }
+      return "< " + StringUtils.humanReadableInt(1L << bucket) + "B";
+    }
+
+    /**
+     * The statistics as SUMMARY lines of a name and a value, and HISTOGRAM
+     * lines of a name, the upper bound of a bucket and its count.
+     */
+    public String toMachineString() {
+      StringBuffer res = new StringBuffer();
+      appendSummary(res, "status", isHealthy() ? "HEALTHY" : "CORRUPT");
+      appendSummary(res, "totalSize", totalSize);
+      appendSummary(res, "totalOpenFilesSize", totalOpenFilesSize);
+      appendSummary(res, "totalDirs", totalDirs);
+      appendSummary(res, "totalFiles", totalFiles);
+      appendSummary(res, "totalOpenFiles", totalOpenFiles);
+      appendSummary(res, "totalBlocks", totalBlocks);
+      appendSummary(res, "totalOpenFilesBlocks", totalOpenFilesBlocks);
+      appendSummary(res, "corruptFiles", corruptFiles);
+      appendSummary(res, "missingBlocks", missingIds.size());
+      appendSummary(res, "missingSize", missingSize);
+      appendSummary(res, "corruptBlocks", corruptBlocks);
+      appendSummary(res, "minReplicatedBlocks", numMinReplicatedBlocks);
+      appendSummary(res, "overReplicatedBlocks", numOverReplicatedBlocks);
+      appendSummary(res, "underReplicatedBlocks", numUnderReplicatedBlocks);
+      appendSummary(res, "misReplicatedBlocks", numMisReplicatedBlocks);
+      appendSummary(res, "replication", replication);
+      appendSummary(res, "averageReplication", getReplicationFactor());
+      appendSummary(res, "missingReplicas", missingReplicas);
+      appendSummary(res, "excessiveReplicas", excessiveReplicas);
+      appendSummary(res, "datanodes", totalDatanodes);
+      appendSummary(res, "racks", totalRacks);
+      for (int i = 0; i < fileSizes.length; i++) {
+        if (fileSizes[i] > 0) {
+          res.append("HISTOGRAM\tfileSize\t" + (i == 0 ? 0 : 1L << i) +
+                     "\t" + fileSizes[i] + "\n");
+        }
+      }
+      for (int i = 0; i < blockSizes.length; i++) {
+        if (blockSizes[i] > 0) {
+          res.append("HISTOGRAM\tblockSize\t" + (i == 0 ? 0 : 1L << i) +
+                     "\t" + blockSizes[i] + "\n");
+        }
+      }
+      return res.toString();
+    }
+
+    private static void appendSummary(StringBuffer res, String name,
+                                      Object value) {
+      res.append("SUMMARY\t" + name + "\t" + value + "\n");
+    }
     
     /** Return the number of currupted files. */
     public long getCorruptFiles() {
@@ -0,0 +1,290 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Caches what {@link FSPermissionChecker} resolves for a caller.
+ *
+ * A caller is identified by its user name and the group names it sent,
+ * so a caller whose groups change is simply a new entry. Entries expire
+ * after dfs.permissions.cache.expiry seconds.
+ *
+ * The cache also remembers the directories each caller was allowed to
+ * traverse: a directory is remembered once the caller passed the EXECUTE
+ * check on it and on all its ancestors. When the mode or owner of a
+ * directory changes, or a directory is moved or deleted, only that
+ * directory and the directories below it are dropped by
+ * {@link #invalidate(INode)}, so the cache never keeps the inodes removed
+ * from the namespace reachable.
+ */
+class PermissionCache {
+  static final String EXPIRY_KEY = "dfs.permissions.cache.expiry";
+  static final String TRAVERSE_SIZE_KEY = "dfs.permissions.cache.traverse.size";
+
+  private final String fsOwner;
+  private final String supergroup;
+  /** Expiry of a caller entry in milliseconds, 0 if caching is disabled */
+  private final long expiry;
+  /** The maximum number of directories remembered per caller */
+  private final int traverseSize;
+
+  private final ConcurrentHashMap<CallerKey, Caller> callers =
+    new ConcurrentHashMap<CallerKey, Caller>();
+  private volatile long lastPurge = FSNamesystem.now();
+  /** The directories the callers may traverse */
+  private final ConcurrentHashMap<Caller, Traversable> traversables =
+    new ConcurrentHashMap<Caller, Traversable>();
+
+  private final AtomicLong groupHits = new AtomicLong();
+  private final AtomicLong groupMisses = new AtomicLong();
+  private final AtomicLong traverseHits = new AtomicLong();
+  private final AtomicLong traverseMisses = new AtomicLong();
+
+  PermissionCache(String fsOwner, String supergroup, Configuration conf) {
+    this.fsOwner = fsOwner;
+    this.supergroup = supergroup;
+    this.expiry = conf.getLong(EXPIRY_KEY, 300) * 1000L;
+    this.traverseSize = conf.getInt(TRAVERSE_SIZE_KEY, 1024);
+  }
+
+  /**
+   * Create the permission checker of the current caller.
+   */
+  FSPermissionChecker getPermissionChecker() throws AccessControlException {
+    if (expiry <= 0) {
+      return new FSPermissionChecker(fsOwner, supergroup);
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUGI();
+    if (ugi == null) {
+      throw new AccessControlException("ugi = null");
+    }
+    CallerKey key = new CallerKey(ugi.getUserName(), ugi.getGroupNames());
+    long now = FSNamesystem.now();
+    Caller caller = callers.get(key);
+    if (caller != null && caller.expireTime > now) {
+      groupHits.incrementAndGet();
+    } else {
+      groupMisses.incrementAndGet();
+      purgeExpired(now);
+      caller = new Caller(key, now + expiry);
+      callers.put(key, caller);
+    }
+    return new FSPermissionChecker(caller);
+  }
+
+  /** Drop the expired callers, at most once per expiry period. */
+  private void purgeExpired(long now) {
+    if (now - lastPurge < expiry) {
+      return;
+    }
+    lastPurge = now;
+    for (Iterator<Caller> it = callers.values().iterator(); it.hasNext();) {
+      Caller caller = it.next();
+      if (caller.expireTime <= now) {
+        it.remove();
+        traversables.remove(caller);
+      }
+    }
+  }
+
+  /**
+   * Forget the remembered traversals of a directory and of the directories
+   * below it. Has to be called under the write lock after the change that
+   * made them stale, while the directories below still lead up to it.
+   */
+  void invalidate(INode inode) {
+    if (!inode.isDirectory()) {
+      return;
+    }
+    for (Traversable traversable : traversables.values()) {
+      traversable.removeSubtree(inode);
+    }
+  }
+
+  /** @return the number of cached callers */
+  int size() {
+    return callers.size();
+  }
+
+  /** @return the number of remembered directories of all callers */
+  int getTraversableCount() {
+    int count = 0;
+    for (Traversable traversable : traversables.values()) {
+      count += traversable.size();
+    }
+    return count;
+  }
+
+  /** @return the percentage of callers found in the cache */
+  int getGroupCacheHitRatio() {
+    return ratio(groupHits.get(), groupMisses.get());
+  }
+
+  /** @return the percentage of traverse checks answered by the cache */
+  int getTraverseCacheHitRatio() {
+    return ratio(traverseHits.get(), traverseMisses.get());
+  }
+
+  private static int ratio(long hits, long misses) {
+    long total = hits + misses;
+    return total == 0 ? 0 : (int) (hits * 100 / total);
+  }
+
+  /** The user and group names sent by a caller. */
+  private static class CallerKey {
+    private final String user;
+    private final String[] groups;
+    private final int hash;
+
+    CallerKey(String user, String[] groups) {
+      this.user = user;
+      this.groups = groups;
+      this.hash = 31 * user.hashCode() + Arrays.hashCode(groups);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CallerKey)) {
+        return false;
+      }
+      CallerKey that = (CallerKey) obj;
+      return hash == that.hash && user.equals(that.user)
+          && Arrays.equals(groups, that.groups);
+    }
+  }
+
+  /** A resolved caller. */
+  class Caller {
+    final String user;
+    final Set<String> groups;
+    final boolean isSuper;
+    private final long expireTime;
+
+    private Caller(CallerKey key, long expireTime) {
+      this.user = key.user;
+      this.groups = Collections.unmodifiableSet(
+          new HashSet<String>(Arrays.asList(key.groups)));
+      this.isSuper = user.equals(fsOwner) || groups.contains(supergroup);
+      this.expireTime = expireTime;
+    }
+
+    /**
+     * @return the directories the caller is known to be able to traverse
+     */
+    Traversable getTraversable() {
+      Traversable traversable = traversables.get(this);
+      if (traversable == null) {
+        traversable = new Traversable();
+        Traversable other = traversables.putIfAbsent(this, traversable);
+        if (other != null) {
+          traversable = other;
+        }
+      }
+      return traversable;
+    }
+  }
+
+  /** The directories a caller may traverse. */
+  class Traversable {
+    private final Set<INode> inodes =
+      Collections.newSetFromMap(new IdentityHashMap<INode, Boolean>());
+
+    /**
+     * Find the deepest of path[0..last] that the caller is known to be able
+     * to traverse.
+     * @return its index, or -1 if there is none
+     */
+    int find(INode[] path, int last) {
+      int found = -1;
+      synchronized (inodes) {
+        for (int j = last; j >= 0; j--) {
+          if (path[j] != null && inodes.contains(path[j])) {
+            found = j;
+            break;
+          }
+        }
+      }
+      (found >= 0 ? traverseHits : traverseMisses).incrementAndGet();
+      return found;
+    }
+
+    /**
+     * Remember that the caller can traverse inode and all its ancestors.
+     * If lock is not null, the traversal was checked by an optimistic read
+     * started with stamp, and is only remembered if the read is still
+     * valid. The check is made under the same monitor as the invalidation,
+     * which a writer only reaches after starting its write section.
+     */
+    void add(INode inode, FSNamesystemLock lock, long stamp) {
+      synchronized (inodes) {
+        if (lock != null && !lock.validate(stamp)) {
+          return;
+        }
+        if (inodes.size() >= traverseSize) {
+          inodes.clear();
+        }
+        inodes.add(inode);
+      }
+    }
+
+    /**
+     * Forget root and the remembered directories below it.
+     */
+    void removeSubtree(INode root) {
+      synchronized (inodes) {
+        for (Iterator<INode> it = inodes.iterator(); it.hasNext();) {
+          for (INode inode = it.next(); inode != null;
+               inode = inode.getParent()) {
+            if (inode == root) {
+              it.remove();
+              break;
+            }
+          }
+        }
+      }
+    }
+
+    /** @return the number of remembered directories */
+    int size() {
+      synchronized (inodes) {
+        return inodes.size();
+      }
+    }
+  }
+}
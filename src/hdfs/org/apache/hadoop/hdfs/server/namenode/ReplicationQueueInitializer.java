@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Put every block of the namenode into the replication queues it belongs
+ * to, in the background.
+ *
+ * The rows of the {@link BlocksMap} are split into one stripe per thread.
+ * A thread walks its stripe in slices: it finds the blocks of a slice that
+ * may be mis-replicated under the read lock, and then queues the ones that
+ * still are under the write lock. Changes to the blocks between the slices
+ * are put into the queues by the usual block report processing, since the
+ * namenode treats the queues as populated while this runs.
+ */
+class ReplicationQueueInitializer {
+  static final Log LOG = LogFactory.getLog(ReplicationQueueInitializer.class);
+
+  private final FSNamesystem namesystem;
+  private final BlocksMap blocksMap;
+  private final int numThreads;
+  private final int blocksPerLock;
+  private final int numRows;
+
+  private final AtomicLong rowsDone = new AtomicLong();
+  private final AtomicInteger running = new AtomicInteger();
+  private volatile boolean stopped = false;
+  private final long startTime = FSNamesystem.now();
+
+  final AtomicLong nrInvalid = new AtomicLong();
+  final AtomicLong nrUnderReplicated = new AtomicLong();
+  final AtomicLong nrOverReplicated = new AtomicLong();
+
+  ReplicationQueueInitializer(FSNamesystem namesystem, BlocksMap blocksMap,
+      int numThreads, int blocksPerLock) {
+    this.namesystem = namesystem;
+    this.blocksMap = blocksMap;
+    this.numThreads = Math.max(1, numThreads);
+    this.blocksPerLock = Math.max(1, blocksPerLock);
+    this.numRows = blocksMap.getNumRows();
+  }
+
+  /**
+   * Start the threads. They wait for the write lock if the caller holds it.
+   */
+  void start() {
+    LOG.info("Initializing replication queues of " + blocksMap.size()
+        + " blocks with " + numThreads + " threads");
+    running.set(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      int from = (int)((long)numRows * i / numThreads);
+      int to = (int)((long)numRows * (i + 1) / numThreads);
+      Daemon worker = new Daemon(new Worker(from, to));
+      worker.setName("ReplicationQueueInitializer-" + i);
+      worker.start();
+    }
+  }
+
+  /**
+   * Make the threads exit without touching the queues again. The caller
+   * has to hold the write lock, so that no thread is in the middle of a
+   * slice.
+   */
+  void stop() {
+    stopped = true;
+  }
+
+  /** @return true if all blocks were processed */
+  boolean isDone() {
+    return running.get() == 0 && !stopped;
+  }
+
+  /** @return the percentage of the blocks map processed so far */
+  int getPercentDone() {
+    return numRows == 0 ? 100 : (int)(rowsDone.get() * 100 / numRows);
+  }
+
+  /**
+   * Process all blocks on the calling thread, which holds the write lock.
+   */
+  void run() {
+    running.set(1);
+    new Worker(0, numRows).run();
+  }
+
+  private class Worker implements Runnable {
+    private final int from;
+    private final int to;
+
+    Worker(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    public void run() {
+      try {
+        List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+        List<BlockInfo> candidates = new ArrayList<BlockInfo>();
+        for (int row = from; row < to && !stopped; ) {
+          int end = row;
+          namesystem.readLock();
+          try {
+            if (stopped) {
+              return;
+            }
+            for (; end < to && blocks.size() < blocksPerLock; end++) {
+              blocksMap.getBlocks(end, blocks);
+            }
+            for (BlockInfo block : blocks) {
+              if (namesystem.isMisReplicatedCandidate(block)) {
+                candidates.add(block);
+              }
+            }
+          } finally {
+            namesystem.readUnlock();
+          }
+
+          if (!candidates.isEmpty()) {
+            namesystem.writeLock();
+            try {
+              if (stopped) {
+                return;
+              }
+              namesystem.processMisReplicatedBlocks(candidates,
+                  ReplicationQueueInitializer.this);
+            } finally {
+              namesystem.writeUnlock();
+            }
+          }
+          rowsDone.addAndGet(end - row);
+          row = end;
+          blocks.clear();
+          candidates.clear();
+        }
+      } catch (Throwable t) {
+        LOG.error("Replication queue initialization failed", t);
+      } finally {
+        if (running.decrementAndGet() == 0 && !stopped) {
+          LOG.info("Replication queues initialized in "
+              + (FSNamesystem.now() - startTime) + " msec");
+          LOG.info("Total number of blocks = " + blocksMap.size());
+          LOG.info("Number of invalid blocks = " + nrInvalid);
+          LOG.info("Number of under-replicated blocks = " + nrUnderReplicated);
+          LOG.info("Number of  over-replicated blocks = " + nrOverReplicated);
+        }
+      }
+    }
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.hadoop.hdfs.server.namenode;
 import org.apache.commons.logging.*;
 
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeProtocol;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants;
 import org.apache.hadoop.hdfs.server.common.InconsistentFSStateException;
@@ -28,13 +29,18 @@ import org.apache.hadoop.conf.*;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.http.HttpServer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.net.NetUtils;
 
 import java.io.*;
 import java.net.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.hadoop.metrics.jvm.JvmMetrics;
 
@@ -254,7 +260,9 @@ public class SecondaryNameNode implements Runnable {
     boolean downloadImage = true;
     String fileid;
     File[] srcNames;
-    if (sig.imageDigest.equals(checkpointImage.imageDigest)) {
+    // a streaming merge reads the image from disk, it is not kept in memory
+    if (!checkpointImage.isStreamingMerge() &&
+        sig.imageDigest.equals(checkpointImage.imageDigest)) {
       downloadImage = false;
       LOG.info("Image has not changed. Will not download image.");
     } else {
@@ -262,7 +270,7 @@ public class SecondaryNameNode implements Runnable {
       srcNames = checkpointImage.getImageFiles();
       assert srcNames.length > 0 : "No checkpoint targets.";
       fileid = "getimage=1";
-      TransferFsImage.getFileClient(fsName, fileid, srcNames, false);
+      TransferFsImage.getFileClient(conf, fsName, fileid, srcNames, false);
       checkpointImage.imageDigest = sig.imageDigest;
       LOG.info("Downloaded file " + srcNames[0].getName() + " size " +
           srcNames[0].length() + " bytes.");
@@ -271,7 +279,7 @@ public class SecondaryNameNode implements Runnable {
     fileid = "getedit=1";
     srcNames = checkpointImage.getEditsFiles();
     assert srcNames.length > 0 : "No checkpoint targets.";
-    TransferFsImage.getFileClient(fsName, fileid, srcNames, false);
+    TransferFsImage.getFileClient(conf, fsName, fileid, srcNames, false);
     LOG.info("Downloaded file " + srcNames[0].getName() + " size " +
         srcNames[0].length() + " bytes.");
 
@@ -358,6 +366,12 @@ public class SecondaryNameNode implements Runnable {
    * current storage directory.
    */
   private void doMerge(CheckpointSignature sig, boolean loadImage) throws IOException {
+    if (checkpointImage.doStreamingMerge(sig)) {
+      // the namespace is not loaded, release the one from an earlier merge
+      namesystem = null;
+      checkpointImage.setFSNamesystem(null);
+      return;
+    }
     if (loadImage) {  // create an empty namespace if new image
       namesystem = new FSNamesystem(checkpointImage, conf);
     }
@@ -486,10 +500,24 @@ public class SecondaryNameNode implements Runnable {
   }
 
   static class CheckpointStorage extends FSImage {
+    static final String STREAMING_MERGE_KEY = "fs.checkpoint.streaming.merge";
+    private static final String MERGED_IMAGE = "fsimage.merged";
+
+    private final Configuration conf;
+    private final boolean streamingMerge;
+    // the result of a streaming merge, saved instead of the namespace
+    private volatile File mergedImage = null;
+
     /**
      */
     CheckpointStorage(Configuration conf) throws IOException {
       super(conf);
+      this.conf = conf;
+      this.streamingMerge = conf.getBoolean(STREAMING_MERGE_KEY, false);
+    }
+
+    boolean isStreamingMerge() {
+      return streamingMerge;
     }
 
     @Override
@@ -596,5 +624,77 @@ public class SecondaryNameNode implements Runnable {
       sig.validateStorageInfo(this);
       saveNamespace(false);
     }
+
+    /**
+     * Merge image and edits with a {@link StreamingImageMerger}, if it is
+     * enabled, and save the result like {@link #doMerge} does.
+     * @return false if the merge has to be done by loading the namespace
+     */
+    boolean doStreamingMerge(CheckpointSignature sig) throws IOException {
+      if (!streamingMerge) {
+        return false;
+      }
+      Iterator<StorageDirectory> it = dirIterator(NameNodeDirType.IMAGE);
+      if (!it.hasNext())
+        throw new IOException("Could not locate checkpoint fsimage");
+      StorageDirectory sdName = it.next();
+      it = dirIterator(NameNodeDirType.EDITS);
+      if (!it.hasNext())
+        throw new IOException("Could not locate checkpoint edits");
+      StorageDirectory sdEdits = it.next();
+
+      List<File> edits = new ArrayList<File>();
+      edits.add(getImageFile(sdEdits, NameNodeFile.EDITS));
+      File editsNew = getImageFile(sdEdits, NameNodeFile.EDITS_NEW);
+      if (editsNew.exists() && editsNew.length() > 0) {
+        edits.add(editsNew);
+      }
+      // outside of current, which is moved away when the image is saved
+      File merged = new File(sdName.getRoot(), MERGED_IMAGE);
+      try {
+        StreamingImageMerger merger = new StreamingImageMerger(this, conf);
+        if (!merger.merge(getImageFile(sdName, NameNodeFile.IMAGE), edits,
+                          merged)) {
+          LOG.info("Streaming merge is not supported for this image, " +
+                   "loading the namespace instead.");
+          return false;
+        }
+        namespaceID = merger.getNamespaceID();
+        layoutVersion = FSConstants.LAYOUT_VERSION;
+        sig.validateStorageInfo(this);
+
+        getEditLog().open();
+        mergedImage = merged;
+        saveNamespace(false);
+      } finally {
+        mergedImage = null;
+        merged.delete();
+      }
+      return true;
+    }
+
+    @Override
+    void saveFSImage(String dest, OutputStream fstream,
+        boolean forceUncompressed) throws IOException {
+      File merged = mergedImage;
+      if (merged == null) {
+        super.saveFSImage(dest, fstream, forceUncompressed);
+        return;
+      }
+      MessageDigest digester = MD5Hash.getDigester();
+      DigestOutputStream out = new DigestOutputStream(fstream, digester);
+      InputStream in = new FileInputStream(merged);
+      try {
+        IOUtils.copyBytes(in, out, conf, false);
+        out.flush();
+        if (fstream instanceof FileOutputStream) {
+          ((FileOutputStream)fstream).getChannel().force(true);
+        }
+      } finally {
+        in.close();
+        out.close();
+      }
+      setImageDigest(new MD5Hash(digester.digest()));
+    }
   }
 }
@@ -0,0 +1,575 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLog.EditLogFileInputStream;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+
+/**
+ * Applies edit logs to an fsimage without loading the whole namespace.
+ * <p>
+ * The edits are scanned first to find the paths they modify. Only those
+ * paths, their ancestors and the immediate children of all of them are
+ * loaded from the image into a partial namespace, and the edits are then
+ * replayed against it as usual. Every other directory is kept as a stub
+ * that remembers where its subtree is stored in the old image. The new
+ * image is written by saving the partial namespace in the usual order and
+ * copying the subtree of each stub from the old image, so the result is
+ * the same image that loading the namespace, applying the edits and
+ * calling saveNamespace would produce.
+ * <p>
+ * Memory use is proportional to the part of the namespace touched by the
+ * edits rather than to the size of the namespace. Images and edits that
+ * were not written with the current layout version are not supported, in
+ * which case {@link #merge(File, List, File)} returns false and the caller
+ * is expected to fall back to a regular merge.
+ */
+class StreamingImageMerger {
+  public static final Log LOG =
+    LogFactory.getLog(StreamingImageMerger.class.getName());
+
+  private static final byte[] PATH_SEPARATOR =
+    DFSUtil.string2Bytes(Path.SEPARATOR);
+
+  /**
+   * A directory whose subtree is not modified by the edits and is
+   * copied from the old image rather than loaded.
+   */
+  private static class Stub {
+    final String path;              // path in the old image
+    final INodeDirectory node;
+    long offset = -1;               // of the first directory record
+    int numRecords = 0;             // directory records in the subtree
+    long numINodes = 0;             // inodes below the stub directory
+    /** files under construction in the subtree, by relative path */
+    Map<String, INodeFileUnderConstruction> underConstruction = null;
+
+    Stub(String path, INodeDirectory node) {
+      this.path = path;
+      this.node = node;
+    }
+  }
+
+  private final FSImage target;
+  private final Configuration conf;
+  private final FSImage partialImage;
+  private final FSNamesystem partialNamesystem;
+  private final FSDirectory fsDir;
+
+  private final Set<String> modifiedPaths = new HashSet<String>();
+  private final Map<String, Stub> stubs = new HashMap<String, Stub>();
+  private final Map<INode, Stub> stubsByNode =
+    new IdentityHashMap<INode, Stub>();
+
+  private int namespaceID;
+  private File bodyFile;            // file holding the inode records
+  private long bodyStart;           // where the inode records start
+  private int loadedINodes = 0;
+
+  /**
+   * @param target the image whose compression settings the merged
+   *               image is written with
+   */
+  StreamingImageMerger(FSImage target, Configuration conf)
+  throws IOException {
+    this.target = target;
+    this.conf = conf;
+    this.partialImage = new FSImage();
+    this.partialNamesystem = new FSNamesystem(partialImage, conf);
+    this.fsDir = partialNamesystem.dir;
+  }
+
+  /** @return the namespace id of the merged image */
+  int getNamespaceID() {
+    return namespaceID;
+  }
+
+  /**
+   * Apply the given edit logs to an image and write the result.
+   *
+   * @param image the image to start from
+   * @param edits the edit logs to apply, in order
+   * @param output where to write the new image
+   * @return false if the image or edits cannot be merged by this class
+   */
+  boolean merge(File image, List<File> edits, File output)
+  throws IOException {
+    long startTime = FSNamesystem.now();
+    modifiedPaths.add(Path.SEPARATOR);
+    for (File f : edits) {
+      Set<String> paths = new HashSet<String>();
+      if (FSEditLog.collectPaths(new EditLogFileInputStream(f), paths) < 0) {
+        LOG.info("Edits file " + f + " has an old layout version");
+        return false;
+      }
+      for (String path : paths) {
+        for (String p = path; p.length() > 1 && modifiedPaths.add(p);
+             p = parentOf(p));
+      }
+    }
+    try {
+      if (!loadPartialImage(image, output)) {
+        LOG.info("Image file " + image + " has an old layout version");
+        return false;
+      }
+      LOG.info("Loaded " + loadedINodes + " inodes and " + stubs.size() +
+               " unmodified directories from " + image);
+      for (File f : edits) {
+        partialImage.getEditLog().loadFSEdits(new EditLogFileInputStream(f));
+      }
+      saveImage(output);
+    } finally {
+      if (bodyFile != null && !bodyFile.equals(image)) {
+        bodyFile.delete();
+      }
+    }
+    LOG.info("Image file of size " + output.length() + " merged in "
+             + (FSNamesystem.now() - startTime)/1000 + " seconds.");
+    return true;
+  }
+
+  /**
+   * Load the modified part of the namespace and record where the
+   * unmodified subtrees are stored.
+   */
+  private boolean loadPartialImage(File image, File output)
+  throws IOException {
+    FileInputStream fin = new FileInputStream(image);
+    OutputStream tee = null;
+    DataInputStream in = new DataInputStream(fin);
+    try {
+      int imgVersion = in.readInt();
+      if (imgVersion != FSConstants.LAYOUT_VERSION) {
+        return false;
+      }
+      namespaceID = in.readInt();
+      long numFiles = in.readLong();
+      partialNamesystem.setGenerationStamp(in.readLong());
+      boolean isCompressed = in.readBoolean();
+      InputStream body = fin;
+      if (isCompressed) {
+        // the inode records are read again when the new image is written,
+        // so keep a decompressed copy of them
+        String codecClassName = Text.readString(in);
+        CompressionCodec codec = new CompressionCodecFactory(conf)
+          .getCodecByClassName(codecClassName);
+        if (codec == null) {
+          throw new IOException("Image compression codec not supported: "
+                                + codecClassName);
+        }
+        body = codec.createInputStream(fin);
+        bodyFile = new File(output.getPath() + ".body");
+        bodyStart = 0;
+        tee = new BufferedOutputStream(new FileOutputStream(bodyFile));
+      } else {
+        bodyFile = image;
+        bodyStart = fin.getChannel().position();
+      }
+      PositionInputStream pin =
+        new PositionInputStream(new BufferedInputStream(body), tee);
+      in = new DataInputStream(pin);
+
+      if (in.readShort() != 0) {
+        throw new IOException("First node is not root");
+      }
+      INode root = partialImage.loadINode(imgVersion, partialNamesystem, in);
+      partialImage.updateRootAttr(root, partialNamesystem);
+      long filesLoaded = 1;
+      Stub current = null;
+      while (filesLoaded < numFiles) {
+        long offset = pin.getPos();
+        String parentPath = FSImage.readString(in);
+        int numChildren = in.readInt();
+        if (modifiedPaths.contains(parentPath)) {
+          loadDirectory(imgVersion, parentPath, numChildren, in);
+        } else {
+          // directory records are in pre-order, so the records of a
+          // subtree are stored together
+          if (current == null || !isUnder(parentPath, current.path)) {
+            current = findStub(parentPath);
+            if (current == null) {
+              throw new IOException("Directory " + parentPath +
+                                    " is not below a loaded directory");
+            }
+          }
+          if (current.numRecords++ == 0) {
+            current.offset = offset;
+          }
+          current.numINodes += numChildren;
+          for (int i = 0; i < numChildren; i++) {
+            in.skipBytes(in.readShort());
+            skipINode(in);
+          }
+        }
+        filesLoaded += numChildren;
+      }
+      if (numFiles != filesLoaded) {
+        throw new IOException("Read unexpect number of files: " + filesLoaded);
+      }
+      loadFilesUnderConstruction(in);
+      return true;
+    } finally {
+      in.close();
+      if (tee != null) {
+        tee.close();
+      }
+    }
+  }
+
+  private void loadDirectory(int imgVersion, String parentPath,
+      int numChildren, DataInputStream in) throws IOException {
+    INode parent = fsDir.rootDir.getNode(parentPath);
+    if (parent == null || !parent.isDirectory()) {
+      throw new IOException("Path " + parentPath + "is not a directory.");
+    }
+    for (int i = 0; i < numChildren; i++) {
+      byte[] localName = new byte[in.readShort()];
+      in.readFully(localName);
+      INode newNode = partialImage.loadINode(imgVersion, partialNamesystem, in);
+      fsDir.addToParent(localName, (INodeDirectory)parent, newNode, false);
+      loadedINodes++;
+      String path = childPath(parentPath, DFSUtil.bytes2String(localName));
+      if (newNode.isDirectory() && !modifiedPaths.contains(path)) {
+        Stub stub = new Stub(path, (INodeDirectory)newNode);
+        stubs.put(path, stub);
+        stubsByNode.put(newNode, stub);
+      }
+    }
+  }
+
+  /**
+   * Files under construction that are below a stub are attached to it
+   * through placeholder directories, so that their leases can be saved.
+   */
+  private void loadFilesUnderConstruction(DataInputStream in)
+  throws IOException {
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      INodeFileUnderConstruction cons = FSImage.readINodeUnderConstruction(in);
+      String path = cons.getLocalName();
+      INode old = fsDir.getFileINode(path);
+      if (old != null) {
+        fsDir.replaceNode(path, (INodeFile)old, cons);
+      } else {
+        Stub stub = findStub(path);
+        if (stub == null || path.equals(stub.path)) {
+          throw new IOException("Found lease for non-existent file " + path);
+        }
+        String relative = path.substring(stub.path.length() + 1);
+        String[] names = relative.split(Path.SEPARATOR);
+        INodeDirectory dir = stub.node;
+        for (int j = 0; j < names.length - 1; j++) {
+          INode child = dir.getChild(names[j]);
+          if (child == null) {
+            child = dir.addChild(new INodeDirectory(
+                DFSUtil.string2Bytes(names[j]),
+                stub.node.getPermissionStatus(), 0), false);
+          }
+          dir = (INodeDirectory)child;
+        }
+        cons.setLocalName(names[names.length - 1]);
+        dir.addChild(cons, false);
+        if (stub.underConstruction == null) {
+          stub.underConstruction =
+            new HashMap<String, INodeFileUnderConstruction>();
+        }
+        stub.underConstruction.put(relative, cons);
+      }
+      partialNamesystem.leaseManager.addLease(cons.clientName, path);
+    }
+  }
+
+  /**
+   * Write the new image in the same order as
+   * {@link FSImage#saveFSImage(String, OutputStream, boolean)}.
+   */
+  private void saveImage(File output) throws IOException {
+    FileOutputStream fstream = new FileOutputStream(output);
+    DataOutputStream out = null;
+    FileInputStream body = new FileInputStream(bodyFile);
+    try {
+      out = target.writeImageHeader(output.getCanonicalPath(), fstream,
+          namespaceID, countItems(fsDir.rootDir),
+          partialNamesystem.getGenerationStamp(), false);
+      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+      ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
+      FSImage.saveINode2Image(fsDir.rootDir, out);
+      saveDirectory(strbuf, fsDir.rootDir, out, body.getChannel());
+      partialNamesystem.saveFilesUnderConstruction(out);
+      out.flush();
+      fstream.getChannel().force(true);
+    } finally {
+      IOUtils.closeStream(body);
+      if (out != null) {
+        out.close();
+      } else {
+        fstream.close();
+      }
+    }
+  }
+
+  private long countItems(INode node) {
+    Stub stub = stubsByNode.get(node);
+    if (stub != null) {
+      return 1 + stub.numINodes;
+    }
+    long count = 1;
+    if (node.isDirectory()) {
+      List<INode> children = ((INodeDirectory)node).getChildrenRaw();
+      if (children != null) {
+        for (INode child : children) {
+          count += countItems(child);
+        }
+      }
+    }
+    return count;
+  }
+
+  private void saveDirectory(ByteBuffer currentDirName,
+      INodeDirectory current, DataOutputStream out, FileChannel body)
+  throws IOException {
+    Stub stub = stubsByNode.get(current);
+    if (stub != null) {
+      copyStub(stub, currentDirName, out, body);
+      return;
+    }
+    List<INode> children = current.getChildrenRaw();
+    if (children == null || children.isEmpty())  // empty directory
+      return;
+    int prefixLen = currentDirName.position();
+    writeParentPath(currentDirName, out);
+    out.writeInt(children.size());
+    for (INode child : children) {
+      FSImage.saveINode2Image(child, out);
+    }
+    for (INode child : children) {
+      if (!child.isDirectory())
+        continue;
+      currentDirName.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
+      saveDirectory(currentDirName, (INodeDirectory)child, out, body);
+      currentDirName.position(prefixLen);
+    }
+  }
+
+  /**
+   * Copy the directory records of an unmodified subtree, replacing its
+   * old path with the current one. The inodes are passed through
+   * loadINode and saveINode2Image so that they are written exactly as a
+   * regular save would write them.
+   */
+  private void copyStub(Stub stub, ByteBuffer currentDirName,
+      DataOutputStream out, FileChannel body) throws IOException {
+    if (stub.numRecords == 0) {
+      return;
+    }
+    body.position(bodyStart + stub.offset);
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(body)));
+    byte[] oldPrefix = DFSUtil.string2Bytes(stub.path);
+    int prefixLen = currentDirName.position();
+    for (int i = 0; i < stub.numRecords; i++) {
+      byte[] parentPath = FSImage.readBytes(in);
+      if (!startsWith(parentPath, oldPrefix)) {
+        throw new IOException("Directory " +
+            DFSUtil.bytes2String(parentPath) + " is not below " + stub.path);
+      }
+      currentDirName.put(parentPath, oldPrefix.length,
+                         parentPath.length - oldPrefix.length);
+      writeParentPath(currentDirName, out);
+      currentDirName.position(prefixLen);
+
+      String relativeDir = null;
+      if (stub.underConstruction != null) {
+        relativeDir = DFSUtil.bytes2String(parentPath)
+          .substring(stub.path.length());
+      }
+      int numChildren = in.readInt();
+      out.writeInt(numChildren);
+      for (int j = 0; j < numChildren; j++) {
+        byte[] localName = new byte[in.readShort()];
+        in.readFully(localName);
+        INode node = partialImage.loadINode(FSConstants.LAYOUT_VERSION,
+                                            partialNamesystem, in);
+        node.setLocalName(localName);
+        if (relativeDir != null && !node.isDirectory()) {
+          String relative = childPath(relativeDir,
+              DFSUtil.bytes2String(localName)).substring(1);
+          INode cons = stub.underConstruction.get(relative);
+          if (cons != null) {
+            node = cons;
+          }
+        }
+        FSImage.saveINode2Image(node, out);
+      }
+    }
+  }
+
+  private static void writeParentPath(ByteBuffer currentDirName,
+      DataOutputStream out) throws IOException {
+    int prefixLen = currentDirName.position();
+    if (prefixLen == 0) {  // root
+      out.writeShort(PATH_SEPARATOR.length);
+      out.write(PATH_SEPARATOR);
+    } else {  // non-root directories
+      out.writeShort(prefixLen);
+      out.write(currentDirName.array(), 0, prefixLen);
+    }
+  }
+
+  /** Skip over an inode of the current layout version. */
+  private static void skipINode(DataInputStream in) throws IOException {
+    in.skipBytes(2 + 8 + 8 + 8);  // replication, mtime, atime, block size
+    int numBlocks = in.readInt();
+    if (numBlocks >= 0) {
+      in.skipBytes(numBlocks * 3 * 8);
+    } else {
+      in.skipBytes(2 * 8);        // quotas
+    }
+    Text.skip(in);                // user
+    Text.skip(in);                // group
+    in.skipBytes(2);              // permission
+  }
+
+  /** Find the stub the given path is, or is below. */
+  private Stub findStub(String path) {
+    for (String p = path; p.length() > 1; p = parentOf(p)) {
+      Stub stub = stubs.get(p);
+      if (stub != null) {
+        return stub;
+      }
+    }
+    return null;
+  }
+
+  static String parentOf(String path) {
+    int i = path.lastIndexOf(Path.SEPARATOR_CHAR);
+    return i == 0 ? Path.SEPARATOR : path.substring(0, i);
+  }
+
+  private static String childPath(String parent, String name) {
+    return parent.endsWith(Path.SEPARATOR) ? parent + name
+                                           : parent + Path.SEPARATOR + name;
+  }
+
+  private static boolean isUnder(String path, String dir) {
+    return path.startsWith(dir) && (path.length() == dir.length() ||
+        path.charAt(dir.length()) == Path.SEPARATOR_CHAR);
+  }
+
+  private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    if (bytes.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return bytes.length == prefix.length ||
+           bytes[prefix.length] == PATH_SEPARATOR[0];
+  }
+
+  /**
+   * Tracks the position in a stream and optionally copies everything
+   * that is read to another stream.
+   */
+  static class PositionInputStream extends FilterInputStream {
+    private final OutputStream copy;
+    private long pos = 0;
+
+    PositionInputStream(InputStream in, OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    long getPos() {
+      return pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        pos++;
+        if (copy != null) {
+          copy.write(b);
+        }
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        pos += n;
+        if (copy != null) {
+          copy.write(b, off, n);
+        }
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (copy == null) {
+        long skipped = in.skip(n);
+        pos += skipped;
+        return skipped;
+      }
+      byte[] buf = new byte[(int)Math.min(n, 4096)];
+      int read = read(buf, 0, buf.length);
+      return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -21,33 +21,62 @@ import org.apache.commons.logging.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.Map;
 import java.lang.Math;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
+import org.apache.hadoop.hdfs.server.common.HdfsConstants;
 import org.apache.hadoop.hdfs.server.namenode.SecondaryNameNode.ErrorSimulator;
+import org.apache.hadoop.hdfs.server.namenode.metrics.ImageTransferMetrics;
 import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * This class provides fetching a specified file from the NameNode.
+ * <p>
+ * A file can be fetched in one request, or in ranges given by the
+ * {@code offset} and {@code length} parameters. The response to a range
+ * request carries the length of the file and the length and MD5 of the
+ * range in its headers, and the range is compressed if the request has
+ * the {@code compress} parameter.
  */
 class TransferFsImage implements FSConstants {
   public final static String CONTENT_LENGTH = "Content-Length";
+  public final static String FILE_LENGTH = "File-Length";
+  public final static String RANGE_LENGTH = "Range-Length";
+  public final static String RANGE_MD5 = "Range-MD5";
+  public final static String RANGE_COMPRESSED = "Range-Compressed";
   public static final Log LOG = LogFactory.getLog(TransferFsImage.class.getName());
 
+  private static final int TRANSFER_SIZE = 64 * 1024;
+  private static final CompressionCodec codec =
+    ReflectionUtils.newInstance(DefaultCodec.class, new Configuration());
+
   private boolean isGetImage;
   private boolean isGetEdit;
   private boolean isPutImage;
   private int remoteport;
   private String machineName;
   private CheckpointSignature token;
+  private long offset = -1;
+  private long length = -1;
+  private boolean compress = false;
   
   /**
    * File downloader.
@@ -80,6 +109,12 @@ class TransferFsImage implements FSConstants {
         machineName = pmap.get("machine")[0];
       } else if (key.equals("token")) { 
         token = new CheckpointSignature(pmap.get("token")[0]);
+      } else if (key.equals("offset")) {
+        offset = Long.parseLong(pmap.get("offset")[0]);
+      } else if (key.equals("length")) {
+        length = Long.parseLong(pmap.get("length")[0]);
+      } else if (key.equals("compress")) {
+        compress = true;
       }
     }
 
@@ -112,6 +147,125 @@ class TransferFsImage implements FSConstants {
     return machineName + ":" + remoteport;
   }
 
+  /**
+   * A server-side method to respond to a getfile http request.
+   * Sends the requested range of the local file, or all of it if no
+   * range was requested.
+   */
+  void sendFile(HttpServletResponse response, File localfile,
+                DataTransferThrottler throttler) throws IOException {
+    long startTime = System.currentTimeMillis();
+    long sent;
+    if (offset < 0) {
+      sent = localfile.length();
+      response.setHeader(CONTENT_LENGTH, String.valueOf(sent));
+      getFileServer(response.getOutputStream(), localfile, throttler);
+    } else {
+      sent = sendRange(response, localfile, throttler);
+    }
+    ImageTransferMetrics.getInstance().sent(sent,
+        System.currentTimeMillis() - startTime);
+  }
+
+  private long sendRange(HttpServletResponse response, File localfile,
+                         DataTransferThrottler throttler) throws IOException {
+    FileInputStream infile = new FileInputStream(localfile);
+    try {
+      FileChannel channel = infile.getChannel();
+      long fileLength = channel.size();
+      if (offset > fileLength) {
+        throw new IOException("Offset " + offset + " is beyond the end of " +
+                              localfile);
+      }
+      long count = fileLength - offset;
+      if (length >= 0) {
+        count = Math.min(count, length);
+      }
+      response.setHeader(FILE_LENGTH, String.valueOf(fileLength));
+      response.setHeader(RANGE_LENGTH, String.valueOf(count));
+      response.setHeader(RANGE_MD5, digest(channel, offset, count).toString());
+
+      OutputStream out = new ThrottledOutputStream(
+          response.getOutputStream(), throttler);
+      if (compress) {
+        response.setHeader(RANGE_COMPRESSED, "true");
+        CompressionOutputStream cout = codec.createOutputStream(out);
+        transfer(channel, offset, count, cout);
+        cout.finish();
+      } else {
+        response.setHeader(CONTENT_LENGTH, String.valueOf(count));
+        transfer(channel, offset, count, out);
+      }
+      out.flush();
+      return count;
+    } finally {
+      infile.close();
+    }
+  }
+
+  private static MD5Hash digest(FileChannel channel, long offset, long count)
+  throws IOException {
+    MessageDigest digester = MD5Hash.getDigester();
+    digester.reset();
+    ByteBuffer buf = ByteBuffer.allocate(TRANSFER_SIZE);
+    long end = offset + count;
+    for (long pos = offset; pos < end; ) {
+      buf.clear();
+      buf.limit((int)Math.min(buf.capacity(), end - pos));
+      int num = channel.read(buf, pos);
+      if (num < 0) {
+        throw new EOFException("Unexpected end of file at " + pos);
+      }
+      digester.update(buf.array(), 0, num);
+      pos += num;
+    }
+    return new MD5Hash(digester.digest());
+  }
+
+  /**
+   * Hand a range of the file to the output with transferTo, which avoids
+   * copying it through a buffer of our own.
+   */
+  private static void transfer(FileChannel channel, long offset, long count,
+                               OutputStream out) throws IOException {
+    WritableByteChannel target = Channels.newChannel(out);
+    long end = offset + count;
+    for (long pos = offset; pos < end; ) {
+      long num = channel.transferTo(pos, Math.min(TRANSFER_SIZE, end - pos),
+                                    target);
+      if (num <= 0) {
+        throw new EOFException("Unexpected end of file at " + pos);
+      }
+      pos += num;
+    }
+  }
+
+  /** Throttles the bytes written to a stream. */
+  private static class ThrottledOutputStream extends FilterOutputStream {
+    private final DataTransferThrottler throttler;
+
+    ThrottledOutputStream(OutputStream out, DataTransferThrottler throttler) {
+      super(out);
+      this.throttler = throttler;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      if (throttler != null) {
+        throttler.throttle(1);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (throttler != null) {
+        throttler.throttle(len);
+      }
+    }
+  }
+
   /**
    * A server-side method to respond to a getfile http request
    * Copies the contents of the local file into the output stream.
@@ -158,6 +312,206 @@ class TransferFsImage implements FSConstants {
     }
   }
 
+  /**
+   * Client-side Method to fetch file from a server
+   * Copies the response from the URL to a list of local files. If
+   * {@link HdfsConstants#DFS_IMAGE_TRANSFER_CHUNKSIZE_KEY} is set in the
+   * configuration, the file is fetched in checksummed ranges and a range
+   * that fails is fetched again.
+   * 
+   * @Return a digest of the received file if getChecksum is true
+   */
+  static MD5Hash getFileClient(Configuration conf, String fsName, String id,
+      File[] localPath, boolean getChecksum) throws IOException {
+    long chunkSize = conf == null ? 0 : conf.getLong(
+        HdfsConstants.DFS_IMAGE_TRANSFER_CHUNKSIZE_KEY,
+        HdfsConstants.DFS_IMAGE_TRANSFER_CHUNKSIZE_DEFAULT);
+    if (chunkSize <= 0 || localPath == null) {
+      return getFileClient(fsName, id, localPath, getChecksum);
+    }
+    long startTime = System.currentTimeMillis();
+    RangeDownload download = new RangeDownload(
+        "http://" + fsName + "/getimage?" + id, localPath, getChecksum,
+        chunkSize, conf.getBoolean(
+            HdfsConstants.DFS_IMAGE_TRANSFER_COMPRESS_KEY,
+            HdfsConstants.DFS_IMAGE_TRANSFER_COMPRESS_DEFAULT));
+    int maxRetries = conf.getInt(
+        HdfsConstants.DFS_IMAGE_TRANSFER_RETRIES_KEY,
+        HdfsConstants.DFS_IMAGE_TRANSFER_RETRIES_DEFAULT);
+    try {
+      int retries = 0;
+      while (!download.isDone()) {
+        try {
+          download.fetchRange();
+          retries = 0;
+        } catch (FileNotFoundException e) {
+          throw e;
+        } catch (IOException e) {
+          if (++retries > maxRetries) {
+            throw e;
+          }
+          LOG.warn("Failed to fetch " + download.url + " at offset " +
+                   download.offset + ", retrying: " + e);
+          ImageTransferMetrics.getInstance().rangeRetries.inc();
+          download.rollback();
+        }
+      }
+    } finally {
+      download.close();
+    }
+    ImageTransferMetrics.getInstance().received(download.offset,
+        System.currentTimeMillis() - startTime);
+    return download.getDigest();
+  }
+
+  /**
+   * State of a file being fetched in ranges. A range that fails is
+   * rolled back, so it can be fetched again.
+   */
+  private static class RangeDownload {
+    final String url;
+    private final long chunkSize;
+    private final boolean compress;
+    private final FileOutputStream[] output;
+    private MessageDigest digester;
+    private MessageDigest rangeStartDigester;
+    long offset = 0;
+    private long fileLength = -1;
+
+    RangeDownload(String url, File[] localPath, boolean getChecksum,
+                  long chunkSize, boolean compress) throws IOException {
+      this.url = url;
+      this.chunkSize = chunkSize;
+      this.compress = compress;
+      // the per-thread digester of MD5Hash is used for the ranges
+      this.digester = getChecksum ? newDigester() : null;
+      this.output = new FileOutputStream[localPath.length];
+      try {
+        for (int i = 0; i < output.length; i++) {
+          output[i] = new FileOutputStream(localPath[i]);
+        }
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    boolean isDone() {
+      return fileLength >= 0 && offset >= fileLength;
+    }
+
+    MD5Hash getDigest() {
+      return digester == null ? null : new MD5Hash(digester.digest());
+    }
+
+    void fetchRange() throws IOException {
+      rangeStartDigester = cloneDigester();
+      String str = url + "&offset=" + offset + "&length=" + chunkSize +
+                   (compress ? "&compress=1" : "");
+      URLConnection connection = new URL(str).openConnection();
+      connection.setReadTimeout(10 * 60 * 1000); // 10 minute read timeout
+      InputStream stream = connection.getInputStream();
+      try {
+        String rangeLength = connection.getHeaderField(RANGE_LENGTH);
+        if (rangeLength == null) {
+          // the server does not support ranges, it sent the whole file
+          if (offset != 0) {
+            throw new IOException("Server does not support ranges: " + str);
+          }
+          String contentLength = connection.getHeaderField(CONTENT_LENGTH);
+          if (contentLength == null) {
+            throw new IOException(CONTENT_LENGTH + " header is not provided " +
+                                  "by the namenode when trying to fetch " + str);
+          }
+          fileLength = Long.parseLong(contentLength);
+          receive(stream, fileLength, null, str);
+          return;
+        }
+        long length = Long.parseLong(connection.getHeaderField(FILE_LENGTH));
+        if (fileLength >= 0 && length != fileLength) {
+          throw new IOException("File " + url + " changed from " +
+                                fileLength + " to " + length +
+                                " bytes during the transfer");
+        }
+        fileLength = length;
+        if (connection.getHeaderField(RANGE_COMPRESSED) != null) {
+          stream = codec.createInputStream(stream);
+        }
+        receive(stream, Long.parseLong(rangeLength),
+                new MD5Hash(connection.getHeaderField(RANGE_MD5)), str);
+      } finally {
+        stream.close();
+      }
+    }
+
+    private void receive(InputStream stream, long count, MD5Hash expected,
+                         String str) throws IOException {
+      MessageDigest rangeDigester = MD5Hash.getDigester();
+      rangeDigester.reset();
+      byte[] buf = new byte[BUFFER_SIZE];
+      long received = 0;
+      int num;
+      while ((num = stream.read(buf)) > 0) {
+        received += num;
+        if (received > count) {
+          break;
+        }
+        rangeDigester.update(buf, 0, num);
+        if (digester != null) {
+          digester.update(buf, 0, num);
+        }
+        for (int i = 0; i < output.length; i++) {
+          output[i].write(buf, 0, num);
+        }
+      }
+      if (received != count) {
+        throw new IOException("File " + str + " received length " + received +
+                              " is not of the advertised size " + count);
+      }
+      if (expected != null &&
+          !expected.equals(new MD5Hash(rangeDigester.digest()))) {
+        throw new IOException("Checksum mismatch for " + str);
+      }
+      offset += count;
+    }
+
+    /** Discard what was received of the last range. */
+    void rollback() throws IOException {
+      for (int i = 0; i < output.length; i++) {
+        output[i].getChannel().truncate(offset);
+        output[i].getChannel().position(offset);
+      }
+      digester = rangeStartDigester;
+    }
+
+    private static MessageDigest newDigester() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private MessageDigest cloneDigester() throws IOException {
+      if (digester == null) {
+        return null;
+      }
+      try {
+        return (MessageDigest)digester.clone();
+      } catch (CloneNotSupportedException e) {
+        throw new IOException("Cannot checkpoint digest: " + e);
+      }
+    }
+
+    void close() throws IOException {
+      for (int i = 0; i < output.length; i++) {
+        if (output[i] != null) {
+          output[i].close();
+        }
+      }
+    }
+  }
+
   /**
    * Client-side Method to fetch file from a server
    * Copies the response from the URL to a list of local files.
@@ -167,6 +521,7 @@ class TransferFsImage implements FSConstants {
   static MD5Hash getFileClient(String fsName, String id, File[] localPath,
       boolean getChecksum)
     throws IOException {
+    long startTime = System.currentTimeMillis();
     byte[] buf = new byte[BUFFER_SIZE];
     StringBuffer str = new StringBuffer("http://"+fsName+"/getimage?");
     str.append(id);
@@ -231,6 +586,10 @@ class TransferFsImage implements FSConstants {
                               advertisedSize);
       }
     }
+    if (localPath != null) {
+      ImageTransferMetrics.getInstance().received(received,
+          System.currentTimeMillis() - startTime);
+    }
     return digester==null ? null : new MD5Hash(digester.digest());
   }
 }
@@ -53,6 +53,16 @@ public class FSNamesystemMetrics implements Updater {
   final MetricsIntValue totalLoad = new MetricsIntValue("TotalLoad", registry);
   final MetricsIntValue pendingDeletionBlocks = new MetricsIntValue("PendingDeletionBlocks", registry);
   final MetricsIntValue corruptBlocks = new MetricsIntValue("CorruptBlocks", registry);
+  final MetricsLongValue corruptReplicasMemory =
+                   new MetricsLongValue("CorruptReplicasMemory", registry);
+  final MetricsLongValue pendingDeletionMemory =
+                   new MetricsLongValue("PendingDeletionMemory", registry);
+  final MetricsIntValue groupCacheHitRatio =
+                   new MetricsIntValue("GroupCacheHitRatio", registry);
+  final MetricsIntValue traverseCacheHitRatio =
+                   new MetricsIntValue("TraverseCacheHitRatio", registry);
+  final MetricsIntValue replQueueInitPercent =
+                   new MetricsIntValue("ReplQueueInitPercent", registry);
   final MetricsIntValue excessBlocks = new MetricsIntValue("ExcessBlocks", registry);
   final MetricsIntValue pendingReplicationBlocks = new MetricsIntValue("PendingReplicationBlocks", registry);
   final MetricsIntValue underReplicatedBlocks = new MetricsIntValue("UnderReplicatedBlocks", registry);
@@ -111,6 +121,11 @@ public class FSNamesystemMetrics implements Updater {
       corruptBlocks.set((int)fsNameSystem.getCorruptReplicaBlocks());
       excessBlocks.set((int)fsNameSystem.getExcessBlocks());
       pendingDeletionBlocks.set((int)fsNameSystem.getPendingDeletionBlocks());
+      corruptReplicasMemory.set(fsNameSystem.getCorruptReplicasMemory());
+      pendingDeletionMemory.set(fsNameSystem.getPendingDeletionMemory());
+      groupCacheHitRatio.set(fsNameSystem.getGroupCacheHitRatio());
+      traverseCacheHitRatio.set(fsNameSystem.getTraverseCacheHitRatio());
+      replQueueInitPercent.set(fsNameSystem.getReplQueueInitPercent());
       pendingReplicationBlocks.set((int)fsNameSystem.
                                    getPendingReplicationBlocks());
       underReplicatedBlocks.set((int)fsNameSystem.getUnderReplicatedBlocks());
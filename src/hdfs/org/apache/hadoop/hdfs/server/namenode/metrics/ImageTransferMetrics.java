@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode.metrics;
+
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsLongValue;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+
+/**
+ * Metrics for fsimage and edits transfers between the name-node and the
+ * secondary, avatar or snapshot nodes. Both ends of a transfer run in
+ * processes that report them: the side serving the file updates the
+ * send metrics and the side fetching it the receive metrics.
+ * <p>
+ * This class has a number of metrics variables that are publicly accessible;
+ * these variables (objects) have methods to update their values;
+ *  for example:
+ *  <p> {@link #bytesReceived}.inc()
+ */
+public class ImageTransferMetrics implements Updater {
+  private static ImageTransferMetrics instance = null;
+
+  private final MetricsRecord metricsRecord;
+  public MetricsRegistry registry = new MetricsRegistry();
+
+  public MetricsTimeVaryingRate sends =
+    new MetricsTimeVaryingRate("ImageSends", registry,
+                               "Time to send a file or range");
+  public MetricsTimeVaryingLong bytesSent =
+    new MetricsTimeVaryingLong("ImageBytesSent", registry);
+  public MetricsLongValue sendRate =
+    new MetricsLongValue("ImageSendBytesPerSec", registry,
+                         "Throughput of the last send");
+  public MetricsTimeVaryingRate receives =
+    new MetricsTimeVaryingRate("ImageReceives", registry,
+                               "Time to receive a file");
+  public MetricsTimeVaryingLong bytesReceived =
+    new MetricsTimeVaryingLong("ImageBytesReceived", registry);
+  public MetricsLongValue receiveRate =
+    new MetricsLongValue("ImageReceiveBytesPerSec", registry,
+                         "Throughput of the last receive");
+  public MetricsTimeVaryingLong rangeRetries =
+    new MetricsTimeVaryingLong("ImageRangeRetries", registry,
+                               "Ranges requested again after a failure");
+
+  private ImageTransferMetrics() {
+    MetricsContext metricsContext = MetricsUtil.getContext("dfs");
+    metricsRecord = MetricsUtil.createRecord(metricsContext, "imagetransfer");
+    metricsContext.registerUpdater(this);
+  }
+
+  /** Get the metrics of this process, creating them on first use. */
+  public static synchronized ImageTransferMetrics getInstance() {
+    if (instance == null) {
+      instance = new ImageTransferMetrics();
+    }
+    return instance;
+  }
+
+  /** Record a finished send of the given number of bytes. */
+  public void sent(long bytes, long millis) {
+    sends.inc(millis);
+    bytesSent.inc(bytes);
+    sendRate.set(bytesPerSecond(bytes, millis));
+  }
+
+  /** Record a finished receive of the given number of bytes. */
+  public void received(long bytes, long millis) {
+    receives.inc(millis);
+    bytesReceived.inc(bytes);
+    receiveRate.set(bytesPerSecond(bytes, millis));
+  }
+
+  private static long bytesPerSecond(long bytes, long millis) {
+    return bytes * 1000 / Math.max(millis, 1);
+  }
+
+  /**
+   * Since this object is a registered updater, this method will be called
+   * periodically, e.g. every 5 seconds.
+   */
+  public void doUpdates(MetricsContext unused) {
+    synchronized (this) {
+      for (MetricsBase m : registry.getMetricsList()) {
+        m.pushMetric(metricsRecord);
+      }
+    }
+    metricsRecord.update();
+  }
+}
@@ -70,6 +70,10 @@ public class NameNodeMetrics implements Updater {
                           new MetricsTimeVaryingLong("DeleteFileOps", registry);
     public MetricsTimeVaryingLong numFileInfoOps =
                           new MetricsTimeVaryingLong("FileInfoOps", registry);
+    public MetricsTimeVaryingLong numOptimisticReads =
+                          new MetricsTimeVaryingLong("OptimisticReads", registry);
+    public MetricsTimeVaryingLong numOptimisticReadRetries =
+                          new MetricsTimeVaryingLong("OptimisticReadRetries", registry);
     public MetricsTimeVaryingLong numAddBlockOps =
                           new MetricsTimeVaryingLong("AddBlockOps", registry);
     public MetricsTimeVaryingLong numSetReplication =
@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.protocol;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.RPC.CallParameters;
+import org.apache.hadoop.ipc.RPC.MethodInvoker;
+
+/**
+ * Typed invokers of the methods of {@link DatanodeProtocol}.
+ * Every method of the protocol needs one; TestProtocolInvokers checks it.
+ */
+public class DatanodeProtocolInvokers {
+  private DatanodeProtocolInvokers() {}
+
+  /**
+   * Register the invokers of the methods of {@link DatanodeProtocol}, so that
+   * RPC servers call them without reflection.
+   */
+  public static void register() {
+    RPC.registerInvoker(DatanodeProtocol.class, "blockReceivedAndDeleted",
+        new Class<?>[] {DatanodeRegistration.class, Block[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).blockReceivedAndDeleted(
+                (DatanodeRegistration)p.get(0), (Block[])p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "blockReceivedAndDeleted",
+        new Class<?>[] {DatanodeRegistration.class,
+            ReceivedDeletedBlockInfo[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).blockReceivedAndDeleted(
+                (DatanodeRegistration)p.get(0),
+                (ReceivedDeletedBlockInfo[])p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "blockReport",
+        new Class<?>[] {DatanodeRegistration.class, BlockReport.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).blockReport(
+                (DatanodeRegistration)p.get(0), (BlockReport)p.get(1));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "blockReport",
+        new Class<?>[] {DatanodeRegistration.class, long[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).blockReport(
+                (DatanodeRegistration)p.get(0), (long[])p.get(1));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "blocksBeingWrittenReport",
+        new Class<?>[] {DatanodeRegistration.class, BlockReport.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).blocksBeingWrittenReport(
+                (DatanodeRegistration)p.get(0), (BlockReport)p.get(1));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "commitBlockSynchronization",
+        new Class<?>[] {Block.class, long.class, long.class, boolean.class,
+            boolean.class, DatanodeID[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).commitBlockSynchronization(
+                (Block)p.get(0), p.getLong(1), p.getLong(2), p.getBoolean(3),
+                p.getBoolean(4), (DatanodeID[])p.get(5));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "errorReport",
+        new Class<?>[] {DatanodeRegistration.class, int.class, String.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).errorReport(
+                (DatanodeRegistration)p.get(0), p.getInt(1), (String)p.get(2));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "keepAlive",
+        new Class<?>[] {DatanodeRegistration.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).keepAlive(
+                (DatanodeRegistration)p.get(0));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "nextGenerationStamp",
+        new Class<?>[] {Block.class, boolean.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).nextGenerationStamp(
+                (Block)p.get(0), p.getBoolean(1));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "processUpgradeCommand",
+        new Class<?>[] {UpgradeCommand.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).processUpgradeCommand(
+                (UpgradeCommand)p.get(0));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "register",
+        new Class<?>[] {DatanodeRegistration.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).register(
+                (DatanodeRegistration)p.get(0));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "register",
+        new Class<?>[] {DatanodeRegistration.class, int.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).register(
+                (DatanodeRegistration)p.get(0), p.getInt(1));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "reportBadBlocks",
+        new Class<?>[] {LocatedBlock[].class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            ((DatanodeProtocol)instance).reportBadBlocks(
+                (LocatedBlock[])p.get(0));
+            return null;
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "sendHeartbeat",
+        new Class<?>[] {DatanodeRegistration.class, long.class, long.class,
+            long.class, long.class, int.class, int.class},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).sendHeartbeat(
+                (DatanodeRegistration)p.get(0), p.getLong(1), p.getLong(2),
+                p.getLong(3), p.getLong(4), p.getInt(5), p.getInt(6));
+          }
+        });
+    RPC.registerInvoker(DatanodeProtocol.class, "versionRequest",
+        new Class<?>[] {},
+        new MethodInvoker() {
+          public Object invoke(Object instance, CallParameters p)
+            throws IOException {
+            return ((DatanodeProtocol)instance).versionRequest();
+          }
+        });
+  }
+}
@@ -25,6 +25,9 @@ import java.io.BufferedReader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -93,7 +96,8 @@ public class DFSck extends Configured implements Tool {
     System.err.println("Usage: DFSck <path> [-list-corruptfileblocks | " +
                        "[-move | -delete | -openforwrite ] " +
                        "[-files [-blocks [-locations | -racks]]]] " +
-                       "[-limit <limit>]");
+                       "[-limit <limit>] [-threads <threads>] " +
+                       "[-machine | -filter <status>[,<status>...]]");
     System.err.println("\t<path>\tstart checking from this path");
     System.err.println("\t-move\tmove corrupted files to /lost+found");
     System.err.println("\t-delete\tdelete corrupted files");
@@ -106,6 +110,17 @@ public class DFSck extends Configured implements Tool {
     System.err.println("\t-racks\tprint out network topology for data-node locations");
     System.err.println("\t-limit\tlimit output to <limit> corrupt files. " +
                        "The default value of the limit is 500.");
+    System.err.println("\t-threads\tcheck the namespace with <threads> " +
+                       "threads on the name-node, up to " +
+                       NamenodeFsck.MAX_THREADS_KEY);
+    System.err.println("\t-machine\tprint one line of tab separated fields " +
+                       "per file, directory, block, problem, moved or " +
+                       "deleted file, and per statistic");
+    System.err.println("\t-filter\tonly print the files with one of the " +
+                       "given status: " + NamenodeFsck.FILE_HEALTHY + ", " +
+                       NamenodeFsck.FILE_CORRUPT + ", " +
+                       NamenodeFsck.FILE_UNDER_REPLICATED + " or " +
+                       NamenodeFsck.FILE_MIS_REPLICATED);
     System.err.println("\t\tBy default fsck ignores files opened for write, " +
                        "use -openforwrite to report such files. They are usually " +
                        " tagged CORRUPT or HEALTHY depending on their block " +
@@ -202,8 +217,9 @@ public class DFSck extends Configured implements Tool {
     int limit = 500; // limit output.
     // find top-level dir first
     for (int idx = 0; idx < args.length; ) {
-      if (args[idx].equals("-limit")) {
-        idx++; // Skip over limit value
+      if (args[idx].equals("-limit") || args[idx].equals("-threads") ||
+          args[idx].equals("-filter")) {
+        idx++; // Skip over option value
       } else if (!args[idx].startsWith("-")) {
         dir = args[idx];
         break;
@@ -212,6 +228,7 @@ public class DFSck extends Configured implements Tool {
     }
     url.append(URLEncoder.encode(dir, "UTF-8"));
     boolean doListCorruptFileBlocks = false;
+    Set<String> filter = null;
     for (int idx = 0; idx < args.length; ) {
       if (args[idx].equals("-move")) { url.append("&move=1"); }
       else if (args[idx].equals("-delete")) { url.append("&delete=1"); }
@@ -228,6 +245,15 @@ public class DFSck extends Configured implements Tool {
         limit = Integer.parseInt(args[idx]);
       } else if (args[idx].equals("-list-decommissioningblocks")) {
         url.append("&decommissioning=1");
+      } else if (args[idx].equals("-threads")) {
+        idx++;
+        url.append("&threads=").append(Integer.parseInt(args[idx]));
+      } else if (args[idx].equals("-machine")) {
+        url.append("&machine=1");
+      } else if (args[idx].equals("-filter")) {
+        idx++;
+        url.append("&machine=1");
+        filter = new HashSet<String>(Arrays.asList(args[idx].split(",")));
       }
       idx++;
     }
@@ -242,9 +268,15 @@ public class DFSck extends Configured implements Tool {
     String line = null;
     String lastLine = null;
     int errCode = -1;
+    FilteredPrinter printer = filter == null ? null
+                                             : new FilteredPrinter(filter);
     try {
       while ((line = input.readLine()) != null) {
-        out.println(line);
+        if (printer == null) {
+          out.println(line);
+        } else {
+          printer.println(line);
+        }
         lastLine = line;
       }
     } finally {
@@ -260,6 +292,55 @@ public class DFSck extends Configured implements Tool {
     return errCode;
   }
 
+  /**
+   * Renders the machine readable fsck output, leaving out the files
+   * that do not have one of the given statuses.
+   */
+  private class FilteredPrinter {
+    private final Set<String> filter;
+    private boolean fileShown = false; // whether to show the block lines
+
+    FilteredPrinter(Set<String> filter) {
+      this.filter = filter;
+    }
+
+    void println(String line) {
+      String[] fields = line.split("\t");
+      if (fields[0].equals("FILE") && fields.length >= 11) {
+        // path, status, length, replication, blocks, missing, corrupt,
+        // under-replicated and mis-replicated blocks, open
+        fileShown = filter.contains(fields[2]);
+        if (fileShown) {
+          out.println(fields[1] + " " + fields[3] + " bytes, " + fields[5] +
+              " block(s), replication " + fields[4] + ": " + fields[2] +
+              " (missing " + fields[6] + ", corrupt " + fields[7] +
+              ", under-replicated " + fields[8] + ", mis-replicated " +
+              fields[9] + ")" +
+              ("1".equals(fields[10]) ? " OPENFORWRITE" : ""));
+        }
+      } else if (fields[0].equals("BLOCK") && fields.length >= 6) {
+        if (fileShown) {
+          out.println("  " + fields[2] + ". " + fields[3] + " len=" +
+              fields[4] + " repl=" + fields[5] +
+              (fields.length > 6 ? " [" + fields[6] + "]" : ""));
+        }
+      } else if (fields[0].equals("NOTICE") && fields.length == 3) {
+        if (fileShown) {
+          out.println("  " + fields[2]);
+        }
+      } else if (fields[0].equals("ACTION") && fields.length == 5) {
+        // path, MOVE or DELETE, OK or FAILED, message: always shown
+        out.println(fields[1] + ": " + fields[4]);
+      } else if (fields[0].equals("SUMMARY") && fields.length == 3) {
+        out.println(" " + fields[1] + ":\t" + fields[2]);
+      } else if (fields[0].equals("HISTOGRAM") && fields.length == 4) {
+        out.println(" " + fields[1] + " < " + fields[2] + ":\t" + fields[3]);
+      } else if (!fields[0].equals("DIR")) {
+        out.println(line);
+      }
+    }
+  }
+
   static{
     Configuration.addDefaultResource("hdfs-default.xml");
     Configuration.addDefaultResource("hdfs-site.xml");
@@ -51,8 +51,8 @@ import java.util.LinkedList;
 class FileDistributionVisitor extends TextWriterImageVisitor {
   final private LinkedList<ImageElement> elemS = new LinkedList<ImageElement>();
 
-  private final static long MAX_SIZE_DEFAULT = 0x2000000000L;   // 1/8 TB = 2^37
-  private final static int INTERVAL_DEFAULT = 0x200000;         // 2 MB = 2^21
+  final static long MAX_SIZE_DEFAULT = 0x2000000000L;   // 1/8 TB = 2^37
+  final static int INTERVAL_DEFAULT = 0x200000;         // 2 MB = 2^21
 
   private int[] distribution;
   private long maxSize;
@@ -0,0 +1,627 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.tools.offlineImageViewer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * ImageIndex is a persistent, queryable index of an fsimage.
+ *
+ * The image is read once and every inode is stored in a {@link MapFile}
+ * keyed by its path, with '/' replaced by '\0' so that the inodes of any
+ * subtree sort next to each other.  A second MapFile holds a summary of
+ * every directory's subtree (files, directories, blocks, bytes).  With
+ * these, an ls or du of any directory only seeks to the entries it needs,
+ * and a file size distribution of a subtree scans only that subtree,
+ * split across several threads.
+ *
+ * Layout of the index directory:
+ * <ul>
+ * <li><tt>inodes</tt>: path key to {@link INodeRecord};</li>
+ * <li><tt>summaries</tt>: directory key to {@link SubtreeSummary}.</li>
+ * </ul>
+ */
+class ImageIndex {
+  static final String INODES = "inodes";
+  static final String SUMMARIES = "summaries";
+  private static final String TMP = "_tmp";
+
+  private final Configuration conf;
+  private final FileSystem fs;
+  private final Path indexDir;
+
+  ImageIndex(String indexDir, Configuration conf) throws IOException {
+    this.conf = conf;
+    this.fs = FileSystem.getLocal(conf);
+    this.indexDir = new Path(indexDir);
+  }
+
+  /**
+   * An inode as stored in the index.  Directories have a negative
+   * number of blocks, as in the image.
+   */
+  static class INodeRecord implements Writable {
+    int replication;
+    String modTime = "";
+    int numBlocks;
+    long length;
+    String user = "";
+    String group = "";
+    String perms = "";
+    String symlink = "";
+
+    boolean isDirectory() {
+      return numBlocks == -1;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      WritableUtils.writeVInt(out, replication);
+      Text.writeString(out, modTime);
+      WritableUtils.writeVInt(out, numBlocks);
+      WritableUtils.writeVLong(out, length);
+      Text.writeString(out, user);
+      Text.writeString(out, group);
+      Text.writeString(out, perms);
+      Text.writeString(out, symlink);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      replication = WritableUtils.readVInt(in);
+      modTime = Text.readString(in);
+      numBlocks = WritableUtils.readVInt(in);
+      length = WritableUtils.readVLong(in);
+      user = Text.readString(in);
+      group = Text.readString(in);
+      perms = Text.readString(in);
+      symlink = Text.readString(in);
+    }
+  }
+
+  /**
+   * Totals over a directory and everything below it.  The directory
+   * itself is included in the number of directories.
+   */
+  static class SubtreeSummary implements Writable {
+    long files;
+    long directories;
+    long blocks;
+    long length;
+    long spaceConsumed;
+
+    void add(INodeRecord inode) {
+      if (inode.isDirectory()) {
+        directories++;
+      } else {
+        files++;
+        blocks += Math.max(inode.numBlocks, 0);
+        length += inode.length;
+        spaceConsumed += inode.length * inode.replication;
+      }
+    }
+
+    void add(SubtreeSummary other) {
+      files += other.files;
+      directories += other.directories;
+      blocks += other.blocks;
+      length += other.length;
+      spaceConsumed += other.spaceConsumed;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      WritableUtils.writeVLong(out, files);
+      WritableUtils.writeVLong(out, directories);
+      WritableUtils.writeVLong(out, blocks);
+      WritableUtils.writeVLong(out, length);
+      WritableUtils.writeVLong(out, spaceConsumed);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      files = WritableUtils.readVLong(in);
+      directories = WritableUtils.readVLong(in);
+      blocks = WritableUtils.readVLong(in);
+      length = WritableUtils.readVLong(in);
+      spaceConsumed = WritableUtils.readVLong(in);
+    }
+  }
+
+  /**
+   * Convert a path to its index key: the root is the empty key and every
+   * '/' becomes '\0', so a directory sorts immediately before its subtree.
+   */
+  static String toKey(String path) {
+    if (!path.startsWith("/")) {
+      throw new IllegalArgumentException("Path must be absolute: " + path);
+    }
+    while (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    return path.replace('/', '\0');
+  }
+
+  /** Convert an index key back to a path. */
+  static String toPath(String key) {
+    return key.length() == 0 ? "/" : key.replace('\0', '/');
+  }
+
+  /** Is the key at or below the subtree rooted at the given key? */
+  private static boolean inSubtree(String root, String key) {
+    return root.length() == 0 || key.equals(root) ||
+      (key.startsWith(root) && key.charAt(root.length()) == '\0');
+  }
+
+  /**
+   * Visitor that writes each inode of the image to an unsorted
+   * sequence file.  Inodes under construction are also listed in the
+   * inode section, so that section is skipped.
+   */
+  private static class IndexingVisitor extends ImageVisitor {
+    final private LinkedList<ImageElement> elemQ =
+      new LinkedList<ImageElement>();
+    private final SequenceFile.Writer writer;
+    private final Text key = new Text();
+    private INodeRecord current;
+    private long numInodes;
+
+    IndexingVisitor(SequenceFile.Writer writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    void start() throws IOException {}
+
+    @Override
+    void finish() throws IOException {
+      writer.close();
+    }
+
+    @Override
+    void finishAbnormally() throws IOException {
+      writer.close();
+    }
+
+    @Override
+    void visit(ImageElement element, String value) throws IOException {
+      if (current == null) {
+        return;
+      }
+      switch(element) {
+      case INODE_PATH:
+        key.set(value.replace('/', '\0'));
+        break;
+      case REPLICATION:
+        current.replication = Integer.valueOf(value);
+        break;
+      case MODIFICATION_TIME:
+        current.modTime = value;
+        break;
+      case NUM_BYTES:
+        current.length += Long.valueOf(value);
+        break;
+      case USER_NAME:
+        current.user = value;
+        break;
+      case GROUP_NAME:
+        current.group = value;
+        break;
+      case PERMISSION_STRING:
+        current.perms = value;
+        break;
+      case SYMLINK:
+        current.symlink = value;
+        break;
+      default:
+        break;
+      }
+    }
+
+    @Override
+    void visitEnclosingElement(ImageElement element) throws IOException {
+      elemQ.push(element);
+      if (element == ImageElement.INODE) {
+        current = new INodeRecord();
+      }
+    }
+
+    @Override
+    void visitEnclosingElement(ImageElement element,
+        ImageElement key, String value) throws IOException {
+      elemQ.push(element);
+      if (element == ImageElement.BLOCKS && current != null) {
+        current.numBlocks = Integer.valueOf(value);
+      }
+    }
+
+    @Override
+    void leaveEnclosingElement() throws IOException {
+      ImageElement elem = elemQ.pop();
+      if (elem == ImageElement.INODE) {
+        writer.append(key, current);
+        current = null;
+        if (++numInodes % 1000000 == 0) {
+          System.out.println("Inodes indexed: " + numInodes);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build the index of an image.  The index directory must not exist.
+   */
+  void build(String inputFile) throws IOException {
+    if (fs.exists(indexDir)) {
+      throw new IOException("Index directory " + indexDir + " already exists");
+    }
+    Path tmp = new Path(indexDir, TMP);
+    Path unsortedINodes = new Path(tmp, INODES);
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf,
+        unsortedINodes, Text.class, INodeRecord.class,
+        SequenceFile.CompressionType.NONE);
+    new OfflineImageViewer(inputFile, new IndexingVisitor(writer), false).go();
+    Path inodes = new Path(indexDir, INODES);
+    sortIntoMapFile(unsortedINodes, inodes, INodeRecord.class);
+
+    // The sorted inodes list every directory right before its subtree,
+    // so the summaries can be computed in one pass with a stack of the
+    // directories enclosing the current inode.
+    Path unsortedSummaries = new Path(tmp, SUMMARIES);
+    writer = SequenceFile.createWriter(fs, conf, unsortedSummaries,
+        Text.class, SubtreeSummary.class, SequenceFile.CompressionType.NONE);
+    MapFile.Reader reader = new MapFile.Reader(fs, inodes.toString(), conf);
+    try {
+      LinkedList<String> dirs = new LinkedList<String>();
+      LinkedList<SubtreeSummary> summaries = new LinkedList<SubtreeSummary>();
+      Text key = new Text();
+      INodeRecord inode = new INodeRecord();
+      while (reader.next(key, inode)) {
+        String k = key.toString();
+        while (!dirs.isEmpty() && !inSubtree(dirs.peek(), k)) {
+          closeDirectory(writer, dirs, summaries);
+        }
+        if (inode.isDirectory()) {
+          dirs.push(k);
+          summaries.push(new SubtreeSummary());
+        }
+        if (!summaries.isEmpty()) {
+          summaries.peek().add(inode);
+        }
+      }
+      while (!dirs.isEmpty()) {
+        closeDirectory(writer, dirs, summaries);
+      }
+    } finally {
+      reader.close();
+      writer.close();
+    }
+    sortIntoMapFile(unsortedSummaries, new Path(indexDir, SUMMARIES),
+                    SubtreeSummary.class);
+    fs.delete(tmp, true);
+  }
+
+  private static void closeDirectory(SequenceFile.Writer writer,
+      LinkedList<String> dirs, LinkedList<SubtreeSummary> summaries)
+      throws IOException {
+    String dir = dirs.pop();
+    SubtreeSummary summary = summaries.pop();
+    writer.append(new Text(dir), summary);
+    if (!summaries.isEmpty()) {
+      summaries.peek().add(summary);
+    }
+  }
+
+  private void sortIntoMapFile(Path unsorted, Path dir,
+      Class<? extends Writable> valueClass) throws IOException {
+    SequenceFile.Sorter sorter =
+      new SequenceFile.Sorter(fs, Text.class, valueClass, conf);
+    sorter.sort(new Path[] { unsorted }, new Path(dir, MapFile.DATA_FILE_NAME),
+                true);
+    try {
+      MapFile.fix(fs, dir, Text.class, valueClass, false, conf);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Cannot create the index of " + dir, e);
+    }
+  }
+
+  private MapFile.Reader openINodes() throws IOException {
+    return new MapFile.Reader(fs, new Path(indexDir, INODES).toString(), conf);
+  }
+
+  private INodeRecord getINode(MapFile.Reader reader, String key)
+      throws IOException {
+    INodeRecord inode = new INodeRecord();
+    if (reader.get(new Text(key), inode) == null) {
+      throw new IOException("No such file or directory: " + toPath(key));
+    }
+    return inode;
+  }
+
+  /** A child of a directory, as returned by {@link #listChildren}. */
+  private static class Child {
+    final String key;
+    final INodeRecord inode;
+
+    Child(String key, INodeRecord inode) {
+      this.key = key;
+      this.inode = inode;
+    }
+  }
+
+  /**
+   * List the children of a directory.  After each child the reader seeks
+   * past that child's subtree, so only the children themselves are read
+   * (plus at most one index block per child).
+   */
+  private List<Child> listChildren(MapFile.Reader reader, String dir)
+      throws IOException {
+    List<Child> children = new ArrayList<Child>();
+    String prefix = dir + '\0';
+    String from = prefix;
+    while (true) {
+      INodeRecord inode = new INodeRecord();
+      Text next = (Text)reader.getClosest(new Text(from), inode);
+      if (next == null) {
+        break;
+      }
+      String key = next.toString();
+      if (!key.startsWith(prefix)) {
+        break;
+      }
+      children.add(new Child(key, inode));
+      // '\u0001' sorts after every key in the child's subtree
+      from = key + '\u0001';
+    }
+    return children;
+  }
+
+  /**
+   * Write an lsr-style line for the given path, or for each child if it
+   * is a directory, in the format of {@link LsImageVisitor}.
+   */
+  void ls(String path, Writer out) throws IOException {
+    String key = toKey(path);
+    MapFile.Reader reader = openINodes();
+    try {
+      INodeRecord inode = getINode(reader, key);
+      if (!inode.isDirectory()) {
+        out.write(formatLs(key, inode));
+        return;
+      }
+      for (Child child : listChildren(reader, key)) {
+        out.write(formatLs(child.key, child.inode));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static String formatLs(String key, INodeRecord inode) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(inode.numBlocks < 0 ? "d" : "-");
+    sb.append(inode.perms);
+    String path = toPath(key);
+    if (inode.symlink.length() != 0) {
+      path = path + " -> " + inode.symlink;
+    }
+    new Formatter(sb).format(LsImageVisitor.lsStr,
+        inode.replication > 0 ? inode.replication : "-",
+        inode.user, inode.group, inode.isDirectory() ? 0 : inode.length,
+        inode.modTime, path);
+    sb.append("\n");
+    return sb.toString();
+  }
+
+  /** Get the summary of a subtree from the index. */
+  SubtreeSummary getSummary(String path) throws IOException {
+    String key = toKey(path);
+    SubtreeSummary summary = new SubtreeSummary();
+    MapFile.Reader reader = new MapFile.Reader(fs,
+        new Path(indexDir, SUMMARIES).toString(), conf);
+    try {
+      if (reader.get(new Text(key), summary) != null) {
+        return summary;
+      }
+    } finally {
+      reader.close();
+    }
+    // not a directory
+    reader = openINodes();
+    try {
+      summary.add(getINode(reader, key));
+      return summary;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Write the totals of a subtree, like "hadoop fs -count". */
+  void du(String path, Writer out) throws IOException {
+    SubtreeSummary summary = getSummary(path);
+    out.write(String.format("%12d %12d %12d %18d %18d %s\n",
+        summary.directories, summary.files, summary.blocks,
+        summary.length, summary.spaceConsumed, path));
+  }
+
+  /**
+   * File size distribution over a subtree, with the same segments and
+   * output as {@link FileDistributionVisitor}.
+   */
+  static class Distribution {
+    final int[] distribution;
+    final long maxSize;
+    final int step;
+    int totalFiles;
+    int totalDirectories;
+    int totalBlocks;
+    long totalSpace;
+    long maxFileSize;
+
+    Distribution(long maxSize, int step) throws IOException {
+      this.maxSize = (maxSize == 0 ?
+          FileDistributionVisitor.MAX_SIZE_DEFAULT : maxSize);
+      this.step = (step == 0 ? FileDistributionVisitor.INTERVAL_DEFAULT : step);
+      long numIntervals = this.maxSize / this.step;
+      if(numIntervals >= Integer.MAX_VALUE)
+        throw new IOException("Too many distribution intervals " + numIntervals);
+      this.distribution = new int[1 + (int)(numIntervals)];
+    }
+
+    void add(INodeRecord inode) {
+      if (inode.isDirectory()) {
+        totalDirectories++;
+        return;
+      }
+      totalFiles++;
+      totalBlocks += Math.max(inode.numBlocks, 0);
+      totalSpace += inode.length * inode.replication;
+      if (maxFileSize < inode.length)
+        maxFileSize = inode.length;
+      int high;
+      if (inode.length > maxSize)
+        high = distribution.length-1;
+      else
+        high = (int)Math.ceil((double)inode.length / step);
+      distribution[high]++;
+    }
+
+    void add(Distribution other) {
+      for (int i = 0; i < distribution.length; i++)
+        distribution[i] += other.distribution[i];
+      totalFiles += other.totalFiles;
+      totalDirectories += other.totalDirectories;
+      totalBlocks += other.totalBlocks;
+      totalSpace += other.totalSpace;
+      maxFileSize = Math.max(maxFileSize, other.maxFileSize);
+    }
+
+    void write(Writer out) throws IOException {
+      out.write("Size\tNumFiles\n");
+      for(int i = 0; i < distribution.length; i++)
+        out.write(((long)i * step) + "\t" + distribution[i] + "\n");
+      System.out.println("totalFiles = " + totalFiles);
+      System.out.println("totalDirectories = " + totalDirectories);
+      System.out.println("totalBlocks = " + totalBlocks);
+      System.out.println("totalSpace = " + totalSpace);
+      System.out.println("maxFileSize = " + maxFileSize);
+    }
+  }
+
+  /**
+   * Compute the file size distribution of a subtree using the given
+   * number of threads.  The subtree is split breadth first into about
+   * four pieces per thread and each piece is scanned with its own reader.
+   */
+  Distribution fileDistribution(String path, long maxSize, int step,
+      int numThreads) throws IOException {
+    Distribution result = new Distribution(maxSize, step);
+    LinkedList<String> subtrees = new LinkedList<String>();
+    MapFile.Reader reader = openINodes();
+    try {
+      String key = toKey(path);
+      INodeRecord inode = getINode(reader, key);
+      if (!inode.isDirectory()) {
+        result.add(inode);
+        return result;
+      }
+      subtrees.add(key);
+      while (!subtrees.isEmpty() && subtrees.size() < 4 * numThreads) {
+        String dir = subtrees.removeFirst();
+        result.add(getINode(reader, dir));
+        for (Child child : listChildren(reader, dir)) {
+          if (child.inode.isDirectory()) {
+            subtrees.add(child.key);
+          } else {
+            result.add(child.inode);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Distribution>> scans = new ArrayList<Future<Distribution>>();
+      for (final String subtree : subtrees) {
+        final Distribution d = new Distribution(maxSize, step);
+        scans.add(executor.submit(new Callable<Distribution>() {
+          public Distribution call() throws IOException {
+            scanSubtree(subtree, d);
+            return d;
+          }
+        }));
+      }
+      for (Future<Distribution> scan : scans) {
+        result.add(scan.get());
+      }
+    } catch (InterruptedException e) {
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while scanning " + path).initCause(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException)e.getCause();
+      }
+      throw new IOException("Failed to scan " + path, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return result;
+  }
+
+  private void scanSubtree(String root, Distribution d) throws IOException {
+    MapFile.Reader reader = openINodes();
+    try {
+      Text key = new Text(root);
+      INodeRecord inode = new INodeRecord();
+      if (reader.get(key, inode) == null) {
+        return;
+      }
+      do {
+        d.add(inode);
+      } while (reader.next(key, inode) && inSubtree(root, key.toString()));
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -79,7 +79,7 @@ class LsImageVisitor extends TextWriterImageVisitor {
   private final static int widthGroup = 10; 
   private final static int widthSize = 10;
   private final static int widthMod = 10;
-  private final static String lsStr = " %" + widthRepl + "s %" + widthUser + 
+  final static String lsStr = " %" + widthRepl + "s %" + widthUser + 
                                        "s %" + widthGroup + "s %" + widthSize +
                                        "d %" + widthMod + "s %s";
   private void printLine() throws IOException {
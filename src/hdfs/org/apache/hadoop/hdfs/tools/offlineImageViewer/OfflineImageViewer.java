@@ -22,6 +22,7 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 
 import org.apache.commons.cli.CommandLine;
@@ -30,6 +31,7 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
+import org.apache.hadoop.conf.Configuration;
 
 /**
  * OfflineImageViewer to dump the contents of an Hadoop image file to XML
@@ -74,6 +76,10 @@ public class OfflineImageViewer {
     "  * NameDistribution: This processor analyzes the file names\n" +
     "    in the image and prints total number of file names and how frequently" +
     "    file names are reused.\n" +
+    "  * Index: This processor builds a persistent index of the image in\n" +
+    "    the OUTPUTFILE directory.  The index can then be queried with\n" +
+    "    -query, passing the index directory as INPUTFILE, without\n" +
+    "    reading the image again.\n" +
     "\n" + 
     "Required command line arguments:\n" +
     "-i,--inputFile <arg>   FSImage file to process.\n" +
@@ -83,7 +89,8 @@ public class OfflineImageViewer {
     "Optional command line arguments:\n" +
     "-p,--processor <arg>   Select which type of processor to apply\n" +
     "                       against image file." +
-    " (Ls|XML|Delimited|Indented|FileDistribution).\n" +
+    " (Ls|XML|Delimited|Indented|FileDistribution|\n" +
+    "                       NameDistribution|Index).\n" +
     "-h,--help              Display usage information and exit\n" +
     "-printToScreen         For processors that write to a file, also\n" +
     "                       output to screen. On large image files this\n" +
@@ -91,7 +98,12 @@ public class OfflineImageViewer {
     "-skipBlocks            Skip inodes' blocks information. May\n" +
     "                       significantly decrease output.\n" +
     "                       (default = false).\n" +
-    "-delimiter <arg>       Delimiting string to use with Delimited processor\n";
+    "-delimiter <arg>       Delimiting string to use with Delimited processor\n" +
+    "-query <arg>           Query an index built by the Index processor:\n" +
+    "                       ls, du or FileDistribution of -path.\n" +
+    "-path <arg>            Path to query (default = /).\n" +
+    "-threads <arg>         Number of threads scanning the index for the\n" +
+    "                       FileDistribution query (default = 4).\n";
 
   private final boolean skipBlocks;
   private final String inputFile;
@@ -172,6 +184,11 @@ public class OfflineImageViewer {
     options.addOption("skipBlocks", false, "");
     options.addOption("printToScreen", false, "");
     options.addOption("delimiter", true, "");
+    options.addOption("maxSize", true, "");
+    options.addOption("step", true, "");
+    options.addOption("query", true, "");
+    options.addOption("path", true, "");
+    options.addOption("threads", true, "");
 
     return options;
   }
@@ -220,6 +237,26 @@ public class OfflineImageViewer {
       printUsage();
       return;
     }
+
+    if(cmd.hasOption("query")) {
+      try {
+        query(cmd, inputFile, outputFile);
+      } catch(IOException e) {
+        System.err.println("Encountered exception.  Exiting: " + e.getMessage());
+      }
+      return;
+    }
+
+    if(processor.equals("Index")) {
+      try {
+        new ImageIndex(outputFile, new Configuration()).build(inputFile);
+      } catch (EOFException e) {
+        System.err.println("Input file ended unexpectedly.  Exiting");
+      } catch(IOException e) {
+        System.err.println("Encountered exception.  Exiting: " + e.getMessage());
+      }
+      return;
+    }
     
     ImageVisitor v;
     if(processor.equals("Indented")) {
@@ -252,6 +289,33 @@ public class OfflineImageViewer {
     }
   }
 
+  /**
+   * Answer a query from an index built by the Index processor.
+   */
+  private static void query(CommandLine cmd, String indexDir,
+      String outputFile) throws IOException {
+    String query = cmd.getOptionValue("query");
+    String path = cmd.getOptionValue("path", "/");
+    ImageIndex index = new ImageIndex(indexDir, new Configuration());
+    FileWriter out = new FileWriter(outputFile);
+    try {
+      if (query.equals("ls")) {
+        index.ls(path, out);
+      } else if (query.equals("du")) {
+        index.du(path, out);
+      } else if (query.equals("FileDistribution")) {
+        long maxSize = Long.parseLong(cmd.getOptionValue("maxSize", "0"));
+        int step = Integer.parseInt(cmd.getOptionValue("step", "0"));
+        int threads = Integer.parseInt(cmd.getOptionValue("threads", "4"));
+        index.fileDistribution(path, maxSize, step, threads).write(out);
+      } else {
+        throw new IOException("Unknown query " + query);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
   /**
    * Print application usage instructions.
    */
@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+
+/**
+ * A set of blocks that stores the id, generation stamp and length of each
+ * block in primitive arrays instead of keeping the {@link Block} objects.
+ * Like a set of blocks, it compares them with {@link Block#equals}: two
+ * blocks are the same if they have the same id and generation stamp, or one
+ * of the stamps is the wildcard. A block whose id is in the table with
+ * another generation stamp, which is rare, is kept in a second set. The
+ * blocks returned by the set are new objects.
+ *
+ * This class is not thread safe.
+ */
+public class LightWeightBlockSet extends LightWeightLongHashTable
+    implements Iterable<Block> {
+  private long[] genStamps;
+  private long[] numBytes;
+  /** The blocks whose id is in the table with another generation stamp */
+  private LightWeightBlockSet sameIds = null;
+
+  public LightWeightBlockSet() {
+    this(MINIMUM_CAPACITY);
+  }
+
+  public LightWeightBlockSet(int initCapacity) {
+    super(initCapacity);
+    genStamps = new long[getCapacity()];
+    numBytes = new long[getCapacity()];
+  }
+
+  @Override
+  protected void resizeValues(int newCapacity, int[] moved) {
+    long[] oldGenStamps = genStamps;
+    long[] oldNumBytes = numBytes;
+    genStamps = new long[newCapacity];
+    numBytes = new long[newCapacity];
+    for (int i = 0; i < moved.length; i++) {
+      if (moved[i] >= 0) {
+        genStamps[moved[i]] = oldGenStamps[i];
+        numBytes[moved[i]] = oldNumBytes[i];
+      }
+    }
+  }
+
+  @Override
+  protected void moveValue(int from, int to) {
+    genStamps[to] = genStamps[from];
+    numBytes[to] = numBytes[from];
+  }
+
+  @Override
+  protected void clearValue(int index) {
+    // primitive values need no clearing
+  }
+
+  @Override
+  protected long getValueBytesPerSlot() {
+    return 16;
+  }
+
+  private Block getBlock(int index) {
+    return new Block(getKey(index), numBytes[index], genStamps[index]);
+  }
+
+  /**
+   * @return the slot of the block in the table, or -1 if the table has no
+   *         block with the same id and generation stamp
+   */
+  private int find(Block block) {
+    int i = indexOf(block.getBlockId());
+    if (i >= 0 && !GenerationStamp.equalsWithWildcard(genStamps[i],
+        block.getGenerationStamp())) {
+      return -1;
+    }
+    return i;
+  }
+
+  /**
+   * Add a block to the set.
+   * @return true if the block was not in the set
+   */
+  public boolean add(Block block) {
+    int i = indexOf(block.getBlockId());
+    if (i >= 0) {
+      if (GenerationStamp.equalsWithWildcard(genStamps[i],
+          block.getGenerationStamp())) {
+        return false;
+      }
+      if (sameIds == null) {
+        sameIds = new LightWeightBlockSet();
+      }
+      modification++;
+      return sameIds.add(block);
+    }
+    if (sameIds != null && sameIds.contains(block)) {
+      return false;
+    }
+    i = addKey(block.getBlockId());
+    genStamps[i] = block.getGenerationStamp();
+    numBytes[i] = block.getNumBytes();
+    return true;
+  }
+
+  /** @return true if the block is in the set */
+  public boolean contains(Block block) {
+    return find(block) >= 0 || (sameIds != null && sameIds.contains(block));
+  }
+
+  /**
+   * Remove a block from the set.
+   * @return true if the block was in the set
+   */
+  public boolean remove(Block block) {
+    int i = find(block);
+    if (i >= 0) {
+      removeAt(i);
+      shrinkIfNecessary();
+      return true;
+    }
+    if (sameIds != null && sameIds.remove(block)) {
+      if (sameIds.isEmpty()) {
+        sameIds = null;
+      }
+      modification++;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public int size() {
+    return sameIds == null ? size : size + sameIds.size();
+  }
+
+  @Override
+  public long getMemoryUsage() {
+    long memory = super.getMemoryUsage();
+    return sameIds == null ? memory : memory + sameIds.getMemoryUsage();
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    sameIds = null;
+  }
+
+  /**
+   * Remove and return up to n blocks of the set.
+   */
+  public List<Block> pollN(int n) {
+    List<Block> retList = new ArrayList<Block>(Math.min(n, size()));
+    for (int i; retList.size() < n && (i = nextToPoll()) >= 0; ) {
+      retList.add(getBlock(i));
+      removeAt(i);
+    }
+    shrinkIfNecessary();
+    if (sameIds != null && retList.size() < n) {
+      retList.addAll(sameIds.pollN(n - retList.size()));
+      if (sameIds.isEmpty()) {
+        sameIds = null;
+      }
+      modification++;
+    }
+    return retList;
+  }
+
+  /**
+   * Remove all blocks from the set and return them.
+   */
+  public List<Block> pollAll() {
+    List<Block> retList = new ArrayList<Block>(size());
+    for (Block block : this) {
+      retList.add(block);
+    }
+    clear();
+    return retList;
+  }
+
+  /**
+   * Iterate over the blocks of the set. The iterator does not support
+   * removal.
+   */
+  public Iterator<Block> iterator() {
+    return new BlockIterator();
+  }
+
+  private class BlockIterator implements Iterator<Block> {
+    /** The starting modification for fail-fast. */
+    private final int startModification = modification;
+    private int next = nextUsed(0);
+    /** The iterator of the blocks with the same ids, once next is -1 */
+    private Iterator<Block> sameIdsIterator = null;
+
+    @Override
+    public boolean hasNext() {
+      if (next >= 0) {
+        return true;
+      }
+      return sameIds != null && getSameIdsIterator().hasNext();
+    }
+
+    private Iterator<Block> getSameIdsIterator() {
+      if (sameIdsIterator == null) {
+        sameIdsIterator = sameIds.iterator();
+      }
+      return sameIdsIterator;
+    }
+
+    @Override
+    public Block next() {
+      if (modification != startModification) {
+        throw new ConcurrentModificationException("modification="
+            + modification + " != startModification = " + startModification);
+      }
+      if (next < 0) {
+        if (sameIds == null) {
+          throw new NoSuchElementException();
+        }
+        return getSameIdsIterator().next();
+      }
+      Block block = getBlock(next);
+      next = nextUsed(next + 1);
+      return block;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove is not supported.");
+    }
+  }
+}
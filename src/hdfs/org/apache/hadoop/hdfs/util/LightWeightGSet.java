@@ -20,6 +20,7 @@ package org.apache.hadoop.hdfs.util;
 import java.io.PrintStream;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -214,6 +215,23 @@ public class LightWeightGSet<K, E extends K> implements GSet<K, E> {
     return new SetIterator();
   }
 
+  /** @return the number of rows of the hash table */
+  public int getNumRows() {
+    return entries.length;
+  }
+
+  /**
+   * Add the elements stored in a row of the hash table to a list.
+   * The rows never change, so unlike the iterator, walking the rows one
+   * at a time tolerates modifications in between: an element that stays
+   * in the set all along is visited exactly once.
+   */
+  public void getElements(int row, List<E> list) {
+    for(LinkedElement e = entries[row]; e != null; e = e.getNext()) {
+      list.add(convert(e));
+    }
+  }
+
   @Override
   public String toString() {
     final StringBuilder b = new StringBuilder(getClass().getSimpleName());
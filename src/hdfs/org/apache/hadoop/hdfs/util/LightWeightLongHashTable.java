@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ConcurrentModificationException;
+
+/**
+ * A low memory hash table keyed by primitive longs, such as block ids.
+ * Unlike {@link LightWeightHashSet} it does not allocate an object per
+ * element: the keys are stored in a long array and subclasses keep the
+ * values in arrays of the same capacity. Collisions are resolved by linear
+ * probing. A removal moves the following elements of the probe sequence
+ * back, so no deleted markers are left behind.
+ *
+ * This class is not thread safe.
+ */
+public abstract class LightWeightLongHashTable {
+  protected static final float MAX_LOAD_FACTOR = 0.75f;
+  protected static final float MIN_LOAD_FACTOR = 0.2f;
+  protected static final int MINIMUM_CAPACITY = 16;
+
+  static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The keys, indexed by slot. The size must be a power of two. */
+  private long[] keys;
+  /** A bit for every slot that holds an element. */
+  private long[] used;
+  /** Size of the table. */
+  private int capacity;
+  /** Hashmask used for determining the slot index **/
+  private int hashMask;
+  /** Capacity at initialization time **/
+  private final int initialCapacity;
+  /** The number of elements in the table. */
+  protected int size = 0;
+  /** The slot pollN continues at */
+  private int pollIndex = 0;
+
+  /**
+   * Modification version for fail-fast.
+   *
+   * @see ConcurrentModificationException
+   */
+  protected volatile int modification = 0;
+
+  private int expandThreshold;
+  private int shrinkThreshold;
+
+  /**
+   * @param initCapacity Recommended size of the internal arrays.
+   */
+  protected LightWeightLongHashTable(int initCapacity) {
+    this.initialCapacity = computeCapacity(initCapacity);
+    allocate(initialCapacity);
+  }
+
+  private void allocate(int newCapacity) {
+    capacity = newCapacity;
+    hashMask = capacity - 1;
+    keys = new long[capacity];
+    used = new long[(capacity + 63) >>> 6];
+    expandThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+    shrinkThreshold = (int) (capacity * MIN_LOAD_FACTOR);
+    pollIndex = 0;
+  }
+
+  private static int computeCapacity(int initial) {
+    if (initial < MINIMUM_CAPACITY) {
+      return MINIMUM_CAPACITY;
+    }
+    if (initial > MAXIMUM_CAPACITY) {
+      return MAXIMUM_CAPACITY;
+    }
+    int capacity = 1;
+    while (capacity < initial) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /**
+   * Allocate the value arrays for a new capacity.
+   * @param newCapacity the number of slots
+   * @param moved the new slot of every old slot, or -1 if it is empty
+   */
+  protected abstract void resizeValues(int newCapacity, int[] moved);
+
+  /** Move the value of a slot to another slot */
+  protected abstract void moveValue(int from, int to);
+
+  /** Drop the value of a slot, which becomes empty */
+  protected abstract void clearValue(int index);
+
+  /** The bytes the values take per slot, for {@link #getMemoryUsage()} */
+  protected abstract long getValueBytesPerSlot();
+
+  /** @return true if the table contains no elements */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** @return the number of elements in the table */
+  public int size() {
+    return size;
+  }
+
+  /** @return the current size of the internal arrays */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** @return the approximate number of bytes used by the table */
+  public long getMemoryUsage() {
+    return capacity * (8 + getValueBytesPerSlot()) + used.length * 8L;
+  }
+
+  private int getIndex(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & hashMask;
+  }
+
+  protected final boolean isUsed(int index) {
+    return (used[index >>> 6] & (1L << index)) != 0;
+  }
+
+  protected final long getKey(int index) {
+    return keys[index];
+  }
+
+  /**
+   * @return the slot of key, or -1 if key is not in the table
+   */
+  protected final int indexOf(long key) {
+    for (int i = getIndex(key); isUsed(i); i = (i + 1) & hashMask) {
+      if (keys[i] == key) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Add a key that is not in the table yet.
+   * @return the slot the value of key has to be stored in
+   */
+  protected final int addKey(long key) {
+    if (size >= expandThreshold && capacity < MAXIMUM_CAPACITY) {
+      resize(capacity * 2);
+    }
+    int i = getIndex(key);
+    while (isUsed(i)) {
+      i = (i + 1) & hashMask;
+    }
+    keys[i] = key;
+    used[i >>> 6] |= 1L << i;
+    size++;
+    modification++;
+    return i;
+  }
+
+  /**
+   * Remove the element in a slot. Elements further down its probe
+   * sequence may move to the slot, but never to a slot before it.
+   * The table does not shrink; call {@link #shrinkIfNecessary()}.
+   */
+  protected final void removeAt(int index) {
+    int hole = index;
+    for (int i = (hole + 1) & hashMask; isUsed(i); i = (i + 1) & hashMask) {
+      int home = getIndex(keys[i]);
+      // the element can move to the hole if the hole is on its way home
+      if (((i - home) & hashMask) >= ((i - hole) & hashMask)) {
+        keys[hole] = keys[i];
+        moveValue(i, hole);
+        hole = i;
+      }
+    }
+    used[hole >>> 6] &= ~(1L << hole);
+    clearValue(hole);
+    size--;
+    modification++;
+  }
+
+  /**
+   * @return the first slot at or after index that holds an element,
+   *         or -1 if there is none
+   */
+  protected final int nextUsed(int index) {
+    for (; index < capacity; index++) {
+      if (isUsed(index)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find the next element to poll. Polling continues where the previous
+   * poll stopped, so draining the table takes a single pass over it.
+   * @return the slot of an element, or -1 if the table is empty
+   */
+  protected final int nextToPoll() {
+    if (size == 0) {
+      return -1;
+    }
+    while (!isUsed(pollIndex)) {
+      pollIndex = (pollIndex + 1) & hashMask;
+    }
+    return pollIndex;
+  }
+
+  /**
+   * Checks if we need to shrink, and shrinks if necessary.
+   */
+  protected final void shrinkIfNecessary() {
+    if (size < shrinkThreshold && capacity > initialCapacity) {
+      resize(capacity / 2);
+    }
+  }
+
+  private void resize(int newCapacity) {
+    long[] oldKeys = keys;
+    int oldCapacity = capacity;
+    long[] oldUsed = used;
+    allocate(newCapacity);
+    int[] moved = new int[oldCapacity];
+    for (int j = 0; j < oldCapacity; j++) {
+      if ((oldUsed[j >>> 6] & (1L << j)) == 0) {
+        moved[j] = -1;
+        continue;
+      }
+      int i = getIndex(oldKeys[j]);
+      while (isUsed(i)) {
+        i = (i + 1) & hashMask;
+      }
+      keys[i] = oldKeys[j];
+      used[i >>> 6] |= 1L << i;
+      moved[j] = i;
+    }
+    resizeValues(newCapacity, moved);
+    modification++;
+  }
+
+  /**
+   * Remove all elements.
+   */
+  public void clear() {
+    allocate(initialCapacity);
+    resizeValues(initialCapacity, new int[0]);
+    size = 0;
+    modification++;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder(getClass().getSimpleName());
+    b.append("(size=").append(size).append(", modification=")
+        .append(modification).append(", capacity=")
+        .append(capacity).append(")");
+    return b.toString();
+  }
+}
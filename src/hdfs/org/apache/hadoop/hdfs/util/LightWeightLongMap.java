@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+/**
+ * A map from primitive longs to objects that does not allocate an entry
+ * object per mapping. This class does not support null values.
+ *
+ * This class is not thread safe.
+ */
+public class LightWeightLongMap<V> extends LightWeightLongHashTable {
+  private Object[] values;
+
+  public LightWeightLongMap() {
+    this(MINIMUM_CAPACITY);
+  }
+
+  public LightWeightLongMap(int initCapacity) {
+    super(initCapacity);
+    values = new Object[getCapacity()];
+  }
+
+  @Override
+  protected void resizeValues(int newCapacity, int[] moved) {
+    Object[] oldValues = values;
+    values = new Object[newCapacity];
+    for (int i = 0; i < moved.length; i++) {
+      if (moved[i] >= 0) {
+        values[moved[i]] = oldValues[i];
+      }
+    }
+  }
+
+  @Override
+  protected void moveValue(int from, int to) {
+    values[to] = values[from];
+  }
+
+  @Override
+  protected void clearValue(int index) {
+    values[index] = null;
+  }
+
+  @Override
+  protected long getValueBytesPerSlot() {
+    return 8;
+  }
+
+  /** @return the value of key, or null if key is not in the map */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int i = indexOf(key);
+    return i < 0 ? null : (V) values[i];
+  }
+
+  /**
+   * Map key to value.
+   * @return the previous value of key, or null if there was none
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("Null values are not supported.");
+    }
+    int i = indexOf(key);
+    if (i >= 0) {
+      V old = (V) values[i];
+      values[i] = value;
+      return old;
+    }
+    i = addKey(key); // may reallocate the values
+    values[i] = value;
+    return null;
+  }
+
+  /**
+   * Remove the mapping of key.
+   * @return the value of key, or null if key was not in the map
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    V old = (V) values[i];
+    removeAt(i);
+    shrinkIfNecessary();
+    return old;
+  }
+}
@@ -16,6 +16,9 @@
  * limitations under the License.
  */
 
+// for sync_file_range
+#define _GNU_SOURCE
+
 #if defined HAVE_CONFIG_H
   #include <config.h>
 #endif
@@ -35,6 +38,10 @@
 #include "org_apache_hadoop_syscall_LinuxSystemCall.h"
 #include <sys/types.h>
 #include <signal.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
 
 JNIEXPORT jint JNICALL
 Java_org_apache_hadoop_syscall_LinuxSystemCall_kill(
@@ -44,3 +51,114 @@ Java_org_apache_hadoop_syscall_LinuxSystemCall_kill(
   ret = kill(pid, sig);
   return ret;
 }
+
+/*
+ * The file descriptor of a java.io.FileDescriptor, or -1 if it has none.
+ */
+static int fd_get(JNIEnv *env, jobject fd_object) {
+  jclass clazz;
+  jfieldID fd_field;
+  if (fd_object == NULL) {
+    return -1;
+  }
+  clazz = (*env)->GetObjectClass(env, fd_object);
+  fd_field = (*env)->GetFieldID(env, clazz, "fd", "I");
+  if (fd_field == NULL) {
+    (*env)->ExceptionClear(env);
+    return -1;
+  }
+  return (*env)->GetIntField(env, fd_object, fd_field);
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_syscall_LinuxSystemCall_posixFadvise(
+  JNIEnv *env, jclass class, jobject fd_object, jlong offset, jlong len,
+  jint advice
+  ) {
+#if defined(__linux__)
+  int fd = fd_get(env, fd_object);
+  if (fd < 0) {
+    return EBADF;
+  }
+  return posix_fadvise(fd, (off_t)offset, (off_t)len, advice);
+#else
+  return ENOSYS;
+#endif
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_syscall_LinuxSystemCall_syncFileRange(
+  JNIEnv *env, jclass class, jobject fd_object, jlong offset, jlong nbytes,
+  jint flags
+  ) {
+#if defined(__linux__) && defined(SYNC_FILE_RANGE_WRITE)
+  int fd = fd_get(env, fd_object);
+  if (fd < 0) {
+    return EBADF;
+  }
+  if (sync_file_range(fd, (off64_t)offset, (off64_t)nbytes,
+                      (unsigned int)flags) != 0) {
+    return errno;
+  }
+  return 0;
+#else
+  return ENOSYS;
+#endif
+}
+
+/*
+ * Maps the range of the file without touching it, and asks mincore which
+ * of its pages are in memory.
+ */
+JNIEXPORT jlong JNICALL
+Java_org_apache_hadoop_syscall_LinuxSystemCall_cachedBytes(
+  JNIEnv *env, jclass class, jobject fd_object, jlong offset, jlong len
+  ) {
+#if defined(__linux__)
+  long page_size = sysconf(_SC_PAGESIZE);
+  int fd = fd_get(env, fd_object);
+  off_t start;
+  size_t map_len, pages, i;
+  void *addr;
+  unsigned char *vec;
+  jlong cached = 0;
+
+  if (fd < 0) {
+    return -EBADF;
+  }
+  if (len <= 0) {
+    return 0;
+  }
+  start = (off_t)(offset - offset % page_size);
+  map_len = (size_t)(offset + len - start);
+  pages = (map_len + page_size - 1) / page_size;
+
+  addr = mmap(NULL, map_len, PROT_READ, MAP_SHARED, fd, start);
+  if (addr == MAP_FAILED) {
+    return -errno;
+  }
+  vec = malloc(pages);
+  if (vec == NULL) {
+    munmap(addr, map_len);
+    return -ENOMEM;
+  }
+  if (mincore(addr, map_len, vec) != 0) {
+    cached = -errno;
+  } else {
+    for (i = 0; i < pages; i++) {
+      if (vec[i] & 1) {
+        cached += page_size;
+      }
+    }
+  }
+  free(vec);
+  munmap(addr, map_len);
+  return cached;
+#else
+  return -ENOSYS;
+#endif
+}
+
+/**
+ * vim: sw=2: ts=2: et:
+ */
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "org_apache_hadoop.h"
+#include "org_apache_hadoop_util_NativeCrc32C.h"
+
+#include <stdint.h>
+#include <string.h>
+
+/*
+ * The crc32 instruction of SSE4.2 computes CRC32C, with the Castagnoli
+ * polynomial. The functions using it are compiled for SSE4.2 only, and
+ * are only called once cpuid said the CPU has it.
+ */
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+
+#include <cpuid.h>
+
+#define SSE42_CRC32C 1
+
+static int cpu_has_sse42() {
+  unsigned int eax, ebx, ecx, edx;
+  if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx)) {
+    return 0;
+  }
+  return (ecx & bit_SSE4_2) != 0;
+}
+
+__attribute__((target("sse4.2")))
+static uint32_t crc32c_sse42(uint32_t crc, const uint8_t *buf, size_t len) {
+#if defined(__x86_64__)
+  uint64_t crc64 = crc;
+  while (len >= 8) {
+    uint64_t word;
+    memcpy(&word, buf, 8);
+    crc64 = __builtin_ia32_crc32di(crc64, word);
+    buf += 8;
+    len -= 8;
+  }
+  crc = (uint32_t)crc64;
+#endif
+  while (len >= 4) {
+    uint32_t word;
+    memcpy(&word, buf, 4);
+    crc = __builtin_ia32_crc32si(crc, word);
+    buf += 4;
+    len -= 4;
+  }
+  while (len > 0) {
+    crc = __builtin_ia32_crc32qi(crc, *buf);
+    buf++;
+    len--;
+  }
+  return crc;
+}
+
+#endif
+
+JNIEXPORT jboolean JNICALL
+Java_org_apache_hadoop_util_NativeCrc32C_isSupported(
+  JNIEnv *env, jclass clazz
+  ) {
+#if defined(SSE42_CRC32C)
+  return cpu_has_sse42() ? JNI_TRUE : JNI_FALSE;
+#else
+  return JNI_FALSE;
+#endif
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_util_NativeCrc32C_nativeUpdate(
+  JNIEnv *env, jclass clazz, jint crc, jbyteArray b, jint off, jint len
+  ) {
+#if defined(SSE42_CRC32C)
+  uint8_t *buf = (*env)->GetPrimitiveArrayCritical(env, b, NULL);
+  if (buf == NULL) {
+    return crc;   // OutOfMemoryError thrown
+  }
+  crc = (jint)crc32c_sse42((uint32_t)crc, buf + off, (size_t)len);
+  (*env)->ReleasePrimitiveArrayCritical(env, b, buf, JNI_ABORT);
+  return crc;
+#else
+  THROW(env, "java/lang/UnsupportedOperationException",
+        "CRC32C instruction not available");
+  return crc;
+#endif
+}
+
+#if defined(SSE42_CRC32C)
+
+/*
+ * Computes the CRC32C of every bytes_per_checksum chunk of data into sums,
+ * as big-endian ints, or compares them with the ones in sums if verify is
+ * set.
+ * Returns the index of the first mismatching chunk, or -1.
+ */
+static int chunked_sums(int bytes_per_checksum, const uint8_t *data,
+                        size_t len, uint8_t *sums, int verify) {
+  int chunk;
+  for (chunk = 0; len > 0; chunk++) {
+    size_t n = len < (size_t)bytes_per_checksum ? len : bytes_per_checksum;
+    uint32_t crc = ~crc32c_sse42(0xffffffff, data, n);
+    if (verify) {
+      uint32_t expected = ((uint32_t)sums[0] << 24) | ((uint32_t)sums[1] << 16)
+                        | ((uint32_t)sums[2] << 8) | (uint32_t)sums[3];
+      if (crc != expected) {
+        return chunk;
+      }
+    } else {
+      sums[0] = (uint8_t)(crc >> 24);
+      sums[1] = (uint8_t)(crc >> 16);
+      sums[2] = (uint8_t)(crc >> 8);
+      sums[3] = (uint8_t)crc;
+    }
+    data += n;
+    len -= n;
+    sums += 4;
+  }
+  return -1;
+}
+
+#endif
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_util_NativeCrc32C_nativeChunkedSums(
+  JNIEnv *env, jclass clazz, jint bytes_per_checksum,
+  jbyteArray data, jint data_off, jint data_len,
+  jbyteArray sums, jint sums_off, jboolean verify
+  ) {
+#if defined(SSE42_CRC32C)
+  int ret;
+  uint8_t *data_buf, *sums_buf;
+  data_buf = (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+  if (data_buf == NULL) {
+    return -1;   // OutOfMemoryError thrown
+  }
+  sums_buf = (*env)->GetPrimitiveArrayCritical(env, sums, NULL);
+  if (sums_buf == NULL) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, data_buf, JNI_ABORT);
+    return -1;   // OutOfMemoryError thrown
+  }
+  ret = chunked_sums(bytes_per_checksum, data_buf + data_off,
+                     (size_t)data_len, sums_buf + sums_off, verify);
+  (*env)->ReleasePrimitiveArrayCritical(env, sums, sums_buf,
+                                        verify ? JNI_ABORT : 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, data, data_buf, JNI_ABORT);
+  return ret;
+#else
+  THROW(env, "java/lang/UnsupportedOperationException",
+        "CRC32C instruction not available");
+  return -1;
+#endif
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_util_NativeCrc32C_nativeChunkedSumsByteBuffer(
+  JNIEnv *env, jclass clazz, jint bytes_per_checksum,
+  jobject data, jint data_off, jint data_len,
+  jobject sums, jint sums_off, jboolean verify
+  ) {
+#if defined(SSE42_CRC32C)
+  uint8_t *data_buf = (*env)->GetDirectBufferAddress(env, data);
+  uint8_t *sums_buf = (*env)->GetDirectBufferAddress(env, sums);
+  if (data_buf == NULL || sums_buf == NULL) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "Checksums can only be computed natively on direct buffers");
+    return -1;
+  }
+  return chunked_sums(bytes_per_checksum, data_buf + data_off,
+                      (size_t)data_len, sums_buf + sums_off, verify);
+#else
+  THROW(env, "java/lang/UnsupportedOperationException",
+        "CRC32C instruction not available");
+  return -1;
+#endif
+}
+
+/**
+ * vim: sw=2: ts=2: et:
+ */
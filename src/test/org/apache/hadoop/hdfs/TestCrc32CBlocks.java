@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockPathInfo;
+import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Test that blocks written with CRC32C checksums keep their type in their
+ * metadata file, and are verified with it by readers and datanodes.
+ */
+public class TestCrc32CBlocks extends TestCase {
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int FILE_SIZE = 2 * BLOCK_SIZE + 1000;
+
+  private MiniDFSCluster cluster;
+
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setBoolean("dfs.support.append", true);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+  }
+
+  protected void tearDown() throws Exception {
+    cluster.shutdown();
+  }
+
+  private FileSystem newFileSystem(String checksumType) throws IOException {
+    Configuration conf = new Configuration(cluster.getFileSystem().getConf());
+    conf.set("dfs.checksum.type", checksumType);
+    conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+    return FileSystem.get(conf);
+  }
+
+  private static byte[] writeFile(FileSystem fs, Path path) throws IOException {
+    byte[] data = new byte[FILE_SIZE];
+    new Random(path.hashCode()).nextBytes(data);
+    FSDataOutputStream out = fs.create(path);
+    out.write(data);
+    out.close();
+    return data;
+  }
+
+  private static void checkFile(FileSystem fs, Path path, byte[] expected)
+      throws IOException {
+    byte[] actual = new byte[expected.length];
+    FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, actual);
+    } finally {
+      in.close();
+    }
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("At " + i + " of " + path, expected[i], actual[i]);
+    }
+  }
+
+  private BlockPathInfo getFirstBlock(Path path) throws IOException {
+    Block block = cluster.getNameNode().getBlockLocations(path.toString(),
+        0, BLOCK_SIZE).get(0).getBlock();
+    return cluster.getDataNodes().get(0).getBlockPathInfo(
+        cluster.getNameNode().getNamespaceID(), block);
+  }
+
+  private int getChecksumType(Path path) throws IOException {
+    DataInputStream in = new DataInputStream(
+        new FileInputStream(getFirstBlock(path).getMetaPath()));
+    try {
+      return BlockMetadataHeader.readHeader(in).getChecksum()
+          .getChecksumType();
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testMixedChecksumTypes() throws Exception {
+    FileSystem crc32c = newFileSystem("CRC32C");
+    FileSystem crc32 = newFileSystem("CRC32");
+    Path crc32cFile = new Path("/crc32c");
+    Path crc32File = new Path("/crc32");
+    byte[] crc32cData = writeFile(crc32c, crc32cFile);
+    byte[] crc32Data = writeFile(crc32, crc32File);
+    assertEquals(DataChecksum.CHECKSUM_CRC32C, getChecksumType(crc32cFile));
+    assertEquals(DataChecksum.CHECKSUM_CRC32, getChecksumType(crc32File));
+
+    // every reader follows the type of the block
+    checkFile(crc32, crc32cFile, crc32cData);
+    checkFile(crc32c, crc32File, crc32Data);
+
+    // appending keeps the type of the block, so it needs the same type
+    FSDataOutputStream out = crc32c.append(crc32cFile);
+    out.write(crc32cData, 0, 100);
+    out.close();
+    byte[] appended = new byte[FILE_SIZE + 100];
+    System.arraycopy(crc32cData, 0, appended, 0, FILE_SIZE);
+    System.arraycopy(crc32cData, 0, appended, FILE_SIZE, 100);
+    checkFile(crc32, crc32cFile, appended);
+    try {
+      out = crc32.append(crc32cFile);
+      out.write(crc32cData, 0, 100);
+      out.close();
+      fail("Appended to a CRC32C block with CRC32 checksums");
+    } catch (IOException e) {
+    }
+    crc32c.close();
+    crc32.close();
+  }
+
+  public void testCorruptionDetected() throws Exception {
+    FileSystem crc32c = newFileSystem("CRC32C");
+    Path file = new Path("/corrupt");
+    byte[] data = writeFile(crc32c, file);
+
+    RandomAccessFile raf = new RandomAccessFile(
+        getFirstBlock(file).getBlockPath(), "rw");
+    raf.seek(1000);
+    raf.write(data[1000] ^ 0xff);
+    raf.close();
+
+    FSDataInputStream in = crc32c.open(file);
+    try {
+      in.readFully(0, new byte[2000]);
+      fail("Corrupt CRC32C block was read");
+    } catch (IOException e) {
+    } finally {
+      in.close();
+    }
+    crc32c.close();
+  }
+}
@@ -306,6 +306,7 @@ public class TestDataTransferProtocol extends TestCase {
     // negative length is ok. Datanode assumes we want to read the whole block.
     recvBuf.reset();
     recvOut.writeShort((short)DataTransferProtocol.OP_STATUS_SUCCESS);    
+    recvOut.writeBoolean(false); // not cached
     sendBuf.reset();
     sendOut.writeShort((short)DataTransferProtocol.DATA_TRANSFER_VERSION);
     sendOut.writeByte((byte)DataTransferProtocol.OP_READ_BLOCK);
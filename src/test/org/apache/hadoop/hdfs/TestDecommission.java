@@ -337,6 +337,31 @@ public class TestDecommission {
     startCluster(numNamenodes, numDatanodes, conf, federation);
   }
   
+  /**
+   * Tests decommission when every check only looks at a few blocks
+   */
+  @Test
+  public void testDecommissionInSmallSteps() throws IOException {
+    conf.setInt("dfs.namenode.decommission.interval", 1);
+    conf.setInt("dfs.namenode.decommission.blocks.per.interval", 3);
+    conf.setInt("dfs.namenode.decommission.blocks.per.lock", 1);
+    int numDatanodes = 3;
+    startCluster(1, numDatanodes, conf, false);
+
+    FileSystem fileSys = cluster.getFileSystem();
+    Path[] files = new Path[5];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = new Path("testDecommissionInSmallSteps" + i + ".dat");
+      writeFile(fileSys, files[i], 2);
+    }
+    DatanodeInfo decomNode = decommissionNode(0, null,
+        AdminStates.DECOMMISSIONED);
+    for (Path file : files) {
+      checkFile(fileSys, file, 2, decomNode.getName(), numDatanodes);
+      cleanupFile(fileSys, file);
+    }
+  }
+
   /**
    * Tests cluster storage statistics during decommissioning for non
    * federated cluster
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.ClientProtocolInvokers;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeProtocolInvokers;
+import org.apache.hadoop.ipc.RPC;
+
+/**
+ * Test that every method of the namenode protocols has an invoker, and
+ * that it calls that method with the parameters of the call.
+ */
+public class TestProtocolInvokers extends TestCase {
+
+  /** Parameters of a call, kept boxed. */
+  private static class Parameters implements RPC.CallParameters {
+    private final Object[] values;
+
+    Parameters(Object[] values) {
+      this.values = values;
+    }
+
+    public Object get(int i) { return values[i]; }
+    public boolean getBoolean(int i) { return (Boolean)values[i]; }
+    public byte getByte(int i) { return (Byte)values[i]; }
+    public char getChar(int i) { return (Character)values[i]; }
+    public short getShort(int i) { return (Short)values[i]; }
+    public int getInt(int i) { return (Integer)values[i]; }
+    public long getLong(int i) { return (Long)values[i]; }
+    public float getFloat(int i) { return (Float)values[i]; }
+    public double getDouble(int i) { return (Double)values[i]; }
+  }
+
+  /** Records the last call made to it. */
+  private static class Recorder implements InvocationHandler {
+    Method method;
+    Object[] args;
+
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      this.method = method;
+      this.args = args == null ? new Object[0] : args;
+      return defaultValue(method.getReturnType());
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == Void.TYPE) {
+      return null;
+    }
+    return Array.get(Array.newInstance(type, 1), 0);
+  }
+
+  /** A parameter value that tells the parameters of a call apart. */
+  private static Object parameter(Class<?> type, int i) {
+    if (type == Boolean.TYPE) {
+      return Boolean.valueOf(i % 2 == 0);
+    } else if (type == Short.TYPE) {
+      return Short.valueOf((short)(100 + i));
+    } else if (type == Integer.TYPE) {
+      return Integer.valueOf(1000 + i);
+    } else if (type == Long.TYPE) {
+      return Long.valueOf(100000L + i);
+    } else if (type == String.class) {
+      return "parameter" + i;
+    } else if (type.isArray()) {
+      return Array.newInstance(type.getComponentType(), i);
+    } else if (type.isEnum()) {
+      Object[] constants = type.getEnumConstants();
+      return constants[i % constants.length];
+    }
+    return null;
+  }
+
+  private void checkInvokers(Class<?> protocol) throws Exception {
+    Recorder recorder = new Recorder();
+    Object instance = Proxy.newProxyInstance(protocol.getClassLoader(),
+        new Class<?>[] {protocol}, recorder);
+    for (Method method : protocol.getMethods()) {
+      RPC.MethodInvoker invoker = RPC.getInvoker(method);
+      assertNotNull("no invoker for " + method, invoker);
+
+      Class<?>[] types = method.getParameterTypes();
+      Object[] args = new Object[types.length];
+      for (int i = 0; i < types.length; i++) {
+        args[i] = parameter(types[i], i);
+      }
+      recorder.method = null;
+      Object value = invoker.invoke(instance, new Parameters(args));
+      assertEquals(method, recorder.method);
+      assertTrue(method.toString(), Arrays.equals(args, recorder.args));
+      assertEquals(defaultValue(method.getReturnType()), value);
+    }
+  }
+
+  public void testClientProtocol() throws Exception {
+    ClientProtocolInvokers.register();
+    checkInvokers(ClientProtocol.class);
+  }
+
+  public void testDatanodeProtocol() throws Exception {
+    DatanodeProtocolInvokers.register();
+    checkInvokers(DatanodeProtocol.class);
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockPathInfo;
+
+/**
+ * Test short circuit reads from memory mapped blocks, and compare the time
+ * of random preads with the one of reads from the block files.
+ */
+public class TestReadShortCircuitMmap extends TestCase {
+  private static final Log LOG =
+      LogFactory.getLog(TestReadShortCircuitMmap.class);
+
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int FILE_SIZE = 3 * BLOCK_SIZE + 1000;
+  private static final int NUM_PREADS = 20000;
+  private static final int PREAD_SIZE = 4096;
+
+  private MiniDFSCluster cluster;
+  private byte[] data;
+  private Path file = new Path("/mmapfile");
+
+  protected void setUp() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    data = new byte[FILE_SIZE];
+    new Random(FILE_SIZE).nextBytes(data);
+    FSDataOutputStream out = cluster.getFileSystem().create(file);
+    out.write(data);
+    out.close();
+  }
+
+  protected void tearDown() throws Exception {
+    cluster.shutdown();
+  }
+
+  private FileSystem newFileSystem(boolean mmap) throws Exception {
+    Configuration conf = new Configuration(cluster.getFileSystem().getConf());
+    conf.setBoolean("dfs.read.shortcircuit", true);
+    conf.setBoolean("dfs.read.shortcircuit.mmap", mmap);
+    conf.setBoolean("dfs.read.shortcircuit.mmap.skip.verified", true);
+    // a new client, so that the short circuit settings are read
+    conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+    return FileSystem.get(conf);
+  }
+
+  private void checkData(int pos, byte[] buf, int off, int len) {
+    for (int i = 0; i < len; i++) {
+      assertEquals("At " + (pos + i), data[pos + i], buf[off + i]);
+    }
+  }
+
+  /**
+   * The short circuit reader keeps its connection to the local datanode
+   * for the life of the process, so every check runs on the same cluster.
+   */
+  public void testMmapReads() throws Exception {
+    checkReads();
+    long stream = runPreads(false);
+    long mmap = runPreads(true);
+    LOG.info(NUM_PREADS + " random preads of " + PREAD_SIZE
+        + " bytes: block files " + stream + " ms, mapped blocks " + mmap
+        + " ms");
+    // this one corrupts the file, so do it last
+    checkVerifiedChunks();
+  }
+
+  private void checkReads() throws Exception {
+    FileSystem fs = newFileSystem(true);
+    FSDataInputStream in = fs.open(file);
+    try {
+      // sequential reads and skips across the blocks
+      byte[] buf = new byte[FILE_SIZE];
+      in.readFully(buf, 0, 1000);
+      checkData(0, buf, 0, 1000);
+      assertEquals(BLOCK_SIZE - 1500, in.skip(BLOCK_SIZE - 1500));
+      in.readFully(buf, 0, 5000);
+      checkData(BLOCK_SIZE - 500, buf, 0, 5000);
+
+      // positional reads within and across blocks
+      int[] positions = {0, 5, 511, 512, BLOCK_SIZE - 7, 2 * BLOCK_SIZE + 3,
+          FILE_SIZE - 1000};
+      for (int pos : positions) {
+        int len = Math.min(3000, FILE_SIZE - pos);
+        in.readFully(pos, buf, 1, len);
+        checkData(pos, buf, 1, len);
+      }
+
+      // scatter gather reads hand out buffers on the mappings
+      List<ByteBuffer> buffers =
+          in.readFullyScatterGather(BLOCK_SIZE - 100, BLOCK_SIZE + 200);
+      int pos = BLOCK_SIZE - 100;
+      for (ByteBuffer bb : buffers) {
+        int len = bb.remaining();
+        bb.get(buf, 0, len);
+        checkData(pos, buf, 0, len);
+        pos += len;
+      }
+      assertEquals(2 * BLOCK_SIZE + 100, pos);
+    } finally {
+      in.close();
+      fs.close();
+    }
+  }
+
+  private void checkVerifiedChunks() throws Exception {
+    Block block = cluster.getNameNode().getBlockLocations(file.toString(),
+        0, BLOCK_SIZE).get(0).getBlock();
+    BlockPathInfo pathinfo = cluster.getDataNodes().get(0).getBlockPathInfo(
+        cluster.getNameNode().getNamespaceID(), block);
+    MappedBlock mapped = MappedBlock.map(block, pathinfo);
+    assertEquals(BLOCK_SIZE, mapped.getLength());
+    byte[] buf = new byte[1024];
+    mapped.read(0, buf, 0, buf.length, true, true);
+    checkData(0, buf, 0, buf.length);
+
+    // corrupt the first chunk under the mapping
+    RandomAccessFile raf = new RandomAccessFile(pathinfo.getBlockPath(), "rw");
+    raf.seek(10);
+    raf.write(data[10] ^ 0xff);
+    raf.close();
+
+    // the chunk was verified, and is not verified again if asked so
+    mapped.read(0, buf, 0, 100, true, true);
+    mapped.read(0, buf, 0, 100, false, false);
+    try {
+      mapped.read(0, buf, 0, 100, true, false);
+      fail("Corrupt chunk was not detected");
+    } catch (ChecksumException e) {
+      assertEquals(0, e.getPos());
+    }
+    try {
+      mapped.slice(5, 10, true, false);
+      fail("Corrupt chunk was not detected");
+    } catch (ChecksumException e) {
+    }
+    // the next chunk is still intact
+    mapped.read(512, buf, 0, 100, true, false);
+    checkData(512, buf, 0, 100);
+  }
+
+  private long runPreads(boolean mmap) throws Exception {
+    FileSystem fs = newFileSystem(mmap);
+    FSDataInputStream in = fs.open(file);
+    try {
+      Random random = new Random(0);
+      byte[] buf = new byte[PREAD_SIZE];
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < NUM_PREADS; i++) {
+        int pos = random.nextInt(FILE_SIZE - PREAD_SIZE);
+        in.readFully(pos, buf);
+        if (i % 1000 == 0) {
+          checkData(pos, buf, 0, PREAD_SIZE);
+        }
+      }
+      return System.currentTimeMillis() - start;
+    } finally {
+      in.close();
+      fs.close();
+    }
+  }
+}
@@ -748,6 +748,10 @@ public class SimulatedFSDataset  implements FSConstants, FSDatasetInterface, Con
   public String getStorageInfo() {
     return "Simulated FSDataset-" + storageId;
   }
+
+  public String getVolumeInfo() {
+    return "{}";
+  }
   
   public boolean hasEnoughResource() {
     return true;
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+
+/**
+ * Test the admission, eviction and invalidation of the block cache of a
+ * datanode, and that clients go back to the datanode caching a block.
+ */
+public class TestBlockCache extends TestCase {
+  private static final Log LOG = LogFactory.getLog(TestBlockCache.class);
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+  // room for three blocks and their meta files
+  private static final long CACHE_SIZE = 3 * (BLOCK_SIZE + 1024);
+
+  private static Configuration newConf() {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("dfs.heartbeat.interval", 1);
+    return conf;
+  }
+
+  private static void setCache(Configuration conf, int minReads) {
+    conf.setLong("dfs.datanode.block.cache.size", CACHE_SIZE);
+    conf.setLong("dfs.datanode.block.cache.max.block.size", BLOCK_SIZE);
+    conf.setInt("dfs.datanode.block.cache.min.reads", minReads);
+  }
+
+  private static byte[] writeFile(FileSystem fs, Path path, short replication)
+      throws Exception {
+    byte[] data = new byte[BLOCK_SIZE];
+    new Random(path.hashCode()).nextBytes(data);
+    FSDataOutputStream out = fs.create(path, replication);
+    out.write(data);
+    out.close();
+    return data;
+  }
+
+  private static void readFile(FileSystem fs, Path path, byte[] expected,
+      int times) throws Exception {
+    byte[] actual = new byte[expected.length];
+    for (int i = 0; i < times; i++) {
+      FSDataInputStream in = fs.open(path);
+      try {
+        in.readFully(0, actual);
+      } finally {
+        in.close();
+      }
+      for (int j = 0; j < expected.length; j++) {
+        assertEquals("At " + j + " of " + path, expected[j], actual[j]);
+      }
+    }
+  }
+
+  private static Block getBlock(MiniDFSCluster cluster, Path path)
+      throws Exception {
+    return cluster.getNameNode().getBlockLocations(path.toString(), 0,
+        BLOCK_SIZE).get(0).getBlock();
+  }
+
+  public void testAdmissionAndEviction() throws Exception {
+    Configuration conf = newConf();
+    setCache(conf, 2);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      DataNode dn = cluster.getDataNodes().get(0);
+      BlockCache cache = dn.blockCache;
+      DataNodeMetrics metrics = dn.myMetrics;
+      int nsId = cluster.getNameNode().getNamespaceID();
+
+      Path[] paths = new Path[4];
+      byte[][] data = new byte[paths.length][];
+      Block[] blocks = new Block[paths.length];
+      for (int i = 0; i < paths.length; i++) {
+        paths[i] = new Path("/hot" + i);
+        data[i] = writeFile(fs, paths[i], (short)1);
+        blocks[i] = getBlock(cluster, paths[i]);
+      }
+
+      // a block is cached on its second read, and served from the cache
+      readFile(fs, paths[0], data[0], 1);
+      assertFalse(cache.contains(nsId, blocks[0]));
+      readFile(fs, paths[0], data[0], 1);
+      assertTrue(cache.contains(nsId, blocks[0]));
+      readFile(fs, paths[0], data[0], 1);
+      assertEquals(1, metrics.blockCacheHits.getCurrentIntervalValue());
+      assertEquals(2, metrics.blockCacheMisses.getCurrentIntervalValue());
+
+      // fill the cache
+      readFile(fs, paths[1], data[1], 3);
+      readFile(fs, paths[2], data[2], 3);
+      assertTrue(cache.contains(nsId, blocks[1]));
+      assertTrue(cache.contains(nsId, blocks[2]));
+      assertTrue(cache.getUsed() <= CACHE_SIZE);
+      assertEquals(cache.getUsed(), metrics.blockCacheUsed.get());
+
+      // a block read less often than the cached ones does not evict them
+      readFile(fs, paths[3], data[3], 3);
+      assertFalse(cache.contains(nsId, blocks[3]));
+      assertEquals(0, metrics.blockCacheEvictions.getCurrentIntervalValue());
+
+      // once it is read more often, it evicts one of them
+      readFile(fs, paths[3], data[3], 1);
+      assertTrue(cache.contains(nsId, blocks[3]));
+      assertEquals(1, metrics.blockCacheEvictions.getCurrentIntervalValue());
+      readFile(fs, paths[3], data[3], 1);
+
+      // a deleted block is dropped from the cache
+      fs.delete(paths[3], false);
+      long deadline = System.currentTimeMillis() + 30000;
+      while (cache.contains(nsId, blocks[3])) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  public void testClientPrefersCachingNode() throws Exception {
+    Configuration conf = newConf();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 2, true, null);
+    try {
+      // one more datanode, the only one with a block cache
+      Configuration cacheConf = new Configuration(conf);
+      setCache(cacheConf, 1);
+      cluster.startDataNodes(cacheConf, 1, true, null, null);
+      cluster.waitActive();
+      DataNode cachingNode = cluster.getDataNodes().get(2);
+      assertNotNull(cachingNode.blockCache);
+      assertNull(cluster.getDataNodes().get(0).blockCache);
+
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/lookup");
+      byte[] data = writeFile(fs, path, (short)3);
+      DataNodeMetrics metrics = cachingNode.myMetrics;
+
+      // read until the caching node happens to serve the block
+      int reads = 0;
+      while (metrics.blockCacheMisses.getCurrentIntervalValue() == 0) {
+        assertTrue("The caching datanode was never chosen", reads++ < 200);
+        readFile(fs, path, data, 1);
+      }
+      long start = System.currentTimeMillis();
+      readFile(fs, path, data, 20);
+      long elapsed = System.currentTimeMillis() - start;
+      // the client went back to it every time, and got the cached block
+      assertEquals(20, metrics.blockCacheHits.getCurrentIntervalValue());
+      LOG.info("First read from the caching datanode after " + reads
+          + " reads, then 20 cached reads in " + elapsed + " ms");
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
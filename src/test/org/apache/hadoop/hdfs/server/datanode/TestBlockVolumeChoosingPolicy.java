@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.util.DiskChecker.DiskOutOfSpaceException;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Test the policies choosing the volume of a new block, on volumes of
+ * which one is full and one is slow.
+ */
+public class TestBlockVolumeChoosingPolicy extends TestCase {
+  private static final Log LOG =
+    LogFactory.getLog(TestBlockVolumeChoosingPolicy.class);
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"), "volumechoice");
+
+  private static final int NUM_THREADS = 8;
+  private static final int BLOCKS_PER_THREAD = 50;
+  private static final int PACKETS_PER_BLOCK = 4;
+  private static final long SLOW_PACKET_MS = 5;
+  private static final int SLOW = 2;
+  private static final int FULL = 3;
+
+  private Configuration conf;
+  private FSDataset dataset;
+  private FSVolume[] volumes;
+
+  protected void setUp() throws Exception {
+    FileUtil.fullyDelete(TEST_DIR);
+    conf = new Configuration();
+    dataset = new FSDataset();
+    volumes = new FSVolume[4];
+    for (int i = 0; i < volumes.length; i++) {
+      Configuration volumeConf = new Configuration(conf);
+      if (i == FULL) {
+        volumeConf.setLong("dfs.datanode.du.reserved", Long.MAX_VALUE / 2);
+      }
+      File current = new File(new File(TEST_DIR, "vol" + i), "current");
+      assertTrue(current.mkdirs());
+      volumes[i] = dataset.new FSVolume(dataset, current, volumeConf);
+    }
+  }
+
+  protected void tearDown() throws Exception {
+    for (FSVolume v : volumes) {
+      v.shutdown();
+    }
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private BlockVolumeChoosingPolicy newPolicy(
+      Class<? extends BlockVolumeChoosingPolicy> policyClass) {
+    return ReflectionUtils.newInstance(policyClass, conf);
+  }
+
+  public void testRoundRobin() throws Exception {
+    BlockVolumeChoosingPolicy policy =
+      newPolicy(RoundRobinVolumeChoosingPolicy.class);
+    for (int i = 0; i < 6; i++) {
+      assertSame(volumes[i % 3], policy.chooseVolume(volumes, 1024));
+    }
+  }
+
+  public void testOutOfSpace() throws Exception {
+    FSVolume[] full = new FSVolume[] {volumes[FULL]};
+    for (Class<? extends BlockVolumeChoosingPolicy> c : new Class[] {
+        RoundRobinVolumeChoosingPolicy.class,
+        LoadAwareVolumeChoosingPolicy.class}) {
+      try {
+        newPolicy(c).chooseVolume(full, 1024);
+        fail("Chose a full volume with " + c);
+      } catch (DiskOutOfSpaceException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testLoadAware() throws Exception {
+    BlockVolumeChoosingPolicy policy =
+      newPolicy(LoadAwareVolumeChoosingPolicy.class);
+    int[] chosen = new int[volumes.length];
+    for (int i = 0; i < 3000; i++) {
+      chosen[indexOf(policy.chooseVolume(volumes, 1024))]++;
+    }
+    assertEquals(0, chosen[FULL]);
+    for (int i = 0; i < FULL; i++) {
+      assertTrue("Volume " + i + " chosen " + chosen[i] + " times",
+          chosen[i] > 700);
+    }
+
+    // a volume with many open streams gets fewer blocks
+    for (int i = 0; i < 9; i++) {
+      volumes[0].beginIO();
+    }
+    chosen = new int[volumes.length];
+    for (int i = 0; i < 3000; i++) {
+      chosen[indexOf(policy.chooseVolume(volumes, 1024))]++;
+    }
+    assertTrue("Busy volume chosen " + chosen[0] + " times", chosen[0] < 300);
+    for (int i = 0; i < 9; i++) {
+      volumes[0].endIO();
+    }
+  }
+
+  /**
+   * Writers choose volumes and write to them, where writes to one volume
+   * are slow. The load aware policy has to send fewer blocks to the slow
+   * volume than round robin does.
+   */
+  public void testSlowVolume() throws Exception {
+    int[] roundRobin = runWriters(RoundRobinVolumeChoosingPolicy.class);
+    int[] loadAware = runWriters(LoadAwareVolumeChoosingPolicy.class);
+    assertEquals(0, roundRobin[FULL]);
+    assertEquals(0, loadAware[FULL]);
+    assertTrue("Slow volume got " + loadAware[SLOW] + " blocks, "
+        + roundRobin[SLOW] + " with round robin",
+        loadAware[SLOW] * 2 < roundRobin[SLOW]);
+  }
+
+  private int indexOf(FSVolume v) {
+    for (int i = 0; i < volumes.length; i++) {
+      if (volumes[i] == v) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the number of blocks written to every volume
+   */
+  private int[] runWriters(
+      Class<? extends BlockVolumeChoosingPolicy> policyClass)
+      throws Exception {
+    final BlockVolumeChoosingPolicy policy = newPolicy(policyClass);
+    final AtomicIntegerArray chosen = new AtomicIntegerArray(volumes.length);
+    final String[] error = new String[1];
+    Thread[] writers = new Thread[NUM_THREADS];
+    for (int t = 0; t < writers.length; t++) {
+      writers[t] = new Thread() {
+        public void run() {
+          try {
+            for (int b = 0; b < BLOCKS_PER_THREAD; b++) {
+              FSVolume v;
+              synchronized (policy) {
+                v = policy.chooseVolume(volumes, 1024);
+              }
+              int i = indexOf(v);
+              chosen.incrementAndGet(i);
+              v.beginIO();
+              try {
+                for (int p = 0; p < PACKETS_PER_BLOCK; p++) {
+                  long start = System.nanoTime();
+                  if (i == SLOW) {
+                    Thread.sleep(SLOW_PACKET_MS);
+                  }
+                  v.recordIOLatency(System.nanoTime() - start);
+                }
+              } finally {
+                v.endIO();
+              }
+            }
+          } catch (Exception e) {
+            error[0] = e.toString();
+          }
+        }
+      };
+    }
+    long start = System.currentTimeMillis();
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    assertNull(error[0], error[0]);
+
+    int[] result = new int[volumes.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = chosen.get(i);
+    }
+    LOG.info(policyClass.getSimpleName() + " wrote "
+        + NUM_THREADS * BLOCKS_PER_THREAD + " blocks in " + elapsed
+        + " msec, blocks per volume " + Arrays.toString(result));
+    return result;
+  }
+
+  /**
+   * The per volume info of the datanode counts the blocks written.
+   */
+  public void testVolumeInfo() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", 1024);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      DFSTestUtil.createFile(fs, new Path("/file"), 8 * 1024, (short)1, 0L);
+      FSDataset data = (FSDataset) cluster.getDataNodes().get(0).data;
+      String info = data.getVolumeInfo();
+      LOG.info("Volume info " + info);
+      Matcher m = Pattern.compile("\"blocksChosen\":(\\d+)").matcher(info);
+      int numVolumes = 0;
+      long blocks = 0;
+      while (m.find()) {
+        numVolumes++;
+        blocks += Long.parseLong(m.group(1));
+      }
+      assertEquals(data.volumes.getVolumes().length, numVolumes);
+      assertEquals(8, blocks);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
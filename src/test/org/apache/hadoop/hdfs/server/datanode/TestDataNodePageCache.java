@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.syscall.LinuxSystemCall;
+import org.apache.hadoop.util.NativeCodeLoader;
+
+/**
+ * Test the readahead, writeback and drop behind of the block files by the
+ * datanode, and the page cache metrics. Without the native hadoop library
+ * only the data is checked.
+ */
+public class TestDataNodePageCache extends TestCase {
+  private static final Log LOG =
+    LogFactory.getLog(TestDataNodePageCache.class);
+
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int LAG_BYTES = 128 * 1024;
+
+  public void testSystemCalls() throws Exception {
+    File file = new File(System.getProperty("test.build.data", "/tmp"),
+        "pagecache");
+    byte[] data = new byte[BLOCK_SIZE];
+    new Random(0).nextBytes(data);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+      boolean synced = LinuxSystemCall.syncFileRangeIfPossible(out.getFD(),
+          0, BLOCK_SIZE, LinuxSystemCall.SYNC_FILE_RANGE_WRITE
+              | LinuxSystemCall.SYNC_FILE_RANGE_WAIT_AFTER);
+      assertEquals(NativeCodeLoader.isNativeCodeLoaded(), synced);
+    } finally {
+      out.close();
+    }
+
+    FileInputStream in = new FileInputStream(file);
+    try {
+      long cached = LinuxSystemCall.cachedBytesIfPossible(in.getFD(), 0,
+          BLOCK_SIZE);
+      if (!NativeCodeLoader.isNativeCodeLoaded()) {
+        assertEquals(-1, cached);
+        return;
+      }
+      assertTrue(cached >= 0 && cached <= BLOCK_SIZE);
+      assertTrue(LinuxSystemCall.posixFadviseIfPossible(in.getFD(), 0,
+          BLOCK_SIZE, LinuxSystemCall.POSIX_FADV_WILLNEED));
+      assertTrue(LinuxSystemCall.posixFadviseIfPossible(in.getFD(), 0,
+          BLOCK_SIZE, LinuxSystemCall.POSIX_FADV_DONTNEED));
+      LOG.info(cached + " bytes of " + file + " were cached, "
+          + LinuxSystemCall.cachedBytesIfPossible(in.getFD(), 0, BLOCK_SIZE)
+          + " are after dropping them");
+    } finally {
+      in.close();
+      file.delete();
+    }
+  }
+
+  public void testReadAndWrite() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setLong("dfs.datanode.readahead.bytes", 2 * LAG_BYTES);
+    conf.setBoolean("dfs.datanode.drop.cache.behind.reads", true);
+    conf.setBoolean("dfs.datanode.drop.cache.behind.writes", true);
+    conf.setBoolean("dfs.datanode.sync.behind.writes", true);
+    conf.setLong("dfs.datanode.cache.drop.lag.bytes", LAG_BYTES);
+    conf.setBoolean("dfs.datanode.page.cache.metrics", true);
+    // only the reads of the test go through BlockSender
+    conf.setInt("dfs.datanode.scan.period.hours", -1);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      DataNodeMetrics metrics = cluster.getDataNodes().get(0).myMetrics;
+
+      Path path = new Path("/file");
+      byte[] data = new byte[2 * BLOCK_SIZE];
+      new Random(0).nextBytes(data);
+      FSDataOutputStream out = fs.create(path);
+      out.write(data);
+      out.close();
+
+      byte[] actual = new byte[data.length];
+      FSDataInputStream in = fs.open(path);
+      try {
+        in.readFully(0, actual);
+      } finally {
+        in.close();
+      }
+      for (int i = 0; i < data.length; i++) {
+        assertEquals("At " + i, data[i], actual[i]);
+      }
+
+      long writeback = metrics.writebackBytes.getCurrentIntervalValue();
+      long readahead = metrics.readaheadBytes.getCurrentIntervalValue();
+      long dropped = metrics.pageCacheDroppedBytes.getCurrentIntervalValue();
+      long hits = metrics.pageCacheHitBytes.getCurrentIntervalValue();
+      long misses = metrics.pageCacheMissBytes.getCurrentIntervalValue();
+      LOG.info("writeback " + writeback + " readahead " + readahead
+          + " dropped " + dropped + " hits " + hits + " misses " + misses);
+      if (!NativeCodeLoader.isNativeCodeLoaded()) {
+        assertEquals(0, writeback + readahead + dropped + hits + misses);
+        return;
+      }
+      // each block is written back and dropped a lag behind the writer
+      assertTrue(writeback >= 2 * (BLOCK_SIZE - LAG_BYTES));
+      // both blocks are read ahead as a whole
+      assertEquals(data.length, readahead);
+      // the writer drops all but about its last two windows, since packets
+      // do not end on window boundaries, and the reader drops everything
+      assertTrue(dropped >= 2 * (BLOCK_SIZE - 3 * LAG_BYTES) + data.length);
+      assertEquals(data.length, hits + misses);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Read blocks from a datanode serving its connections from a selector, and
+ * compare the threads taken by many idle and slow clients with the ones of
+ * a thread per connection.
+ */
+public class TestDataXceiverSelector extends TestCase {
+  private static final Log LOG =
+      LogFactory.getLog(TestDataXceiverSelector.class);
+
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int NUM_IDLE = 200;
+  private static final int NUM_SLOW = 20;
+
+  private MiniDFSCluster startCluster(boolean nio) throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setBoolean("dfs.datanode.xceiver.nio", nio);
+    conf.setInt("dfs.datanode.max.xcievers", NUM_IDLE + NUM_SLOW + 16);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    return cluster;
+  }
+
+  private static byte[] writeFile(FileSystem fs, Path path, int len)
+      throws Exception {
+    byte[] data = new byte[len];
+    new Random(len).nextBytes(data);
+    FSDataOutputStream out = fs.create(path, (short)1);
+    out.write(data);
+    out.close();
+    return data;
+  }
+
+  private static void checkFile(FileSystem fs, Path path, byte[] expected)
+      throws Exception {
+    byte[] actual = new byte[expected.length];
+    FSDataInputStream in = fs.open(path);
+    try {
+      in.readFully(0, actual);
+      assertTrue("Content of " + path, Arrays.equals(expected, actual));
+      // a read from the middle of a chunk up to the middle of another
+      int off = expected.length / 3;
+      byte[] part = new byte[Math.min(expected.length - off, 5000)];
+      in.readFully(off, part);
+      for (int i = 0; i < part.length; i++) {
+        assertEquals(expected[off + i], part[i]);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void waitForNoReads(DataNode dn) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (dn.dsServer.getNonBlockingReadCount() > 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  public void testReads() throws Exception {
+    MiniDFSCluster cluster = startCluster(true);
+    try {
+      DataNode dn = cluster.getDataNodes().get(0);
+      assertNotNull(dn.dsServer.selector);
+      FileSystem fs = cluster.getFileSystem();
+      int[] lengths = {1, 511, 512, 4097, 64 * 1024 + 3, 3 * BLOCK_SIZE + 100};
+      for (int len : lengths) {
+        Path path = new Path("/file" + len);
+        checkFile(fs, path, writeFile(fs, path, len));
+      }
+      waitForNoReads(dn);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  public void testManyConnections() throws Exception {
+    int blocking = runConnections(false);
+    int nio = runConnections(true);
+    LOG.info("Datanode threads with " + NUM_IDLE + " idle and " + NUM_SLOW
+        + " slow clients: a thread per connection " + blocking
+        + ", selector " + nio);
+    assertTrue(blocking >= NUM_IDLE);
+    assertTrue(nio < NUM_SLOW + 16);
+  }
+
+  /**
+   * Open idle connections and block reads that are never consumed, read a
+   * file while they are open, and count the threads of the datanode.
+   */
+  private int runConnections(boolean nio) throws Exception {
+    MiniDFSCluster cluster = startCluster(nio);
+    List<Socket> sockets = new ArrayList<Socket>();
+    try {
+      DataNode dn = cluster.getDataNodes().get(0);
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/file");
+      byte[] data = writeFile(fs, path, BLOCK_SIZE);
+      Block block = cluster.getNameNode().getBlockLocations(
+          path.toString(), 0, BLOCK_SIZE).get(0).getBlock();
+      int nsId = cluster.getNameNode().getNamespaceID();
+      InetSocketAddress addr = dn.getSelfAddr();
+
+      for (int i = 0; i < NUM_IDLE; i++) {
+        Socket s = new Socket();
+        s.connect(addr);
+        sockets.add(s);
+      }
+      for (int i = 0; i < NUM_SLOW; i++) {
+        Socket s = new Socket();
+        s.setReceiveBufferSize(4096);
+        s.connect(addr);
+        sockets.add(s);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeShort(DataTransferProtocol.DATA_TRANSFER_VERSION);
+        out.write(DataTransferProtocol.OP_READ_BLOCK);
+        out.writeInt(nsId);
+        out.writeLong(block.getBlockId());
+        out.writeLong(block.getGenerationStamp());
+        out.writeLong(0);
+        out.writeLong(BLOCK_SIZE);
+        Text.writeString(out, "slowclient");
+        out.flush();
+      }
+      Thread.sleep(1000);
+
+      long start = System.currentTimeMillis();
+      checkFile(fs, path, data);
+      long elapsed = System.currentTimeMillis() - start;
+      int threads = dn.threadGroup.activeCount();
+      LOG.info((nio ? "Selector" : "Thread per connection") + ": " + threads
+          + " threads, " + dn.dsServer.getNonBlockingReadCount()
+          + " reads without a thread, file read in " + elapsed + " ms");
+      return threads;
+    } finally {
+      for (Socket s : sockets) {
+        IOUtils.closeSocket(s);
+      }
+      cluster.shutdown();
+    }
+  }
+}
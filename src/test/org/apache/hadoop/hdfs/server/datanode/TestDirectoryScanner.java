@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Test that block reports come from the replicas in memory, and that the
+ * directory scanner reconciles them with the block files changed behind
+ * the back of the datanode.
+ */
+public class TestDirectoryScanner extends TestCase {
+  private static final int BLOCK_SIZE = 1024;
+  private static final int NUM_BLOCKS = 5;
+
+  private static Map<Long, Block> getBlockReport(FSDataset dataset,
+      int namespaceId) {
+    Map<Long, Block> report = new HashMap<Long, Block>();
+    for (Block b : dataset.getBlockReport(namespaceId)) {
+      report.put(b.getBlockId(), b);
+    }
+    return report;
+  }
+
+  private static void copy(File src, File dst) throws IOException {
+    IOUtils.copyBytes(new FileInputStream(src), new FileOutputStream(dst),
+        4096, true);
+  }
+
+  public void testReconcile() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("io.bytes.per.checksum", 512);
+    // the scans of the test are run by hand
+    conf.setLong("dfs.datanode.directoryscan.interval", -1);
+    conf.setInt("dfs.datanode.scan.period.hours", -1);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/file");
+      DFSTestUtil.createFile(fs, path, NUM_BLOCKS * BLOCK_SIZE - 100,
+          (short)1, 0L);
+      List<LocatedBlock> located = cluster.getNameNode().getBlockLocations(
+          path.toString(), 0, Long.MAX_VALUE).getLocatedBlocks();
+      assertEquals(NUM_BLOCKS, located.size());
+
+      DataNode datanode = cluster.getDataNodes().get(0);
+      assertNull(datanode.directoryScanner);
+      FSDataset dataset = (FSDataset)datanode.data;
+      int namespaceId = cluster.getNameNode().getNamespaceID();
+      DataNodeMetrics metrics = datanode.getMetrics();
+
+      // the report from memory has the blocks of the namenode
+      Map<Long, Block> report = getBlockReport(dataset, namespaceId);
+      assertEquals(NUM_BLOCKS, report.size());
+      for (LocatedBlock lb : located) {
+        Block b = lb.getBlock();
+        Block reported = report.get(b.getBlockId());
+        assertEquals(b.getGenerationStamp(), reported.getGenerationStamp());
+        assertEquals(b.getNumBytes(), reported.getNumBytes());
+      }
+
+      // nothing to reconcile
+      DirectoryScanner scanner = new DirectoryScanner(datanode, dataset, conf);
+      scanner.scan();
+      assertEquals(NUM_BLOCKS,
+          metrics.directoryScanBlocks.getCurrentIntervalValue());
+      assertEquals(100, metrics.directoryScanProgress.get());
+      assertEquals(0, metrics.directoryScanMissingFiles
+          .getCurrentIntervalValue());
+      assertEquals(0, metrics.directoryScanMissingReplicas
+          .getCurrentIntervalValue());
+      assertEquals(0, metrics.directoryScanMismatchedReplicas
+          .getCurrentIntervalValue());
+
+      // lose the files of a block
+      Block lost = located.get(0).getBlock();
+      File lostFile = dataset.getBlockFile(namespaceId, lost);
+      assertTrue(FSDataset.getMetaFile(lostFile, lost).delete());
+      assertTrue(lostFile.delete());
+
+      // truncate another one
+      Block truncated = located.get(1).getBlock();
+      RandomAccessFile raf = new RandomAccessFile(
+          dataset.getBlockFile(namespaceId, truncated), "rw");
+      raf.setLength(100);
+      raf.close();
+
+      // and put a copy of a third one under a new id
+      Block copied = located.get(2).getBlock();
+      File copiedFile = dataset.getBlockFile(namespaceId, copied);
+      Block added = new Block(copied.getBlockId() + 1000000,
+          copied.getNumBytes(), copied.getGenerationStamp());
+      File addedFile = new File(copiedFile.getParentFile(),
+          added.getBlockName());
+      copy(copiedFile, addedFile);
+      copy(FSDataset.getMetaFile(copiedFile, copied),
+          FSDataset.getMetaFile(addedFile, added));
+
+      // the report does not look at the disk
+      assertEquals(report.keySet(),
+          getBlockReport(dataset, namespaceId).keySet());
+
+      scanner.scan();
+      assertEquals(1, metrics.directoryScanMissingFiles
+          .getCurrentIntervalValue());
+      assertEquals(1, metrics.directoryScanMissingReplicas
+          .getCurrentIntervalValue());
+      assertEquals(1, metrics.directoryScanMismatchedReplicas
+          .getCurrentIntervalValue());
+      report = getBlockReport(dataset, namespaceId);
+      assertEquals(NUM_BLOCKS, report.size());
+      assertNull(report.get(lost.getBlockId()));
+      assertNull(dataset.getFile(namespaceId, lost));
+      assertEquals(100, report.get(truncated.getBlockId()).getNumBytes());
+      Block reported = report.get(added.getBlockId());
+      assertEquals(added.getNumBytes(), reported.getNumBytes());
+      assertEquals(added.getGenerationStamp(),
+          reported.getGenerationStamp());
+      assertEquals(addedFile, dataset.getFile(namespaceId, added));
+
+      // the map and the disk agree now
+      scanner.scan();
+      assertEquals(1, metrics.directoryScanMissingFiles
+          .getCurrentIntervalValue());
+      assertEquals(1, metrics.directoryScanMissingReplicas
+          .getCurrentIntervalValue());
+      assertEquals(1, metrics.directoryScanMismatchedReplicas
+          .getCurrentIntervalValue());
+      assertEquals(3 * NUM_BLOCKS,
+          metrics.directoryScanBlocks.getCurrentIntervalValue());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  public void testUnlistableDirectory() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("io.bytes.per.checksum", 512);
+    conf.setLong("dfs.datanode.directoryscan.interval", -1);
+    conf.setInt("dfs.datanode.scan.period.hours", -1);
+    // spread the blocks of a volume over subdirectories
+    conf.setInt("dfs.datanode.numblocks", 2);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/file");
+      int numBlocks = 4 * NUM_BLOCKS;
+      DFSTestUtil.createFile(fs, path, numBlocks * BLOCK_SIZE, (short)1, 0L);
+      List<LocatedBlock> located = cluster.getNameNode().getBlockLocations(
+          path.toString(), 0, Long.MAX_VALUE).getLocatedBlocks();
+      assertEquals(numBlocks, located.size());
+
+      DataNode datanode = cluster.getDataNodes().get(0);
+      FSDataset dataset = (FSDataset)datanode.data;
+      int namespaceId = cluster.getNameNode().getNamespaceID();
+      DataNodeMetrics metrics = datanode.getMetrics();
+
+      // a subdirectory that cannot be listed any more
+      File unlistable = null;
+      for (LocatedBlock lb : located) {
+        File dir = dataset.getBlockFile(namespaceId, lb.getBlock())
+            .getParentFile();
+        if (dir.getName().startsWith("subdir") && (unlistable == null
+            || dir.getPath().compareTo(unlistable.getPath()) < 0)) {
+          unlistable = dir;
+        }
+      }
+      assertNotNull(unlistable);
+      int inUnlistable = 0;
+      for (LocatedBlock lb : located) {
+        if (dataset.getBlockFile(namespaceId, lb.getBlock()).getPath()
+            .startsWith(unlistable.getPath() + File.separator)) {
+          inUnlistable++;
+        }
+      }
+      File moved = new File(unlistable.getPath() + ".moved");
+      assertTrue(unlistable.renameTo(moved));
+      assertTrue(unlistable.createNewFile());
+
+      // the other directories are still scanned, and the replicas of the
+      // unlistable one are kept
+      DirectoryScanner scanner = new DirectoryScanner(datanode, dataset, conf);
+      scanner.scan();
+      assertEquals(numBlocks - inUnlistable,
+          metrics.directoryScanBlocks.getCurrentIntervalValue());
+      assertEquals(0, metrics.directoryScanMissingFiles
+          .getCurrentIntervalValue());
+      assertEquals(numBlocks, getBlockReport(dataset, namespaceId).size());
+
+      assertTrue(unlistable.delete());
+      assertTrue(moved.renameTo(unlistable));
+
+      // the files of an invalidated replica are not added back
+      Block invalid = located.get(0).getBlock();
+      dataset.invalidate(namespaceId, new Block[] {invalid});
+      scanner.scan();
+      assertEquals(0, metrics.directoryScanMissingReplicas
+          .getCurrentIntervalValue());
+      assertEquals(0, metrics.directoryScanMissingFiles
+          .getCurrentIntervalValue());
+      Map<Long, Block> report = getBlockReport(dataset, namespaceId);
+      assertEquals(numBlocks - 1, report.size());
+      assertNull(report.get(invalid.getBlockId()));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
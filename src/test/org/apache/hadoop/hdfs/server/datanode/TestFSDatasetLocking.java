@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.hadoop.hdfs.server.protocol.BlockCommand;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Write, finalize and invalidate blocks from many threads, and compare the
+ * throughput with the one of a dataset wide exclusive lock.
+ */
+public class TestFSDatasetLocking extends TestCase {
+  private static final Log LOG = LogFactory.getLog(TestFSDatasetLocking.class);
+
+  private static final int NUM_THREADS = 8;
+  private static final int BLOCKS_PER_THREAD = 200;
+  private static final int BLOCK_SIZE = 4096;
+  private static final long GENSTAMP = 1000;
+
+  private final AtomicLong nextBlockId = new AtomicLong(1L << 40);
+
+  public void testConcurrentWrites() throws Exception {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FSDataset dataset = (FSDataset) cluster.getDataNodes().get(0).data;
+      int nsId = cluster.getNameNode().getNamespaceID();
+
+      long exclusive = runWriters(dataset, nsId, true);
+      long concurrent = runWriters(dataset, nsId, false);
+      LOG.info("Blocks per second with " + NUM_THREADS + " threads on "
+          + dataset.volumes.getVolumes().length + " volumes: exclusive lock "
+          + exclusive + ", per block locks " + concurrent);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * The used space of a volume is decreased by the threads deleting the
+   * block files while it is read: no update may be lost.
+   */
+  public void testConcurrentDfsUsedUpdates() throws Exception {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      final FSDataset dataset =
+        (FSDataset) cluster.getDataNodes().get(0).data;
+      final int nsId = cluster.getNameNode().getNamespaceID();
+      final FSVolume volume = dataset.volumes.getVolumes()[0];
+      final int updates = 10000;
+      long used = volume.getNSUsed(nsId);
+      Thread[] threads = new Thread[NUM_THREADS];
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread() {
+          public void run() {
+            for (int j = 0; j < updates; j++) {
+              volume.decDfsUsed(nsId, 1);
+              if (j % 100 == 0) {
+                try {
+                  dataset.getDfsUsed();
+                } catch (IOException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(used - NUM_THREADS * updates, volume.getNSUsed(nsId));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * @param exclusive hold the dataset lock exclusively around every call,
+   *        like every write of the dataset did before
+   * @return the number of blocks written per second
+   */
+  private long runWriters(FSDataset dataset, int nsId, boolean exclusive)
+      throws Exception {
+    Writer[] writers = new Writer[NUM_THREADS];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = new Writer(dataset, nsId, exclusive);
+    }
+    long start = System.currentTimeMillis();
+    for (Writer writer : writers) {
+      writer.start();
+    }
+    for (Writer writer : writers) {
+      writer.join();
+    }
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+    for (Writer writer : writers) {
+      assertNull(writer.error, writer.error);
+      for (Block b : writer.kept) {
+        assertTrue("Block " + b + " is not valid", dataset.isValidBlock(nsId, b));
+        assertEquals(BLOCK_SIZE, dataset.getVisibleLength(nsId, b));
+      }
+      for (Block b : writer.deleted) {
+        assertNull(dataset.getFile(nsId, b));
+      }
+    }
+    Set<Block> reported = new HashSet<Block>();
+    for (Block b : dataset.getBlockReport(nsId)) {
+      reported.add(b);
+    }
+    for (Writer writer : writers) {
+      assertTrue(reported.containsAll(writer.kept));
+    }
+    return NUM_THREADS * BLOCKS_PER_THREAD * 1000L / elapsed;
+  }
+
+  private class Writer extends Thread {
+    private final FSDataset dataset;
+    private final int nsId;
+    private final boolean exclusive;
+    final Set<Block> kept = new HashSet<Block>();
+    final Set<Block> deleted = new HashSet<Block>();
+    String error;
+
+    Writer(FSDataset dataset, int nsId, boolean exclusive) {
+      this.dataset = dataset;
+      this.nsId = nsId;
+      this.exclusive = exclusive;
+    }
+
+    private void lock() {
+      if (exclusive) {
+        dataset.lock.writeLock().lock();
+      }
+    }
+
+    private void unlock() {
+      if (exclusive) {
+        dataset.lock.writeLock().unlock();
+      }
+    }
+
+    public void run() {
+      byte[] data = new byte[BLOCK_SIZE];
+      try {
+        for (int i = 0; i < BLOCKS_PER_THREAD; i++) {
+          Block b = new Block(nextBlockId.incrementAndGet(), 0, GENSTAMP);
+          BlockWriteStreams streams;
+          lock();
+          try {
+            streams = dataset.writeToBlock(nsId, b, false, false);
+          } finally {
+            unlock();
+          }
+          BlockMetadataHeader.writeHeader(
+              new DataOutputStream(streams.checksumOut),
+              DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512));
+          streams.dataOut.write(data);
+          streams.dataOut.close();
+          streams.checksumOut.close();
+          b.setNumBytes(BLOCK_SIZE);
+          lock();
+          try {
+            dataset.setVisibleLength(nsId, b, BLOCK_SIZE);
+            dataset.finalizeBlock(nsId, b);
+          } finally {
+            unlock();
+          }
+
+          if (i % 2 == 0) {
+            kept.add(b);
+            continue;
+          }
+          lock();
+          try {
+            dataset.invalidate(nsId, new Block[] {
+                new Block(b.getBlockId(), BlockCommand.NO_ACK, GENSTAMP)});
+          } finally {
+            unlock();
+          }
+          deleted.add(b);
+        }
+      } catch (IOException e) {
+        error = e.toString();
+      }
+    }
+  }
+}
@@ -102,6 +102,7 @@ public class TestInterDatanodeProtocol extends junit.framework.TestCase {
       
       //stop block scanner, so we could compare lastScanTime
       datanode.blockScanner.shutdown();
+      datanode.blockScanner.blockScannerThread.join(60000);
 
       //verify BlockMetaDataInfo
       Block b = locatedblock.getBlock();
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSDir;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+
+/**
+ * Test the replica map of a namespace.
+ */
+public class TestReplicaMap extends TestCase {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"), "replicamap");
+
+  private FSDataset dataset;
+  private FSVolume vol1;
+  private FSVolume vol2;
+  private FSDir dir1;
+  private FSDir dir2;
+
+  protected void setUp() throws Exception {
+    FileUtil.fullyDelete(TEST_DIR);
+    Configuration conf = new Configuration();
+    dataset = new FSDataset();
+    vol1 = newVolume(conf, "vol1");
+    vol2 = newVolume(conf, "vol2");
+    dir1 = newDir(vol1);
+    dir2 = newDir(vol2);
+  }
+
+  protected void tearDown() throws Exception {
+    vol1.shutdown();
+    vol2.shutdown();
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private FSVolume newVolume(Configuration conf, String name)
+      throws Exception {
+    File current = new File(new File(TEST_DIR, name), "current");
+    assertTrue(current.mkdirs());
+    return dataset.new FSVolume(dataset, current, conf);
+  }
+
+  private FSDir newDir(FSVolume volume) {
+    FSDir dir = dataset.new FSDir();
+    dir.dir = new File(volume.getCurrentDir(), "subdir0");
+    dir.volume = volume;
+    return dir;
+  }
+
+  public void testFinalizedReplicas() {
+    ReplicaMap map = new ReplicaMap();
+    Block b = new Block(1, 100, 1001);
+    assertNull(map.put(b, new DatanodeBlockInfo(dir1, 1, false)));
+    assertEquals(1, map.size());
+
+    DatanodeBlockInfo info = map.get(b);
+    assertSame(vol1, info.getVolume());
+    assertSame(dir1, info.getDir());
+    assertEquals(new File(dir1.getDirectory(), "blk_1"), info.getFile());
+    assertFalse(info.isDetached());
+
+    // a lookup matches on the generation stamp, unless it is the wildcard
+    assertNotNull(map.get(new Block(1, 0, GenerationStamp.WILDCARD_STAMP)));
+    assertNull(map.get(new Block(1, 100, 1002)));
+    assertNull(map.get(new Block(2, 100, 1001)));
+
+    map.setDetached(b);
+    assertTrue(map.get(b).isDetached());
+
+    // a new replica of the same block replaces the old one
+    DatanodeBlockInfo old = map.put(new Block(1, 100, 1002),
+        new DatanodeBlockInfo(dir2, 1, false));
+    assertSame(dir1, old.getDir());
+    assertNull(map.get(b));
+    info = map.get(new Block(1, 100, 1002));
+    assertSame(dir2, info.getDir());
+    assertFalse(info.isDetached());
+    assertEquals(1, map.size());
+
+    // a put with the wildcard keeps the generation stamp
+    map.put(new Block(1, 0, GenerationStamp.WILDCARD_STAMP),
+        new DatanodeBlockInfo(dir1, 1, false));
+    assertSame(dir1, map.get(new Block(1, 100, 1002)).getDir());
+
+    assertSame(dir1, map.remove(new Block(1, 100, 1002)).getDir());
+    assertNull(map.remove(new Block(1, 100, 1002)));
+    assertEquals(0, map.size());
+  }
+
+  public void testOngoingReplicas() {
+    ReplicaMap map = new ReplicaMap();
+    Block b = new Block(7, 0, 1001);
+    File file = new File(vol1.getCurrentDir(), "blk_7");
+    DatanodeBlockInfo ongoing = new DatanodeBlockInfo(vol1, file);
+    map.put(b, ongoing);
+    assertSame(ongoing, map.get(b));
+
+    // the replica is finalized into a directory
+    map.put(b, new DatanodeBlockInfo(dir2, 7, false));
+    DatanodeBlockInfo info = map.get(b);
+    assertNotSame(ongoing, info);
+    assertSame(vol2, info.getVolume());
+
+    // and recovered with a new generation stamp
+    Block recovered = new Block(7, 0, 1005);
+    assertNotNull(map.update(b, recovered));
+    assertNull(map.get(b));
+    assertSame(dir2, map.get(recovered).getDir());
+    assertNull(map.update(b, recovered));
+  }
+
+  public void testManyReplicas() {
+    ReplicaMap map = new ReplicaMap();
+    final int n = 100000;
+    for (int i = 0; i < n; i++) {
+      long id = i * 7919L - n;
+      FSDir dir = i % 2 == 0 ? dir1 : dir2;
+      map.put(new Block(id, 0, i), new DatanodeBlockInfo(dir, id, false));
+      if (i % 3 == 0) {
+        map.setDetached(new Block(id, 0, i));
+      }
+    }
+    assertEquals(n, map.size());
+
+    long[] removed = map.removeVolumes(Collections.singleton(vol1));
+    assertEquals(n / 2, removed.length);
+    assertEquals(n / 2, map.size());
+    Arrays.sort(removed);
+    for (int i = 0; i < n; i++) {
+      long id = i * 7919L - n;
+      DatanodeBlockInfo info = map.get(new Block(id, 0, i));
+      if (i % 2 == 0) {
+        assertNull(info);
+        assertTrue(Arrays.binarySearch(removed, id) >= 0);
+      } else {
+        assertSame(dir2, info.getDir());
+        assertEquals(i % 3 == 0, info.isDetached());
+        assertEquals(new File(dir2.getDirectory(), "blk_" + id),
+            info.getFile());
+      }
+    }
+  }
+
+  public void testFinalizedBlocks() {
+    VolumeMap volumeMap = new VolumeMap(1);
+    volumeMap.initNamespace(1);
+    // enough replicas for the stripes to grow
+    final int n = 10000;
+    for (long id = 0; id < n; id++) {
+      volumeMap.add(1, new Block(id, id * 10, 1000 + id),
+          new DatanodeBlockInfo(id % 2 == 0 ? dir1 : dir2, id, false));
+    }
+    // a replica being written is not finalized
+    volumeMap.add(1, new Block(n, 5, 1),
+        new DatanodeBlockInfo(vol1, new File(vol1.getCurrentDir(), "blk_x")));
+
+    Block b = volumeMap.getBlock(1, 42);
+    assertEquals(420, b.getNumBytes());
+    assertEquals(1042, b.getGenerationStamp());
+    assertEquals(5, volumeMap.getBlock(1, n).getNumBytes());
+    assertNull(volumeMap.getBlock(1, n + 1));
+    assertNull(volumeMap.getBlock(2, 42));
+
+    List<Block> blocks = volumeMap.getFinalizedBlocks(1, null);
+    assertEquals(n, blocks.size());
+    for (Block block : blocks) {
+      assertTrue(block.getBlockId() < n);
+      assertEquals(block.getBlockId() * 10, block.getNumBytes());
+      assertEquals(1000 + block.getBlockId(), block.getGenerationStamp());
+    }
+    blocks = volumeMap.getFinalizedBlocks(1, vol2);
+    assertEquals(n / 2, blocks.size());
+    for (Block block : blocks) {
+      assertEquals(1, block.getBlockId() % 2);
+    }
+    assertEquals(0, volumeMap.getFinalizedBlocks(2, null).size());
+
+    // a recovery changes the length
+    volumeMap.update(1, new Block(42, 420, 1042), new Block(42, 400, 2000));
+    b = volumeMap.getBlock(1, 42);
+    assertEquals(400, b.getNumBytes());
+    assertEquals(2000, b.getGenerationStamp());
+  }
+
+  public void testVolumeMap() {
+    VolumeMap volumeMap = new VolumeMap(1);
+    volumeMap.initNamespace(1);
+    for (long id = 0; id < 1000; id++) {
+      volumeMap.add(1, new Block(id, 0, 1),
+          new DatanodeBlockInfo(id < 500 ? dir1 : dir2, id, false));
+    }
+    assertEquals(1000, volumeMap.size(1));
+    volumeMap.setDetached(1, new Block(10, 0, 1));
+    assertTrue(volumeMap.get(1, new Block(10, 0, 1)).isDetached());
+    assertFalse(volumeMap.get(1, new Block(11, 0, 1)).isDetached());
+
+    assertEquals(500, volumeMap.removeUnhealthyVolumes(
+        Collections.singleton(vol1)));
+    assertEquals(500, volumeMap.size(1));
+    assertNull(volumeMap.get(1, new Block(10, 0, 1)));
+    assertSame(vol2, volumeMap.get(1, new Block(600, 0, 1)).getVolume());
+  }
+}
@@ -44,7 +44,10 @@ import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -148,12 +151,25 @@ public class TestFsck extends TestCase {
   }
 
   public void testFsckMove() throws Exception {
+    checkFsckMove(false);
+  }
+
+  /**
+   * The machine readable output of -move reports the missing blocks and
+   * the moves.
+   */
+  public void testFsckMoveMachine() throws Exception {
+    checkFsckMove(true);
+  }
+
+  private void checkFsckMove(boolean machine) throws Exception {
     DFSTestUtil util = new DFSTestUtil("TestFsck", 5, 3, 8 * 1024);
     MiniDFSCluster cluster = null;
     FileSystem fs = null;
     try {
       Configuration conf = new Configuration();
       conf.setLong("dfs.blockreport.intervalMsec", 10000L);
+      conf.setInt("dfs.datanode.directoryscan.interval", 1);
       cluster = new MiniDFSCluster(conf, 4, true, null);
       String topDir = "/srcdat";
       fs = cluster.getFileSystem();
@@ -188,8 +204,21 @@ public class TestFsck extends TestCase {
       }
 
       // Fix the filesystem by moving corrupted files to lost+found
-      outStr = runFsck(conf, 1, true, "/", "-move");
-      assertTrue(outStr.contains(NamenodeFsck.CORRUPT_STATUS));
+      if (!machine) {
+        outStr = runFsck(conf, 1, true, "/", "-move");
+        assertTrue(outStr.contains(NamenodeFsck.CORRUPT_STATUS));
+        assertTrue(outStr.contains(fileNames[0] + ": moved to /lost+found"
+            + fileNames[0]));
+      } else {
+        outStr = runFsck(conf, 1, true, "/", "-move", "-machine");
+        assertTrue(outStr.contains(NamenodeFsck.CORRUPT_STATUS));
+        // the last replica is missing, or reported as corrupt
+        assertTrue(outStr.contains("NOTICE\t" + fileNames[0]
+            + "\tMISSING block " + block) || outStr.contains("NOTICE\t"
+            + fileNames[0] + "\tCORRUPT block " + block));
+        assertTrue(outStr.contains("ACTION\t" + fileNames[0] + "\tMOVE\tOK\t"
+            + "moved to /lost+found" + fileNames[0]));
+      }
 
       // Check to make sure we have healthy filesystem
       outStr = runFsck(conf, 0, true, "/");
@@ -512,5 +541,107 @@ public class TestFsck extends TestCase {
     }
   }
 
+  /**
+   * Check a namespace with several worker threads and small batches, and
+   * compare the machine readable output with that of a single thread.
+   */
+  public void testParallelFsck() throws Exception {
+    DFSTestUtil util = new DFSTestUtil("TestFsck", 50, 4, 8 * 1024);
+    MiniDFSCluster cluster = null;
+    try {
+      Configuration conf = new Configuration();
+      conf.setInt(NamenodeFsck.BATCH_KEY, 3);
+      cluster = new MiniDFSCluster(conf, 1, true, null);
+      util.createFiles(cluster.getFileSystem(), "/srcdat", (short) 1);
+
+      List<String> serial = runMachineFsck(conf, cluster, 1);
+      List<String> parallel = runMachineFsck(conf, cluster, 4);
+      assertEquals(serial, parallel);
+
+      int files = 0;
+      for (String line : parallel) {
+        if (line.startsWith("FILE\t")) {
+          files++;
+          assertEquals(NamenodeFsck.FILE_HEALTHY, line.split("\t")[2]);
+        }
+      }
+      assertEquals(50, files);
+      assertTrue(parallel.contains("SUMMARY\ttotalFiles\t50"));
+      assertTrue(parallel.contains("SUMMARY\tstatus\tHEALTHY"));
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  /**
+   * The number of threads of a request is checked and bounded.
+   */
+  public void testFsckThreads() throws Exception {
+    MiniDFSCluster cluster = null;
+    try {
+      Configuration conf = new Configuration();
+      conf.setInt(NamenodeFsck.MAX_THREADS_KEY, 2);
+      cluster = new MiniDFSCluster(conf, 1, true, null);
+      DFSTestUtil.createFile(cluster.getFileSystem(), new Path("/file"),
+          1024, (short) 1, 0L);
+
+      for (String threads : new String[] { "abc", "0", "-3", "" }) {
+        String outStr = runNamenodeFsck(conf, cluster, threads);
+        assertTrue(outStr, outStr.contains("Invalid number of threads '"
+            + threads + "': it must be a number from 1 to 2"));
+        assertTrue(outStr, outStr.endsWith(NamenodeFsck.FAILURE_STATUS));
+      }
+      // more threads than allowed are brought down to the maximum
+      String outStr = runNamenodeFsck(conf, cluster, "100000");
+      assertTrue(outStr, outStr.endsWith(NamenodeFsck.HEALTHY_STATUS));
+      assertTrue(outStr, outStr.contains("SUMMARY\ttotalFiles\t1"));
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Run fsck on the name-node with the given number of threads.
+   * @return the sorted lines of the machine readable output
+   */
+  private List<String> runMachineFsck(Configuration conf,
+      MiniDFSCluster cluster, int threads) throws IOException {
+    String outStr = runNamenodeFsck(conf, cluster, Integer.toString(threads));
+    assertTrue(outStr.endsWith(NamenodeFsck.HEALTHY_STATUS));
+    List<String> lines = new ArrayList<String>();
+    for (String line : outStr.split("\n")) {
+      if (line.length() > 0) {
+        lines.add(line);
+      }
+    }
+    Collections.sort(lines);
+    return lines;
+  }
 
+  /**
+   * Run fsck on the name-node with the given threads parameter.
+   * @return the machine readable output
+   */
+  private String runNamenodeFsck(Configuration conf, MiniDFSCluster cluster,
+      String threads) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintWriter writer = new PrintWriter(bytes);
+    HttpServletResponse response = new HttpServletResponseStub() {
+      @Override
+      public PrintWriter getWriter() throws IOException {
+        return writer;
+      }
+    };
+    Map<String, String[]> pmap = new HashMap<String, String[]>();
+    pmap.put("path", new String[] { "/" });
+    pmap.put("machine", new String[] { "1" });
+    pmap.put("blocks", new String[] { "1" });
+    pmap.put("threads", new String[] { threads });
+    new NamenodeFsck(conf, cluster.getNameNode(), pmap, response).fsck();
+    return bytes.toString();
+  }
 }
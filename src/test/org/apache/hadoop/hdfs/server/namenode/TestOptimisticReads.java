@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.hadoop.security.UnixUserGroupInformation;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Test the reads that run without the namesystem lock, and check that
+ * readers under a concurrent write load never see a torn file status or
+ * block list, with the optimistic reads and without them.
+ */
+public class TestOptimisticReads extends TestCase {
+  private static final Log LOG = LogFactory.getLog(TestOptimisticReads.class);
+
+  private static final int BLOCK_SIZE = 1024;
+  private static final int NUM_BLOCKS = 4;
+  private static final String FILE = "/data/file";
+  private static final int NUM_READERS = 8;
+  private static final long RUN_TIME = 3000;
+  private static final String[] OWNERS = {"alice", "bob"};
+
+  public void testLockStamps() {
+    // without dfs.rwlock, the default, and with it
+    checkLockStamps(new FSNamesystemLock(
+        new Configuration().getBoolean("dfs.rwlock", false)));
+    checkLockStamps(new FSNamesystemLock(true));
+  }
+
+  private void checkLockStamps(FSNamesystemLock lock) {
+    long stamp = lock.tryOptimisticRead();
+    assertTrue(lock.validate(stamp));
+
+    lock.writeLock();
+    assertEquals(0, lock.tryOptimisticRead());
+    lock.beginWrite(); // a nested FSDirectory write
+    lock.endWrite();
+    assertEquals(0, lock.tryOptimisticRead());
+    lock.writeUnlock();
+    assertFalse(lock.validate(stamp));
+
+    stamp = lock.tryOptimisticRead();
+    assertTrue(stamp != 0);
+    lock.readLock();
+    lock.readUnlock();
+    assertTrue(lock.validate(stamp));
+
+    lock.upgradeableReadLock();
+    assertTrue(lock.validate(stamp));
+    lock.upgradeLock();
+    assertEquals(0, lock.tryOptimisticRead());
+    lock.upgradeableReadUnlock();
+    assertFalse(lock.validate(stamp));
+    assertTrue(lock.tryOptimisticRead() != 0);
+  }
+
+  public void testReadsUnderWriteLoad() throws Exception {
+    runReadsUnderWriteLoad(false);
+    runReadsUnderWriteLoad(true);
+  }
+
+  /**
+   * Read a file while writers keep changing its owner and its directory,
+   * and check that every read sees the file in one of its states.
+   */
+  private void runReadsUnderWriteLoad(boolean optimisticReads)
+      throws Exception {
+    // the default configuration, with its exclusive read lock
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.permissions", true);
+    conf.setBoolean("dfs.namenode.optimistic.reads", optimisticReads);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      DFSTestUtil.createFile(fs, new Path(FILE), NUM_BLOCKS * BLOCK_SIZE,
+          (short)1, 0L);
+      final NameNode nn = cluster.getNameNode();
+      nn.setOwner(FILE, OWNERS[0], OWNERS[0] + "group");
+      final UserGroupInformation superUser = UnixUserGroupInformation.login(conf);
+      final long stopTime = System.currentTimeMillis() + RUN_TIME;
+
+      Reader[] readers = new Reader[NUM_READERS];
+      for (int i = 0; i < readers.length; i++) {
+        readers[i] = new Reader(nn, stopTime);
+        readers[i].start();
+      }
+      Thread writer = new Thread() {
+        public void run() {
+          UserGroupInformation.setCurrentUser(superUser);
+          try {
+            for (int i = 0; System.currentTimeMillis() < stopTime; i++) {
+              // the owner and group of the file change together
+              String owner = OWNERS[i % OWNERS.length];
+              nn.setOwner(FILE, owner, owner + "group");
+              // many small writes in the directory of the file
+              nn.mkdirs("/data/d" + i, FsPermission.getDefault());
+              nn.rename("/data/d" + i, "/data/e" + i);
+              nn.setPermission("/data", new FsPermission(
+                  (short)(i % 2 == 0 ? 0711 : 0755)));
+              nn.delete("/data/e" + i, true);
+              // and a long write lock hold now and then
+              if (i % 20 == 0) {
+                for (int j = 0; j < 200; j++) {
+                  nn.mkdirs("/tree/" + j + "/" + j, FsPermission.getDefault());
+                }
+                nn.delete("/tree", true);
+              }
+            }
+          } catch (Exception e) {
+            LOG.error("Writer failed", e);
+          }
+        }
+      };
+      writer.start();
+      writer.join();
+
+      long reads = 0;
+      for (Reader reader : readers) {
+        reader.join();
+        assertNull(reader.error, reader.error);
+        reads += reader.reads;
+      }
+      assertTrue(reads > 0);
+      long optimistic = NameNode.getNameNodeMetrics().numOptimisticReads
+          .getCurrentIntervalValue();
+      LOG.info("Optimistic reads: " + optimistic + " of " + 2 * reads);
+      if (optimisticReads) {
+        assertTrue(optimistic > 0);
+      } else {
+        assertEquals(0, optimistic);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static class Reader extends Thread {
+    private final NameNode nn;
+    private final long stopTime;
+    long reads;
+    String error;
+
+    Reader(NameNode nn, long stopTime) {
+      this.nn = nn;
+      this.stopTime = stopTime;
+    }
+
+    public void run() {
+      UserGroupInformation.setCurrentUser(new UnixUserGroupInformation(
+          "reader", new String[] {"readers"}));
+      try {
+        while (System.currentTimeMillis() < stopTime) {
+          HdfsFileStatus stat = nn.getHdfsFileInfo(FILE);
+          LocatedBlocks blocks = nn.getBlockLocations(FILE, 0, Long.MAX_VALUE);
+          reads++;
+
+          if (stat == null || stat.getLen() != NUM_BLOCKS * BLOCK_SIZE) {
+            error = "Wrong status " + stat;
+            return;
+          }
+          if (!Arrays.asList(OWNERS).contains(stat.getOwner())
+              || !stat.getGroup().equals(stat.getOwner() + "group")) {
+            error = "Torn owner " + stat.getOwner() + ":" + stat.getGroup();
+            return;
+          }
+          if (blocks == null || blocks.locatedBlockCount() != NUM_BLOCKS) {
+            error = "Wrong blocks " + blocks;
+            return;
+          }
+          for (int i = 0; i < NUM_BLOCKS; i++) {
+            if (blocks.get(i).getLocations().length != 1) {
+              error = "Wrong locations " + blocks.get(i);
+              return;
+            }
+          }
+        }
+      } catch (Exception e) {
+        error = e.toString();
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UnixUserGroupInformation;
+
+/**
+ * Test that the permission cache of the namenode answers repeated checks
+ * and does not hide changes of modes, owners and renames.
+ */
+public class TestPermissionCache extends TestCase {
+  private static final Path DIR = new Path("/a/b/c");
+  private static final Path FILE = new Path(DIR, "file");
+
+  private Configuration conf;
+  private MiniDFSCluster cluster;
+  private FileSystem superFs;
+  private PermissionCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    conf = new Configuration();
+    conf.setBoolean("dfs.permissions", true);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    superFs = cluster.getFileSystem();
+    cache = cluster.getNameNode().getNamesystem().permissionCache;
+
+    superFs.mkdirs(DIR);
+    superFs.create(FILE).close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    superFs.close();
+    cluster.shutdown();
+  }
+
+  private FileSystem login(String user, String... groups) throws IOException {
+    Configuration userConf = new Configuration(conf);
+    UnixUserGroupInformation.saveToConf(userConf,
+        UnixUserGroupInformation.UGI_PROPERTY_NAME,
+        new UnixUserGroupInformation(user, groups));
+    return FileSystem.newInstance(userConf);
+  }
+
+  private static boolean canRead(FileSystem fs, Path path)
+      throws IOException {
+    try {
+      fs.getFileStatus(path);
+      fs.open(path).close();
+      return true;
+    } catch (AccessControlException e) {
+      return false;
+    }
+  }
+
+  public void testCacheHits() throws IOException {
+    FileSystem fs = login("user1", "group1");
+    try {
+      for (int i = 0; i < 10; i++) {
+        assertTrue(canRead(fs, FILE));
+      }
+      assertTrue(cache.size() > 0);
+      assertTrue(cache.getGroupCacheHitRatio() > 50);
+      assertTrue(cache.getTraverseCacheHitRatio() > 50);
+    } finally {
+      fs.close();
+    }
+  }
+
+  public void testSetPermissionAndOwner() throws IOException {
+    FileSystem fs = login("user1", "group1");
+    try {
+      assertTrue(canRead(fs, FILE));
+      assertTrue(canRead(fs, FILE));
+
+      // taking away the traverse permission of an ancestor
+      superFs.setPermission(new Path("/a"), new FsPermission((short)0700));
+      assertFalse(canRead(fs, FILE));
+
+      // the group may traverse, but the caller is in another group
+      superFs.setPermission(new Path("/a"), new FsPermission((short)0750));
+      superFs.setOwner(new Path("/a"), null, "group2");
+      assertFalse(canRead(fs, FILE));
+
+      FileSystem fs2 = login("user2", "group1", "group2");
+      try {
+        assertTrue(canRead(fs2, FILE));
+        assertTrue(canRead(fs2, FILE));
+      } finally {
+        fs2.close();
+      }
+
+      superFs.setOwner(new Path("/a"), null, "group1");
+      assertTrue(canRead(fs, FILE));
+    } finally {
+      fs.close();
+    }
+  }
+
+  public void testDelete() throws IOException {
+    Path other = new Path("/x/y/file");
+    superFs.create(other).close();
+
+    FileSystem fs = login("user1", "group1");
+    try {
+      assertTrue(canRead(fs, other));
+      int otherCount = cache.getTraversableCount();
+      assertTrue(otherCount > 0);
+      assertTrue(canRead(fs, FILE));
+      assertTrue(cache.getTraversableCount() > otherCount);
+
+      // the deleted directories are not kept by the cache, the others are
+      assertTrue(superFs.delete(new Path("/a"), true));
+      assertEquals(otherCount, cache.getTraversableCount());
+      assertFalse(fs.exists(FILE));
+
+      // a file delete keeps the remembered directories
+      superFs.mkdirs(DIR);
+      superFs.create(FILE).close();
+      assertTrue(canRead(fs, FILE));
+      int count = cache.getTraversableCount();
+      assertTrue(count > 0);
+      assertTrue(superFs.delete(FILE, false));
+      assertEquals(count, cache.getTraversableCount());
+    } finally {
+      fs.close();
+    }
+  }
+
+  public void testRename() throws IOException {
+    superFs.mkdirs(new Path("/private"));
+    superFs.setPermission(new Path("/private"), new FsPermission((short)0700));
+
+    FileSystem fs = login("user1", "group1");
+    try {
+      assertTrue(canRead(fs, FILE));
+      assertTrue(canRead(fs, FILE));
+
+      // moving the directory below a directory the caller cannot traverse
+      assertTrue(superFs.rename(new Path("/a/b"), new Path("/private/b")));
+      assertFalse(canRead(fs, new Path("/private/b/c/file")));
+
+      // and back
+      assertTrue(superFs.rename(new Path("/private/b"), new Path("/a/b")));
+      assertTrue(canRead(fs, FILE));
+    } finally {
+      fs.close();
+    }
+  }
+}
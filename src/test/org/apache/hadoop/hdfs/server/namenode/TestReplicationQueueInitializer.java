@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+/**
+ * Test that the replication queues are initialized after a restart of the
+ * namenode, by the background threads as well as on the calling thread.
+ */
+public class TestReplicationQueueInitializer extends TestCase {
+  private static final int BLOCK_SIZE = 1024;
+  private static final int NUM_FILES = 20;
+  private static final int BLOCKS_PER_FILE = 2;
+
+  public void testBackgroundThreads() throws Exception {
+    runTest(3);
+  }
+
+  public void testCallingThread() throws Exception {
+    runTest(0);
+  }
+
+  private void runTest(int numThreads) throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("dfs.safemode.extension", 0);
+    conf.setInt("dfs.replication.interval", 1);
+    conf.setInt("dfs.namenode.replqueue.init.threads", numThreads);
+    // a lock slice per block, so that the threads interleave
+    conf.setInt("dfs.namenode.replqueue.init.blocks.per.lock", 1);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      // a single datanode, so every block stays under-replicated
+      for (int i = 0; i < NUM_FILES; i++) {
+        DFSTestUtil.createFile(fs, new Path("/file" + i),
+            BLOCKS_PER_FILE * BLOCK_SIZE, (short)2, 0L);
+      }
+      cluster.restartNameNode(0);
+      cluster.waitActive();
+
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+      long expected = NUM_FILES * BLOCKS_PER_FILE;
+      long deadline = System.currentTimeMillis() + 30000;
+      while (namesystem.getReplQueueInitPercent() < 100
+          || namesystem.getUnderReplicatedBlocks() != expected) {
+        assertTrue("Under-replicated blocks "
+            + namesystem.getUnderReplicatedBlocks() + ", initialized "
+            + namesystem.getReplQueueInitPercent() + "%",
+            System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
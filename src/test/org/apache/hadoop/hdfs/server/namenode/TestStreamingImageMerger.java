@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.hdfs.protocol.FSConstants.SafeModeAction;
+import org.apache.hadoop.hdfs.server.common.HdfsConstants;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLog.EditLogFileInputStream;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * Check that a streaming merge of an image and edits produces the same
+ * image as loading them and saving the namespace.
+ */
+public class TestStreamingImageMerger extends TestCase {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"),
+      "streamingmerge");
+
+  public void testMerge() throws IOException {
+    checkMerge(new Configuration());
+  }
+
+  public void testMergeCompressedImage() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_COMPRESS_KEY, true);
+    checkMerge(conf);
+  }
+
+  /**
+   * Checkpoint with a streaming merge and restart the name-node from
+   * the uploaded image.
+   */
+  public void testSecondaryNameNode() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(SecondaryNameNode.CheckpointStorage.STREAMING_MERGE_KEY,
+                    true);
+    conf.set("dfs.secondary.http.address", "0.0.0.0:0");
+    DFSTestUtil files = new DFSTestUtil("TestStreamingImageMerger", 20, 4, 1024);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    SecondaryNameNode secondary = null;
+    try {
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      files.createFiles(fs, "/srcdat");
+      secondary = new SecondaryNameNode(conf);
+      secondary.doCheckpoint();
+      fs.rename(new Path("/srcdat"), new Path("/dstdat"));
+      DFSTestUtil.createFile(fs, new Path("/dstdat/f1"), 1024, (short)1, 0);
+      secondary.doCheckpoint();
+      assertNull(secondary.getFSImage().getFSNamesystem());
+    } finally {
+      if (secondary != null) {
+        secondary.shutdown();
+      }
+      cluster.shutdown();
+    }
+
+    // the edits are empty after the checkpoint, so the name-node
+    // starts from the merged image
+    cluster = new MiniDFSCluster(conf, 1, false, null);
+    try {
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      assertTrue(files.checkFiles(fs, "/dstdat"));
+      assertTrue(fs.exists(new Path("/dstdat/f1")));
+      assertFalse(fs.exists(new Path("/srcdat")));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private void checkMerge(Configuration conf) throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(TEST_DIR.mkdirs());
+    File image = new File(TEST_DIR, "fsimage");
+    File edits = new File(TEST_DIR, "edits");
+
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    FSDataOutputStream open1 = null, open2 = null, open3 = null;
+    try {
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+      DFSTestUtil files = new DFSTestUtil("TestStreamingImageMerger", 20, 4, 1024);
+      files.createFiles(fs, "/srcdat");
+      DFSTestUtil.createFile(fs, new Path("/a/b/c/d/f1"), 1024, (short)1, 0);
+      DFSTestUtil.createFile(fs, new Path("/x/y/f2"), 1024, (short)1, 0);
+      fs.mkdirs(new Path("/a/b/e"));
+      open1 = fs.create(new Path("/x/y/open1"));
+      open1.write(1);
+      open1.sync();
+      open2 = fs.create(new Path("/u/v/w/open2"));
+      open2.write(2);
+      open2.sync();
+
+      // everything so far goes into the image
+      fs.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+      fs.saveNamespace(false, false);
+      fs.setSafeMode(SafeModeAction.SAFEMODE_LEAVE);
+
+      // and this into the edits
+      fs.rename(new Path("/a/b"), new Path("/x/b"));
+      fs.rename(new Path("/u/v"), new Path("/u/v2"));
+      fs.mkdirs(new Path("/new/d"));
+      DFSTestUtil.createFile(fs, new Path("/new/d/f3"), 2048, (short)1, 0);
+      fs.setReplication(new Path("/new/d/f3"), (short)3);
+      fs.delete(new Path("/x/y/f2"), false);
+      fs.setPermission(new Path("/x"), new FsPermission((short)0700));
+      fs.setOwner(new Path("/x/b"), "someuser", "somegroup");
+      fs.setTimes(new Path("/new/d/f3"), 1000L, 2000L);
+      fs.setQuota(new Path("/new"), 100, 1024L * 1024 * 1024);
+      open1.write(3);
+      open1.close();
+      open1 = null;
+      open3 = fs.create(new Path("/new/open3"));
+      open3.write(4);
+      open3.sync();
+
+      File current = new File(cluster.getNameDirs().iterator().next(),
+                              "current");
+      copyFile(new File(current, "fsimage"), image);
+      copyFile(new File(current, "edits"), edits);
+    } finally {
+      IOUtils.closeStream(open1);
+      IOUtils.closeStream(open2);
+      IOUtils.closeStream(open3);
+      cluster.shutdown();
+    }
+
+    // load and save the namespace like the secondary name-node does
+    File expected = new File(TEST_DIR, "fsimage.expected");
+    FSImage fsImage = new FSImage(conf);
+    FSNamesystem namesystem = new FSNamesystem(fsImage, conf);
+    fsImage.layoutVersion = FSConstants.LAYOUT_VERSION;
+    fsImage.loadFSImage(image);
+    fsImage.getEditLog().loadFSEdits(new EditLogFileInputStream(edits));
+    namesystem.dir.updateCountForINodeWithQuota();
+    fsImage.saveFSImage(expected);
+
+    File merged = new File(TEST_DIR, "fsimage.merged");
+    StreamingImageMerger merger =
+      new StreamingImageMerger(new FSImage(conf), conf);
+    assertTrue(merger.merge(image, Arrays.asList(edits), merged));
+    assertEquals(fsImage.getNamespaceID(), merger.getNamespaceID());
+    assertEquals(expected.length(), merged.length());
+    assertEquals(digest(expected), digest(merged));
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private static void copyFile(File src, File dst) throws IOException {
+    IOUtils.copyBytes(new FileInputStream(src), new FileOutputStream(dst),
+                      4096, true);
+  }
+
+  private static MD5Hash digest(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return MD5Hash.digest(in);
+    } finally {
+      in.close();
+    }
+  }
+}
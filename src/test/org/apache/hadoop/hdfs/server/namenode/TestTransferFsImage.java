@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.server.common.HdfsConstants;
+import org.apache.hadoop.hdfs.server.namenode.metrics.ImageTransferMetrics;
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * Test fetching an image in ranges, with compression and with ranges
+ * that fail and have to be fetched again.
+ */
+public class TestTransferFsImage extends TestCase {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"),
+      "transferfsimage");
+  private static final int FILE_SIZE = 1000 * 1000 + 17;
+
+  private File image;
+  private MD5Hash imageDigest;
+  private ImageServer server;
+
+  @Override
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(TEST_DIR.mkdirs());
+    image = new File(TEST_DIR, "fsimage");
+    byte[] data = new byte[FILE_SIZE];
+    new Random(0xfeed).nextBytes(data);
+    // make the data compressible
+    for (int i = 0; i < data.length; i += 2) {
+      data[i] = 0;
+    }
+    FileOutputStream out = new FileOutputStream(image);
+    out.write(data);
+    out.close();
+    imageDigest = MD5Hash.digest(data);
+    server = new ImageServer(image);
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    server.shutdown();
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  public void testWholeFile() throws IOException {
+    checkTransfer(new Configuration(), 1);
+  }
+
+  public void testRanges() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong(HdfsConstants.DFS_IMAGE_TRANSFER_CHUNKSIZE_KEY, 300 * 1000);
+    checkTransfer(conf, 4);
+  }
+
+  public void testCompressedRanges() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong(HdfsConstants.DFS_IMAGE_TRANSFER_CHUNKSIZE_KEY, 300 * 1000);
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_TRANSFER_COMPRESS_KEY, true);
+    checkTransfer(conf, 4);
+    assertTrue(server.bytesSent.get() < FILE_SIZE);
+  }
+
+  public void testRetryFailedRange() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong(HdfsConstants.DFS_IMAGE_TRANSFER_CHUNKSIZE_KEY, 300 * 1000);
+    long retries =
+      ImageTransferMetrics.getInstance().rangeRetries.getCurrentIntervalValue();
+    // the second and third range are cut short the first time
+    server.failRequests.put(2, true);
+    server.failRequests.put(4, true);
+    checkTransfer(conf, 6);
+    assertEquals(retries + 2,
+      ImageTransferMetrics.getInstance().rangeRetries.getCurrentIntervalValue());
+
+    // give up after too many failures
+    server.requests.set(0);
+    for (int i = 1; i <= 4; i++) {
+      server.failRequests.put(i, true);
+    }
+    conf.setInt(HdfsConstants.DFS_IMAGE_TRANSFER_RETRIES_KEY, 2);
+    try {
+      TransferFsImage.getFileClient(conf, server.getAddress(), "getimage=1",
+          new File[] { new File(TEST_DIR, "copy") }, true);
+      fail("Transfer should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(3, server.requests.get());
+  }
+
+  private void checkTransfer(Configuration conf, int requests)
+  throws IOException {
+    File[] copies = { new File(TEST_DIR, "copy1"), new File(TEST_DIR, "copy2") };
+    MD5Hash digest = TransferFsImage.getFileClient(conf, server.getAddress(),
+        "getimage=1", copies, true);
+    assertEquals(imageDigest, digest);
+    for (File copy : copies) {
+      assertEquals(FILE_SIZE, copy.length());
+      FileInputStream in = new FileInputStream(copy);
+      try {
+        assertEquals(imageDigest, MD5Hash.digest(in));
+      } finally {
+        in.close();
+      }
+    }
+    assertEquals(requests, server.requests.get());
+  }
+
+  /**
+   * Serves getimage requests like GetImageServlet does, and cuts short
+   * the responses to the requests whose numbers are in failRequests.
+   */
+  private static class ImageServer extends Thread {
+    private final ServerSocket socket = new ServerSocket(0);
+    private final File file;
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger bytesSent = new AtomicInteger();
+    final Map<Integer, Boolean> failRequests =
+      new HashMap<Integer, Boolean>();
+
+    ImageServer(File file) throws IOException {
+      this.file = file;
+      setDaemon(true);
+    }
+
+    String getAddress() {
+      return "localhost:" + socket.getLocalPort();
+    }
+
+    void shutdown() throws IOException {
+      socket.close();
+    }
+
+    public void run() {
+      while (!socket.isClosed()) {
+        try {
+          Socket s = socket.accept();
+          try {
+            serve(s);
+          } finally {
+            s.close();
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    }
+
+    private void serve(Socket s) throws IOException {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(s.getInputStream()));
+      String request = in.readLine();
+      while (in.readLine().length() > 0); // skip the request headers
+      String query = request.split(" ")[1];
+      query = query.substring(query.indexOf('?') + 1);
+      Map<String, String[]> pmap = new HashMap<String, String[]>();
+      for (String param : query.split("&")) {
+        String[] kv = param.split("=", 2);
+        pmap.put(kv[0], new String[] { URLDecoder.decode(kv[1], "UTF-8") });
+      }
+      int requestNumber = requests.incrementAndGet();
+
+      final Map<String, String> headers = new LinkedHashMap<String, String>();
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      final ServletOutputStream bodyStream = new ServletOutputStream() {
+        public void write(int b) {
+          body.write(b);
+        }
+      };
+      HttpServletResponseStub response = new HttpServletResponseStub() {
+        public void setHeader(String name, String value) {
+          headers.put(name, value);
+        }
+        public ServletOutputStream getOutputStream() {
+          return bodyStream;
+        }
+      };
+      new TransferFsImage(pmap, null, response).sendFile(response, file, null);
+
+      byte[] data = body.toByteArray();
+      int length = data.length;
+      if (failRequests.containsKey(requestNumber)) {
+        length /= 2;
+      }
+      bytesSent.addAndGet(length);
+      OutputStream out = s.getOutputStream();
+      StringBuilder head = new StringBuilder("HTTP/1.0 200 OK\r\n");
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        head.append(header.getKey() + ": " + header.getValue() + "\r\n");
+      }
+      head.append("\r\n");
+      out.write(head.toString().getBytes("UTF-8"));
+      out.write(data, 0, length);
+      out.flush();
+    }
+  }
+}
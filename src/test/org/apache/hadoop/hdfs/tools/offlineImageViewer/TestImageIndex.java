@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.tools.offlineImageViewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.tools.offlineImageViewer.ImageIndex.SubtreeSummary;
+
+import junit.framework.TestCase;
+
+/**
+ * Build an index of a stored fsimage and check that queries against it
+ * agree with what is known about the image.
+ */
+public class TestImageIndex extends TestCase {
+  private static final String IMAGE =
+    TestOIVCanReadOldVersions.TEST_CACHE_DATA_DIR + "/fsimageV19";
+  private static final File INDEX_DIR = new File(
+      System.getProperty("test.build.data", "build/test/data"), "imageIndex");
+
+  private ImageIndex index;
+
+  @Override
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(INDEX_DIR);
+    index = new ImageIndex(INDEX_DIR.getPath(), new Configuration());
+    index.build(IMAGE);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    FileUtil.fullyDelete(INDEX_DIR);
+  }
+
+  public void testSummaries() throws IOException {
+    // see TestOIVCanReadOldVersions for the content of the image
+    SubtreeSummary root = index.getSummary("/");
+    assertEquals(14, root.files);
+    assertEquals(8, root.directories);
+    assertEquals(1069548540L, root.length);
+
+    SubtreeSummary bar = index.getSummary("/bar");
+    SubtreeSummary foo = index.getSummary("/foo/");
+    assertEquals(6, bar.files);
+    assertEquals(4, bar.directories);
+    assertEquals(8, foo.files);
+    assertEquals(3, foo.directories);
+    assertEquals(root.length, bar.length + foo.length);
+    assertEquals(root.blocks, bar.blocks + foo.blocks);
+
+    SubtreeSummary file = index.getSummary("/foo/dir1/file3");
+    assertEquals(1, file.files);
+    assertEquals(0, file.directories);
+  }
+
+  public void testLs() throws IOException {
+    StringWriter out = new StringWriter();
+    index.ls("/bar", out);
+    String[] lines = out.toString().split("\n");
+    assertEquals(3, lines.length);
+    for (int i = 0; i < lines.length; i++) {
+      assertTrue(lines[i], lines[i].startsWith("d"));
+      assertTrue(lines[i], lines[i].endsWith(" /bar/dir" + i));
+    }
+
+    out = new StringWriter();
+    index.ls("/", out);
+    lines = out.toString().split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0].endsWith(" /bar"));
+    assertTrue(lines[1].endsWith(" /foo"));
+
+    try {
+      index.ls("/baz", new StringWriter());
+      fail("Listed a path that is not in the image");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testFileDistribution() throws IOException {
+    for (String path : new String[] { "/", "/foo", "/bar/dir1" }) {
+      SubtreeSummary summary = index.getSummary(path);
+      for (int threads = 1; threads <= 4; threads++) {
+        ImageIndex.Distribution d =
+          index.fileDistribution(path, 0, 0, threads);
+        assertEquals(summary.files, d.totalFiles);
+        assertEquals(summary.directories, d.totalDirectories);
+        assertEquals(summary.spaceConsumed, d.totalSpace);
+        int files = 0;
+        for (int count : d.distribution) {
+          files += count;
+        }
+        assertEquals(summary.files, files);
+      }
+    }
+  }
+}
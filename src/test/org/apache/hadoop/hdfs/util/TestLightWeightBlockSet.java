@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+public class TestLightWeightBlockSet extends TestCase {
+
+  private Random rand = new Random(System.currentTimeMillis());
+
+  public void testEmptyBasic() {
+    LightWeightBlockSet set = new LightWeightBlockSet();
+    assertFalse(set.iterator().hasNext());
+    assertEquals(0, set.size());
+    assertTrue(set.isEmpty());
+    assertTrue(set.pollN(10).isEmpty());
+  }
+
+  public void testAddRemove() {
+    LightWeightBlockSet set = new LightWeightBlockSet();
+    assertTrue(set.add(new Block(5, 10, 1001)));
+    // the same block with another length
+    assertFalse(set.add(new Block(5, 20, 1001)));
+    assertTrue(set.contains(new Block(5)));
+    assertEquals(1, set.size());
+
+    Iterator<Block> it = set.iterator();
+    Block block = it.next();
+    assertEquals(5, block.getBlockId());
+    assertEquals(10, block.getNumBytes());
+    assertEquals(1001, block.getGenerationStamp());
+    assertFalse(it.hasNext());
+
+    assertTrue(set.remove(new Block(5)));
+    assertFalse(set.remove(new Block(5)));
+    assertTrue(set.isEmpty());
+  }
+
+  /**
+   * Blocks are compared like {@link Block#equals} does, on the id and the
+   * generation stamp unless one of them is the wildcard.
+   */
+  public void testGenerationStamps() {
+    LightWeightBlockSet set = new LightWeightBlockSet();
+    assertTrue(set.add(new Block(5, 10, 1001)));
+    // a newer generation stamp of the same block is another block
+    assertTrue(set.add(new Block(5, 10, 1002)));
+    assertTrue(set.add(new Block(5, 10, 1003)));
+    assertFalse(set.add(new Block(5, 10, 1002)));
+    assertTrue(set.add(new Block(6, 10, 1001)));
+    assertEquals(4, set.size());
+    assertTrue(set.contains(new Block(5, 0, 1002)));
+    assertFalse(set.contains(new Block(5, 0, 1004)));
+    assertTrue(set.contains(new Block(5)));
+
+    Set<Block> expected = new HashSet<Block>();
+    for (Block block : set) {
+      assertTrue(expected.add(block));
+    }
+    assertEquals(4, expected.size());
+
+    // only the block with the same generation stamp is removed
+    assertFalse(set.remove(new Block(5, 0, 1004)));
+    assertTrue(set.remove(new Block(5, 0, 1001)));
+    assertFalse(set.contains(new Block(5, 0, 1001)));
+    assertTrue(set.contains(new Block(5, 0, 1003)));
+    assertEquals(3, set.size());
+    // a removed stamp can be added again while others are in the set
+    assertTrue(set.add(new Block(5, 0, 1001)));
+    assertFalse(set.add(new Block(5, 0, 1003)));
+    assertTrue(set.remove(new Block(5, 0, 1002)));
+
+    List<Block> polled = set.pollN(2);
+    polled.addAll(set.pollN(10));
+    assertTrue(set.isEmpty());
+    assertEquals(0, set.size());
+    assertEquals(3, polled.size());
+    assertTrue(polled.contains(new Block(5, 0, 1001)));
+    assertTrue(polled.contains(new Block(5, 0, 1003)));
+    assertTrue(polled.contains(new Block(6, 0, 1001)));
+  }
+
+  /**
+   * Sequential and colliding ids, with the table growing and shrinking.
+   */
+  public void testAgainstHashSet() {
+    LightWeightBlockSet set = new LightWeightBlockSet();
+    Set<Long> expected = new HashSet<Long>();
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 10000; i++) {
+        long id = rand.nextBoolean() ? rand.nextInt(20000) : rand.nextLong();
+        assertEquals(expected.add(id), set.add(new Block(id, id, -id)));
+      }
+      for (int i = 0; i < 8000; i++) {
+        long id = rand.nextInt(20000);
+        assertEquals(expected.remove(id), set.remove(new Block(id)));
+      }
+      assertEquals(expected.size(), set.size());
+      for (long id : expected) {
+        assertTrue(set.contains(new Block(id)));
+      }
+      int count = 0;
+      for (Block block : set) {
+        assertTrue(expected.contains(block.getBlockId()));
+        assertEquals(block.getBlockId(), block.getNumBytes());
+        assertEquals(-block.getBlockId(), block.getGenerationStamp());
+        count++;
+      }
+      assertEquals(expected.size(), count);
+    }
+
+    // drain it
+    int total = set.size();
+    int polled = 0;
+    while (!set.isEmpty()) {
+      List<Block> blocks = set.pollN(100);
+      assertTrue(blocks.size() > 0 && blocks.size() <= 100);
+      for (Block block : blocks) {
+        assertTrue(expected.remove(block.getBlockId()));
+      }
+      polled += blocks.size();
+    }
+    assertEquals(total, polled);
+    assertTrue(expected.isEmpty());
+  }
+
+  public void testPollWhileAdding() {
+    LightWeightBlockSet set = new LightWeightBlockSet();
+    Set<Long> expected = new HashSet<Long>();
+    for (int round = 0; round < 100; round++) {
+      for (int i = 0; i < 150; i++) {
+        long id = rand.nextLong();
+        expected.add(id);
+        set.add(new Block(id));
+      }
+      for (Block block : set.pollN(100)) {
+        assertTrue(expected.remove(block.getBlockId()));
+      }
+      assertEquals(expected.size(), set.size());
+    }
+    for (Block block : set.pollAll()) {
+      assertTrue(expected.remove(block.getBlockId()));
+    }
+    assertTrue(expected.isEmpty());
+    assertTrue(set.isEmpty());
+  }
+
+  public void testLongMap() {
+    LightWeightLongMap<String> map = new LightWeightLongMap<String>();
+    Map<Long, String> expected = new HashMap<Long, String>();
+    for (int i = 0; i < 20000; i++) {
+      long key = rand.nextInt(5000) - 2500;
+      switch (rand.nextInt(3)) {
+      case 0:
+      case 1:
+        assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+        break;
+      default:
+        assertEquals(expected.remove(key), map.remove(key));
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (Map.Entry<Long, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+    assertTrue(map.getMemoryUsage() >= 16L * map.getCapacity());
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+
+/** Unit tests for ClassDictionary and the compact ObjectWritable encoding. */
+public class TestClassDictionary extends TestCase {
+
+  /** Protocol used to build a dictionary. */
+  public static interface TestProtocol {
+    LongWritable[] getValues(String path, int count) throws IOException;
+    void setValue(MD5Hash hash) throws IOException;
+  }
+
+  private Configuration conf = new Configuration();
+
+  private Object roundTrip(Object instance, Class<?> declaredClass,
+                           ClassDictionary dictionary, int[] size)
+    throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    ObjectWritable.writeObject(out, instance, declaredClass, conf, dictionary);
+    size[0] = out.getLength();
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ObjectWritable result = new ObjectWritable();
+    Object value = ObjectWritable.readObject(in, result, conf, dictionary);
+    assertEquals(declaredClass, result.getDeclaredClass());
+    assertEquals(out.getLength(), in.getPosition());
+    return value;
+  }
+
+  public void testCompactEncoding() throws Exception {
+    ClassDictionary dictionary = ClassDictionary.forProtocol(TestProtocol.class);
+    int[] legacy = new int[1];
+    int[] compact = new int[1];
+
+    LongWritable[] values = { new LongWritable(1), new LongWritable(2) };
+    LongWritable[] legacyResult = (LongWritable[])
+      roundTrip(values, LongWritable[].class, null, legacy);
+    LongWritable[] compactResult = (LongWritable[])
+      roundTrip(values, LongWritable[].class, dictionary, compact);
+    assertEquals(2, legacyResult.length);
+    assertEquals(2, compactResult[1].get());
+    assertTrue(compact[0] < legacy[0]);
+
+    assertEquals("/foo", roundTrip("/foo", String.class, dictionary, compact));
+    assertEquals(7, roundTrip(7, Integer.TYPE, dictionary, compact));
+    assertNull(roundTrip(null, MD5Hash.class, dictionary, compact));
+  }
+
+  public void testFallbackToClassName() throws Exception {
+    ClassDictionary dictionary = ClassDictionary.forProtocol(TestProtocol.class);
+    int[] size = new int[1];
+    // not a type of the protocol, so it is written by name
+    FloatWritable value = (FloatWritable)
+      roundTrip(new FloatWritable(1.5f), FloatWritable.class, dictionary, size);
+    assertEquals(1.5f, value.get());
+  }
+
+  public void testLegacyDataWithDictionary() throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    ObjectWritable.writeObject(out, new Text("a"), Text.class, conf);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    Object value = ObjectWritable.readObject(in, null, conf,
+        ClassDictionary.forProtocol(TestProtocol.class));
+    assertEquals(new Text("a"), value);
+  }
+
+  public void testDictionaryIdsWithoutDictionary() throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    ObjectWritable.writeObject(out, new Text("a"), Text.class, conf,
+        ClassDictionary.forProtocol(TestProtocol.class));
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    try {
+      ObjectWritable.readObject(in, conf);
+      fail("Class ids must not be decoded without a dictionary");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testReadDictionary() throws Exception {
+    ClassDictionary dictionary = ClassDictionary.forProtocol(TestProtocol.class);
+    DataOutputBuffer out = new DataOutputBuffer();
+    dictionary.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ClassDictionary remote = ClassDictionary.read(in, conf);
+    assertEquals(dictionary.size(), remote.size());
+
+    out.reset();
+    MD5Hash hash = MD5Hash.digest("abc");
+    ObjectWritable.writeObject(out, hash, MD5Hash.class, conf, dictionary);
+    in.reset(out.getData(), out.getLength());
+    assertEquals(hash, ObjectWritable.readObject(in, null, conf, remote));
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.net.NetUtils;
+
+/**
+ * Measures RPC calls per second through a local server, to compare the
+ * cost of client and server dispatch.
+ *
+ * Usage: RPCCallBenchmark [-threads n] [-handlers n] [-seconds n]
+ *                         [-compact]
+ */
+public class RPCCallBenchmark {
+
+  public interface BenchmarkProtocol extends VersionedProtocol {
+    public static final long versionID = 1L;
+
+    void ping() throws IOException;
+    long add(long a, long b) throws IOException;
+    LongWritable echo(String path, LongWritable value) throws IOException;
+  }
+
+  static class BenchmarkImpl implements BenchmarkProtocol {
+    public long getProtocolVersion(String protocol, long clientVersion) {
+      return versionID;
+    }
+
+    public ProtocolSignature getProtocolSignature(String protocol,
+        long clientVersion, int clientMethodsHash) throws IOException {
+      return ProtocolSignature.getProtocolSignature(
+          this, protocol, clientVersion, clientMethodsHash);
+    }
+
+    public void ping() {}
+
+    public long add(long a, long b) {
+      return a + b;
+    }
+
+    public LongWritable echo(String path, LongWritable value) {
+      return value;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = 4;
+    int handlers = 4;
+    int seconds = 10;
+    Configuration conf = new Configuration();
+    for (int i = 0; i < args.length; i++) {
+      if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-handlers".equals(args[i])) {
+        handlers = Integer.parseInt(args[++i]);
+      } else if ("-seconds".equals(args[i])) {
+        seconds = Integer.parseInt(args[++i]);
+      } else if ("-compact".equals(args[i])) {
+        conf.setBoolean(Client.COMPACT_CLASS_IDS_NAME, true);
+      } else {
+        System.err.println("Usage: RPCCallBenchmark [-threads n] " +
+            "[-handlers n] [-seconds n] [-compact]");
+        System.exit(-1);
+      }
+    }
+
+    Server server = RPC.getServer(new BenchmarkImpl(), "0.0.0.0", 0,
+                                  handlers, false, conf);
+    server.start();
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    final BenchmarkProtocol proxy = (BenchmarkProtocol)RPC.getProxy(
+        BenchmarkProtocol.class, BenchmarkProtocol.versionID, addr, conf);
+    final AtomicLong calls = new AtomicLong();
+    final long deadline = System.currentTimeMillis() + seconds * 1000L;
+
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread("RPCCallBenchmark-" + i) {
+        public void run() {
+          LongWritable value = new LongWritable(1);
+          long done = 0;
+          try {
+            while (System.currentTimeMillis() < deadline) {
+              proxy.ping();
+              proxy.add(done, 1);
+              proxy.echo("/benchmark", value);
+              done += 3;
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+          calls.addAndGet(done);
+        }
+      };
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    RPC.stopProxy(proxy);
+    server.stop();
+
+    double perSecond = calls.get() / (double)seconds;
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println("Calls:               " + calls.get());
+    System.out.println("Calls per second:    " + (long)perSecond);
+    System.out.println("Calls per sec/core:  " + (long)(perSecond / cores) +
+                       " (" + cores + " cores)");
+  }
+}
@@ -73,6 +73,8 @@ public class TestRPC extends TestCase {
     int error() throws IOException;
     void testServerGet() throws IOException;
     int[] exchange(int[] values) throws IOException;
+    String primitives(boolean z, byte b, char c, short s, int i, long l,
+                      float f, double d) throws IOException;
   }
 
   public class TestImpl implements TestProtocol {
@@ -134,6 +136,12 @@ public class TestRPC extends TestCase {
       return values;
     }
 
+    public String primitives(boolean z, byte b, char c, short s, int i,
+                             long l, float f, double d) {
+      return z + " " + b + " " + c + " " + s + " " + i + " " + l + " " +
+        f + " " + d;
+    }
+
     public ProtocolSignature getProtocolSignature(String protocol,
         long clientVersion, int clientMethodsHash) throws IOException {
       return ProtocolSignature.getProtocolSignature(
@@ -243,6 +251,16 @@ public class TestRPC extends TestCase {
 
 
   public void testCalls() throws Exception {
+    testCalls(conf);
+  }
+
+  public void testCallsWithCompactClassIds() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(Client.COMPACT_CLASS_IDS_NAME, true);
+    testCalls(conf);
+  }
+
+  private void testCalls(Configuration conf) throws Exception {
     Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
     TestProtocol proxy = null;
     try {
@@ -326,6 +344,96 @@ public class TestRPC extends TestCase {
     }
   }
   
+  private static String callPrimitives(TestProtocol proxy)
+    throws IOException {
+    return proxy.primitives(true, (byte)-3, 'x', (short)-300, -70000,
+                            Long.MIN_VALUE + 1, -1.5f, Math.PI);
+  }
+
+  /**
+   * Calls to methods with a registered invoker go through it, with the same
+   * parameters, results and errors as the calls made by reflection.
+   */
+  public void testInvokers() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
+    TestProtocol proxy = null;
+    String expected;
+    try {
+      server.start();
+      proxy = (TestProtocol)RPC.getProxy(TestProtocol.class,
+          TestProtocol.versionID, NetUtils.getConnectAddress(server), conf);
+      expected = callPrimitives(proxy);
+    } finally {
+      server.stop();
+      if (proxy != null) RPC.stopProxy(proxy);
+    }
+    assertEquals(new TestImpl().primitives(true, (byte)-3, 'x', (short)-300,
+        -70000, Long.MIN_VALUE + 1, -1.5f, Math.PI), expected);
+
+    final AtomicInteger invoked = new AtomicInteger();
+    RPC.registerInvoker(TestProtocol.class, "primitives",
+        new Class<?>[] {boolean.class, byte.class, char.class, short.class,
+            int.class, long.class, float.class, double.class},
+        new RPC.MethodInvoker() {
+          public Object invoke(Object instance, RPC.CallParameters p)
+            throws IOException {
+            invoked.incrementAndGet();
+            return ((TestProtocol)instance).primitives(
+                p.getBoolean(0), p.getByte(1), p.getChar(2), p.getShort(3),
+                p.getInt(4), p.getLong(5), p.getFloat(6), p.getDouble(7));
+          }
+        });
+    RPC.registerInvoker(TestProtocol.class, "echo",
+        new Class<?>[] {String.class},
+        new RPC.MethodInvoker() {
+          public Object invoke(Object instance, RPC.CallParameters p)
+            throws IOException {
+            invoked.incrementAndGet();
+            return ((TestProtocol)instance).echo((String)p.get(0));
+          }
+        });
+    RPC.registerInvoker(TestProtocol.class, "error", new Class<?>[0],
+        new RPC.MethodInvoker() {
+          public Object invoke(Object instance, RPC.CallParameters p)
+            throws IOException {
+            invoked.incrementAndGet();
+            return ((TestProtocol)instance).error();
+          }
+        });
+    assertNotNull(RPC.getInvoker(
+        TestProtocol.class.getMethod("echo", String.class)));
+    assertNull(RPC.getInvoker(
+        TestProtocol.class.getMethod("echo", String[].class)));
+
+    server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
+    proxy = null;
+    try {
+      server.start();
+      proxy = (TestProtocol)RPC.getProxy(TestProtocol.class,
+          TestProtocol.versionID, NetUtils.getConnectAddress(server), conf);
+      assertEquals(expected, callPrimitives(proxy));
+      assertEquals(1, invoked.get());
+      assertEquals("foo", proxy.echo("foo"));
+      assertNull(proxy.echo((String)null));
+      assertEquals(3, invoked.get());
+      // overloads without an invoker are still called by reflection
+      assertTrue(Arrays.equals(new String[] {"a"},
+                               proxy.echo(new String[] {"a"})));
+      assertEquals(3, invoked.get());
+      try {
+        proxy.error();
+        fail("error() returned");
+      } catch (RemoteException e) {
+        assertEquals(IOException.class.getName(), e.getClassName());
+        assertTrue(e.getMessage(), e.getMessage().contains("bobo"));
+      }
+      assertEquals(4, invoked.get());
+    } finally {
+      server.stop();
+      if (proxy != null) RPC.stopProxy(proxy);
+    }
+  }
+
   public void testStandaloneClient() throws IOException {
     try {
       RPC.waitForProxy(TestProtocol.class,
@@ -0,0 +1,239 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for the bulk computation and verification of the chunk
+ * checksums of DataChecksum, on arrays, heap and direct buffers.
+ */
+public class TestDataChecksum {
+  private static final int BYTES_PER_CHECKSUM = 512;
+  // the last chunk is a partial one
+  private static final int DATA_LEN = 64 * 1024 + 100;
+  private static final int[] TYPES = { DataChecksum.CHECKSUM_CRC32,
+                                       DataChecksum.CHECKSUM_CRC32C };
+
+  private static int numChunks(int len) {
+    return (len + BYTES_PER_CHECKSUM - 1) / BYTES_PER_CHECKSUM;
+  }
+
+  /** @return the checksums computed one chunk at a time */
+  private static byte[] chunkBySums(DataChecksum sum, byte[] data, int off,
+      int len) throws Exception {
+    byte[] sums = new byte[numChunks(len) * sum.getChecksumSize()];
+    for (int i = 0; i * BYTES_PER_CHECKSUM < len; i++) {
+      sum.update(data, off + i * BYTES_PER_CHECKSUM,
+          Math.min(BYTES_PER_CHECKSUM, len - i * BYTES_PER_CHECKSUM));
+      sum.writeValue(sums, i * sum.getChecksumSize(), true);
+    }
+    return sums;
+  }
+
+  @Test
+  public void testArrays() throws Exception {
+    Random random = new Random(0);
+    byte[] data = new byte[DATA_LEN + 10];
+    random.nextBytes(data);
+    for (int type : TYPES) {
+      DataChecksum sum = DataChecksum.newDataChecksum(type,
+          BYTES_PER_CHECKSUM);
+      byte[] expected = chunkBySums(sum, data, 10, DATA_LEN);
+      byte[] sums = new byte[expected.length + 3];
+      sum.calculateChunkedSums(data, 10, DATA_LEN, sums, 3);
+      for (int i = 0; i < expected.length; i++) {
+        Assert.assertEquals("type " + type + " at " + i, expected[i],
+            sums[i + 3]);
+      }
+      sum.verifyChunkedSums(data, 10, DATA_LEN, sums, 3, "test", 0);
+
+      // the position of the first bad chunk is reported
+      data[10 + 3 * BYTES_PER_CHECKSUM + 7]++;
+      data[10 + 5 * BYTES_PER_CHECKSUM]++;
+      try {
+        sum.verifyChunkedSums(data, 10, DATA_LEN, sums, 3, "test", 1000);
+        Assert.fail("Corrupt chunk not detected for type " + type);
+      } catch (ChecksumException ce) {
+        Assert.assertEquals(1000 + 3 * BYTES_PER_CHECKSUM, ce.getPos());
+      }
+      data[10 + 3 * BYTES_PER_CHECKSUM + 7]--;
+      data[10 + 5 * BYTES_PER_CHECKSUM]--;
+
+      // the last, partial chunk is verified too
+      data[10 + DATA_LEN - 1]++;
+      try {
+        sum.verifyChunkedSums(data, 10, DATA_LEN, sums, 3, "test", 0);
+        Assert.fail("Corrupt last chunk not detected for type " + type);
+      } catch (ChecksumException ce) {
+        Assert.assertEquals((numChunks(DATA_LEN) - 1) * BYTES_PER_CHECKSUM,
+            ce.getPos());
+      }
+      data[10 + DATA_LEN - 1]--;
+
+      // the running checksum is left reset
+      Assert.assertEquals(0, sum.getNumBytesInSum());
+      Assert.assertArrayEquals(expected, chunkBySums(sum, data, 10, DATA_LEN));
+    }
+  }
+
+  @Test
+  public void testHeapBuffers() throws Exception {
+    checkBuffers(false);
+  }
+
+  @Test
+  public void testDirectBuffers() throws Exception {
+    checkBuffers(true);
+  }
+
+  private void checkBuffers(boolean direct) throws Exception {
+    Random random = new Random(0);
+    byte[] bytes = new byte[DATA_LEN];
+    random.nextBytes(bytes);
+    for (int type : TYPES) {
+      DataChecksum sum = DataChecksum.newDataChecksum(type,
+          BYTES_PER_CHECKSUM);
+      byte[] expected = chunkBySums(sum, bytes, 0, DATA_LEN);
+
+      ByteBuffer data = allocate(DATA_LEN + 10, direct);
+      data.position(10);
+      data.put(bytes);
+      data.position(10);
+      ByteBuffer sums = allocate(expected.length + 4, direct);
+      sums.position(4);
+      sum.calculateChunkedSums(data, sums);
+      Assert.assertEquals(10, data.position());
+      Assert.assertEquals(4, sums.position());
+      for (int i = 0; i < expected.length; i++) {
+        Assert.assertEquals("type " + type + " at " + i, expected[i],
+            sums.get(i + 4));
+      }
+      sum.verifyChunkedSums(data, sums, "test", 0);
+
+      data.put(10 + 2 * BYTES_PER_CHECKSUM, (byte)(bytes[1024] + 1));
+      try {
+        sum.verifyChunkedSums(data, sums, "test", 0);
+        Assert.fail("Corrupt chunk not detected for type " + type);
+      } catch (ChecksumException ce) {
+        Assert.assertEquals(2 * BYTES_PER_CHECKSUM, ce.getPos());
+      }
+    }
+  }
+
+  private static ByteBuffer allocate(int size, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+
+  /**
+   * Compare the single core throughput of checksumming packets one chunk
+   * at a time with the bulk computation of all the chunks of a packet.
+   * This can be run from the command line with:
+   *
+   *   java -cp path/to/test/classes:path/to/common/classes \
+   *      'org.apache.hadoop.util.TestDataChecksum$PerformanceTest'
+   *
+   * The native CRC32C is used when the native library is on the
+   * java.library.path and the CPU supports SSE4.2.
+   */
+  public static class PerformanceTest {
+    public static final int BYTES_PER_TEST = 512 * 1024 * 1024;
+    public static final int PACKET_SIZE = 64 * 1024;
+
+    public static void main(String args[]) throws Exception {
+      doBench(System.out);
+    }
+
+    private static void doBench(PrintStream out) throws Exception {
+      byte[] data = new byte[PACKET_SIZE];
+      new Random().nextBytes(data);
+      out.printf("\nPerformance Table (MB/sec on one core, %d byte packets," +
+          " native CRC32C %s)\n", PACKET_SIZE,
+          NativeCrc32C.isAvailable() ? "available" : "not available");
+      out.printf("|| Type || Chunk by chunk || Bulk array || Bulk direct ||\n");
+      for (int type : TYPES) {
+        DataChecksum sum = DataChecksum.newDataChecksum(type,
+            BYTES_PER_CHECKSUM);
+        byte[] sums = new byte[numChunks(PACKET_SIZE) * sum.getChecksumSize()];
+        ByteBuffer directData = ByteBuffer.allocateDirect(PACKET_SIZE);
+        directData.put(data);
+        directData.flip();
+        ByteBuffer directSums = ByteBuffer.allocateDirect(sums.length);
+        sum.calculateChunkedSums(data, 0, PACKET_SIZE, sums, 0);
+        directSums.put(sums);
+        directSums.flip();
+
+        // warm up the jit
+        for (int i = 0; i < 3; i++) {
+          chunkByChunk(sum, data, sums);
+          bulkArray(sum, data, sums);
+          bulkDirect(sum, directData, directSums);
+        }
+        out.printf("| %6s | %14.1f | %10.1f | %11.1f |\n",
+            type == DataChecksum.CHECKSUM_CRC32 ? "CRC32" : "CRC32C",
+            chunkByChunk(sum, data, sums), bulkArray(sum, data, sums),
+            bulkDirect(sum, directData, directSums));
+      }
+    }
+
+    private static double mbPerSec(long startNanos) {
+      double mb = BYTES_PER_TEST / 1024.0 / 1024.0;
+      return mb / ((System.nanoTime() - startNanos) / 1000000000.0d);
+    }
+
+    /** Verify the way FSInputChecker did it before the bulk API */
+    private static double chunkByChunk(DataChecksum sum, byte[] data,
+        byte[] sums) throws ChecksumException {
+      long start = System.nanoTime();
+      for (int i = 0; i < BYTES_PER_TEST / PACKET_SIZE; i++) {
+        for (int off = 0; off < PACKET_SIZE; off += BYTES_PER_CHECKSUM) {
+          sum.update(data, off, BYTES_PER_CHECKSUM);
+          if (!sum.compare(sums, off / BYTES_PER_CHECKSUM * 4)) {
+            throw new ChecksumException("Checksum error", off);
+          }
+          sum.reset();
+        }
+      }
+      return mbPerSec(start);
+    }
+
+    private static double bulkArray(DataChecksum sum, byte[] data,
+        byte[] sums) throws ChecksumException {
+      long start = System.nanoTime();
+      for (int i = 0; i < BYTES_PER_TEST / PACKET_SIZE; i++) {
+        sum.verifyChunkedSums(data, 0, PACKET_SIZE, sums, 0, "bench", 0);
+      }
+      return mbPerSec(start);
+    }
+
+    private static double bulkDirect(DataChecksum sum, ByteBuffer data,
+        ByteBuffer sums) throws ChecksumException {
+      long start = System.nanoTime();
+      for (int i = 0; i < BYTES_PER_TEST / PACKET_SIZE; i++) {
+        sum.verifyChunkedSums(data, sums, "bench", 0);
+      }
+      return mbPerSec(start);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Unit test to verify that the pure-Java and the native CRC32C give the
+ * values of the CRC32C reference, and a throughput comparison with CRC32.
+ */
+public class TestPureJavaCrc32C {
+  private static final Log LOG = LogFactory.getLog(TestPureJavaCrc32C.class);
+
+  /** Bit at a time CRC32C, the reference for the table driven ones */
+  static class ReferenceCrc32C implements Checksum {
+    private static final int polynomial = 0x82F63B78;
+    private int crc;
+
+    ReferenceCrc32C() {
+      reset();
+    }
+
+    public long getValue() {
+      return (~crc) & 0xffffffffL;
+    }
+
+    public void reset() {
+      crc = 0xffffffff;
+    }
+
+    public void update(byte[] b, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        update(b[i]);
+      }
+    }
+
+    public void update(int b) {
+      crc ^= b & 0xff;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 1) == 1 ? (crc >>> 1) ^ polynomial : crc >>> 1;
+      }
+    }
+  }
+
+  @Test
+  public void testKnownValues() throws Exception {
+    // check values of RFC 3720 and of the usual "123456789" test
+    Assert.assertEquals(0xE3069283L, crc32c(new PureJavaCrc32C(),
+        "123456789".getBytes("UTF-8")));
+    Assert.assertEquals(0x8A9136AAL, crc32c(new PureJavaCrc32C(),
+        new byte[32]));
+    byte[] ones = new byte[32];
+    java.util.Arrays.fill(ones, (byte)0xff);
+    Assert.assertEquals(0x62A8AB43L, crc32c(new PureJavaCrc32C(), ones));
+    byte[] ascending = new byte[32];
+    for (int i = 0; i < ascending.length; i++) {
+      ascending[i] = (byte)i;
+    }
+    Assert.assertEquals(0x46DD794EL, crc32c(new PureJavaCrc32C(), ascending));
+  }
+
+  private static long crc32c(Checksum sum, byte[] b) {
+    sum.reset();
+    sum.update(b, 0, b.length);
+    return sum.getValue();
+  }
+
+  @Test
+  public void testCorrectness() throws Exception {
+    checkAgainstReference(new PureJavaCrc32C());
+  }
+
+  @Test
+  public void testNative() throws Exception {
+    if (!NativeCrc32C.isAvailable()) {
+      LOG.warn("Native CRC32C not available, skipping testNative");
+    }
+    Assume.assumeTrue(NativeCrc32C.isAvailable());
+    checkAgainstReference(new NativeCrc32C());
+  }
+
+  @Test
+  public void testDataChecksum() throws Exception {
+    DataChecksum sum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32C, 512, new PureJavaCrc32());
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32C, sum.getChecksumType());
+    Assert.assertEquals(4, sum.getChecksumSize());
+    byte[] data = "123456789".getBytes("UTF-8");
+    sum.update(data, 0, data.length);
+    byte[] value = new byte[4];
+    sum.writeValue(value, 0, false);
+    Assert.assertTrue(sum.compare(value, 0));
+    Assert.assertEquals(0xE3069283L, checksumValue(value));
+
+    // the type survives the header
+    DataChecksum fromHeader = DataChecksum.newDataChecksum(sum.getHeader(), 0);
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32C,
+        fromHeader.getChecksumType());
+    Assert.assertEquals(512, fromHeader.getBytesPerChecksum());
+
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32C,
+        DataChecksum.getChecksumType("crc32c"));
+    try {
+      DataChecksum.getChecksumType("MD5");
+      Assert.fail("Unknown checksum type accepted");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  private static long checksumValue(byte[] b) {
+    return ((b[0] & 0xffL) << 24) | ((b[1] & 0xff) << 16)
+        | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+  }
+
+  private void checkAgainstReference(Checksum ours) {
+    ReferenceCrc32C theirs = new ReferenceCrc32C();
+    Random random = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      byte[] bytes = new byte[random.nextInt(2048)];
+      random.nextBytes(bytes);
+      int off = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+      int len = bytes.length - off;
+
+      theirs.reset();
+      ours.reset();
+      theirs.update(bytes, off, len);
+      ours.update(bytes, off, len);
+      Assert.assertEquals(theirs.getValue(), ours.getValue());
+
+      // continue with single bytes and another array
+      theirs.update(i);
+      ours.update(i);
+      theirs.update(bytes, 0, bytes.length);
+      ours.update(bytes, 0, bytes.length);
+      Assert.assertEquals(theirs.getValue(), ours.getValue());
+    }
+  }
+
+  /**
+   * Compare the throughput of the CRC32 and CRC32C implementations on
+   * chunks of the usual bytesPerChecksum and on packets. This can be run
+   * from the command line with:
+   *
+   *   java -cp path/to/test/classes:path/to/common/classes \
+   *      'org.apache.hadoop.util.TestPureJavaCrc32C$PerformanceTest'
+   *
+   * The native CRC32C is included when the native library is on the
+   * java.library.path and the CPU supports SSE4.2.
+   */
+  public static class PerformanceTest {
+    public static final int BYTES_PER_SIZE = 256 * 1024 * 1024;
+    public static final int[] SIZES = {512, 4 * 1024, 64 * 1024};
+
+    public static void main(String args[]) {
+      List<Checksum> crcs = new ArrayList<Checksum>();
+      crcs.add(new CRC32());
+      crcs.add(new PureJavaCrc32());
+      crcs.add(new PureJavaCrc32C());
+      if (NativeCrc32C.isAvailable()) {
+        crcs.add(new NativeCrc32C());
+      }
+      doBench(crcs, System.out);
+    }
+
+    private static void doBench(List<Checksum> crcs, PrintStream out) {
+      final byte[] bytes = new byte[SIZES[SIZES.length - 1]];
+      new Random().nextBytes(bytes);
+
+      out.printf("\nPerformance Table (The unit is MB/sec)\n|| Num Bytes ||");
+      for (Checksum c : crcs) {
+        out.printf(" %15s ||", c.getClass().getSimpleName());
+      }
+      out.printf("\n");
+
+      // warm up the implementations to get the jit going
+      for (Checksum c : crcs) {
+        doBench(c, bytes, 512);
+      }
+      for (int size : SIZES) {
+        out.printf("| %9d |", size);
+        for (Checksum c : crcs) {
+          out.printf(" %15.1f |", doBench(c, bytes, size));
+        }
+        out.printf("\n");
+      }
+    }
+
+    /** @return MB/s of checksumming chunks of the given size */
+    private static double doBench(Checksum crc, byte[] bytes, int size) {
+      final int trials = BYTES_PER_SIZE / size;
+      final long st = System.nanoTime();
+      for (int i = 0; i < trials; i++) {
+        crc.reset();
+        crc.update(bytes, 0, size);
+      }
+      final long et = System.nanoTime();
+      double mbProcessed = trials * (double)size / 1024.0 / 1024.0;
+      return mbProcessed / ((et - st) / 1000000000.0d);
+    }
+  }
+}
@@ -351,6 +351,7 @@
 <hr>
 <h3>Cluster Summary</h3>
 <b> <%= jspHelper.getSafeModeText()%> </b>
+<b> <%= jspHelper.getReplQueueInitText()%> </b>
 <b> <%= jspHelper.getInodeLimitText()%> </b>
 <a class="warning" href="/corrupt_files.jsp" title="List corrupt files">
   <%= jspHelper.getWarningText(fsn)%>
@@ -76,6 +76,7 @@ void generateDecommissioningNodeData(JspWriter out, DatanodeDescriptor d,
     long currentTime = System.currentTimeMillis();
     long hoursSinceDecommStarted = (currentTime - decommRequestTime)/3600000;
     long remainderMinutes = ((currentTime - decommRequestTime)/60000) % 60;
+    long timeLeft = d.decommissioningStatus.getEstimatedTimeLeft();
     out.print("<td class=\"lastcontact\"> "
         + ((currentTime - timestamp) / 1000)
         + "<td class=\"underreplicatedblocks\">"
@@ -86,6 +87,10 @@ void generateDecommissioningNodeData(JspWriter out, DatanodeDescriptor d,
         + d.decommissioningStatus.getUnderReplicatedInOpenFiles()
         + "<td class=\"timesincedecommissionrequest\">"
         + hoursSinceDecommStarted + " hrs " + remainderMinutes + " mins"
+        + "<td class=\"decommissionprogress\">"
+        + d.decommissioningStatus.getPercentDone() + "%"
+        + "<td class=\"decommissioneta\">"
+        + (timeLeft < 0 ? "unknown" : (timeLeft / 60000) + " mins")
         + "\n");
 }
 
@@ -366,6 +371,9 @@ throws IOException {
 	                      + "> Under Replicated Blocks <br> In Files Under Construction"
 	                      + " <th " + NodeHeaderStr("timesincedecommissionrequest")
 	                      + "> Time Since Decommissioning Started"
+	                      + " <th " + NodeHeaderStr("decommissionprogress")
+	                      + "> Progress <th " + NodeHeaderStr("decommissioneta")
+	                      + "> Estimated <br> Time Left"
                           );
                           jspHelper.sortNodeList(decommissioning, "name", "ASC");
                           for (int i = 0; i < decommissioning.size(); i++) {